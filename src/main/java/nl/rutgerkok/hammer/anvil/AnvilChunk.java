@@ -1,10 +1,14 @@
 package nl.rutgerkok.hammer.anvil;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.Set;
 
 import nl.rutgerkok.hammer.Chunk;
 import nl.rutgerkok.hammer.anvil.chunksection.ChunkBlocks;
@@ -16,8 +20,10 @@ import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.OldSectionTag;
 import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.PointsOfInterestRootTag;
 import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.SectionTag;
 import nl.rutgerkok.hammer.material.MaterialData;
+import nl.rutgerkok.hammer.tag.CompoundKey;
 import nl.rutgerkok.hammer.tag.CompoundTag;
 import nl.rutgerkok.hammer.tag.ListTag;
+import nl.rutgerkok.hammer.tag.TagProjection;
 import nl.rutgerkok.hammer.tag.TagType;
 import nl.rutgerkok.hammer.util.MaterialNotFoundException;
 
@@ -36,6 +42,14 @@ public final class AnvilChunk implements Chunk {
      */
     public static final int MAX_BIOME_ID = 254;
 
+    /**
+     * The large parts of the chunk tag, which are only decoded once they are
+     * accessed if the chunk is loaded {@link ChunkWalkOptions#setLazyChunks(boolean)
+     * lazily}.
+     */
+    static final Set<CompoundKey<?>> LAZY_TAGS = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList(ChunkTag.SECTIONS, ChunkTag.HEIGHT_MAPS, ChunkTag.BIOMES)));
+
     private final CompoundTag chunkTag;
     private final AnvilGameFactory gameFactory;
     private final ChunkBlocks chunkSections;
@@ -51,6 +65,12 @@ public final class AnvilChunk implements Chunk {
 
     private final RegionNbtIo tagIo;
 
+    /**
+     * True if only a part of the chunk tag was read, in which case the chunk
+     * must not be saved.
+     */
+    private final boolean partial;
+
     /**
      * Creates a new chunk from the given data tag.
      *
@@ -62,17 +82,54 @@ public final class AnvilChunk implements Chunk {
      *             If the chunk fails to load.
      */
     AnvilChunk(AnvilGameFactory gameFactory, RegionNbtIo nbtIo) throws IOException {
+        this(gameFactory, nbtIo, loadChunkRootTag(nbtIo));
+    }
+
+    /**
+     * Creates a new chunk from an already loaded root tag.
+     *
+     * @param gameFactory
+     *            Game factory, for interpreting the raw data.
+     * @param nbtIo
+     *            Loader/saver for the other compound tags of the chunk.
+     * @param chunkRootTag
+     *            The root tag of the chunk, as stored in the
+     *            {@link RegionFileType#CHUNK} region file.
+     */
+    AnvilChunk(AnvilGameFactory gameFactory, RegionNbtIo nbtIo, CompoundTag chunkRootTag) {
+        this(gameFactory, nbtIo, chunkRootTag, false);
+    }
+
+    /**
+     * Creates a new chunk from an already loaded root tag.
+     *
+     * @param gameFactory
+     *            Game factory, for interpreting the raw data.
+     * @param nbtIo
+     *            Loader/saver for the other compound tags of the chunk.
+     * @param chunkRootTag
+     *            The root tag of the chunk, as stored in the
+     *            {@link RegionFileType#CHUNK} region file.
+     * @param partial
+     *            True if only a part of the root tag was read (see
+     *            {@link ChunkWalkOptions#setProjection(TagProjection)}). The
+     *            chunk then cannot be saved.
+     */
+    AnvilChunk(AnvilGameFactory gameFactory, RegionNbtIo nbtIo, CompoundTag chunkRootTag, boolean partial) {
+        this.partial = partial;
         this.gameFactory = Objects.requireNonNull(gameFactory, "gameFactory");
         this.tagIo = Objects.requireNonNull(nbtIo, "nbtIo");
 
-        CompoundTag chunkRootTag = nbtIo.loadTag(RegionFileType.CHUNK)
-                .orElseGet(nbtIo::createEmptyChunkRootTag);
         this.chunkTag = chunkRootTag.getCompound(ChunkRootTag.MINECRAFT);
         this.version = ChunkDataVersion.fromId(chunkRootTag.getInt(ChunkRootTag.DATA_VERSION));
 
         this.chunkSections = ChunkBlocks.create(version, gameFactory.getMaterialMap());
     }
 
+    private static CompoundTag loadChunkRootTag(RegionNbtIo nbtIo) throws IOException {
+        return nbtIo.loadTag(RegionFileType.CHUNK).orElseGet(nbtIo::createEmptyChunkRootTag);
+    }
+
     private void checkOutOfBounds(int x, int y, int z) {
         if (isOutOfBounds(x, y, z)) {
             throw new IndexOutOfBoundsException("(" + x + "," + y + "," + z
@@ -258,6 +315,21 @@ public final class AnvilChunk implements Chunk {
      *             If saving fails.
      */
     void save() throws IOException {
+        save(tagIo);
+    }
+
+    /**
+     * Hands all data of the chunk to the given writer.
+     *
+     * @param tagIo
+     *            The writer.
+     * @throws IOException
+     *             If saving fails.
+     */
+    void save(ChunkTagWriter tagIo) throws IOException {
+        if (partial) {
+            throw new IllegalStateException("Chunk was read using a projection, so it is incomplete and cannot be saved");
+        }
 
         // Save main data
         CompoundTag root = new CompoundTag();
@@ -1,21 +1,28 @@
 package nl.rutgerkok.hammer.anvil;
 
 import java.io.IOException;
+import java.util.Objects;
 
 import nl.rutgerkok.hammer.ChunkAccess;
 import nl.rutgerkok.hammer.anvil.RegionFileCache.Claim;
+import nl.rutgerkok.hammer.anvil.RegionFileCache.Pin;
 
 /**
  * Provides non-sequential access to the chunks in a world.
  *
+ * <p>
+ * Besides the parsed chunks, this class also gives access to the
+ * {@link RawChunk raw chunk data}, for tools that copy, merge or back up
+ * chunks without needing to know what's inside.
+ *
  */
-final class AnvilChunkAccess implements ChunkAccess<AnvilChunk> {
+public final class AnvilChunkAccess implements ChunkAccess<AnvilChunk> {
 
     private final RegionFileCache cache;
     private final Claim claim;
     private final AnvilGameFactory gameFactory;
 
-    public AnvilChunkAccess(AnvilGameFactory gameFactory, RegionFileCache cache) {
+    AnvilChunkAccess(AnvilGameFactory gameFactory, RegionFileCache cache) {
         this.gameFactory = gameFactory;
         this.cache = cache;
         this.claim = cache.claim();
@@ -26,6 +33,42 @@ final class AnvilChunkAccess implements ChunkAccess<AnvilChunk> {
         claim.close();
     }
 
+    /**
+     * Copies a chunk to another world (or to another position in this world)
+     * without decompressing it. If possible, the bytes are copied directly
+     * from region file to region file, without loading them into memory.
+     *
+     * @param type
+     *            The type of region file, for example
+     *            {@link RegionFileType#CHUNK}.
+     * @param chunkX
+     *            The chunk x.
+     * @param chunkZ
+     *            The chunk z.
+     * @param target
+     *            The chunk access to copy the chunk to. May be this instance.
+     * @param targetChunkX
+     *            The chunk x in the target.
+     * @param targetChunkZ
+     *            The chunk z in the target.
+     * @return True if the chunk was copied, false if the chunk doesn't exist.
+     *         In the latter case, the target is left untouched.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public boolean copyRawChunk(RegionFileType type, int chunkX, int chunkZ, AnvilChunkAccess target,
+            int targetChunkX, int targetChunkZ) throws IOException {
+        Objects.requireNonNull(type, "type");
+        // Keep both region files open while copying
+        try (Pin pin = cache.pin(chunkX >> 5, chunkZ >> 5);
+                Pin targetPin = target.cache.pin(targetChunkX >> 5, targetChunkZ >> 5)) {
+            RegionFile regionFile = cache.getRegionFile(type, chunkX, chunkZ);
+            RegionFile targetRegionFile = target.cache.getRegionFile(type, targetChunkX, targetChunkZ);
+            return regionFile.transferChunk(chunkX & 31, chunkZ & 31, targetRegionFile, targetChunkX & 31,
+                    targetChunkZ & 31);
+        }
+    }
+
     @Override
     public void deleteChunk(AnvilChunk chunk) throws IOException {
         new RegionNbtIo(ChunkDataVersion.latest(), cache, chunk.getChunkX(), chunk.getChunkZ()).deleteAllDataOfChunk();
@@ -36,8 +79,50 @@ final class AnvilChunkAccess implements ChunkAccess<AnvilChunk> {
         return new AnvilChunk(gameFactory, new RegionNbtIo(ChunkDataVersion.latest(), cache, chunkX, chunkZ));
     }
 
+    /**
+     * Gets the chunk data as it is stored on disk, so still compressed.
+     *
+     * @param type
+     *            The type of region file, for example
+     *            {@link RegionFileType#CHUNK}.
+     * @param chunkX
+     *            The chunk x.
+     * @param chunkZ
+     *            The chunk z.
+     * @return The chunk data, or null if the chunk doesn't exist.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public RawChunk getRawChunk(RegionFileType type, int chunkX, int chunkZ) throws IOException {
+        Objects.requireNonNull(type, "type");
+        return cache.getRegionFile(type, chunkX, chunkZ).readRawChunk(chunkX & 31, chunkZ & 31);
+    }
+
     @Override
     public void saveChunk(AnvilChunk chunk) throws IOException {
         chunk.save();
     }
-}
\ No newline at end of file
+
+    /**
+     * Saves chunk data that is already compressed, for example data obtained
+     * from {@link #getRawChunk(RegionFileType, int, int)}. The data is stored
+     * as-is, so the {@link RegionFileSettings} of the world are not used.
+     *
+     * @param type
+     *            The type of region file, for example
+     *            {@link RegionFileType#CHUNK}.
+     * @param chunkX
+     *            The chunk x.
+     * @param chunkZ
+     *            The chunk z.
+     * @param chunk
+     *            The chunk data.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public void saveRawChunk(RegionFileType type, int chunkX, int chunkZ, RawChunk chunk) throws IOException {
+        Objects.requireNonNull(type, "type");
+        Objects.requireNonNull(chunk, "chunk");
+        cache.getRegionFile(type, chunkX, chunkZ).writeRawChunk(chunkX & 31, chunkZ & 31, chunk);
+    }
+}
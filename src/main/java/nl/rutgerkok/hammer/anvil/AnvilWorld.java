@@ -4,9 +4,11 @@ import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
 
 import nl.rutgerkok.hammer.Chunk;
-import nl.rutgerkok.hammer.ChunkAccess;
 import nl.rutgerkok.hammer.GameFactory;
 import nl.rutgerkok.hammer.PlayerFile;
 import nl.rutgerkok.hammer.World;
@@ -17,6 +19,7 @@ import nl.rutgerkok.hammer.material.BlockDataMaterialMap;
 import nl.rutgerkok.hammer.material.BlockStatesMaterialMap;
 import nl.rutgerkok.hammer.material.GlobalMaterialMap;
 import nl.rutgerkok.hammer.tag.CompoundTag;
+import nl.rutgerkok.hammer.util.Progress;
 import nl.rutgerkok.hammer.util.Visitor;
 
 /**
@@ -33,6 +36,7 @@ public class AnvilWorld implements World {
     private final AnvilGameFactory gameFactory;
     private final Path levelDat;
     private final RegionFileCache regionFileCache;
+    private final RegionFileSettings regionFileSettings = new RegionFileSettings();
     private final CompoundTag tag;
 
     /**
@@ -53,11 +57,11 @@ public class AnvilWorld implements World {
         this.levelDat = levelDat.toAbsolutePath();
         this.tag = Files.exists(levelDat) ? AnvilNbtReader.readFromCompressedFile(levelDat) : new CompoundTag();
         this.gameFactory = new AnvilGameFactory(initMaterialMap(dictionary));
-        this.regionFileCache = new RegionFileCache(getRegionParentFolder());
+        this.regionFileCache = new RegionFileCache(getRegionParentFolder(), regionFileSettings);
     }
 
     @Override
-    public ChunkAccess<AnvilChunk> getChunkAccess() {
+    public AnvilChunkAccess getChunkAccess() {
         return new AnvilChunkAccess(gameFactory, regionFileCache);
     }
 
@@ -113,6 +117,17 @@ public class AnvilWorld implements World {
         return getDirectory(PLAYER_DIRECTORY_OLD);
     }
 
+    /**
+     * Gets the settings for writing region files, like the compression type of
+     * newly saved chunks. Changes to the settings apply to all chunks of this
+     * world that are saved afterwards.
+     *
+     * @return The settings.
+     */
+    public RegionFileSettings getRegionFileSettings() {
+        return regionFileSettings;
+    }
+
     public Path getRegionParentFolder() throws IOException {
         if (Files.exists(this.levelDat.resolveSibling("region"))) {
             // Just use the world folder
@@ -145,6 +160,158 @@ public class AnvilWorld implements World {
         return new AnvilMaterialMap(old, modern);
     }
 
+    /**
+     * Rewrites all chunks of this world using the compression type and level
+     * of the {@link #getRegionFileSettings() region file settings}. This is
+     * done on the compressed data, so it is a lot faster than walking all
+     * chunks and marking them as changed.
+     *
+     * <p>
+     * The {@link ChunkWalkOptions#setExecutor(java.util.concurrent.Executor)
+     * executor} and {@link ChunkWalkOptions#setParallelism(int) parallelism}
+     * of the options are used to recompress multiple region files at the same
+     * time. Other options are ignored.
+     *
+     * @param options
+     *            Options for walking the region files.
+     * @return A report with the sizes before and after.
+     * @throws IOException
+     *             If an IO error occurs, for example because a chunk is
+     *             corrupted. Chunks that were already recompressed stay
+     *             recompressed.
+     */
+    public RecompressionReport recompress(ChunkWalkOptions options) throws IOException {
+        return new RegionRecompression(regionFileCache, options).perform();
+    }
+
+    /**
+     * Reads all chunks in the world, passing their data to the visitor as a
+     * stream of events instead of as {@link AnvilChunk}s. No tags are created,
+     * so this uses a lot less memory and time than
+     * {@link #walkAnvilChunks(Visitor, ChunkWalkOptions)}, but the chunks can
+     * only be read, not changed.
+     *
+     * <p>
+     * The executor, parallelism, area, chunk predicate, modification moment,
+     * watermark file and sector ordering of the options are used. Other
+     * options are ignored.
+     *
+     * @param visitor
+     *            The visitor.
+     * @param options
+     *            Options for the scan.
+     * @throws IOException
+     *             If an IO error occurs, for example because a chunk is
+     *             corrupted.
+     */
+    public void scanChunks(ChunkStreamVisitor visitor, ChunkWalkOptions options) throws IOException {
+        new ChunkStreamScan(regionFileCache, options).perform(Objects.requireNonNull(visitor, "visitor"));
+    }
+
+    /**
+     * Reads all chunks in the world, passing their data to the visitor as a
+     * read-only {@link nl.rutgerkok.hammer.anvil.tag.CompoundView view}. Each
+     * chunk is decompressed into a buffer, and values are only decoded when
+     * the visitor requests them. This is a lot faster than
+     * {@link #walkAnvilChunks(Visitor, ChunkWalkOptions)} when only a few
+     * values of each chunk are needed, but the chunks can only be read, not
+     * changed.
+     *
+     * <p>
+     * The same options are used as for
+     * {@link #scanChunks(ChunkStreamVisitor, ChunkWalkOptions)}.
+     *
+     * @param visitor
+     *            The visitor.
+     * @param options
+     *            Options for the walk.
+     * @throws IOException
+     *             If an IO error occurs, for example because a chunk is
+     *             corrupted.
+     */
+    public void viewChunks(ChunkViewVisitor visitor, ChunkWalkOptions options) throws IOException {
+        new ChunkStreamScan(regionFileCache, options).performViews(Objects.requireNonNull(visitor, "visitor"));
+    }
+
+    /**
+     * Reads the headers of all region files of the given type. Only the first
+     * 8 KB of each region file are read, so this is a fast way to find out
+     * which chunks exist, how large they are and when they were last saved.
+     * The region files are opened in read-only mode, and they are not kept
+     * open.
+     *
+     * <p>
+     * The {@link ChunkWalkOptions#setExecutor(java.util.concurrent.Executor)
+     * executor} and {@link ChunkWalkOptions#setParallelism(int) parallelism}
+     * of the options are used to read multiple headers at the same time.
+     * Other options are ignored.
+     *
+     * @param type
+     *            The type of region files.
+     * @param options
+     *            Options for walking the region files.
+     * @return The headers.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public List<RegionHeader> scanRegionHeaders(RegionFileType type, ChunkWalkOptions options) throws IOException {
+        Objects.requireNonNull(type, "type");
+        RegionTaskRunner runner = new RegionTaskRunner(options.getExecutor(), options.getParallelism());
+        return RegionHeader.readAll(type, regionFileCache.listRegions(type), runner);
+    }
+
+    /**
+     * Compacts the region files of this world that contain a lot of free
+     * space, for example after many chunks were deleted: chunks are moved to
+     * the front of the file, after which the file is shrunk. This is done in
+     * small steps, so the world can still be used while this method is
+     * running; it's fine to call this method on a background thread.
+     *
+     * <p>
+     * The {@link ChunkWalkOptions#setExecutor(java.util.concurrent.Executor)
+     * executor} and {@link ChunkWalkOptions#setParallelism(int) parallelism}
+     * of the options are used to compact multiple region files at the same
+     * time. Other options are ignored.
+     *
+     * @param threshold
+     *            Region files are only compacted if at least this fraction of
+     *            their sectors is free, from 0 (always) to 1 (never, unless
+     *            the file is completely empty).
+     * @param options
+     *            Options for walking the region files.
+     * @return A report with the sizes before and after, and the problems
+     *         found in the region files.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public CompactionReport compact(double threshold, ChunkWalkOptions options) throws IOException {
+        return new RegionCompaction(regionFileCache, threshold, options).perform();
+    }
+
+    /**
+     * Moves chunks to the front of region files that contain a lot of free
+     * space, and then shrinks these files. This is done in small steps, so
+     * the world can still be used while this method is running; it's fine to
+     * call this method on a background thread.
+     *
+     * <p>
+     * This is the same as {@link #compact(double, ChunkWalkOptions)}, but
+     * only returns the amount of bytes that were saved.
+     *
+     * @param threshold
+     *            Region files are only defragmented if at least this fraction
+     *            of their sectors is free, from 0 (always) to 1 (never, unless
+     *            the file is completely empty).
+     * @param options
+     *            Options for walking the region files.
+     * @return The amount of bytes by which the region files shrank.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public long defragment(double threshold, ChunkWalkOptions options) throws IOException {
+        return compact(threshold, options).getBytesSaved();
+    }
+
     /**
      * Saves the tag if needed.
      *
@@ -166,12 +333,50 @@ public class AnvilWorld implements World {
      *             If an IO error occurs.
      */
     public void walkAnvilChunks(Visitor<AnvilChunk> visitor) throws IOException {
-        new ChunkWalk(gameFactory, regionFileCache).performWalk(visitor);
+        walkAnvilChunks(visitor, new ChunkWalkOptions());
+    }
+
+    /**
+     * Same as {@link #walkChunks(Visitor, ChunkWalkOptions)}, but may save you
+     * from casting the chunks.
+     *
+     * @param visitor
+     *            The visitor.
+     * @param options
+     *            Options for the walk, for example to walk in parallel.
+     * @return True if all chunks were visited, false if the walk was stopped
+     *         because of the {@link ChunkWalkOptions#setTimeLimit(Duration)
+     *         time limit}.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public boolean walkAnvilChunks(Visitor<AnvilChunk> visitor, ChunkWalkOptions options) throws IOException {
+        return new ChunkWalk(gameFactory, regionFileCache, options).performWalk(visitor);
     }
 
     @Override
     public void walkChunks(Visitor<Chunk> visitor) throws IOException {
-        new ChunkWalk(gameFactory, regionFileCache).performWalk(visitor);
+        walkChunks(visitor, new ChunkWalkOptions());
+    }
+
+    /**
+     * Walks along all chunks in the world, using the given options.
+     *
+     * @param visitor
+     *            The method {@link Visitor#accept(Object, Progress)} is called
+     *            for every chunk in the world. Must be thread safe if the
+     *            options specify a parallel walk.
+     * @param options
+     *            Options for the walk, for example to walk in parallel.
+     * @return True if all chunks were visited, false if the walk was stopped
+     *         because of the {@link ChunkWalkOptions#setTimeLimit(Duration)
+     *         time limit}.
+     * @throws IOException
+     *             If an IO error occurs.
+     * @see #walkChunks(Visitor)
+     */
+    public boolean walkChunks(Visitor<Chunk> visitor, ChunkWalkOptions options) throws IOException {
+        return new ChunkWalk(gameFactory, regionFileCache, options).performWalk(visitor);
     }
 
     @Override
@@ -0,0 +1,318 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An area of chunks in a world. Used to {@link ChunkWalkOptions#setArea(ChunkArea)
+ * restrict} a walk to only a part of the world. All coordinates are chunk
+ * coordinates, so block coordinates must be divided by 16 first.
+ *
+ */
+public abstract class ChunkArea {
+
+    private static final class Box extends ChunkArea {
+        private final int minChunkX;
+        private final int minChunkZ;
+        private final int maxChunkX;
+        private final int maxChunkZ;
+
+        private Box(int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+            this.minChunkX = minChunkX;
+            this.minChunkZ = minChunkZ;
+            this.maxChunkX = maxChunkX;
+            this.maxChunkZ = maxChunkZ;
+        }
+
+        @Override
+        public boolean contains(int chunkX, int chunkZ) {
+            return chunkX >= minChunkX && chunkX <= maxChunkX && chunkZ >= minChunkZ && chunkZ <= maxChunkZ;
+        }
+
+        @Override
+        public boolean intersects(int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+            return minChunkX <= this.maxChunkX && maxChunkX >= this.minChunkX && minChunkZ <= this.maxChunkZ
+                    && maxChunkZ >= this.minChunkZ;
+        }
+
+        @Override
+        public String toString() {
+            return "Box [" + minChunkX + ", " + minChunkZ + " - " + maxChunkX + ", " + maxChunkZ + "]";
+        }
+    }
+
+    private static final class Circle extends ChunkArea {
+        private final int centerChunkX;
+        private final int centerChunkZ;
+        private final long radiusSquared;
+
+        private Circle(int centerChunkX, int centerChunkZ, int radius) {
+            this.centerChunkX = centerChunkX;
+            this.centerChunkZ = centerChunkZ;
+            this.radiusSquared = (long) radius * radius;
+        }
+
+        @Override
+        public boolean contains(int chunkX, int chunkZ) {
+            long dx = chunkX - centerChunkX;
+            long dz = chunkZ - centerChunkZ;
+            return dx * dx + dz * dz <= radiusSquared;
+        }
+
+        @Override
+        public boolean intersects(int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+            // Distance from the center to the closest chunk in the box
+            long dx = Math.max(Math.max(minChunkX - (long) centerChunkX, (long) centerChunkX - maxChunkX), 0);
+            long dz = Math.max(Math.max(minChunkZ - (long) centerChunkZ, (long) centerChunkZ - maxChunkZ), 0);
+            return dx * dx + dz * dz <= radiusSquared;
+        }
+
+        @Override
+        public String toString() {
+            return "Circle [" + centerChunkX + ", " + centerChunkZ + ", radius=" + Math.sqrt(radiusSquared) + "]";
+        }
+    }
+
+    private static final class Polygon extends ChunkArea {
+
+        /**
+         * Checks whether the line segment from (x1, z1) to (x2, z2) touches
+         * the given rectangle, by clipping the segment to the rectangle.
+         */
+        private static boolean segmentIntersects(double x1, double z1, double x2, double z2, double minX,
+                double minZ, double maxX, double maxZ) {
+            double dx = x2 - x1;
+            double dz = z2 - z1;
+            double[] directions = { -dx, dx, -dz, dz };
+            double[] distances = { x1 - minX, maxX - x1, z1 - minZ, maxZ - z1 };
+            double start = 0;
+            double end = 1;
+            for (int i = 0; i < directions.length; i++) {
+                if (directions[i] == 0) {
+                    if (distances[i] < 0) {
+                        return false; // Parallel to and outside this side
+                    }
+                    continue;
+                }
+                double t = distances[i] / directions[i];
+                if (directions[i] < 0) {
+                    start = Math.max(start, t);
+                } else {
+                    end = Math.min(end, t);
+                }
+                if (start > end) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private final int[] xs;
+        private final int[] zs;
+
+        private Polygon(int[] xs, int[] zs) {
+            this.xs = xs;
+            this.zs = zs;
+        }
+
+        @Override
+        public boolean contains(int chunkX, int chunkZ) {
+            // Test the center of the chunk, so that chunks on the edge are
+            // included if most of the chunk is inside
+            return containsPoint(chunkX + 0.5, chunkZ + 0.5);
+        }
+
+        /**
+         * Checks whether the point is inside, using the even-odd rule: a ray
+         * from the point in the +x direction crosses the edges an odd number
+         * of times.
+         */
+        private boolean containsPoint(double x, double z) {
+            boolean inside = false;
+            for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+                if ((zs[i] > z) != (zs[j] > z)
+                        && x < xs[j] + (double) (xs[i] - xs[j]) * (z - zs[j]) / (zs[i] - zs[j])) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+
+        @Override
+        public boolean intersects(int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+            // May return true if the polygon only comes close, which is fine
+            double minX = minChunkX;
+            double minZ = minChunkZ;
+            double maxX = maxChunkX + 1.0;
+            double maxZ = maxChunkZ + 1.0;
+            for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+                if (segmentIntersects(xs[j], zs[j], xs[i], zs[i], minX, minZ, maxX, maxZ)) {
+                    return true;
+                }
+            }
+            // No edge touches the rectangle, so the rectangle is either
+            // completely inside or completely outside
+            return containsPoint((minX + maxX) / 2, (minZ + maxZ) / 2);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Polygon [");
+            for (int i = 0; i < xs.length; i++) {
+                if (i > 0) {
+                    builder.append(", ");
+                }
+                builder.append('(').append(xs[i]).append(", ").append(zs[i]).append(')');
+            }
+            return builder.append(']').toString();
+        }
+    }
+
+    private static final class Union extends ChunkArea {
+        private final List<ChunkArea> areas;
+
+        private Union(List<ChunkArea> areas) {
+            this.areas = areas;
+        }
+
+        @Override
+        public boolean contains(int chunkX, int chunkZ) {
+            for (ChunkArea area : areas) {
+                if (area.contains(chunkX, chunkZ)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean intersects(int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+            for (ChunkArea area : areas) {
+                if (area.intersects(minChunkX, minChunkZ, maxChunkX, maxChunkZ)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "Union " + areas;
+        }
+    }
+
+    /**
+     * Creates a rectangular area. Both corners are included in the area.
+     *
+     * @param chunkX1
+     *            X of one corner.
+     * @param chunkZ1
+     *            Z of one corner.
+     * @param chunkX2
+     *            X of the opposite corner.
+     * @param chunkZ2
+     *            Z of the opposite corner.
+     * @return The area.
+     */
+    public static ChunkArea box(int chunkX1, int chunkZ1, int chunkX2, int chunkZ2) {
+        return new Box(Math.min(chunkX1, chunkX2), Math.min(chunkZ1, chunkZ2), Math.max(chunkX1, chunkX2),
+                Math.max(chunkZ1, chunkZ2));
+    }
+
+    /**
+     * Creates a circular area.
+     *
+     * @param centerChunkX
+     *            X of the chunk at the center.
+     * @param centerChunkZ
+     *            Z of the chunk at the center.
+     * @param radius
+     *            The radius, in chunks. Chunks at exactly this distance from
+     *            the center are included.
+     * @return The area.
+     * @throws IllegalArgumentException
+     *             If the radius is negative.
+     */
+    public static ChunkArea circle(int centerChunkX, int centerChunkZ, int radius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("radius cannot be negative, was " + radius);
+        }
+        return new Circle(centerChunkX, centerChunkZ, radius);
+    }
+
+    /**
+     * Creates an area in the shape of a polygon. A chunk is inside the area if
+     * its center is inside the polygon.
+     *
+     * @param chunkXs
+     *            The x coordinates of the corners.
+     * @param chunkZs
+     *            The z coordinates of the corners.
+     * @return The area.
+     * @throws IllegalArgumentException
+     *             If there are less than three corners, or if the arrays have
+     *             different lengths.
+     */
+    public static ChunkArea polygon(int[] chunkXs, int[] chunkZs) {
+        if (chunkXs.length != chunkZs.length) {
+            throw new IllegalArgumentException(
+                    "got " + chunkXs.length + " x coordinates, but " + chunkZs.length + " z coordinates");
+        }
+        if (chunkXs.length < 3) {
+            throw new IllegalArgumentException("a polygon needs at least three corners, got " + chunkXs.length);
+        }
+        return new Polygon(chunkXs.clone(), chunkZs.clone());
+    }
+
+    /**
+     * Creates an area that contains all chunks of the given areas.
+     *
+     * @param areas
+     *            The areas.
+     * @return The area.
+     */
+    public static ChunkArea union(ChunkArea... areas) {
+        List<ChunkArea> list = new ArrayList<>(Arrays.asList(areas));
+        for (ChunkArea area : list) {
+            Objects.requireNonNull(area, "area");
+        }
+        return new Union(Collections.unmodifiableList(list));
+    }
+
+    private ChunkArea() {
+        // Only the subclasses in this file
+    }
+
+    /**
+     * Checks whether the given chunk is inside this area.
+     *
+     * @param chunkX
+     *            The chunk x.
+     * @param chunkZ
+     *            The chunk z.
+     * @return True if the chunk is inside, false otherwise.
+     */
+    public abstract boolean contains(int chunkX, int chunkZ);
+
+    /**
+     * Checks whether any chunk in the given rectangle may be inside this
+     * area. If this method returns false, none of the chunks are inside the
+     * area. If it returns true, usually some of the chunks are inside the
+     * area, but this is not guaranteed.
+     *
+     * @param minChunkX
+     *            Lowest chunk x of the rectangle, inclusive.
+     * @param minChunkZ
+     *            Lowest chunk z of the rectangle, inclusive.
+     * @param maxChunkX
+     *            Highest chunk x of the rectangle, inclusive.
+     * @param maxChunkZ
+     *            Highest chunk z of the rectangle, inclusive.
+     * @return False if none of the chunks are inside this area, true
+     *         otherwise.
+     */
+    public abstract boolean intersects(int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ);
+}
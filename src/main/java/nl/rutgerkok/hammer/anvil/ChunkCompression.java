@@ -0,0 +1,356 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+
+/**
+ * A compression type for chunks stored in region files. Every chunk in a
+ * region file starts with a byte indicating the compression type, so that
+ * chunks with different compression types can be mixed in a single file.
+ *
+ * <p>
+ * The compression types used by Minecraft are available as constants and are
+ * always registered. Other compression types can be added using
+ * {@link #register(ChunkCompression)}.
+ *
+ * @see RegionFileSettings#setWriteCompression(ChunkCompression)
+ */
+public abstract class ChunkCompression {
+
+    /**
+     * Highest id a compression type can have. The highest bit of the
+     * compression byte is reserved by Minecraft.
+     */
+    private static final int MAX_ID = 127;
+
+    /**
+     * Compression level that lets the compression type pick a good balance
+     * between speed and size.
+     */
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    private static final AtomicReferenceArray<ChunkCompression> BY_ID = new AtomicReferenceArray<>(MAX_ID + 1);
+
+    /**
+     * GZIP compression, used by very old versions of Minecraft.
+     */
+    public static final ChunkCompression GZIP = register(new ChunkCompression(1, "GZIP") {
+        @Override
+        public void compress(byte[] data, int offset, int length, OutputStream out, int level) throws IOException {
+            GZIPOutputStream compressing = new GZIPOutputStream(nonClosing(out)) {
+                {
+                    def.setLevel(level);
+                }
+            };
+            compressing.write(data, offset, length);
+            compressing.close();
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new BufferedInputStream(new GZIPInputStream(in));
+        }
+    });
+
+    /**
+     * Zlib compression, the default of Minecraft.
+     */
+    public static final ChunkCompression DEFLATE = register(new ChunkCompression(2, "DEFLATE") {
+        @Override
+        public void compress(byte[] data, int offset, int length, OutputStream out, int level) throws IOException {
+            Deflater deflater = RegionIoPool.acquireDeflater(level);
+            byte[] buffer = RegionIoPool.acquireBuffer(0);
+            try {
+                deflater.setInput(data, offset, length);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int written = deflater.deflate(buffer);
+                    out.write(buffer, 0, written);
+                }
+            } finally {
+                RegionIoPool.releaseBuffer(buffer);
+                RegionIoPool.releaseDeflater(deflater);
+            }
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return new DeflaterOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(byte[] data, int offset, int length) throws IOException {
+            // Inflate everything at once, so that no stream objects are needed
+            Inflater inflater = RegionIoPool.acquireInflater();
+            byte[] buffer = RegionIoPool.acquireBuffer(length * 4);
+            int size = 0;
+            try {
+                inflater.setInput(data, offset, length);
+                while (!inflater.finished()) {
+                    if (size == buffer.length) {
+                        byte[] larger = RegionIoPool.acquireBuffer(buffer.length * 2);
+                        System.arraycopy(buffer, 0, larger, 0, size);
+                        RegionIoPool.releaseBuffer(buffer);
+                        buffer = larger;
+                    }
+                    int inflated = inflater.inflate(buffer, size, buffer.length - size);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new EOFException("Unexpected end of zlib data");
+                    }
+                    size += inflated;
+                }
+            } catch (DataFormatException e) {
+                RegionIoPool.releaseBuffer(buffer);
+                throw new ZipException(e.getMessage());
+            } catch (IOException | RuntimeException e) {
+                RegionIoPool.releaseBuffer(buffer);
+                throw e;
+            } finally {
+                RegionIoPool.releaseInflater(inflater);
+            }
+            return new PooledByteArrayInputStream(buffer, 0, size);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return new BufferedInputStream(new InflaterInputStream(in));
+        }
+    });
+
+    /**
+     * No compression at all. Fastest to read and write, but takes the most
+     * disk space.
+     */
+    public static final ChunkCompression NONE = register(new ChunkCompression(3, "NONE") {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    });
+
+    /**
+     * LZ4 compression, supported since Minecraft 1.20.5. Much faster than
+     * {@link #DEFLATE}, at the cost of somewhat larger files.
+     */
+    public static final ChunkCompression LZ4 = register(new ChunkCompression(4, "LZ4") {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return new LZ4BlockOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return new LZ4BlockInputStream(in);
+        }
+    });
+
+    /**
+     * Gets the compression type with the given id.
+     *
+     * @param id
+     *            The id, as stored in the region file.
+     * @return The compression type, or null if no compression type with that
+     *         id is registered.
+     */
+    public static ChunkCompression byId(int id) {
+        if (id < 0 || id > MAX_ID) {
+            return null;
+        }
+        return BY_ID.get(id);
+    }
+
+    /**
+     * Registers a new compression type, so that chunks stored using it can be
+     * read.
+     *
+     * @param compression
+     *            The compression type.
+     * @return The compression type, for chaining.
+     * @throws IllegalArgumentException
+     *             If another compression type with the same id was already
+     *             registered.
+     */
+    public static <C extends ChunkCompression> C register(C compression) {
+        int id = compression.getId();
+        if (!BY_ID.compareAndSet(id, null, compression)) {
+            throw new IllegalArgumentException("Id " + id + " of " + compression + " is already used by " + BY_ID.get(id));
+        }
+        return compression;
+    }
+
+    /**
+     * Wraps the given stream so that closing it only flushes it.
+     */
+    private static OutputStream nonClosing(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void close() throws IOException {
+                // Don't close the given stream
+                flush();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    private final int id;
+    private final String name;
+
+    /**
+     * Creates a new compression type.
+     *
+     * @param id
+     *            The id, as stored in the region file. Must be from 1 to 127.
+     * @param name
+     *            The name, used in {@link #toString()}.
+     */
+    protected ChunkCompression(int id, String name) {
+        if (id < 1 || id > MAX_ID) {
+            throw new IllegalArgumentException("id must be from 1 to " + MAX_ID + ", was " + id);
+        }
+        this.id = id;
+        this.name = Objects.requireNonNull(name, "name");
+    }
+
+    /**
+     * Gets a stream that compresses all data written to it. Closing the
+     * returned stream must also close the given stream.
+     *
+     * @param out
+     *            The stream to write the compressed data to.
+     * @return The compressing stream.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Compresses the given data using the {@link #DEFAULT_LEVEL default
+     * level}, and writes it to the given stream. The stream is not closed.
+     *
+     * @param data
+     *            Array with the data.
+     * @param offset
+     *            Position of the data in the array.
+     * @param length
+     *            Length of the data.
+     * @param out
+     *            The stream to write the compressed data to.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public void compress(byte[] data, int offset, int length, OutputStream out) throws IOException {
+        compress(data, offset, length, out, DEFAULT_LEVEL);
+    }
+
+    /**
+     * Compresses the given data using the given compression level, and writes
+     * it to the given stream. The stream is not closed.
+     *
+     * <p>
+     * The default implementation ignores the level, and writes the data to
+     * {@link #compress(OutputStream)}. Subclasses can override this method to
+     * support compression levels, or to avoid creating new streams for every
+     * chunk.
+     *
+     * @param data
+     *            Array with the data.
+     * @param offset
+     *            Position of the data in the array.
+     * @param length
+     *            Length of the data.
+     * @param out
+     *            The stream to write the compressed data to.
+     * @param level
+     *            The compression level, from 0 (fastest) to 9 (smallest), or
+     *            {@link #DEFAULT_LEVEL}.
+     * @throws IOException
+     *             If an IO error occurs.
+     * @see RegionFileSettings#setCompressionLevel(int)
+     */
+    public void compress(byte[] data, int offset, int length, OutputStream out, int level) throws IOException {
+        OutputStream compressing = compress(nonClosing(out));
+        compressing.write(data, offset, length);
+        compressing.close();
+    }
+
+    /**
+     * Gets a stream that decompresses the given data. The data must not be
+     * modified until the returned stream is closed.
+     *
+     * <p>
+     * The default implementation wraps the data in a
+     * {@link ByteArrayInputStream} and passes it to
+     * {@link #decompress(InputStream)}. Subclasses can override this method to
+     * avoid creating new streams for every chunk.
+     *
+     * @param data
+     *            Array with the compressed data.
+     * @param offset
+     *            Position of the compressed data in the array.
+     * @param length
+     *            Length of the compressed data.
+     * @return The decompressed data.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public InputStream decompress(byte[] data, int offset, int length) throws IOException {
+        return decompress(new ByteArrayInputStream(data, offset, length));
+    }
+
+    /**
+     * Gets a stream that decompresses the given data.
+     *
+     * @param in
+     *            The compressed data.
+     * @return The decompressed data.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * Gets the id of this compression type, as stored in the region file.
+     *
+     * @return The id.
+     */
+    public final int getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
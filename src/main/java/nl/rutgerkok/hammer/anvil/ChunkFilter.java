@@ -0,0 +1,206 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+import nl.rutgerkok.hammer.anvil.RegionFileCache.RegionKey;
+
+/**
+ * Decides which regions and chunks a walk visits, based on the
+ * {@link ChunkWalkOptions}: the area, the chunk predicate and the moment
+ * chunks must have been modified after. Regions are filtered before they are
+ * opened, and chunks are filtered using only the header of the region file,
+ * so skipped chunks are never read.
+ *
+ */
+final class ChunkFilter {
+
+    /**
+     * Creates a filter for the given options. If the options have a watermark
+     * file, that file is read.
+     *
+     * @param options
+     *            The options.
+     * @param checkpoint
+     *            Chunks and regions already handled according to this
+     *            checkpoint are skipped.
+     * @return The filter.
+     * @throws IOException
+     *             If the watermark file exists, but cannot be read.
+     */
+    static ChunkFilter of(ChunkWalkOptions options, ChunkWalkCheckpoint checkpoint) throws IOException {
+        Instant modifiedSince = options.getModifiedSince();
+        Path watermarkFile = options.getWatermarkFile();
+        if (watermarkFile != null && Files.exists(watermarkFile)) {
+            Instant watermark = readWatermark(watermarkFile);
+            if (modifiedSince == null || watermark.isAfter(modifiedSince)) {
+                modifiedSince = watermark;
+            }
+        }
+        return new ChunkFilter(options.getArea(), options.getChunkPredicate(), modifiedSince, watermarkFile,
+                Objects.requireNonNull(checkpoint, "checkpoint"));
+    }
+
+    private static Instant readWatermark(Path watermarkFile) throws IOException {
+        String contents = new String(Files.readAllBytes(watermarkFile), StandardCharsets.UTF_8).trim();
+        try {
+            return Instant.parse(contents);
+        } catch (DateTimeParseException e) {
+            throw new IOException("Invalid watermark in " + watermarkFile + ": \"" + contents + "\"", e);
+        }
+    }
+
+    /**
+     * Null if the whole world is walked.
+     */
+    private final ChunkArea area;
+    /**
+     * Null if all chunks are accepted.
+     */
+    private final Predicate<? super ChunkHeader> chunkPredicate;
+    /**
+     * Null if all chunks are accepted.
+     */
+    private final Instant modifiedSince;
+    private final long modifiedSinceSeconds;
+    private final Path watermarkFile;
+    private final ChunkWalkCheckpoint checkpoint;
+
+    private ChunkFilter(ChunkArea area, Predicate<? super ChunkHeader> chunkPredicate, Instant modifiedSince,
+            Path watermarkFile, ChunkWalkCheckpoint checkpoint) {
+        this.area = area;
+        this.chunkPredicate = chunkPredicate;
+        this.modifiedSince = modifiedSince;
+        this.modifiedSinceSeconds = modifiedSince == null ? Long.MIN_VALUE : modifiedSince.getEpochSecond();
+        this.watermarkFile = watermarkFile;
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Checks whether the chunk at the given position in the region file must
+     * be visited. The chunk must exist.
+     *
+     * @param regionFile
+     *            The region file.
+     * @param localChunkX
+     *            Chunk x in the region file.
+     * @param localChunkZ
+     *            Chunk z in the region file.
+     * @return True if the chunk must be visited, false otherwise.
+     */
+    boolean acceptsChunk(RegionFile regionFile, int localChunkX, int localChunkZ) {
+        if (area != null && !area.contains(regionFile.getStartChunkX() + localChunkX,
+                regionFile.getStartChunkZ() + localChunkZ)) {
+            return false;
+        }
+        // Timestamps have a precision of a second, so a chunk saved in the
+        // same second as the cutoff is visited again
+        if (modifiedSince != null
+                && (regionFile.getTimestamp(localChunkX, localChunkZ) & 0xffffffffL) < modifiedSinceSeconds) {
+            return false;
+        }
+        if (checkpoint.isChunkDone(regionFile.getStartChunkX() + localChunkX,
+                regionFile.getStartChunkZ() + localChunkZ)) {
+            return false;
+        }
+        if (chunkPredicate != null) {
+            ChunkHeader header = regionFile.getChunkHeader(localChunkX, localChunkZ);
+            return header != null && chunkPredicate.test(header);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the chunks that must not be visited.
+     *
+     * @param regionFile
+     *            The region file.
+     * @param indices
+     *            Indices of existing chunks in the region file
+     *            ({@code x + z * 32}).
+     * @return The indices of the chunks that must be visited, in the same
+     *         order.
+     */
+    int[] filterChunks(RegionFile regionFile, int[] indices) {
+        int count = 0;
+        int[] filtered = new int[indices.length];
+        for (int index : indices) {
+            if (acceptsChunk(regionFile, index % RegionFile.REGION_CHUNK_COUNT, index / RegionFile.REGION_CHUNK_COUNT)) {
+                filtered[count++] = index;
+            }
+        }
+        return Arrays.copyOf(filtered, count);
+    }
+
+    /**
+     * Removes the regions that cannot contain any chunks that must be visited.
+     * This is checked using the region coordinates, the checkpoint and the
+     * last modification time of the files, so the region files are not
+     * opened.
+     *
+     * @param regions
+     *            The regions.
+     * @return The regions that must be walked.
+     * @throws IOException
+     *             If an IO error occurs reading the modification time.
+     */
+    List<RegionKey> filterRegions(List<RegionKey> regions) throws IOException {
+        List<RegionKey> filtered = new ArrayList<>(regions.size());
+        for (RegionKey region : regions) {
+            if (checkpoint.isRegionDone(region.regionX, region.regionZ)) {
+                continue;
+            }
+            int startChunkX = region.regionX << 5;
+            int startChunkZ = region.regionZ << 5;
+            if (area != null && !area.intersects(startChunkX, startChunkZ,
+                    startChunkX + RegionFile.REGION_CHUNK_COUNT - 1, startChunkZ + RegionFile.REGION_CHUNK_COUNT - 1)) {
+                continue;
+            }
+            if (modifiedSince != null
+                    && Files.getLastModifiedTime(region.file).toInstant().getEpochSecond() < modifiedSinceSeconds) {
+                continue;
+            }
+            filtered.add(region);
+        }
+        return filtered;
+    }
+
+    /**
+     * Records that the walk has completed, by writing the time the walk
+     * started to the watermark file. The next walk then only visits chunks
+     * that were saved after that time. Does nothing if no watermark file was
+     * set.
+     *
+     * @param walkStart
+     *            The time the walk started.
+     * @throws IOException
+     *             If writing the file fails.
+     */
+    void walkCompleted(Instant walkStart) throws IOException {
+        Objects.requireNonNull(walkStart, "walkStart");
+        if (watermarkFile == null) {
+            return;
+        }
+        // Write to a temporary file first, so that a crash never leaves an
+        // incomplete watermark behind
+        Path tempFile = watermarkFile.resolveSibling(watermarkFile.getFileName().toString() + "-TEMP");
+        Files.write(tempFile, walkStart.toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            Files.move(tempFile, watermarkFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, watermarkFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.time.Instant;
+
+/**
+ * The entry of a single chunk in the header of a region file: where the chunk
+ * is stored and when it was last saved. Obtained without reading the chunk
+ * itself.
+ *
+ * @see RegionHeader
+ */
+public final class ChunkHeader {
+
+    private final int chunkX;
+    private final int chunkZ;
+    private final int offset;
+    private final int timestamp;
+
+    ChunkHeader(int chunkX, int chunkZ, int offset, int timestamp) {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.offset = offset;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Gets the amount of bytes that are reserved for this chunk in the region
+     * file. The chunk itself is usually a bit smaller, as it is padded to a
+     * whole number of sectors. Chunks that are stored in a separate file still
+     * take up one sector.
+     *
+     * @return The amount of bytes.
+     */
+    public int getAllocatedBytes() {
+        return getSectorCount() * RegionFile.SECTOR_BYTES;
+    }
+
+    /**
+     * Gets the chunk x in the world.
+     *
+     * @return The chunk x.
+     */
+    public int getChunkX() {
+        return chunkX;
+    }
+
+    /**
+     * Gets the chunk z in the world.
+     *
+     * @return The chunk z.
+     */
+    public int getChunkZ() {
+        return chunkZ;
+    }
+
+    /**
+     * Gets the moment the chunk was last saved, as recorded in the header.
+     *
+     * @return The moment, with a precision of a second.
+     */
+    public Instant getLastModified() {
+        return Instant.ofEpochSecond(timestamp & 0xffffffffL);
+    }
+
+    /**
+     * Gets the amount of sectors that are reserved for this chunk.
+     *
+     * @return The amount of sectors.
+     */
+    public int getSectorCount() {
+        return offset & 0xFF;
+    }
+
+    /**
+     * Gets the index of the first sector of the chunk in the region file.
+     * Reading chunks in the order of this number results in sequential reads.
+     *
+     * @return The sector index.
+     */
+    public int getSectorNumber() {
+        return offset >>> 8;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkHeader [chunkX=" + chunkX + ", chunkZ=" + chunkZ + ", sectorNumber=" + getSectorNumber()
+                + ", sectorCount=" + getSectorCount() + ", lastModified=" + getLastModified() + "]";
+    }
+}
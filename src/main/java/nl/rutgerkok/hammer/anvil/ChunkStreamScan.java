@@ -0,0 +1,219 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import nl.rutgerkok.hammer.anvil.RegionFile.PrefetchedChunk;
+import nl.rutgerkok.hammer.anvil.RegionFileCache.Claim;
+import nl.rutgerkok.hammer.anvil.RegionFileCache.Pin;
+import nl.rutgerkok.hammer.anvil.RegionFileCache.RegionKey;
+import nl.rutgerkok.hammer.anvil.tag.CompoundView;
+import nl.rutgerkok.hammer.anvil.tag.NbtHandler;
+import nl.rutgerkok.hammer.anvil.tag.NbtStreamReader;
+
+/**
+ * Reads all chunks in the world, passing their data to a
+ * {@link ChunkStreamVisitor} as a stream of events or to a
+ * {@link ChunkViewVisitor} as a view. Read-only, so no region file is ever
+ * written.
+ *
+ */
+final class ChunkStreamScan {
+
+    /**
+     * Reads the chunks of a single region file. Used by one thread only.
+     */
+    private interface ChunkReader {
+
+        /**
+         * Called before a chunk is read.
+         *
+         * @param chunkX
+         *            The chunk x.
+         * @param chunkZ
+         *            The chunk z.
+         * @return True to read the chunk, false to skip it.
+         * @throws IOException
+         *             If an IO error occurs.
+         */
+        boolean startChunk(int chunkX, int chunkZ) throws IOException;
+
+        /**
+         * Reads the chunk for which {@link #startChunk(int, int)} was last
+         * called.
+         *
+         * @param stream
+         *            The uncompressed data of the chunk.
+         * @throws IOException
+         *             If an IO error occurs.
+         */
+        void readChunk(InputStream stream) throws IOException;
+    }
+
+    /**
+     * Passes the chunks to a {@link ChunkStreamVisitor}.
+     */
+    private static final class StreamReader implements ChunkReader {
+        private final ChunkStreamVisitor visitor;
+        private final NbtStreamReader reader = new NbtStreamReader();
+        private NbtHandler handler;
+
+        StreamReader(ChunkStreamVisitor visitor) {
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void readChunk(InputStream stream) throws IOException {
+            reader.read(stream, handler);
+        }
+
+        @Override
+        public boolean startChunk(int chunkX, int chunkZ) throws IOException {
+            handler = visitor.startChunk(chunkX, chunkZ);
+            return handler != null;
+        }
+    }
+
+    /**
+     * Passes the chunks to a {@link ChunkViewVisitor}. Chunks are
+     * decompressed into a buffer that is reused for the next chunk.
+     */
+    private static final class ViewReader implements ChunkReader {
+        private final ChunkViewVisitor visitor;
+        private byte[] buffer = new byte[64 * 1024];
+        private int chunkX;
+        private int chunkZ;
+
+        ViewReader(ChunkViewVisitor visitor) {
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void readChunk(InputStream stream) throws IOException {
+            int length = 0;
+            while (true) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int read = stream.read(buffer, length, buffer.length - length);
+                if (read == -1) {
+                    break;
+                }
+                length += read;
+            }
+            visitor.visitChunk(chunkX, chunkZ, CompoundView.of(ByteBuffer.wrap(buffer, 0, length)));
+        }
+
+        @Override
+        public boolean startChunk(int chunkX, int chunkZ) throws IOException {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            return true;
+        }
+    }
+
+    private final RegionFileCache regionFileCache;
+    private final ChunkWalkOptions options;
+
+    ChunkStreamScan(RegionFileCache regionFileCache, ChunkWalkOptions options) {
+        this.regionFileCache = Objects.requireNonNull(regionFileCache, "regionFileCache");
+        this.options = Objects.requireNonNull(options, "options");
+    }
+
+    void perform(ChunkStreamVisitor visitor) throws IOException {
+        perform(() -> new StreamReader(visitor));
+    }
+
+    private void perform(Supplier<ChunkReader> readerFactory) throws IOException {
+        Instant scanStart = Instant.now();
+        ChunkFilter filter = ChunkFilter.of(options, ChunkWalkCheckpoint.none());
+        try (Claim claim = regionFileCache.claim()) {
+            List<RegionKey> regions = filter.filterRegions(regionFileCache.listRegions(RegionFileType.CHUNK));
+            RegionTaskRunner runner = new RegionTaskRunner(options.getExecutor(), options.getParallelism());
+            runner.run(regions, region -> {
+                // Keep the region files open while we're working on them
+                try (Pin pin = regionFileCache.pin(region.regionX, region.regionZ)) {
+                    scanRegionFile(readerFactory.get(), filter, regionFileCache.getRegionFile(region));
+                }
+            });
+        }
+        filter.walkCompleted(scanStart);
+    }
+
+    void performViews(ChunkViewVisitor visitor) throws IOException {
+        perform(() -> new ViewReader(visitor));
+    }
+
+    private void scanChunk(ChunkReader reader, int chunkX, int chunkZ, InputStream stream) throws IOException {
+        if (stream == null) {
+            return; // Chunk was deleted in the meantime
+        }
+        try (InputStream closeable = stream) {
+            reader.readChunk(stream);
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Runtime error in " + chunkX + " " + chunkZ, e);
+        } catch (IOException e) {
+            throw new IOException("IO error in " + chunkX + " " + chunkZ, e);
+        }
+    }
+
+    private void scanRegionFile(ChunkReader reader, ChunkFilter filter, RegionFile regionFile)
+            throws IOException {
+        int startChunkX = regionFile.getStartChunkX();
+        int startChunkZ = regionFile.getStartChunkZ();
+        if (options.isSectorOrdered()) {
+            int[] indices = filter.filterChunks(regionFile, regionFile.getChunksInSectorOrder());
+            int i = 0;
+            while (i < indices.length) {
+                List<PrefetchedChunk> chunks = regionFile.readCompressedChunks(indices, i, options.getReadAheadBytes());
+                i += chunks.size();
+                for (int j = 0; j < chunks.size(); j++) {
+                    PrefetchedChunk chunk = chunks.get(j);
+                    int chunkX = startChunkX + chunk.localChunkX;
+                    int chunkZ = startChunkZ + chunk.localChunkZ;
+                    try {
+                        if (chunk.failure != null) {
+                            throw new IOException("IO error in " + chunkX + " " + chunkZ, chunk.failure);
+                        }
+                        if (!reader.startChunk(chunkX, chunkZ)) {
+                            if (chunk.data != null) {
+                                chunk.data.close();
+                            }
+                            continue;
+                        }
+                        scanChunk(reader, chunkX, chunkZ,
+                                chunk.data == null ? null : RegionFile.decompress(chunk.data));
+                    } catch (IOException | RuntimeException e) {
+                        // Give the remaining buffers back to the pool
+                        for (int k = j + 1; k < chunks.size(); k++) {
+                            if (chunks.get(k).data != null) {
+                                chunks.get(k).data.close();
+                            }
+                        }
+                        throw e;
+                    }
+                }
+            }
+            return;
+        }
+        for (int localChunkX = 0; localChunkX < RegionFile.REGION_CHUNK_COUNT; localChunkX++) {
+            for (int localChunkZ = 0; localChunkZ < RegionFile.REGION_CHUNK_COUNT; localChunkZ++) {
+                if (!regionFile.hasChunk(localChunkX, localChunkZ)
+                        || !filter.acceptsChunk(regionFile, localChunkX, localChunkZ)) {
+                    continue;
+                }
+                int chunkX = startChunkX + localChunkX;
+                int chunkZ = startChunkZ + localChunkZ;
+                if (reader.startChunk(chunkX, chunkZ)) {
+                    scanChunk(reader, chunkX, chunkZ, regionFile.getChunkInputStream(localChunkX, localChunkZ));
+                }
+            }
+        }
+    }
+}
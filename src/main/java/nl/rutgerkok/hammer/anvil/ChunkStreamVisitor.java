@@ -0,0 +1,35 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+
+import nl.rutgerkok.hammer.anvil.tag.NbtHandler;
+
+/**
+ * Receives the data of chunks as a stream of events.
+ *
+ * @see AnvilWorld#scanChunks(ChunkStreamVisitor, ChunkWalkOptions)
+ */
+@FunctionalInterface
+public interface ChunkStreamVisitor {
+
+    /**
+     * Called for every chunk, before its data is read.
+     *
+     * <p>
+     * For {@link ChunkWalkOptions#setParallelism(int) parallel} scans, this
+     * method is called from multiple threads at the same time. The events of
+     * a chunk are always passed to the returned handler on the thread that
+     * called this method, so using one handler per thread is safe.
+     *
+     * @param chunkX
+     *            The chunk x.
+     * @param chunkZ
+     *            The chunk z.
+     * @return The handler that receives the root tag of the chunk, as stored
+     *         in the {@link RegionFileType#CHUNK} region file. Null to skip
+     *         the chunk without reading it.
+     * @throws IOException
+     *             If an IO error occurs; this stops the scan.
+     */
+    NbtHandler startChunk(int chunkX, int chunkZ) throws IOException;
+}
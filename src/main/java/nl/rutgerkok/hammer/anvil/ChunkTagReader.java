@@ -0,0 +1,90 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Set;
+
+import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.ChunkRootTag;
+import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.ChunkTag;
+import nl.rutgerkok.hammer.anvil.tag.AnvilNbtReader;
+import nl.rutgerkok.hammer.tag.CompoundKey;
+import nl.rutgerkok.hammer.tag.CompoundTag;
+import nl.rutgerkok.hammer.tag.TagProjection;
+
+/**
+ * Parses the root tags of chunks, decoding only the parts that the
+ * {@link ChunkWalkOptions} ask for.
+ *
+ */
+final class ChunkTagReader {
+
+    /**
+     * Reads all tags right away.
+     */
+    static final ChunkTagReader FULL = new ChunkTagReader(Collections.emptySet(), null);
+
+    /**
+     * Creates a reader for the given walk options.
+     *
+     * @param options
+     *            The options.
+     * @return The reader.
+     * @throws IllegalArgumentException
+     *             If both a projection and lazy chunks are set.
+     */
+    static ChunkTagReader of(ChunkWalkOptions options) {
+        TagProjection projection = options.getProjection();
+        if (projection != null && options.isLazyChunks()) {
+            throw new IllegalArgumentException("A projection cannot be combined with lazy chunks");
+        }
+        if (projection != null) {
+            // Always needed to create the chunk
+            projection = projection.with(ChunkRootTag.DATA_VERSION)
+                    .with(ChunkRootTag.MINECRAFT, ChunkTag.X_POS)
+                    .with(ChunkRootTag.MINECRAFT, ChunkTag.Z_POS);
+            return new ChunkTagReader(Collections.emptySet(), projection);
+        }
+        if (options.isLazyChunks()) {
+            return new ChunkTagReader(AnvilChunk.LAZY_TAGS, null);
+        }
+        return FULL;
+    }
+
+    private final Set<CompoundKey<?>> lazyKeys;
+    /**
+     * Null if all tags are read.
+     */
+    private final TagProjection projection;
+
+    private ChunkTagReader(Set<CompoundKey<?>> lazyKeys, TagProjection projection) {
+        this.lazyKeys = lazyKeys;
+        this.projection = projection;
+    }
+
+    /**
+     * Checks whether the tags read by this reader are incomplete. Such tags
+     * must never be saved, as that would remove the skipped parts.
+     *
+     * @return True if the tags are incomplete, false otherwise.
+     */
+    boolean isPartial() {
+        return projection != null;
+    }
+
+    /**
+     * Reads a root tag.
+     *
+     * @param stream
+     *            The uncompressed stream.
+     * @return The root tag.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    CompoundTag read(InputStream stream) throws IOException {
+        if (projection != null) {
+            return AnvilNbtReader.readFromUncompressedStream(stream, projection);
+        }
+        return AnvilNbtReader.readFromUncompressedStream(stream, lazyKeys);
+    }
+}
@@ -0,0 +1,35 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+
+import nl.rutgerkok.hammer.tag.CompoundTag;
+
+/**
+ * Receives the tags of a chunk when the chunk is saved.
+ *
+ * @see AnvilChunk#save(ChunkTagWriter)
+ */
+interface ChunkTagWriter {
+
+    /**
+     * Deletes the data of the chunk in the given region file type.
+     *
+     * @param type
+     *            The region file type.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    void deleteTag(RegionFileType type) throws IOException;
+
+    /**
+     * Saves the data of the chunk in the given region file type.
+     *
+     * @param type
+     *            The region file type.
+     * @param tag
+     *            The root tag of the data.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    void saveTag(RegionFileType type, CompoundTag tag) throws IOException;
+}
@@ -0,0 +1,38 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+
+import nl.rutgerkok.hammer.anvil.tag.CompoundView;
+
+/**
+ * Receives the data of chunks as a read-only view.
+ *
+ * @see AnvilWorld#viewChunks(ChunkViewVisitor, ChunkWalkOptions)
+ */
+@FunctionalInterface
+public interface ChunkViewVisitor {
+
+    /**
+     * Called for every chunk.
+     *
+     * <p>
+     * The view is only valid during this call: the buffer behind it is reused
+     * for the next chunk. Copy the values that must be kept, or use
+     * {@link CompoundView#toCompoundTag()}.
+     *
+     * <p>
+     * For {@link ChunkWalkOptions#setParallelism(int) parallel} walks, this
+     * method is called from multiple threads at the same time.
+     *
+     * @param chunkX
+     *            The chunk x.
+     * @param chunkZ
+     *            The chunk z.
+     * @param rootTag
+     *            View on the root tag of the chunk, as stored in the
+     *            {@link RegionFileType#CHUNK} region file.
+     * @throws IOException
+     *             If an IO error occurs; this stops the walk.
+     */
+    void visitChunk(int chunkX, int chunkZ, CompoundView rootTag) throws IOException;
+}
@@ -1,36 +1,48 @@
 package nl.rutgerkok.hammer.anvil;
 
 import java.io.IOException;
-import java.nio.file.DirectoryIteratorException;
-import java.nio.file.DirectoryStream;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import nl.rutgerkok.hammer.anvil.RegionFile.PrefetchedChunk;
 import nl.rutgerkok.hammer.anvil.RegionFileCache.Claim;
+import nl.rutgerkok.hammer.anvil.RegionFileCache.Pin;
+import nl.rutgerkok.hammer.anvil.RegionFileCache.RegionKey;
+import nl.rutgerkok.hammer.tag.CompoundTag;
 import nl.rutgerkok.hammer.util.Progress;
 import nl.rutgerkok.hammer.util.Progress.UnitsProgress;
 import nl.rutgerkok.hammer.util.Result;
 import nl.rutgerkok.hammer.util.Visitor;
 
 /**
- * Walks along all chunks in the world.
+ * Walks along all chunks in the world. Region files are handed out one by one
+ * to the {@link RegionTaskRunner}, so they may be walked in parallel.
  *
  */
 final class ChunkWalk {
 
     private final AnvilGameFactory gameFactory;
     private final RegionFileCache regionFileCache;
+    private final ChunkWalkOptions options;
+    private final ChunkTagReader tagReader;
 
-    ChunkWalk(AnvilGameFactory gameFactory, RegionFileCache regionFileCache) {
+    ChunkWalk(AnvilGameFactory gameFactory, RegionFileCache regionFileCache, ChunkWalkOptions options) {
         this.gameFactory = Objects.requireNonNull(gameFactory, "materialMap");
         this.regionFileCache = Objects.requireNonNull(regionFileCache, "regionFileCache");
+        this.options = Objects.requireNonNull(options, "options");
+        this.tagReader = ChunkTagReader.of(options);
     }
 
-    private void handleChunk(Progress progress, Visitor<? super AnvilChunk> visitor,
-            RegionFile region, int chunkX, int chunkZ) throws IOException {
+    private void handleChunk(Progress progress, Visitor<? super AnvilChunk> visitor, int chunkX, int chunkZ,
+            PrefetchedChunk prefetched) throws IOException {
         RegionNbtIo regionNbtIo = new RegionNbtIo(ChunkDataVersion.latest(), regionFileCache, chunkX, chunkZ);
         boolean couldReadChunk = false;
         try {
-            AnvilChunk chunk = new AnvilChunk(gameFactory, regionNbtIo);
+            AnvilChunk chunk = new AnvilChunk(gameFactory, regionNbtIo, readRootTag(regionNbtIo, prefetched),
+                    tagReader.isPartial());
             couldReadChunk = true;
             Result result = visitor.accept(chunk, progress);
             switch (result) {
@@ -60,32 +72,168 @@ final class ChunkWalk {
         }
     }
 
-    void performWalk(Visitor<? super AnvilChunk> visitor) throws IOException {
+    /**
+     * Checks whether the time limit of the walk has passed.
+     *
+     * @param deadline
+     *            The deadline, as a {@link System#nanoTime()} value.
+     * @return True if the walk must stop.
+     */
+    static boolean isPastDeadline(long deadline) {
+        return deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * Performs the walk.
+     *
+     * @param visitor
+     *            The visitor.
+     * @return True if all chunks were walked, false if the walk was stopped
+     *         because of the {@link ChunkWalkOptions#setTimeLimit(Duration)
+     *         time limit}.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    boolean performWalk(Visitor<? super AnvilChunk> visitor) throws IOException {
+        if (options.isPipelined() && options.isParallel()) {
+            throw new IllegalArgumentException("A pipelined walk cannot be done in parallel");
+        }
+        long deadline = Long.MAX_VALUE;
+        Duration timeLimit = options.getTimeLimit();
+        if (timeLimit != null) {
+            deadline = System.nanoTime() + timeLimit.toNanos();
+        }
+        ChunkWalkCheckpoint checkpoint = ChunkWalkCheckpoint.load(options, regionFileCache);
+        ChunkFilter filter = ChunkFilter.of(options, checkpoint);
+        boolean completed;
+        try {
+            if (options.isPipelined()) {
+                completed = new PipelinedChunkWalk(gameFactory, regionFileCache, options).performWalk(visitor, filter,
+                        checkpoint, deadline);
+            } else {
+                completed = performWalk(visitor, filter, checkpoint, deadline);
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            // Make sure the walk can be resumed
+            try {
+                checkpoint.save();
+            } catch (IOException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        }
+        if (!completed) {
+            checkpoint.save();
+            return false;
+        }
+        checkpoint.delete();
+        filter.walkCompleted(checkpoint.getWalkStart());
+        return true;
+    }
+
+    private boolean performWalk(Visitor<? super AnvilChunk> visitor, ChunkFilter filter,
+            ChunkWalkCheckpoint checkpoint, long deadline) throws IOException {
+        AtomicBoolean stoppedEarly = new AtomicBoolean(false);
         try (Claim claim = regionFileCache.claim()) {
-            UnitsProgress progress = Progress.ofUnits(regionFileCache.countRegionFiles());
-            try (DirectoryStream<RegionFile> stream = regionFileCache.getRegionFiles()) {
-                for (RegionFile regionFile : stream) {
-                    walkRegionFile(progress, visitor, regionFile);
-                    progress.increment();
+            List<RegionKey> regions = filter.filterRegions(regionFileCache.listRegions(RegionFileType.CHUNK));
+            UnitsProgress progress = Progress.ofUnits(regions.size());
+            RegionTaskRunner runner = new RegionTaskRunner(options.getExecutor(), options.getParallelism());
+            runner.run(regions, region -> {
+                if (stoppedEarly.get() || isPastDeadline(deadline)) {
+                    stoppedEarly.set(true);
+                    return;
                 }
-            } catch (DirectoryIteratorException e) {
-                // Throw the underlying IOException instead
-                throw e.getCause();
-            }
+                // Keep the region files open while we're working on them
+                try (Pin pin = regionFileCache.pin(region.regionX, region.regionZ)) {
+                    if (!walkRegionFile(progress, visitor, filter, checkpoint, deadline,
+                            regionFileCache.getRegionFile(region))) {
+                        stoppedEarly.set(true);
+                        return;
+                    }
+                }
+                checkpoint.regionDone(region.regionX, region.regionZ);
+                progress.increment();
+            });
+        }
+        return !stoppedEarly.get();
+    }
+
+    /**
+     * Reads the root tag of the chunk.
+     *
+     * @param regionNbtIo
+     *            Used to read the chunk if it wasn't read ahead of time.
+     * @param prefetched
+     *            The chunk data that was read ahead of time, or null.
+     * @return The root tag.
+     * @throws IOException
+     *             If reading fails.
+     */
+    private CompoundTag readRootTag(RegionNbtIo regionNbtIo, PrefetchedChunk prefetched) throws IOException {
+        if (prefetched == null) {
+            return regionNbtIo.loadTag(RegionFileType.CHUNK, tagReader).orElseGet(regionNbtIo::createEmptyChunkRootTag);
+        }
+        if (prefetched.failure != null) {
+            throw prefetched.failure;
+        }
+        if (prefetched.data == null) {
+            return regionNbtIo.createEmptyChunkRootTag();
+        }
+        try (InputStream stream = RegionFile.decompress(prefetched.data)) {
+            return tagReader.read(stream);
         }
     }
 
-    private void walkRegionFile(Progress progress, Visitor<? super AnvilChunk> visitor, RegionFile regionFile) throws IOException {
+    /**
+     * Walks the chunks of a single region file.
+     *
+     * @return True if all chunks were walked, false if the deadline passed.
+     */
+    private boolean walkRegionFile(Progress progress, Visitor<? super AnvilChunk> visitor, ChunkFilter filter,
+            ChunkWalkCheckpoint checkpoint, long deadline, RegionFile regionFile) throws IOException {
         int startChunkX = regionFile.getStartChunkX();
         int startChunkZ = regionFile.getStartChunkZ();
+        if (options.isSectorOrdered()) {
+            int[] indices = filter.filterChunks(regionFile, regionFile.getChunksInSectorOrder());
+            int i = 0;
+            while (i < indices.length) {
+                if (isPastDeadline(deadline)) {
+                    return false;
+                }
+                List<PrefetchedChunk> chunks = regionFile.readCompressedChunks(indices, i, options.getReadAheadBytes());
+                i += chunks.size();
+                for (int j = 0; j < chunks.size(); j++) {
+                    PrefetchedChunk chunk = chunks.get(j);
+                    try {
+                        handleChunk(progress, visitor, startChunkX + chunk.localChunkX,
+                                startChunkZ + chunk.localChunkZ, chunk);
+                        checkpoint.chunkDone(startChunkX + chunk.localChunkX, startChunkZ + chunk.localChunkZ);
+                    } catch (IOException | RuntimeException e) {
+                        // Give the remaining buffers back to the pool
+                        for (int k = j + 1; k < chunks.size(); k++) {
+                            if (chunks.get(k).data != null) {
+                                chunks.get(k).data.close();
+                            }
+                        }
+                        throw e;
+                    }
+                }
+            }
+            return true;
+        }
         for (int localChunkX = 0; localChunkX < RegionFile.REGION_CHUNK_COUNT; localChunkX++) {
             for (int localChunkZ = 0; localChunkZ < RegionFile.REGION_CHUNK_COUNT; localChunkZ++) {
-                if (regionFile.hasChunk(localChunkX, localChunkZ)) {
-                    handleChunk(progress, visitor, regionFile, startChunkX + localChunkX, startChunkZ + localChunkZ);
+                if (regionFile.hasChunk(localChunkX, localChunkZ)
+                        && filter.acceptsChunk(regionFile, localChunkX, localChunkZ)) {
+                    if (isPastDeadline(deadline)) {
+                        return false;
+                    }
+                    handleChunk(progress, visitor, startChunkX + localChunkX, startChunkZ + localChunkZ, null);
+                    checkpoint.chunkDone(startChunkX + localChunkX, startChunkZ + localChunkZ);
                 }
             }
         }
-
+        return true;
     }
 
 }
@@ -0,0 +1,282 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Keeps track of the chunks that a walk has already handled, so that a walk
+ * that was interrupted can be resumed later on. Thread safe.
+ *
+ * <p>
+ * The state is stored in a small text file. The first line is a header, the
+ * second line the moment the first attempt of the walk started, followed by
+ * one line for every region that was walked completely ("done x
+ * z") and one line for every region that was partially walked ("partial x z
+ * bitmap"), where the bitmap lists the handled chunks as a Base64-encoded
+ * {@link BitSet#toByteArray() bit set} of the chunk indices (x + z * 32).
+ *
+ * <p>
+ * Region files only write their header to disk once in a while, so a chunk
+ * can be saved while the header doesn't point to it yet. Therefore the
+ * headers of all open region files are flushed before the checkpoint file is
+ * written. Otherwise, a crash could leave behind a checkpoint that lists
+ * chunks of which the new data was lost.
+ *
+ * @see ChunkWalkOptions#setCheckpointFile(Path)
+ */
+final class ChunkWalkCheckpoint {
+
+    private static final String HEADER = "hammer-chunk-walk-checkpoint 1";
+
+    /**
+     * The file is written at most once per this interval, except when the
+     * walk ends. A crash can therefore cause chunks from the last few seconds
+     * to be walked again.
+     */
+    private static final long SAVE_INTERVAL_MILLIS = 5000;
+
+    private static long packCoords(int regionX, int regionZ) {
+        return (((long) regionX) << 32) | (regionZ & 0xffffffffL);
+    }
+
+    /**
+     * Gets a checkpoint that is empty, and that is never saved.
+     *
+     * @return The checkpoint.
+     */
+    static ChunkWalkCheckpoint none() {
+        return new ChunkWalkCheckpoint(null, null);
+    }
+
+    /**
+     * Loads the checkpoint of the given options. If the options have no
+     * checkpoint file, a checkpoint that is never saved is returned.
+     *
+     * @param options
+     *            The options.
+     * @param regionFileCache
+     *            The region files that the walk writes to, flushed before
+     *            every save.
+     * @return The checkpoint.
+     * @throws IOException
+     *             If the checkpoint file exists, but cannot be read.
+     */
+    static ChunkWalkCheckpoint load(ChunkWalkOptions options, RegionFileCache regionFileCache) throws IOException {
+        Path file = options.getCheckpointFile();
+        ChunkWalkCheckpoint checkpoint = new ChunkWalkCheckpoint(file, Objects.requireNonNull(regionFileCache,
+                "regionFileCache"));
+        if (file == null || !Files.exists(file)) {
+            return checkpoint;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            line = reader.readLine();
+            try {
+                checkpoint.walkStart = Instant.parse(line.substring("started ".length()));
+            } catch (NullPointerException | IndexOutOfBoundsException | DateTimeParseException e) {
+                throw new IOException("Invalid start line in " + file + ": \"" + line + "\"", e);
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.split(" ");
+                try {
+                    long coords = packCoords(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                    if (parts[0].equals("done") && parts.length == 3) {
+                        checkpoint.completedRegions.add(coords);
+                    } else if (parts[0].equals("partial") && parts.length == 4) {
+                        checkpoint.partialRegions.put(coords, BitSet.valueOf(Base64.getDecoder().decode(parts[3])));
+                    } else {
+                        throw new IOException("Invalid line in " + file + ": \"" + line + "\"");
+                    }
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                    throw new IOException("Invalid line in " + file + ": \"" + line + "\"", e);
+                }
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Null if the state is not saved.
+     */
+    private final Path file;
+    /**
+     * Null if the state is not saved.
+     */
+    private final RegionFileCache regionFileCache;
+    private final Set<Long> completedRegions = new HashSet<>();
+    private final Map<Long, BitSet> partialRegions = new HashMap<>();
+    private long lastSaveMillis = System.currentTimeMillis();
+    private Instant walkStart = Instant.now();
+
+    private ChunkWalkCheckpoint(Path file, RegionFileCache regionFileCache) {
+        this.file = file;
+        this.regionFileCache = regionFileCache;
+    }
+
+    /**
+     * Records that a chunk has been handled. Saves the checkpoint if it hasn't
+     * been saved for a while.
+     *
+     * @param chunkX
+     *            The chunk x.
+     * @param chunkZ
+     *            The chunk z.
+     * @throws IOException
+     *             If saving fails.
+     */
+    void chunkDone(int chunkX, int chunkZ) throws IOException {
+        if (file == null) {
+            return;
+        }
+        synchronized (this) {
+            partialRegions.computeIfAbsent(packCoords(chunkX >> 5, chunkZ >> 5), coords -> new BitSet())
+                    .set((chunkX & 31) + (chunkZ & 31) * RegionFile.REGION_CHUNK_COUNT);
+            saveIfNeeded();
+        }
+    }
+
+    /**
+     * Deletes the checkpoint file, as the walk has been completed.
+     *
+     * @throws IOException
+     *             If deleting fails.
+     */
+    void delete() throws IOException {
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Gets the moment the walk started. If the walk was resumed, this is the
+     * moment the first attempt started.
+     *
+     * @return The moment.
+     */
+    synchronized Instant getWalkStart() {
+        return walkStart;
+    }
+
+    /**
+     * Checks whether the chunk has already been handled by an earlier walk.
+     *
+     * @param chunkX
+     *            The chunk x.
+     * @param chunkZ
+     *            The chunk z.
+     * @return True if the chunk has been handled, false otherwise.
+     */
+    synchronized boolean isChunkDone(int chunkX, int chunkZ) {
+        long coords = packCoords(chunkX >> 5, chunkZ >> 5);
+        if (completedRegions.contains(coords)) {
+            return true;
+        }
+        BitSet chunks = partialRegions.get(coords);
+        return chunks != null && chunks.get((chunkX & 31) + (chunkZ & 31) * RegionFile.REGION_CHUNK_COUNT);
+    }
+
+    /**
+     * Checks whether the region has already been walked completely by an
+     * earlier walk.
+     *
+     * @param regionX
+     *            The region x.
+     * @param regionZ
+     *            The region z.
+     * @return True if the region has been walked, false otherwise.
+     */
+    synchronized boolean isRegionDone(int regionX, int regionZ) {
+        return completedRegions.contains(packCoords(regionX, regionZ));
+    }
+
+    /**
+     * Records that all chunks in a region have been handled. Saves the
+     * checkpoint if it hasn't been saved for a while.
+     *
+     * @param regionX
+     *            The region x.
+     * @param regionZ
+     *            The region z.
+     * @throws IOException
+     *             If saving fails.
+     */
+    void regionDone(int regionX, int regionZ) throws IOException {
+        if (file == null) {
+            return;
+        }
+        synchronized (this) {
+            long coords = packCoords(regionX, regionZ);
+            partialRegions.remove(coords);
+            completedRegions.add(coords);
+            saveIfNeeded();
+        }
+    }
+
+    /**
+     * Writes the checkpoint file. Does nothing if there is no checkpoint file.
+     *
+     * @throws IOException
+     *             If writing fails.
+     */
+    synchronized void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        // All chunks that were marked as done have been saved already, make
+        // sure the region files on disk point to them
+        regionFileCache.flushAll();
+
+        // Write to a temporary file first, so that a crash never leaves an
+        // incomplete checkpoint behind
+        Path tempFile = file.resolveSibling(file.getFileName().toString() + "-TEMP");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write("started " + walkStart);
+            writer.newLine();
+            for (long coords : completedRegions) {
+                writer.write("done " + (int) (coords >> 32) + " " + (int) coords);
+                writer.newLine();
+            }
+            for (Map.Entry<Long, BitSet> entry : partialRegions.entrySet()) {
+                long coords = entry.getKey();
+                writer.write("partial " + (int) (coords >> 32) + " " + (int) coords + " "
+                        + Base64.getEncoder().encodeToString(entry.getValue().toByteArray()));
+                writer.newLine();
+            }
+        }
+        try {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        lastSaveMillis = System.currentTimeMillis();
+    }
+
+    private void saveIfNeeded() throws IOException {
+        if (System.currentTimeMillis() - lastSaveMillis >= SAVE_INTERVAL_MILLIS) {
+            save();
+        }
+    }
+}
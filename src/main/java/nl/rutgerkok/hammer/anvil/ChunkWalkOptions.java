@@ -0,0 +1,475 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+import nl.rutgerkok.hammer.tag.TagProjection;
+import nl.rutgerkok.hammer.util.Result;
+import nl.rutgerkok.hammer.util.Visitor;
+
+/**
+ * Options for walking along all chunks in a world.
+ *
+ * <p>
+ * By default, all chunks are visited one by one on the thread that started the
+ * walk. Options must not be modified while a walk using them is in progress.
+ *
+ * @see AnvilWorld#walkAnvilChunks(Visitor, ChunkWalkOptions)
+ */
+public final class ChunkWalkOptions {
+
+    private ChunkArea area = null;
+    private Path checkpointFile = null;
+    private boolean lazyChunks = false;
+    private Predicate<? super ChunkHeader> chunkPredicate = null;
+    private Executor executor = null;
+    private int parallelism = 1;
+    private boolean pipelined = false;
+    private int pipelineCapacity = 64;
+    private TagProjection projection = null;
+    private Instant modifiedSince = null;
+    private Path watermarkFile = null;
+    private boolean sectorOrdered = false;
+    private int readAheadBytes = 1024 * 1024;
+    private Duration timeLimit = null;
+
+    /**
+     * Gets the area that chunks must be in to be visited.
+     *
+     * @return The area, or null if the whole world is walked.
+     */
+    ChunkArea getArea() {
+        return area;
+    }
+
+    /**
+     * Gets the predicate that chunk headers must pass to be visited.
+     *
+     * @return The predicate, or null if all chunks are visited.
+     */
+    Predicate<? super ChunkHeader> getChunkPredicate() {
+        return chunkPredicate;
+    }
+
+    /**
+     * Gets the executor that region files are handed to, or null if no
+     * executor was set.
+     *
+     * @return The executor, or null.
+     */
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Gets the file that records the progress of the walk.
+     *
+     * @return The file, or null if progress is not recorded.
+     * @see #setCheckpointFile(Path)
+     */
+    Path getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * Gets whether the large parts of chunks are only decoded once they are
+     * accessed.
+     *
+     * @return True if they are, false otherwise.
+     * @see #setLazyChunks(boolean)
+     */
+    boolean isLazyChunks() {
+        return lazyChunks;
+    }
+
+    /**
+     * Gets the moment chunks must have been saved after to be visited.
+     *
+     * @return The moment, or null if all chunks are visited.
+     * @see #setModifiedSince(Instant)
+     */
+    Instant getModifiedSince() {
+        return modifiedSince;
+    }
+
+    /**
+     * Gets the maximum time a walk may take.
+     *
+     * @return The time limit, or null if there is no limit.
+     * @see #setTimeLimit(Duration)
+     */
+    Duration getTimeLimit() {
+        return timeLimit;
+    }
+
+    /**
+     * Gets the amount of threads that should be used to walk the region files.
+     * Ignored if an {@link #setExecutor(Executor) executor} is set.
+     *
+     * @return The amount of threads.
+     */
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Gets the maximum amount of chunks that may wait between two stages of the
+     * pipeline.
+     *
+     * @return The capacity.
+     */
+    int getPipelineCapacity() {
+        return pipelineCapacity;
+    }
+
+    /**
+     * Gets the parts of the chunk tags that are read.
+     *
+     * @return The parts, or null if the chunk tags are read completely.
+     * @see #setProjection(TagProjection)
+     */
+    TagProjection getProjection() {
+        return projection;
+    }
+
+    /**
+     * Gets the maximum amount of bytes that is read at once in a
+     * {@link #setSectorOrdered(boolean) sector ordered} walk.
+     *
+     * @return The amount of bytes.
+     */
+    int getReadAheadBytes() {
+        return readAheadBytes;
+    }
+
+    /**
+     * Gets the file that stores when the last walk was completed.
+     *
+     * @return The file, or null if not set.
+     * @see #setWatermarkFile(Path)
+     */
+    Path getWatermarkFile() {
+        return watermarkFile;
+    }
+
+    /**
+     * Gets whether region files are walked in parallel.
+     *
+     * @return True if the walk is done in parallel, false otherwise.
+     */
+    boolean isParallel() {
+        return executor != null || parallelism > 1;
+    }
+
+    /**
+     * Gets whether chunks are visited in the order they are stored in the
+     * region file.
+     *
+     * @return True if so, false if they are visited ordered on coordinates.
+     * @see #setSectorOrdered(boolean)
+     */
+    boolean isSectorOrdered() {
+        return sectorOrdered;
+    }
+
+    /**
+     * Gets whether chunks are walked using a staged pipeline.
+     *
+     * @return True if a pipeline is used, false otherwise.
+     * @see #setPipelined(boolean)
+     */
+    boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Only visits the chunks in the given area. Region files that lie
+     * completely outside the area are not opened at all.
+     *
+     * @param area
+     *            The area, or null to walk the whole world.
+     * @return This instance, for chaining.
+     */
+    public ChunkWalkOptions setArea(ChunkArea area) {
+        this.area = area;
+        return this;
+    }
+
+    /**
+     * Only visits the chunks whose header passes the given test. The test runs
+     * before the chunk is read from disk, using only the information in the
+     * header of the region file: the position, the size and the moment the
+     * chunk was last saved. Chunks that don't pass the test are never read.
+     *
+     * <p>
+     * For {@link #setParallelism(int) parallel} walks, the predicate is called
+     * from multiple threads at the same time.
+     *
+     * @param chunkPredicate
+     *            The predicate, or null to visit all chunks.
+     * @return This instance, for chaining.
+     */
+    public ChunkWalkOptions setChunkPredicate(Predicate<? super ChunkHeader> chunkPredicate) {
+        this.chunkPredicate = chunkPredicate;
+        return this;
+    }
+
+    /**
+     * Only reads the given parts of the chunk tags. The other parts are
+     * skipped without decoding them, which makes walks that only need a small
+     * part of every chunk a lot faster. The paths in the projection start at
+     * the root tag of the chunk, so for example
+     * {@code TagProjection.none().with(ChunkRootTag.MINECRAFT, ChunkTag.TILE_ENTITIES)}
+     * only reads the tile entities. The data version and the chunk position
+     * are always read.
+     *
+     * <p>
+     * Chunks read using a projection are incomplete, so they cannot be saved:
+     * a visitor that returns {@link Result#CHANGED} makes the walk fail.
+     * Deleting chunks is still possible. Entities and points of interest that
+     * are stored in separate files are not affected by the projection.
+     *
+     * <p>
+     * Cannot be combined with {@link #setLazyChunks(boolean) lazy chunks};
+     * walks with both fail with an {@link IllegalArgumentException}.
+     *
+     * @param projection
+     *            The projection, or null to read the chunk tags completely.
+     * @return This instance, for chaining.
+     */
+    public ChunkWalkOptions setProjection(TagProjection projection) {
+        this.projection = projection;
+        return this;
+    }
+
+    /**
+     * Sets the maximum amount of bytes that is read at once in a
+     * {@link #setSectorOrdered(boolean) sector ordered} walk. Larger values
+     * mean fewer reads, but more memory: for every region file that is walked
+     * at the same time, chunks of up to this size are held in memory.
+     *
+     * @param readAheadBytes
+     *            The amount of bytes. The default is 1 MB.
+     * @return This instance, for chaining.
+     * @throws IllegalArgumentException
+     *             If the amount is smaller than one sector (4096 bytes).
+     */
+    public ChunkWalkOptions setReadAheadBytes(int readAheadBytes) {
+        if (readAheadBytes < RegionFile.SECTOR_BYTES) {
+            throw new IllegalArgumentException(
+                    "readAheadBytes must be at least " + RegionFile.SECTOR_BYTES + ", was " + readAheadBytes);
+        }
+        this.readAheadBytes = readAheadBytes;
+        return this;
+    }
+
+    /**
+     * Sets whether the chunks in a region file are visited in the order they
+     * are stored in the file, instead of ordered on their coordinates. Chunks
+     * that are stored next to each other are then read using a single large
+     * read (see {@link #setReadAheadBytes(int)}), so that a region file is
+     * read from start to end. This is a lot faster on hard disks and network
+     * storage.
+     *
+     * @param sectorOrdered
+     *            True to visit chunks in the order they are stored, false to
+     *            visit them ordered on their coordinates.
+     * @return This instance, for chaining.
+     */
+    public ChunkWalkOptions setSectorOrdered(boolean sectorOrdered) {
+        this.sectorOrdered = sectorOrdered;
+        return this;
+    }
+
+    /**
+     * Walks the region files in parallel, using the given executor. Every
+     * region file is handed to the executor as a separate task, and only one
+     * task works on a region file at the same time. The executor is not shut
+     * down after the walk.
+     *
+     * <p>
+     * The visitor is called from multiple threads at the same time, so it must
+     * be thread safe. The chunks themselves are never shared between threads.
+     *
+     * @param executor
+     *            The executor, for example a
+     *            {@link java.util.concurrent.ForkJoinPool} or a
+     *            {@link java.util.concurrent.Executors#newFixedThreadPool(int)
+     *            fixed thread pool}. Null to walk on the calling thread again.
+     * @return This instance, for chaining.
+     */
+    public ChunkWalkOptions setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets the maximum amount of chunks that may wait between two stages of the
+     * pipeline. Only has effect for {@link #setPipelined(boolean) pipelined}
+     * walks. A stage that gets ahead of the next stage waits once this amount
+     * is reached, which keeps memory usage bounded.
+     *
+     * @param pipelineCapacity
+     *            The capacity.
+     * @return This instance, for chaining.
+     * @throws IllegalArgumentException
+     *             If the capacity is smaller than one.
+     */
+    public ChunkWalkOptions setPipelineCapacity(int pipelineCapacity) {
+        if (pipelineCapacity < 1) {
+            throw new IllegalArgumentException("pipelineCapacity must be at least 1, was " + pipelineCapacity);
+        }
+        this.pipelineCapacity = pipelineCapacity;
+        return this;
+    }
+
+    /**
+     * Sets whether the chunks are walked using a staged pipeline. Reading from
+     * disk, decompressing, parsing, visiting, compressing and writing back
+     * each happen on their own thread, so that disk IO and CPU work overlap.
+     * The visitor is called from a single thread, but that thread is not the
+     * thread that started the walk.
+     *
+     * <p>
+     * A pipelined walk cannot be combined with a
+     * {@link #setParallelism(int) parallel} walk.
+     *
+     * @param pipelined
+     *            True to use a pipeline, false otherwise.
+     * @return This instance, for chaining.
+     */
+    public ChunkWalkOptions setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+        return this;
+    }
+
+    /**
+     * Sets a file that records which chunks the walk has already visited, so
+     * that a walk that was stopped early (because of an error, a crash or the
+     * {@link #setTimeLimit(Duration) time limit}) can be resumed: if the file
+     * exists when the walk starts, the chunks and regions listed in it are
+     * skipped. The file is deleted once the walk has completed.
+     *
+     * <p>
+     * To limit the amount of disk writes, the file is written at most once
+     * every few seconds, and always when the walk stops. After a crash, the
+     * chunks that were visited in the last few seconds are therefore visited
+     * again. The file doesn't record the other options of the walk, so resume
+     * the walk using the same options.
+     *
+     * @param checkpointFile
+     *            The file, or null to not record the progress.
+     * @return This instance, for chaining.
+     */
+    public ChunkWalkOptions setCheckpointFile(Path checkpointFile) {
+        this.checkpointFile = checkpointFile;
+        return this;
+    }
+
+    /**
+     * Sets whether the large parts of chunks (the block sections, height maps
+     * and biomes) are only decoded once they are accessed. Until then, they
+     * are kept in their encoded form, which is a lot smaller than the decoded
+     * tags. This makes walks that only look at small parts of chunks (like the
+     * tile entities) a lot faster, while other walks become slightly slower.
+     * Saving a chunk decodes all of its parts. Cannot be combined with a
+     * {@link #setProjection(TagProjection) projection}; walks with both fail
+     * with an {@link IllegalArgumentException}.
+     *
+     * @param lazyChunks
+     *            True to decode the large parts only when needed, false to
+     *            decode them right away.
+     * @return This instance, for chaining.
+     */
+    public ChunkWalkOptions setLazyChunks(boolean lazyChunks) {
+        this.lazyChunks = lazyChunks;
+        return this;
+    }
+
+    /**
+     * Only visits chunks that were saved at or after the given moment. Which
+     * chunks were saved when is read from the headers of the region files,
+     * and region files that were not modified since are skipped entirely, so
+     * skipped chunks cost almost nothing.
+     *
+     * <p>
+     * The timestamps in region files have a precision of one second.
+     * Deleted chunks are not visited, as they no longer exist.
+     *
+     * @param modifiedSince
+     *            The moment, or null to visit all chunks again.
+     * @return This instance, for chaining.
+     * @see #setWatermarkFile(Path)
+     */
+    public ChunkWalkOptions setModifiedSince(Instant modifiedSince) {
+        this.modifiedSince = modifiedSince;
+        return this;
+    }
+
+    /**
+     * Walks the region files in parallel, on a thread pool of the given size
+     * that only lives as long as the walk. Ignored if an
+     * {@link #setExecutor(Executor) executor} is set.
+     *
+     * <p>
+     * If the parallelism is larger than one, the visitor is called from
+     * multiple threads at the same time, so it must be thread safe.
+     *
+     * @param parallelism
+     *            The amount of threads. Use 1 to walk on the calling thread.
+     * @return This instance, for chaining.
+     * @throws IllegalArgumentException
+     *             If the parallelism is smaller than one.
+     */
+    public ChunkWalkOptions setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1, was " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the maximum time the walk may take. Once the time is up, no new
+     * chunks are read; chunks that were already read are still visited and
+     * saved, after which the walk returns {@code false}. Combine this with a
+     * {@link #setCheckpointFile(Path) checkpoint file} to continue the walk
+     * later on.
+     *
+     * @param timeLimit
+     *            The time limit, or null for no limit.
+     * @return This instance, for chaining.
+     * @throws IllegalArgumentException
+     *             If the time limit is negative.
+     */
+    public ChunkWalkOptions setTimeLimit(Duration timeLimit) {
+        if (timeLimit != null && timeLimit.isNegative()) {
+            throw new IllegalArgumentException("timeLimit cannot be negative, was " + timeLimit);
+        }
+        this.timeLimit = timeLimit;
+        return this;
+    }
+
+    /**
+     * Sets a file that keeps track of when the walk was last done, so that
+     * repeated walks only visit the chunks that were saved since the previous
+     * walk. If the file exists, the moment stored in it is used as if it was
+     * passed to {@link #setModifiedSince(Instant)}; if both are set, the
+     * latest of the two is used. Once a walk has completed without errors, the
+     * moment that walk started is written to the file. The file doesn't
+     * record the {@link #setArea(ChunkArea) area} or
+     * {@link #setChunkPredicate(Predicate) predicate} of the walk, so use a
+     * separate file for each kind of walk.
+     *
+     * @param watermarkFile
+     *            The file, or null to not use a watermark file.
+     * @return This instance, for chaining.
+     */
+    public ChunkWalkOptions setWatermarkFile(Path watermarkFile) {
+        this.watermarkFile = watermarkFile;
+        return this;
+    }
+}
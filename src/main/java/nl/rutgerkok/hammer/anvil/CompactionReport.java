@@ -0,0 +1,146 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The result of {@link AnvilWorld#compact(double, ChunkWalkOptions)
+ * compacting} a world. Besides the amount of space that was reclaimed, this
+ * report describes the health of the region files, for each
+ * {@link RegionFileType}.
+ */
+public final class CompactionReport {
+
+    /**
+     * The part of the report for a single {@link RegionFileType}.
+     */
+    public static final class Entry {
+        private final int regionCount;
+        private final int compactedRegionCount;
+        private final long bytesBefore;
+        private final long bytesAfter;
+        private final long freeSectors;
+        private final int corruptOffsets;
+
+        Entry(int regionCount, int compactedRegionCount, long bytesBefore, long bytesAfter, long freeSectors,
+                int corruptOffsets) {
+            this.regionCount = regionCount;
+            this.compactedRegionCount = compactedRegionCount;
+            this.bytesBefore = bytesBefore;
+            this.bytesAfter = bytesAfter;
+            this.freeSectors = freeSectors;
+            this.corruptOffsets = corruptOffsets;
+        }
+
+        /**
+         * Gets the total size of the region files after compacting.
+         *
+         * @return The size in bytes.
+         */
+        public long getBytesAfter() {
+            return bytesAfter;
+        }
+
+        /**
+         * Gets the total size of the region files before compacting.
+         *
+         * @return The size in bytes.
+         */
+        public long getBytesBefore() {
+            return bytesBefore;
+        }
+
+        /**
+         * Gets the amount of bytes that were reclaimed.
+         *
+         * @return The amount of bytes.
+         */
+        public long getBytesSaved() {
+            return bytesBefore - bytesAfter;
+        }
+
+        /**
+         * Gets the amount of region files that were compacted. Region files
+         * below the threshold are not compacted.
+         *
+         * @return The amount of region files.
+         */
+        public int getCompactedRegionCount() {
+            return compactedRegionCount;
+        }
+
+        /**
+         * Gets the amount of header entries that point to sectors that cannot
+         * contain the chunk. Region files with such entries are never
+         * compacted, as moving chunks around could then overwrite data.
+         *
+         * @return The amount of corrupt entries.
+         * @see RegionFile#getCorruptOffsetCount()
+         */
+        public int getCorruptOffsetCount() {
+            return corruptOffsets;
+        }
+
+        /**
+         * Gets the amount of free sectors that remain in the region files
+         * after compacting.
+         *
+         * @return The amount of sectors.
+         */
+        public long getFreeSectorCount() {
+            return freeSectors;
+        }
+
+        /**
+         * Gets the amount of region files that were inspected.
+         *
+         * @return The amount of region files.
+         */
+        public int getRegionCount() {
+            return regionCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [regionCount=" + regionCount + ", compactedRegionCount=" + compactedRegionCount
+                    + ", bytesBefore=" + bytesBefore + ", bytesAfter=" + bytesAfter + ", freeSectors="
+                    + freeSectors + ", corruptOffsets=" + corruptOffsets + "]";
+        }
+    }
+
+    private final Map<RegionFileType, Entry> entries;
+
+    CompactionReport(Map<RegionFileType, Entry> entries) {
+        this.entries = new EnumMap<>(entries);
+    }
+
+    /**
+     * Gets the part of the report for the given type of region files.
+     *
+     * @param type
+     *            The type.
+     * @return The part of the report.
+     */
+    public Entry get(RegionFileType type) {
+        return entries.get(Objects.requireNonNull(type, "type"));
+    }
+
+    /**
+     * Gets the amount of bytes that were reclaimed in all region files.
+     *
+     * @return The amount of bytes.
+     */
+    public long getBytesSaved() {
+        long saved = 0;
+        for (Entry entry : entries.values()) {
+            saved += entry.getBytesSaved();
+        }
+        return saved;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactionReport " + entries;
+    }
+}
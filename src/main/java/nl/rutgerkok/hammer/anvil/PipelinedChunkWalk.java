@@ -0,0 +1,556 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import nl.rutgerkok.hammer.anvil.RegionFile.PrefetchedChunk;
+import nl.rutgerkok.hammer.anvil.RegionFileCache.Claim;
+import nl.rutgerkok.hammer.anvil.RegionFileCache.Pin;
+import nl.rutgerkok.hammer.anvil.RegionFileCache.RegionKey;
+import nl.rutgerkok.hammer.anvil.tag.AnvilNbtWriter;
+import nl.rutgerkok.hammer.tag.CompoundTag;
+import nl.rutgerkok.hammer.util.Progress;
+import nl.rutgerkok.hammer.util.Progress.UnitsProgress;
+import nl.rutgerkok.hammer.util.Result;
+import nl.rutgerkok.hammer.util.Visitor;
+
+/**
+ * Walks along all chunks in the world using a pipeline. Reading from disk,
+ * decompressing, parsing, visiting, compressing and writing back are separate
+ * stages, each running on their own thread. The stages are connected by
+ * bounded queues, so a stage that is ahead waits for the next stage instead of
+ * filling up the memory.
+ *
+ * <p>
+ * The read stage runs on the thread that started the walk. Every chunk passes
+ * through all stages in order, so changes are written in the same order as
+ * the chunks were read.
+ *
+ */
+final class PipelinedChunkWalk {
+
+    /**
+     * Thrown inside a stage when another stage failed.
+     */
+    private static final class AbortedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A chunk, or the end of a region, travelling through the pipeline. Every
+     * stage fills in some fields. Only one stage at a time has access to an
+     * item.
+     */
+    private static final class PipelineItem implements ChunkTagWriter {
+        final int chunkX;
+        final int chunkZ;
+        /**
+         * Only set for the item that marks the end of a region.
+         */
+        final Pin regionPin;
+
+        PooledByteArrayInputStream compressed;
+        InputStream uncompressed;
+        CompoundTag rootTag;
+        IOException readFailure;
+        boolean delete = false;
+        final List<PendingWrite> writes = new ArrayList<>();
+
+        PipelineItem(int chunkX, int chunkZ, Pin regionPin) {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.regionPin = regionPin;
+        }
+
+        @Override
+        public void deleteTag(RegionFileType type) {
+            writes.add(new PendingWrite(type, null));
+        }
+
+        boolean isRegionEnd() {
+            return regionPin != null;
+        }
+
+        /**
+         * Gives the pooled buffers of this item back to the pool. Used for
+         * items that never reach the end of the pipeline, because the walk
+         * was aborted. Releasing a buffer twice does nothing.
+         */
+        void release() {
+            try {
+                if (uncompressed != null) {
+                    // Also closes the compressed data
+                    uncompressed.close();
+                }
+            } catch (IOException e) {
+                // Only gives buffers back, so this doesn't happen
+            }
+            if (compressed != null) {
+                compressed.close();
+            }
+            uncompressed = null;
+            compressed = null;
+            for (PendingWrite write : writes) {
+                if (write.compressed != null) {
+                    write.compressed.release();
+                }
+            }
+        }
+
+        @Override
+        public void saveTag(RegionFileType type, CompoundTag tag) {
+            writes.add(new PendingWrite(type, Objects.requireNonNull(tag, "tag")));
+        }
+    }
+
+    /**
+     * A tag that must be saved (or deleted, if the tag is null).
+     */
+    private static final class PendingWrite {
+        final RegionFileType type;
+        final CompoundTag tag;
+        ChunkCompression compression;
+        PooledByteArrayOutputStream compressed;
+
+        PendingWrite(RegionFileType type, CompoundTag tag) {
+            this.type = type;
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * A stage of the pipeline, that takes items from one queue, processes them
+     * and puts them on the next queue.
+     */
+    private abstract class Stage implements Runnable {
+        private final BlockingQueue<PipelineItem> input;
+        private final BlockingQueue<PipelineItem> output;
+
+        Stage(BlockingQueue<PipelineItem> input, BlockingQueue<PipelineItem> output) {
+            this.input = Objects.requireNonNull(input, "input");
+            this.output = output;
+        }
+
+        abstract void process(PipelineItem item) throws IOException;
+
+        void processRegionEnd(PipelineItem item) throws IOException {
+            // Empty by default
+        }
+
+        @Override
+        public final void run() {
+            // The item this stage is responsible for, if any
+            PipelineItem current = null;
+            try {
+                while (true) {
+                    PipelineItem item = take(input);
+                    current = item;
+                    if (item != END_OF_WALK) {
+                        if (item.isRegionEnd()) {
+                            processRegionEnd(item);
+                        } else {
+                            process(item);
+                        }
+                    }
+                    if (output != null) {
+                        put(output, item);
+                    }
+                    current = null;
+                    if (item == END_OF_WALK) {
+                        return;
+                    }
+                }
+            } catch (AbortedException e) {
+                // Another stage failed, and that failure is already recorded
+            } catch (Throwable e) {
+                fail(e);
+            } finally {
+                if (current != null) {
+                    current.release();
+                }
+            }
+        }
+    }
+
+    private static final PipelineItem END_OF_WALK = new PipelineItem(0, 0, null);
+
+    /**
+     * How long a stage waits for a queue before checking whether the walk was
+     * aborted.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private final AnvilGameFactory gameFactory;
+    private final RegionFileCache regionFileCache;
+    private final int capacity;
+    private final boolean sectorOrdered;
+    private final int readAheadBytes;
+    private final ChunkTagReader tagReader;
+
+    private final Object failureLock = new Object();
+    private volatile Throwable failure;
+
+    PipelinedChunkWalk(AnvilGameFactory gameFactory, RegionFileCache regionFileCache, ChunkWalkOptions options) {
+        this.gameFactory = Objects.requireNonNull(gameFactory, "gameFactory");
+        this.regionFileCache = Objects.requireNonNull(regionFileCache, "regionFileCache");
+        this.capacity = options.getPipelineCapacity();
+        this.sectorOrdered = options.isSectorOrdered();
+        this.readAheadBytes = options.getReadAheadBytes();
+        this.tagReader = ChunkTagReader.of(options);
+    }
+
+    private void checkNotAborted() {
+        if (failure != null) {
+            throw new AbortedException();
+        }
+    }
+
+    private void fail(Throwable e) {
+        synchronized (failureLock) {
+            if (failure == null) {
+                failure = e;
+            } else if (failure != e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    private Stage inflateStage(BlockingQueue<PipelineItem> input, BlockingQueue<PipelineItem> output) {
+        return new Stage(input, output) {
+            @Override
+            void process(PipelineItem item) {
+                if (item.compressed == null) {
+                    return;
+                }
+                try {
+                    // Closes item.compressed once item.uncompressed is closed
+                    item.uncompressed = RegionFile.decompress(item.compressed);
+                } catch (IOException e) {
+                    item.readFailure = e;
+                }
+                item.compressed = null;
+            }
+        };
+    }
+
+    private Stage parseStage(BlockingQueue<PipelineItem> input, BlockingQueue<PipelineItem> output) {
+        return new Stage(input, output) {
+            @Override
+            void process(PipelineItem item) {
+                if (item.uncompressed == null) {
+                    return;
+                }
+                InputStream uncompressed = item.uncompressed;
+                item.uncompressed = null;
+                try (InputStream stream = uncompressed) {
+                    item.rootTag = tagReader.read(stream);
+                } catch (IOException e) {
+                    item.readFailure = e;
+                }
+            }
+        };
+    }
+
+    private Stage visitStage(BlockingQueue<PipelineItem> input, BlockingQueue<PipelineItem> output,
+            Visitor<? super AnvilChunk> visitor, Progress progress) {
+        return new Stage(input, output) {
+            @Override
+            void process(PipelineItem item) throws IOException {
+                if (item.readFailure != null) {
+                    return;
+                }
+                RegionNbtIo regionNbtIo = new RegionNbtIo(ChunkDataVersion.latest(), regionFileCache, item.chunkX, item.chunkZ);
+                try {
+                    CompoundTag rootTag = item.rootTag != null ? item.rootTag : regionNbtIo.createEmptyChunkRootTag();
+                    AnvilChunk chunk = new AnvilChunk(gameFactory, regionNbtIo, rootTag, tagReader.isPartial());
+                    item.rootTag = null;
+                    Result result = visitor.accept(chunk, progress);
+                    switch (result) {
+                        case CHANGED:
+                            chunk.save(item);
+                            break;
+                        case DELETE:
+                            item.delete = true;
+                            break;
+                        case NO_CHANGES:
+                            break;
+                        default:
+                            throw new AssertionError("Unknown result: " + result);
+                    }
+                } catch (RuntimeException e) {
+                    throw new RuntimeException("Runtime error in " + item.chunkX + " " + item.chunkZ, e);
+                } catch (IOException e) {
+                    throw new IOException("IO error in " + item.chunkX + " " + item.chunkZ, e);
+                }
+            }
+        };
+    }
+
+    private Stage deflateStage(BlockingQueue<PipelineItem> input, BlockingQueue<PipelineItem> output) {
+        return new Stage(input, output) {
+            @Override
+            void process(PipelineItem item) throws IOException {
+                for (PendingWrite write : item.writes) {
+                    if (write.tag == null) {
+                        continue;
+                    }
+                    RegionFileSettings settings = regionFileCache.getSettings();
+                    ChunkCompression compression = settings.getWriteCompression();
+                    PooledByteArrayOutputStream uncompressed = new PooledByteArrayOutputStream();
+                    PooledByteArrayOutputStream compressed = new PooledByteArrayOutputStream();
+                    try {
+                        AnvilNbtWriter.writeUncompressedToStream(uncompressed, write.tag);
+                        compression.compress(uncompressed.getBuffer(), 0, uncompressed.size(), compressed,
+                                settings.getCompressionLevel());
+                    } catch (IOException | RuntimeException e) {
+                        compressed.release();
+                        throw e;
+                    } finally {
+                        uncompressed.release();
+                    }
+                    write.compression = compression;
+                    write.compressed = compressed;
+                }
+            }
+        };
+    }
+
+    private Stage writeStage(BlockingQueue<PipelineItem> input, UnitsProgress progress,
+            ChunkWalkCheckpoint checkpoint) {
+        return new Stage(input, null) {
+            @Override
+            void process(PipelineItem item) throws IOException {
+                write(item);
+                checkpoint.chunkDone(item.chunkX, item.chunkZ);
+            }
+
+            @Override
+            void processRegionEnd(PipelineItem item) throws IOException {
+                item.regionPin.close();
+                // For region ends, the chunk coords are the region coords
+                checkpoint.regionDone(item.chunkX, item.chunkZ);
+                progress.increment();
+            }
+
+            private void write(PipelineItem item) throws IOException {
+                int chunkX = item.chunkX;
+                int chunkZ = item.chunkZ;
+                RegionNbtIo regionNbtIo = new RegionNbtIo(ChunkDataVersion.latest(), regionFileCache, chunkX, chunkZ);
+                if (item.readFailure != null) {
+                    // There is no chunk data at all, delete from index
+                    System.err.println("Failed to read " + chunkX + " " + chunkZ + ", deleting chunk.");
+                    item.readFailure.printStackTrace(System.err);
+                    regionNbtIo.deleteTag(RegionFileType.CHUNK); // Remove from index, tag is corrupted
+                    return;
+                }
+                if (item.delete) {
+                    regionNbtIo.deleteAllDataOfChunk();
+                    return;
+                }
+                for (PendingWrite write : item.writes) {
+                    if (write.compressed == null) {
+                        regionNbtIo.deleteTag(write.type);
+                    } else {
+                        PooledByteArrayOutputStream compressed = write.compressed;
+                        try {
+                            regionFileCache.getRegionFile(write.type, chunkX, chunkZ).write(chunkX & 31, chunkZ & 31,
+                                    write.compression, compressed.getBuffer(), compressed.size());
+                        } finally {
+                            compressed.release();
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Performs the walk.
+     *
+     * @param visitor
+     *            The visitor.
+     * @param filter
+     *            Decides which chunks are visited.
+     * @param checkpoint
+     *            Records the chunks that were written back.
+     * @param deadline
+     *            No new chunks are read after this {@link System#nanoTime()}
+     *            value. Use {@link Long#MAX_VALUE} for no deadline.
+     * @return True if all chunks were walked, false if the deadline passed.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    boolean performWalk(Visitor<? super AnvilChunk> visitor, ChunkFilter filter, ChunkWalkCheckpoint checkpoint,
+            long deadline) throws IOException {
+        boolean completed = true;
+        try (Claim claim = regionFileCache.claim()) {
+            List<RegionKey> regions = filter.filterRegions(regionFileCache.listRegions(RegionFileType.CHUNK));
+            UnitsProgress progress = Progress.ofUnits(regions.size());
+
+            BlockingQueue<PipelineItem> toInflate = new ArrayBlockingQueue<>(capacity);
+            BlockingQueue<PipelineItem> toParse = new ArrayBlockingQueue<>(capacity);
+            BlockingQueue<PipelineItem> toVisit = new ArrayBlockingQueue<>(capacity);
+            BlockingQueue<PipelineItem> toDeflate = new ArrayBlockingQueue<>(capacity);
+            BlockingQueue<PipelineItem> toWrite = new ArrayBlockingQueue<>(capacity);
+            List<BlockingQueue<PipelineItem>> queues = Arrays.asList(toInflate, toParse, toVisit, toDeflate,
+                    toWrite);
+
+            List<Thread> threads = new ArrayList<>();
+            threads.add(new Thread(inflateStage(toInflate, toParse), "Chunk walk inflate"));
+            threads.add(new Thread(parseStage(toParse, toVisit), "Chunk walk parse"));
+            threads.add(new Thread(visitStage(toVisit, toDeflate, visitor, progress), "Chunk walk visit"));
+            threads.add(new Thread(deflateStage(toDeflate, toWrite), "Chunk walk deflate"));
+            threads.add(new Thread(writeStage(toWrite, progress, checkpoint), "Chunk walk write"));
+            for (Thread thread : threads) {
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            List<Pin> pins = new ArrayList<>();
+            try {
+                for (RegionKey region : regions) {
+                    Pin pin = regionFileCache.pin(region.regionX, region.regionZ);
+                    pins.add(pin);
+                    if (!readRegion(regionFileCache.getRegionFile(region), filter, deadline, toInflate)) {
+                        // Out of time; the region is only partially walked,
+                        // so don't mark it as done
+                        completed = false;
+                        break;
+                    }
+                    put(toInflate, new PipelineItem(region.regionX, region.regionZ, pin));
+                }
+                put(toInflate, END_OF_WALK);
+            } catch (AbortedException e) {
+                // Failure is already recorded
+            } catch (Throwable e) {
+                fail(e);
+            } finally {
+                for (Thread thread : threads) {
+                    Uninterruptibles.joinUninterruptibly(thread);
+                }
+                // If the walk was aborted, items are left behind in the
+                // queues; give their buffers back to the pool
+                for (BlockingQueue<PipelineItem> queue : queues) {
+                    for (PipelineItem item = queue.poll(); item != null; item = queue.poll()) {
+                        item.release();
+                    }
+                }
+                // Closing a pin twice does nothing, so this only closes the
+                // pins of regions that never reached the end of the pipeline
+                for (Pin pin : pins) {
+                    pin.close();
+                }
+            }
+
+            Throwable failure = this.failure;
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            if (failure != null) {
+                throw new RuntimeException(failure);
+            }
+        }
+        return completed;
+    }
+
+    private void put(BlockingQueue<PipelineItem> queue, PipelineItem item) throws InterruptedException {
+        while (true) {
+            checkNotAborted();
+            if (queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Puts all chunks of the region that must be visited on the queue.
+     *
+     * @return True if all chunks were put on the queue, false if the deadline
+     *         passed.
+     */
+    private boolean readRegion(RegionFile regionFile, ChunkFilter filter, long deadline,
+            BlockingQueue<PipelineItem> output) throws InterruptedException {
+        int startChunkX = regionFile.getStartChunkX();
+        int startChunkZ = regionFile.getStartChunkZ();
+        if (sectorOrdered) {
+            int[] indices = filter.filterChunks(regionFile, regionFile.getChunksInSectorOrder());
+            int i = 0;
+            while (i < indices.length) {
+                if (ChunkWalk.isPastDeadline(deadline)) {
+                    return false;
+                }
+                List<PrefetchedChunk> chunks = regionFile.readCompressedChunks(indices, i, readAheadBytes);
+                i += chunks.size();
+                for (int j = 0; j < chunks.size(); j++) {
+                    PrefetchedChunk chunk = chunks.get(j);
+                    PipelineItem item = new PipelineItem(startChunkX + chunk.localChunkX,
+                            startChunkZ + chunk.localChunkZ, null);
+                    item.compressed = chunk.data;
+                    item.readFailure = chunk.failure;
+                    try {
+                        put(output, item);
+                    } catch (InterruptedException | RuntimeException e) {
+                        // Give the buffers that didn't enter the pipeline
+                        // back to the pool
+                        for (int k = j; k < chunks.size(); k++) {
+                            if (chunks.get(k).data != null) {
+                                chunks.get(k).data.close();
+                            }
+                        }
+                        throw e;
+                    }
+                }
+            }
+            return true;
+        }
+        for (int localChunkX = 0; localChunkX < RegionFile.REGION_CHUNK_COUNT; localChunkX++) {
+            for (int localChunkZ = 0; localChunkZ < RegionFile.REGION_CHUNK_COUNT; localChunkZ++) {
+                if (!regionFile.hasChunk(localChunkX, localChunkZ)
+                        || !filter.acceptsChunk(regionFile, localChunkX, localChunkZ)) {
+                    continue;
+                }
+                if (ChunkWalk.isPastDeadline(deadline)) {
+                    return false;
+                }
+                PipelineItem item = new PipelineItem(startChunkX + localChunkX, startChunkZ + localChunkZ, null);
+                try {
+                    item.compressed = regionFile.readCompressedChunk(localChunkX, localChunkZ);
+                } catch (IOException e) {
+                    item.readFailure = e;
+                }
+                try {
+                    put(output, item);
+                } catch (InterruptedException | RuntimeException e) {
+                    item.release();
+                    throw e;
+                }
+            }
+        }
+        return true;
+    }
+
+    private PipelineItem take(BlockingQueue<PipelineItem> queue) throws InterruptedException {
+        while (true) {
+            checkNotAborted();
+            PipelineItem item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (item != null) {
+                return item;
+            }
+        }
+    }
+}
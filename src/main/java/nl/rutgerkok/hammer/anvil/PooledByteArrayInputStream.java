@@ -0,0 +1,64 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * A {@link ByteArrayInputStream} over a buffer from the {@link RegionIoPool}.
+ * The buffer is given back to the pool once the stream is closed.
+ */
+final class PooledByteArrayInputStream extends ByteArrayInputStream {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Creates a new stream.
+     *
+     * @param pooledBuffer
+     *            Buffer from the pool. Must no longer be used by the caller.
+     * @param offset
+     *            Position of the first byte that can be read.
+     * @param length
+     *            Amount of bytes in the buffer that can be read.
+     */
+    PooledByteArrayInputStream(byte[] pooledBuffer, int offset, int length) {
+        super(pooledBuffer, offset, length);
+    }
+
+    /**
+     * Gets the internal buffer. The bytes from {@link #getPosition()} up to
+     * {@link #getEnd()} are valid.
+     *
+     * @return The buffer.
+     */
+    byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * Gets the position in the buffer after the last readable byte.
+     *
+     * @return The position.
+     */
+    int getEnd() {
+        return count;
+    }
+
+    /**
+     * Gets the position of the next byte that will be read.
+     *
+     * @return The position.
+     */
+    int getPosition() {
+        return pos;
+    }
+
+    @Override
+    public void close() {
+        byte[] oldBuf = buf;
+        buf = EMPTY;
+        pos = 0;
+        count = 0;
+        mark = 0;
+        RegionIoPool.releaseBuffer(oldBuf);
+    }
+}
@@ -0,0 +1,73 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A {@link ByteArrayOutputStream} that takes its buffers from the
+ * {@link RegionIoPool}. Call {@link #release()} once the data is no longer
+ * needed.
+ */
+class PooledByteArrayOutputStream extends ByteArrayOutputStream {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    PooledByteArrayOutputStream() {
+        this(0);
+    }
+
+    PooledByteArrayOutputStream(int expectedSize) {
+        super(0);
+        this.buf = RegionIoPool.acquireBuffer(expectedSize);
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity <= buf.length) {
+            return;
+        }
+        if (minCapacity < 0) {
+            throw new OutOfMemoryError("Buffer too large");
+        }
+        byte[] newBuf = RegionIoPool.acquireBuffer(Math.max(minCapacity, buf.length * 2));
+        System.arraycopy(buf, 0, newBuf, 0, count);
+        RegionIoPool.releaseBuffer(buf);
+        buf = newBuf;
+    }
+
+    /**
+     * Gets the internal buffer. Only the first {@link #size()} bytes are
+     * valid.
+     *
+     * @return The buffer.
+     */
+    byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * Gives the buffer back to the pool. The stream is empty afterwards, and
+     * can still be written to.
+     */
+    void release() {
+        byte[] oldBuf = buf;
+        buf = EMPTY;
+        count = 0;
+        RegionIoPool.releaseBuffer(oldBuf);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count] = (byte) b;
+        count++;
+    }
+}
@@ -0,0 +1,66 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * The data of a chunk as it is stored in a region file: still compressed. Can
+ * be used to copy chunks between worlds without parsing them.
+ *
+ * @see AnvilChunkAccess#getRawChunk(RegionFileType, int, int)
+ */
+public final class RawChunk {
+
+    private final ChunkCompression compression;
+    private final byte[] data;
+
+    /**
+     * Creates a new raw chunk. The array is not copied, so it must not be
+     * modified afterwards.
+     *
+     * @param compression
+     *            The compression type of the data.
+     * @param data
+     *            The compressed data.
+     */
+    public RawChunk(ChunkCompression compression, byte[] data) {
+        this.compression = Objects.requireNonNull(compression, "compression");
+        this.data = Objects.requireNonNull(data, "data");
+    }
+
+    /**
+     * Decompresses the data. The result is the NBT data of the chunk.
+     *
+     * @return The uncompressed data.
+     * @throws IOException
+     *             If the data cannot be decompressed.
+     */
+    public InputStream decompress() throws IOException {
+        return compression.decompress(data, 0, data.length);
+    }
+
+    /**
+     * Gets the compression type of the data.
+     *
+     * @return The compression type.
+     */
+    public ChunkCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Gets the compressed data. The array is not copied, so it must not be
+     * modified.
+     *
+     * @return The compressed data.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "RawChunk [compression=" + compression + ", length=" + data.length + "]";
+    }
+}
@@ -0,0 +1,63 @@
+package nl.rutgerkok.hammer.anvil;
+
+/**
+ * The result of {@link AnvilWorld#recompress(ChunkWalkOptions) recompressing}
+ * a world. Sizes are the sizes of the compressed chunk data, not of the
+ * region files: region files are only shrunk once they are closed.
+ */
+public final class RecompressionReport {
+
+    private final int chunkCount;
+    private final long bytesBefore;
+    private final long bytesAfter;
+
+    RecompressionReport(int chunkCount, long bytesBefore, long bytesAfter) {
+        this.chunkCount = chunkCount;
+        this.bytesBefore = bytesBefore;
+        this.bytesAfter = bytesAfter;
+    }
+
+    /**
+     * Gets the total size of all compressed chunks after recompressing.
+     *
+     * @return The size in bytes.
+     */
+    public long getBytesAfter() {
+        return bytesAfter;
+    }
+
+    /**
+     * Gets the total size of all compressed chunks before recompressing.
+     *
+     * @return The size in bytes.
+     */
+    public long getBytesBefore() {
+        return bytesBefore;
+    }
+
+    /**
+     * Gets the amount of bytes that were saved. Negative if the chunks became
+     * larger, for example after switching to {@link ChunkCompression#NONE}.
+     *
+     * @return The amount of bytes.
+     */
+    public long getBytesSaved() {
+        return bytesBefore - bytesAfter;
+    }
+
+    /**
+     * Gets the amount of chunks that were recompressed. Chunks in the entity
+     * and point of interest region files are counted too.
+     *
+     * @return The amount of chunks.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    @Override
+    public String toString() {
+        return "RecompressionReport [chunkCount=" + chunkCount + ", bytesBefore=" + bytesBefore + ", bytesAfter="
+                + bytesAfter + "]";
+    }
+}
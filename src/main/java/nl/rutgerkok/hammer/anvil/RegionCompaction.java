@@ -0,0 +1,113 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.rutgerkok.hammer.anvil.RegionFileCache.Claim;
+import nl.rutgerkok.hammer.anvil.RegionFileCache.Pin;
+import nl.rutgerkok.hammer.anvil.RegionFileCache.RegionKey;
+import nl.rutgerkok.hammer.util.SectorAllocator;
+
+/**
+ * Compacts all region files of a world that have too much free space, and
+ * reports on the health of all region files. Chunks are moved in small steps,
+ * so that the world can still be used in the meantime.
+ *
+ * @see RegionFile#defragment(int)
+ */
+final class RegionCompaction {
+
+    /**
+     * Totals for a single {@link RegionFileType}, updated from multiple
+     * threads.
+     */
+    private static final class Totals {
+        private final AtomicInteger regionCount = new AtomicInteger();
+        private final AtomicInteger compactedRegionCount = new AtomicInteger();
+        private final AtomicLong bytesBefore = new AtomicLong();
+        private final AtomicLong bytesAfter = new AtomicLong();
+        private final AtomicLong freeSectors = new AtomicLong();
+        private final AtomicInteger corruptOffsets = new AtomicInteger();
+
+        private CompactionReport.Entry toEntry() {
+            return new CompactionReport.Entry(regionCount.get(), compactedRegionCount.get(), bytesBefore.get(),
+                    bytesAfter.get(), freeSectors.get(), corruptOffsets.get());
+        }
+    }
+
+    /**
+     * Amount of chunks moved while holding the write lock of a region file.
+     */
+    private static final int CHUNKS_PER_STEP = 16;
+
+    private final RegionFileCache regionFileCache;
+    private final double threshold;
+    private final ChunkWalkOptions options;
+
+    private final Map<RegionFileType, Totals> totals = new EnumMap<>(RegionFileType.class);
+
+    RegionCompaction(RegionFileCache regionFileCache, double threshold, ChunkWalkOptions options) {
+        if (threshold < 0 || threshold > 1) {
+            throw new IllegalArgumentException("threshold must be from 0 to 1, was " + threshold);
+        }
+        this.regionFileCache = Objects.requireNonNull(regionFileCache, "regionFileCache");
+        this.threshold = threshold;
+        this.options = Objects.requireNonNull(options, "options");
+        for (RegionFileType type : RegionFileType.values()) {
+            totals.put(type, new Totals());
+        }
+    }
+
+    private void compactRegionFile(RegionFile regionFile, Totals totals) throws IOException {
+        SectorAllocator.Statistics before = regionFile.getSectorStatistics();
+        int corruptOffsets = regionFile.getCorruptOffsetCount();
+        SectorAllocator.Statistics after = before;
+        if (corruptOffsets == 0 && before.getFreeSectorCount() > 0
+                && (double) before.getFreeSectorCount() / before.getTotalSectorCount() >= threshold) {
+            while (regionFile.defragment(CHUNKS_PER_STEP) > 0) {
+                // Lock is released between steps, so other threads can continue
+            }
+            after = regionFile.getSectorStatistics();
+            totals.compactedRegionCount.incrementAndGet();
+        }
+
+        totals.regionCount.incrementAndGet();
+        totals.corruptOffsets.addAndGet(corruptOffsets);
+        totals.bytesBefore.addAndGet((long) before.getTotalSectorCount() * RegionFile.SECTOR_BYTES);
+        totals.bytesAfter.addAndGet((long) after.getTotalSectorCount() * RegionFile.SECTOR_BYTES);
+        totals.freeSectors.addAndGet(after.getFreeSectorCount());
+    }
+
+    CompactionReport perform() throws IOException {
+        try (Claim claim = regionFileCache.claim()) {
+            List<RegionKey> regions = new ArrayList<>();
+            Map<RegionKey, RegionFileType> types = new HashMap<>();
+            for (RegionFileType type : RegionFileType.values()) {
+                for (RegionKey region : regionFileCache.listRegions(type)) {
+                    regions.add(region);
+                    types.put(region, type);
+                }
+            }
+            RegionTaskRunner runner = new RegionTaskRunner(options.getExecutor(), options.getParallelism());
+            runner.run(regions, region -> {
+                // Keep the region file open while we're working on it
+                try (Pin pin = regionFileCache.pin(region.regionX, region.regionZ)) {
+                    compactRegionFile(regionFileCache.getRegionFile(region), totals.get(types.get(region)));
+                }
+            });
+        }
+
+        Map<RegionFileType, CompactionReport.Entry> entries = new EnumMap<>(RegionFileType.class);
+        for (Map.Entry<RegionFileType, Totals> entry : totals.entrySet()) {
+            entries.put(entry.getKey(), entry.getValue().toEntry());
+        }
+        return new CompactionReport(entries);
+    }
+}
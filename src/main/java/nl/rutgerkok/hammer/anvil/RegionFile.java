@@ -19,20 +19,34 @@ package nl.rutgerkok.hammer.anvil;
 // Interfaces with region files on the disk
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
-
-import nl.rutgerkok.hammer.util.BooleanList;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+
+import nl.rutgerkok.hammer.anvil.RegionFileSettings.Durability;
+import nl.rutgerkok.hammer.util.SectorAllocator;
 
 /**
  *
@@ -68,12 +82,31 @@ import nl.rutgerkok.hammer.util.BooleanList;
  * field, to allow backwards-compatible updates to how chunks are encoded.
  *
  * <p>
- * A version of {@value #VERSION_GZIP} represents a gzipped NBT file. The
- * gzipped data is the chunk length - 1.
+ * The version is the {@link ChunkCompression#getId() id of the compression
+ * type}: 1 for GZIP, 2 for zlib, 3 for uncompressed and 4 for LZ4. The
+ * compressed NBT data is the chunk length - 1. New chunks are written using the
+ * compression type from the {@link RegionFileSettings}.
+ *
+ * <p>
+ * Chunks that need 256 sectors (1MB) or more are stored in a separate file
+ * next to the region file, named "c.x.z.mcc", where x and z are the chunk
+ * coordinates. The chunk data in the region file is then just a version byte,
+ * with the highest bit ({@value #EXTERNAL_FLAG}) set.
+ *
+ * <p>
+ * All disk access uses a {@link FileChannel}. Chunks can be read by multiple
+ * threads at the same time: readers first try without locking, and only fall
+ * back to a read lock if a write happened in the meantime. Writes are done by
+ * one thread at a time.
  *
  * <p>
- * A version of {@value #VERSION_DEFLATE} represents a deflated (zlib
- * compressed) NBT file. The deflated data is the chunk length - 1.
+ * The header is kept in memory, and written to disk in one go after a
+ * {@link RegionFileSettings#setHeaderFlushInterval(int) number of writes}, on
+ * {@link #flush()} and on close. Sectors of old chunk versions are only reused
+ * after that, so that the header on disk never points to overwritten data.
+ * With {@link RegionFileSettings.Durability#JOURNALED}, the header changes are
+ * first written to a "r.x.z.mca.journal" file, which is replayed when the
+ * region file is opened after a crash.
  */
 public class RegionFile {
 
@@ -81,27 +114,102 @@ public class RegionFile {
      * lets chunk writing be multithreaded by not locking the whole file as a
      * chunk is serializing -- only writes when serialization is over
      */
-    class ChunkBuffer extends ByteArrayOutputStream {
+    class ChunkBuffer extends PooledByteArrayOutputStream {
         private int x, z;
+        private ChunkCompression compression;
+        private int level;
+        private boolean closed = false;
 
-        public ChunkBuffer(int x, int z) {
-            super(8096); // initialize to 8KB
+        public ChunkBuffer(int x, int z, ChunkCompression compression, int level) {
             this.x = x;
             this.z = z;
+            this.compression = compression;
+            this.level = level;
         }
 
         @Override
-        public void close() {
-            RegionFile.this.write(x, z, buf, count);
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            // Data is compressed in one go, which is a lot faster than
+            // compressing it byte for byte while the NBT is being written
+            PooledByteArrayOutputStream compressed = new PooledByteArrayOutputStream(count);
+            try {
+                compression.compress(buf, 0, count, compressed, level);
+                RegionFile.this.write(x, z, compression, compressed.getBuffer(), compressed.size());
+            } finally {
+                compressed.release();
+                release();
+            }
+        }
+    }
+
+    /**
+     * A chunk read by {@link RegionFile#readCompressedChunks(int[], int, int)}.
+     */
+    static final class PrefetchedChunk {
+        final int localChunkX;
+        final int localChunkZ;
+        /**
+         * Same as the return value of {@link RegionFile#readCompressedChunk(int, int)}:
+         * may be null.
+         */
+        final PooledByteArrayInputStream data;
+        /**
+         * Set if reading failed, in which case {@link #data} is null.
+         */
+        final IOException failure;
+
+        private PrefetchedChunk(int index, PooledByteArrayInputStream data, IOException failure) {
+            this.localChunkX = index % REGION_CHUNK_COUNT;
+            this.localChunkZ = index / REGION_CHUNK_COUNT;
+            this.data = data;
+            this.failure = failure;
         }
     }
 
     static final int CHUNK_HEADER_BYTES = 4;
+    /**
+     * Set on the version byte if the chunk data is stored in a separate file.
+     */
+    private static final int EXTERNAL_FLAG = 0x80;
+    private static final String EXTERNAL_FILE_EXTENSION = ".mcc";
+    /**
+     * Chunks needing this amount of sectors or more are stored in a separate
+     * file, as the sector count must fit in a byte.
+     */
+    private static final int MAX_SECTORS_PER_CHUNK = 256;
+    /**
+     * Free sectors between two chunks that are read anyway by
+     * {@link #readCompressedChunks(int[], int, int)}, as that is cheaper than
+     * doing a separate read.
+     */
+    private static final int MAX_READ_AHEAD_GAP_SECTORS = 8;
     /**
      * Two sectors at the beginning of the file are in use for storing the chunk
      * offsets and last modified times.
      */
     private static final int HEADER_SECTORS = 2;
+    /**
+     * If at most this many header entries changed, only those entries are
+     * written, instead of the whole header. With a header flush interval of 1,
+     * this keeps a chunk write at two small header writes.
+     */
+    private static final int MAX_SEPARATE_HEADER_ENTRIES = 16;
+
+    /**
+     * The journal starts with this magic value and the amount of entries.
+     * Every entry is an index, an offset and a timestamp. The journal ends
+     * with a CRC32 checksum of everything before it.
+     */
+    private static final int JOURNAL_MAGIC = 0x484a524e;
+    private static final int JOURNAL_HEADER_BYTES = 8;
+    private static final int JOURNAL_ENTRY_BYTES = 12;
+    private static final int JOURNAL_CHECKSUM_BYTES = 8;
+    private static final String JOURNAL_FILE_EXTENSION = ".journal";
 
     private static final byte emptySector[] = new byte[4096];
 
@@ -110,21 +218,79 @@ public class RegionFile {
      */
     public static final int REGION_CHUNK_COUNT = 32;
 
-    private static final int SECTOR_BYTES = 4096;
+    static final int SECTOR_BYTES = 4096;
     private static final int SECTOR_INTS = SECTOR_BYTES / 4;
 
-    private static final int VERSION_DEFLATE = 2;
-    private static final int VERSION_GZIP = 1;
+    /**
+     * An operation on the file channel. Must be safe to run again, as it is
+     * run again on a new channel if an interrupt closed the old one. Note that
+     * the channel may throw after it already transferred (part of) the bytes,
+     * so file positions must be derived from the state of the buffers at the
+     * start of each run.
+     *
+     * @param <T>
+     *            Type of the result.
+     */
+    @FunctionalInterface
+    private interface ChannelOperation<T> {
+        T run(FileChannel channel) throws IOException;
+    }
 
     private final int chunkTimestamps[];
-    private RandomAccessFile file;
+    /**
+     * The file and its channel. Replaced if the channel is closed because a
+     * thread using it was interrupted, see
+     * {@link #onChannel(ChannelOperation)}.
+     */
+    private volatile RandomAccessFile file;
+    private volatile FileChannel channel;
+    /**
+     * Set once {@link #close()} closes the file, after which the channel is
+     * no longer reopened.
+     */
+    private boolean fileClosed = false;
     private final Path fileName;
+    private final RegionFileSettings settings;
     private long lastModified = 0;
     private final int offsets[];
-    private BooleanList sectorFree;
+    private SectorAllocator sectorFree;
     private int regionX;
     private int regionZ;
 
+    /**
+     * Indices in {@link #offsets} and {@link #chunkTimestamps} that were
+     * changed since the header was last written to disk. Guarded by the write
+     * lock.
+     */
+    private final BitSet changedHeaderEntries = new BitSet(SECTOR_INTS);
+    /**
+     * How many times each entry in {@link #offsets} was changed since this
+     * region file was opened. Also counts rewrites that end up at the same
+     * offset. Guarded by the write lock.
+     */
+    private final int[] offsetChangeCounts = new int[SECTOR_INTS];
+    /**
+     * Amount of chunk writes since the header was last written to disk.
+     */
+    private int writesSinceHeaderFlush = 0;
+    /**
+     * Sectors that are no longer used by a chunk, but may still be referenced
+     * by the header on disk. They become available once the header is
+     * written. Each entry is a sector number and a sector count.
+     */
+    private final List<int[]> sectorsFreedOnFlush = new ArrayList<>();
+    /**
+     * External chunk files that are no longer used, but may still be
+     * referenced by the header on disk. They are deleted once the header is
+     * written.
+     */
+    private final Set<Path> externalFilesDeletedOnFlush = new HashSet<>();
+
+    /**
+     * Writers hold the write lock. Readers use optimistic reads, and only take
+     * the read lock if the optimistic read was invalidated by a writer.
+     */
+    private final StampedLock lock = new StampedLock();
 
     /**
      * Creates a new {@link RegionFile} instance. Instances are created by the
@@ -136,10 +302,13 @@ public class RegionFile {
      *            The x position of the region, in region coords.
      * @param regionZ
      *            The z position of the region, in region coords.
+     * @param settings
+     *            Settings for writing chunks.
      */
-    RegionFile(Path path, int regionX, int regionZ) {
+    RegionFile(Path path, int regionX, int regionZ, RegionFileSettings settings) {
         this.regionX = regionX;
         this.regionZ = regionZ;
+        this.settings = Objects.requireNonNull(settings, "settings");
 
         offsets = new int[SECTOR_INTS];
         chunkTimestamps = new int[SECTOR_INTS];
@@ -153,50 +322,43 @@ public class RegionFile {
             }
 
             file = new RandomAccessFile(path.toFile(), "rw");
-
-            if (file.length() < SECTOR_BYTES) {
-                /* we need to write the chunk offset table */
-                for (int i = 0; i < SECTOR_INTS; ++i) {
-                    file.writeInt(0);
-                }
-                // write another sector for the timestamp info
-                for (int i = 0; i < SECTOR_INTS; ++i) {
-                    file.writeInt(0);
-                }
+            channel = file.getChannel();
+
+            if (size() < SECTOR_BYTES * HEADER_SECTORS) {
+                /*
+                 * we need to write the chunk offset table, and another sector
+                 * for the timestamp info
+                 */
+                writeFully(ByteBuffer.allocate(SECTOR_BYTES * HEADER_SECTORS), 0);
             }
 
-            if ((file.length() & 0xfff) != 0) {
+            if ((size() & 0xfff) != 0) {
                 /* the file size is not a multiple of 4KB, grow it */
-                for (int i = 0; i < (file.length() & 0xfff); ++i) {
-                    file.write((byte) 0);
-                }
+                long size = size();
+                writeFully(ByteBuffer.wrap(emptySector, 0, SECTOR_BYTES - (int) (size & 0xfff)), size);
             }
 
-            /* set up the available sector map */
-            int nSectors = (int) file.length() / SECTOR_BYTES;
-            sectorFree = new BooleanList(nSectors);
-
-            for (int i = 0; i < nSectors; ++i) {
-                sectorFree.add(true);
-            }
+            ByteBuffer header = ByteBuffer.allocate(SECTOR_BYTES * HEADER_SECTORS);
+            readFully(header, 0);
+            header.flip();
+            IntBuffer headerInts = header.asIntBuffer();
+            headerInts.get(offsets);
+            headerInts.get(chunkTimestamps);
 
-            sectorFree.set(0, false); // chunk offset table
-            sectorFree.set(1, false); // for the last modified info
+            // Finish the header update that was in progress during a crash
+            replayJournal();
 
-            file.seek(0);
+            /* set up the available sector map */
+            int nSectors = (int) (size() / SECTOR_BYTES);
+            sectorFree = new SectorAllocator(nSectors);
+            // chunk offset table and last modified info
+            sectorFree.markUsed(0, HEADER_SECTORS);
             for (int i = 0; i < SECTOR_INTS; ++i) {
-                int offset = file.readInt();
-                offsets[i] = offset;
+                int offset = offsets[i];
                 if (offset != 0 && (offset >> 8) + (offset & 0xFF) <= sectorFree.size()) {
-                    for (int sectorNum = 0; sectorNum < (offset & 0xFF); ++sectorNum) {
-                        sectorFree.set((offset >> 8) + sectorNum, false);
-                    }
+                    sectorFree.markUsed(offset >> 8, offset & 0xFF);
                 }
             }
-            for (int i = 0; i < SECTOR_INTS; ++i) {
-                int lastModValue = file.readInt();
-                chunkTimestamps[i] = lastModValue;
-            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -215,18 +377,24 @@ public class RegionFile {
      * @throws IOException
      *             If an IO error occurs.
      */
-    protected synchronized void close() throws IOException {
-        int sectorsFree = 0;
-        int totalSectors = sectorFree.size() - HEADER_SECTORS;
-        for (int i = HEADER_SECTORS; i < sectorFree.size(); i++) {
-            if (sectorFree.get(i)) {
-                sectorsFree++;
-            }
+    protected void close() throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            closeLocked();
+        } finally {
+            lock.unlockWrite(stamp);
         }
+    }
+
+    private void closeLocked() throws IOException {
+        flushHeaderLocked();
+
+        int sectorsFree = sectorFree.getStatistics().getFreeSectorCount();
+        int totalSectors = sectorFree.size() - HEADER_SECTORS;
 
         if (sectorsFree == totalSectors) {
             // Region file no longer needed
-            file.close();
+            closeFile();
             Files.delete(this.fileName);
             return;
         }
@@ -234,10 +402,15 @@ public class RegionFile {
             // A resize is worth it
             shrinkAndClose();
         } else {
-            file.close();
+            closeFile();
         }
     }
 
+    private synchronized void closeFile() throws IOException {
+        fileClosed = true;
+        file.close();
+    }
+
     // various small debug printing helpers
     private void debug(String in) {
         // System.out.print(in);
@@ -259,6 +432,77 @@ public class RegionFile {
         debug(mode, x, z, in + "\n");
     }
 
+    /**
+     * Does a small step of defragmenting this region file, while it remains
+     * usable by other threads. The chunks at the end of the file are moved to
+     * free space closer to the start, and the free sectors at the end of the
+     * file are then cut off. Call this method until it returns 0 to fully
+     * defragment the file.
+     *
+     * @param maxChunks
+     *            The maximum amount of chunks to move in this step. The write
+     *            lock is held for the whole step, so keep this small if other
+     *            threads are using the region file.
+     * @return The amount of chunks that were moved.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public int defragment(int maxChunks) throws IOException {
+        if (maxChunks < 1) {
+            throw new IllegalArgumentException("maxChunks must be at least 1, was " + maxChunks);
+        }
+        long stamp = lock.writeLock();
+        try {
+            return defragmentLocked(maxChunks);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private int defragmentLocked(int maxChunks) throws IOException {
+        // Make sectors freed by earlier writes available
+        flushHeaderLocked();
+
+        int moved = 0;
+        while (moved < maxChunks) {
+            int index = getLastChunkIndex();
+            if (index == -1) {
+                break;
+            }
+            int sectorNumber = offsets[index] >> 8;
+            int numSectors = offsets[index] & 0xFF;
+            int newSectorNumber = sectorFree.allocateFirstFit(numSectors, sectorNumber);
+            if (newSectorNumber == -1) {
+                break; // No space earlier in the file
+            }
+
+            // Copy the sectors; the old ones stay intact until the header is
+            // written
+            debugln("DEFRAG", index % REGION_CHUNK_COUNT, index / REGION_CHUNK_COUNT,
+                    sectorNumber + " -> " + newSectorNumber);
+            byte[] buffer = RegionIoPool.acquireBuffer(numSectors * SECTOR_BYTES);
+            try {
+                ByteBuffer sectors = ByteBuffer.wrap(buffer, 0, numSectors * SECTOR_BYTES);
+                readFully(sectors, (long) sectorNumber * SECTOR_BYTES);
+                sectors.flip();
+                writeFully(sectors, (long) newSectorNumber * SECTOR_BYTES);
+            } finally {
+                RegionIoPool.releaseBuffer(buffer);
+            }
+            setOffset(index % REGION_CHUNK_COUNT, index / REGION_CHUNK_COUNT, (newSectorNumber << 8) | numSectors);
+            freeSectorsOnFlush(sectorNumber, numSectors);
+            moved++;
+        }
+
+        // Write the new offsets, so that the old sectors become free
+        flushHeaderLocked();
+        long newSize = (long) sectorFree.shrinkToFit() * SECTOR_BYTES;
+        if (newSize < size()) {
+            onChannel(channel -> channel.truncate(newSize));
+        }
+        return moved;
+    }
+
     /**
      * Deletes the chunk at the given x and z, marking the sectors as free and
      * deleting the chunks from the index.
@@ -270,9 +514,18 @@ public class RegionFile {
      * @throws IOException
      *             If an IO error occurs.
      */
-    public synchronized void deleteChunk(int x, int z) throws IOException {
+    public void deleteChunk(int x, int z) throws IOException {
         checkBounds(x, z);
 
+        long stamp = lock.writeLock();
+        try {
+            deleteChunkLocked(x, z);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void deleteChunkLocked(int x, int z) throws IOException {
         if (!hasChunk(x, z)) {
             return;
         }
@@ -282,19 +535,90 @@ public class RegionFile {
         int numSectors = offset & 0xFF;
 
         // Check for file corruption
-        if (sectorNumber + numSectors > sectorFree.size()) {
+        if (sectorNumber < HEADER_SECTORS || sectorNumber + numSectors > sectorFree.size()) {
             debugln("READ", x, z, "invalid sector");
             return;
         }
 
+        boolean external = isExternal(sectorNumber);
+
         // Reset offset and timestamp
         setOffset(x, z, 0);
         setTimestamp(x, z, 0);
 
         // Mark sectors as free
-        for (int i = 0; i < numSectors; i++) {
-            sectorFree.set(sectorNumber + i, true);
+        freeSectorsOnFlush(sectorNumber, numSectors);
+
+        if (external) {
+            deleteExternalFileOnFlush(x, z);
+        }
+        headerChanged();
+    }
+
+    /**
+     * Schedules the external file of the given chunk for deletion once the
+     * header is written. Must be called while holding the write lock.
+     */
+    private void deleteExternalFileOnFlush(int x, int z) {
+        externalFilesDeletedOnFlush.add(getExternalFile(x, z));
+    }
+
+    /**
+     * Writes the header (with the chunk offsets and timestamps) to disk, if it
+     * was modified. Afterwards, the sectors and external files of old chunk
+     * versions can be reused.
+     *
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public void flush() throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            flushHeaderLocked();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void flushHeaderLocked() throws IOException {
+        if (!changedHeaderEntries.isEmpty()) {
+            Durability durability = settings.getDurability();
+            if (durability != Durability.NONE) {
+                // Chunk data must be on disk before the header points to it
+                force();
+            }
+            if (durability == Durability.JOURNALED) {
+                writeJournal();
+            }
+            writeChangedHeaderEntries();
+            if (durability != Durability.NONE) {
+                // Header must be on disk before the old sectors are reused
+                force();
+            }
+            if (durability == Durability.JOURNALED) {
+                Files.delete(getJournalFile());
+            }
+            changedHeaderEntries.clear();
         }
+        writesSinceHeaderFlush = 0;
+
+        // Old chunk versions are no longer referenced
+        for (int[] run : sectorsFreedOnFlush) {
+            sectorFree.free(run[0], run[1]);
+        }
+        sectorsFreedOnFlush.clear();
+        for (Path externalFile : externalFilesDeletedOnFlush) {
+            Files.deleteIfExists(externalFile);
+        }
+        externalFilesDeletedOnFlush.clear();
+    }
+
+    /**
+     * Marks sectors as free once the header is written. Must be called while
+     * holding the write lock.
+     */
+    private void freeSectorsOnFlush(int sectorNumber, int numSectors) {
+        sectorsFreedOnFlush.add(new int[] { sectorNumber, numSectors });
     }
 
     /**
@@ -309,260 +633,1303 @@ public class RegionFile {
      * @throws IOException
      *             If an IO error occurs.
      */
-    public synchronized InputStream getChunkInputStream(int chunkX, int chunkZ) throws IOException {
+    public InputStream getChunkInputStream(int chunkX, int chunkZ) throws IOException {
         checkBounds(chunkX, chunkZ);
 
-        int offset = getOffsetAndSize(chunkX, chunkZ);
-        if (offset == 0) {
-            // debugln("READ", x, z, "miss");
+        PooledByteArrayInputStream compressed = readCompressedChunk(chunkX, chunkZ, false);
+        if (compressed == null) {
             return null;
         }
-
-        int sectorNumber = offset >> 8;
-        int numSectors = offset & 0xFF;
-
-        if (sectorNumber + numSectors > sectorFree.size()) {
-            debugln("READ", chunkX, chunkZ, "invalid sector");
-            return null;
+        int version = compressed.getBuffer()[compressed.getPosition()] & 0xFF;
+        if ((version & EXTERNAL_FLAG) == 0) {
+            return decompress(compressed);
         }
+        compressed.close();
 
-        file.seek(sectorNumber * SECTOR_BYTES);
-        int length = file.readInt();
-
-        if (length > SECTOR_BYTES * numSectors) {
-            debugln("READ", chunkX, chunkZ, "invalid length: " + length + " > 4096 * " + numSectors);
-            return null;
+        // Stream directly from the external file, which can be large
+        ChunkCompression compression = getCompression(version & ~EXTERNAL_FLAG);
+        InputStream external = new BufferedInputStream(Files.newInputStream(getExternalFile(chunkX, chunkZ)));
+        try {
+            return compression.decompress(external);
+        } catch (IOException | RuntimeException e) {
+            external.close();
+            throw e;
         }
+    }
 
-        byte version = file.readByte();
-        if (version == VERSION_GZIP) {
-            byte[] data = new byte[length - 1];
-            file.read(data);
-            InputStream ret = new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
-            // debug("READ", x, z, " = found");
-            return ret;
-        } else if (version == VERSION_DEFLATE) {
-            byte[] data = new byte[length - 1];
-            file.read(data);
-            InputStream ret = new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
-            // debug("READ", x, z, " = found");
-            return ret;
+    private static ChunkCompression getCompression(int version) throws IOException {
+        ChunkCompression compression = ChunkCompression.byId(version);
+        if (compression == null) {
+            throw new IOException("Unknown compression type " + version);
         }
-
-        throw new IOException("Unknown version " + version);
+        return compression;
     }
 
     /**
-     * Gets a buffer for writing. Once this buffer is closed, the bytes are
-     * actually written.
+     * Gets the file that stores the data of a chunk that is too large to fit in
+     * the region file.
      *
-     * @param x
-     *            The x of the chunk in the region file.
-     * @param z
-     *            The z of the chunk in the region file.
-     * @return The buffer.
+     * @param chunkX
+     *            The chunk x in the region file.
+     * @param chunkZ
+     *            The chunk z in the region file.
+     * @return The file.
      */
-    public OutputStream getChunkOutputStream(int x, int z) {
-        // Not synchronized - data is only written on output, so not needed yet
-        checkBounds(x, z);
-
-        return new DeflaterOutputStream(new ChunkBuffer(x, z));
-    }
-
-    private int getOffsetAndSize(int x, int z) {
-        return offsets[x + z * REGION_CHUNK_COUNT];
+    private Path getExternalFile(int chunkX, int chunkZ) {
+        return fileName.resolveSibling("c." + (getStartChunkX() + chunkX) + "." + (getStartChunkZ() + chunkZ)
+                + EXTERNAL_FILE_EXTENSION);
     }
 
-    public int getStartChunkX() {
-        return regionX << 5;
+    /**
+     * Gets the file that records header changes while they are being written,
+     * when using {@link Durability#JOURNALED}.
+     *
+     * @return The file.
+     */
+    private Path getJournalFile() {
+        return fileName.resolveSibling(fileName.getFileName() + JOURNAL_FILE_EXTENSION);
     }
 
-    public int getStartChunkZ() {
-        return regionZ << 5;
+    /**
+     * Decompresses chunk data as returned by
+     * {@link #readCompressedChunk(int, int)}. Closing the returned stream also
+     * closes the given stream.
+     *
+     * @param compressed
+     *            The compressed data, starting with the version byte.
+     * @return The uncompressed stream.
+     * @throws IOException
+     *             If the compression type is unknown.
+     */
+    static InputStream decompress(PooledByteArrayInputStream compressed) throws IOException {
+        try {
+            byte[] buffer = compressed.getBuffer();
+            int start = compressed.getPosition();
+            ChunkCompression compression = getCompression(buffer[start] & 0xFF);
+            InputStream decompressed = compression.decompress(buffer, start + 1, compressed.getEnd() - start - 1);
+            if (decompressed instanceof PooledByteArrayInputStream) {
+                // Already fully decompressed, so compressed data is no longer
+                // needed
+                compressed.close();
+                return decompressed;
+            }
+            return new FilterInputStream(decompressed) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        compressed.close();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            compressed.close();
+            throw e;
+        }
     }
 
-    public boolean hasChunk(int x, int z) {
-        return getOffsetAndSize(x, z) != 0;
-    }
+    /**
+     * Reads the chunk data as it is stored on disk, so still compressed.
+     *
+     * @param chunkX
+     *            The chunk x in the region file.
+     * @param chunkZ
+     *            The chunk z in the region file.
+     * @return The version byte, followed by the compressed data. Null if there
+     *         is no chunk. Chunks stored in a separate file are loaded from
+     *         that file. The stream must be closed once the data is no longer
+     *         needed.
+     * @throws IOException
+     *             If an IO error occurs.
+     * @see #decompress(PooledByteArrayInputStream)
+     */
+    PooledByteArrayInputStream readCompressedChunk(int chunkX, int chunkZ) throws IOException {
+        checkBounds(chunkX, chunkZ);
 
-    /* the modification date of the region file when it was first opened */
-    public long lastModified() {
-        return lastModified;
+        return readCompressedChunk(chunkX, chunkZ, true);
     }
 
-    private void setOffset(int x, int z, int offset) throws IOException {
-        offsets[x + z * REGION_CHUNK_COUNT] = offset;
-        file.seek((x + z * REGION_CHUNK_COUNT) * 4);
-        file.writeInt(offset);
-    }
+    private PooledByteArrayInputStream readCompressedChunk(int chunkX, int chunkZ, boolean loadExternal)
+            throws IOException {
+        // First try without locking
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            PooledByteArrayInputStream data = null;
+            try {
+                data = readCompressedChunkUnlocked(chunkX, chunkZ, loadExternal);
+                if (lock.validate(stamp)) {
+                    return data;
+                }
+            } catch (IOException | RuntimeException e) {
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+                // Otherwise, the data was modified while we were reading it
+            }
+            if (data != null) {
+                data.close();
+            }
+        }
 
-    private void setTimestamp(int x, int z, int value) throws IOException {
-        chunkTimestamps[x + z * REGION_CHUNK_COUNT] = value;
-        file.seek(SECTOR_BYTES + (x + z * REGION_CHUNK_COUNT) * 4);
-        file.writeInt(value);
+        // A write happened in the meantime, try again while holding the lock
+        stamp = lock.readLock();
+        try {
+            return readCompressedChunkUnlocked(chunkX, chunkZ, loadExternal);
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     /**
-     * Called by {@link #close()} when it determines that a lot of space could
-     * be saved. This method rewrites the region file to be more compact.
+     * Reads the compressed data of the next few chunks, using a single read
+     * for chunks that are stored close to each other. This turns reading a
+     * whole region file into sequential IO.
      *
-     * @throws IOException
-     *             If an IO error occurs.
+     * <p>
+     * The read lock is only held during this method, so chunks may be written
+     * between calls.
+     *
+     * @param indices
+     *            The indices of the chunks, as returned by
+     *            {@link #getChunksInSectorOrder()}.
+     * @param from
+     *            The first chunk to read.
+     * @param maxBytes
+     *            Maximum size of a single read. A chunk larger than this is
+     *            still read in one go.
+     * @return The chunks that were read, at least one and in the same order as
+     *         the indices. The streams must be closed.
      */
-    private void shrinkAndClose() throws IOException {
-        Path tempPath = this.fileName.resolveSibling(this.fileName.getFileName().toString() + "-TEMP" + System.currentTimeMillis());
-        try (RandomAccessFile newFile = new RandomAccessFile(tempPath.toFile(), "rw")) {
-            // Just write empty file offsets for now, we will correct them later
-            for (int i = 0; i < SECTOR_INTS; i++) {
-                newFile.writeInt(0);
+    List<PrefetchedChunk> readCompressedChunks(int[] indices, int from, int maxBytes) {
+        long stamp = lock.readLock();
+        try {
+            // Find the chunks that are close enough together
+            int firstSector = offsets[indices[from]] >>> 8;
+            int endSector = firstSector + (offsets[indices[from]] & 0xFF);
+            int to = from + 1;
+            while (to < indices.length) {
+                int sectorNumber = offsets[indices[to]] >>> 8;
+                int chunkEndSector = sectorNumber + (offsets[indices[to]] & 0xFF);
+                if (sectorNumber < endSector || sectorNumber - endSector > MAX_READ_AHEAD_GAP_SECTORS
+                        || (long) (chunkEndSector - firstSector) * SECTOR_BYTES > maxBytes) {
+                    // Chunk was moved in the meantime, or is too far away
+                    break;
+                }
+                endSector = chunkEndSector;
+                to++;
             }
-            // But we can already write the correct time stamps
-            for (int i = 0; i < SECTOR_INTS; i++) {
-                newFile.writeInt(this.chunkTimestamps[i]);
+            endSector = Math.min(endSector, sectorFree.size());
+
+            List<PrefetchedChunk> chunks = new ArrayList<>(to - from);
+            byte[] window = null;
+            int windowLength = 0;
+            try {
+                if (endSector > firstSector && to - from > 1) {
+                    window = RegionIoPool.acquireBuffer((endSector - firstSector) * SECTOR_BYTES);
+                    windowLength = readAtMost(window, (endSector - firstSector) * SECTOR_BYTES,
+                            (long) firstSector * SECTOR_BYTES);
+                }
+            } catch (IOException e) {
+                // Try again chunk by chunk below
             }
-            int currentSectorNumber = 2;
-            for (int z = 0; z < REGION_CHUNK_COUNT; z++) {
-                for (int x = 0; x < REGION_CHUNK_COUNT; x++) {
-                    int oldChunkOffset = getOffsetAndSize(x, z);
-                    if (oldChunkOffset == 0) {
-                        // No chunk at this position
-                        continue;
-                    }
-
-                    int oldSectorNumber = oldChunkOffset >> 8;
-                    int oldNumSectors = oldChunkOffset & 0xFF;
-
-                    if (oldSectorNumber + oldNumSectors > sectorFree.size()) {
-                        debugln("READ", x, z, "invalid sector");
-                        continue;
+            try {
+                for (int i = from; i < to; i++) {
+                    int index = indices[i];
+                    PooledByteArrayInputStream data = null;
+                    if (window != null) {
+                        data = sliceWindow(window, windowLength, firstSector, offsets[index]);
                     }
-
-                    // Start reading old chunk
-                    file.seek(oldSectorNumber * SECTOR_BYTES);
-                    int chunkLengthIncludingVersion = file.readInt();
-                    int fullLength = CHUNK_HEADER_BYTES + chunkLengthIncludingVersion;
-
-                    if (fullLength > SECTOR_BYTES * oldNumSectors) {
-                        debugln("READ", x, z, "invalid length: " + fullLength + " > 4096 * " + oldNumSectors);
+                    if (data != null) {
+                        chunks.add(new PrefetchedChunk(index, data, null));
                         continue;
                     }
-
-                    // Write empty sectors in preparation
-                    newFile.seek(currentSectorNumber * SECTOR_BYTES);
-                    int sectorsNeeded = fullLength / SECTOR_BYTES + 1;
-                    for (int i = 0; i < sectorsNeeded; i++) {
-                        newFile.write(emptySector);
+                    // Not in window, or something special like an external
+                    // chunk: read it the normal way
+                    try {
+                        data = readCompressedChunkUnlocked(index % REGION_CHUNK_COUNT, index / REGION_CHUNK_COUNT,
+                                true);
+                        chunks.add(new PrefetchedChunk(index, data, null));
+                    } catch (IOException e) {
+                        chunks.add(new PrefetchedChunk(index, null, e));
                     }
-
-                    // Jump back, write size, write data
-                    newFile.seek(currentSectorNumber * SECTOR_BYTES);
-                    newFile.writeInt(chunkLengthIncludingVersion);
-                    byte[] compressedChunk = new byte[chunkLengthIncludingVersion];
-                    file.read(compressedChunk);
-                    newFile.write(compressedChunk);
-
-                    // Update index
-                    newFile.seek((x + z * REGION_CHUNK_COUNT) * 4);
-                    newFile.writeInt((currentSectorNumber << 8) | sectorsNeeded);
-
-                    // On to next chunk
-                    currentSectorNumber += sectorsNeeded;
+                }
+            } finally {
+                if (window != null) {
+                    RegionIoPool.releaseBuffer(window);
                 }
             }
+            return chunks;
         } finally {
-            file.close();
+            lock.unlockRead(stamp);
         }
-        Files.move(tempPath, fileName, StandardCopyOption.REPLACE_EXISTING);
     }
 
-    @Override
-    public String toString() {
-        return fileName.getFileName().toString();
+    /**
+     * Copies the data of a chunk out of a window read by
+     * {@link #readCompressedChunks(int[], int, int)}.
+     *
+     * @return The data, or null if the chunk is not completely inside the
+     *         window, is invalid, or is stored in a separate file.
+     */
+    private PooledByteArrayInputStream sliceWindow(byte[] window, int windowLength, int firstSector, int offset) {
+        long start = (long) ((offset >>> 8) - firstSector) * SECTOR_BYTES;
+        if (start < 0 || start + CHUNK_HEADER_BYTES + 1 > windowLength) {
+            return null;
+        }
+        int pos = (int) start;
+        int length = ((window[pos] & 0xFF) << 24) | ((window[pos + 1] & 0xFF) << 16)
+                | ((window[pos + 2] & 0xFF) << 8) | (window[pos + 3] & 0xFF);
+        if (length <= 0 || length > SECTOR_BYTES * (offset & 0xFF) || start + CHUNK_HEADER_BYTES + length > windowLength
+                || (window[pos + CHUNK_HEADER_BYTES] & EXTERNAL_FLAG) != 0) {
+            return null;
+        }
+        byte[] data = RegionIoPool.acquireBuffer(length);
+        System.arraycopy(window, pos + CHUNK_HEADER_BYTES, data, 0, length);
+        return new PooledByteArrayInputStream(data, 0, length);
     }
 
-    /* write a chunk data to the region file at specified sector number */
-    private void write(int sectorNumber, byte[] data, int length) throws IOException {
-        debugln(" " + sectorNumber);
-        file.seek(sectorNumber * SECTOR_BYTES);
-        file.writeInt(length + 1); // chunk length
-        file.writeByte(VERSION_DEFLATE); // chunk version number
-        file.write(data, 0, length); // chunk data
-    }
+    /**
+     * Reads the compressed data of a chunk. Must be called while holding the
+     * lock, or while doing an optimistic read. In the latter case, the
+     * returned data may be garbage if a write happened in the meantime.
+     *
+     * <p>
+     * If the chunk is stored in a separate file and loadExternal is false,
+     * only the version byte (with {@link #EXTERNAL_FLAG} set) is returned.
+     */
+    private PooledByteArrayInputStream readCompressedChunkUnlocked(int chunkX, int chunkZ, boolean loadExternal)
+            throws IOException {
+        int offset = getOffsetAndSize(chunkX, chunkZ);
+        if (offset == 0) {
+            // debugln("READ", x, z, "miss");
+            return null;
+        }
+
+        int sectorNumber = offset >> 8;
+        int numSectors = offset & 0xFF;
 
-    /* write a chunk at (x,z) with length bytes of data to disk */
-    protected synchronized void write(int x, int z, byte[] data, int length) {
+        if (sectorNumber + numSectors > sectorFree.size()) {
+            debugln("READ", chunkX, chunkZ, "invalid sector");
+            return null;
+        }
+
+        // Read all sectors at once, the length field is in there too
+        long position = (long) sectorNumber * SECTOR_BYTES;
+        byte[] data = RegionIoPool.acquireBuffer(SECTOR_BYTES * numSectors);
         try {
-            int offset = getOffsetAndSize(x, z);
-            int sectorNumber = offset >> 8;
-            int sectorsAllocated = offset & 0xFF;
-            // Find enough space for chunk length + int size + byte version
-            int sectorsNeeded = (length + CHUNK_HEADER_BYTES + 1) / SECTOR_BYTES + 1;
+            int read = readAtMost(data, SECTOR_BYTES * numSectors, position);
+            if (read < CHUNK_HEADER_BYTES) {
+                throw new EOFException("Unexpected end of file " + fileName);
+            }
+            int length = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
 
-            // maximum chunk size is 1MB
-            if (sectorsNeeded >= 256) {
-                return;
+            if (length > SECTOR_BYTES * numSectors) {
+                debugln("READ", chunkX, chunkZ, "invalid length: " + length + " > 4096 * " + numSectors);
+                RegionIoPool.releaseBuffer(data);
+                return null;
+            }
+            if (length <= 0) {
+                debugln("READ", chunkX, chunkZ, "invalid length: " + length);
+                RegionIoPool.releaseBuffer(data);
+                return null;
+            }
+            if (CHUNK_HEADER_BYTES + length > read) {
+                // Chunk continues past its sectors, read the remainder
+                byte[] larger = RegionIoPool.acquireBuffer(CHUNK_HEADER_BYTES + length);
+                System.arraycopy(data, 0, larger, 0, read);
+                RegionIoPool.releaseBuffer(data);
+                data = larger;
+                readFully(ByteBuffer.wrap(data, read, CHUNK_HEADER_BYTES + length - read), position + read);
             }
 
-            if (sectorNumber != 0 && sectorsAllocated == sectorsNeeded) {
-                /* we can simply overwrite the old sectors */
-                debug("SAVE", x, z, length, "rewrite");
-                write(sectorNumber, data, length);
-            } else {
-                /* we need to allocate new sectors */
+            byte version = data[CHUNK_HEADER_BYTES];
+            if ((version & EXTERNAL_FLAG) != 0 && loadExternal) {
+                RegionIoPool.releaseBuffer(data);
+                data = null;
+                return readExternalChunk(chunkX, chunkZ, version);
+            }
+            return new PooledByteArrayInputStream(data, CHUNK_HEADER_BYTES, length);
+        } catch (IOException | RuntimeException e) {
+            RegionIoPool.releaseBuffer(data);
+            throw e;
+        }
+    }
 
-                /* mark the sectors previously used for this chunk as free */
-                for (int i = 0; i < sectorsAllocated; ++i) {
-                    sectorFree.set(sectorNumber + i, true);
+    /**
+     * Reads a chunk that is stored in a separate file.
+     *
+     * @param chunkX
+     *            The chunk x in the region file.
+     * @param chunkZ
+     *            The chunk z in the region file.
+     * @param version
+     *            The version byte, including the {@link #EXTERNAL_FLAG}.
+     * @return The version byte (without the flag), followed by the compressed
+     *         data.
+     * @throws IOException
+     *             If the file doesn't exist or cannot be read.
+     */
+    private PooledByteArrayInputStream readExternalChunk(int chunkX, int chunkZ, byte version) throws IOException {
+        try (FileChannel externalChannel = FileChannel.open(getExternalFile(chunkX, chunkZ), StandardOpenOption.READ)) {
+            long size = externalChannel.size();
+            if (size > Integer.MAX_VALUE - 1) {
+                throw new IOException("External chunk too large: " + size + " bytes");
+            }
+            byte[] data = RegionIoPool.acquireBuffer((int) size + 1);
+            try {
+                data[0] = (byte) (version & ~EXTERNAL_FLAG);
+                ByteBuffer buffer = ByteBuffer.wrap(data, 1, (int) size);
+                while (buffer.hasRemaining()) {
+                    if (externalChannel.read(buffer) < 0) {
+                        throw new EOFException("Unexpected end of file " + getExternalFile(chunkX, chunkZ));
+                    }
                 }
+            } catch (IOException | RuntimeException e) {
+                RegionIoPool.releaseBuffer(data);
+                throw e;
+            }
+            return new PooledByteArrayInputStream(data, 0, (int) size + 1);
+        }
+    }
+
+    /**
+     * Reads the chunk data as it is stored on disk, without decompressing it.
+     *
+     * @param chunkX
+     *            The chunk x in the region file.
+     * @param chunkZ
+     *            The chunk z in the region file.
+     * @return The chunk data, or null if there is no chunk.
+     * @throws IOException
+     *             If an IO error occurs, or if the compression type is
+     *             unknown.
+     */
+    public RawChunk readRawChunk(int chunkX, int chunkZ) throws IOException {
+        try (PooledByteArrayInputStream compressed = readCompressedChunk(chunkX, chunkZ)) {
+            if (compressed == null) {
+                return null;
+            }
+            return toRawChunk(compressed);
+        }
+    }
+
+    private static RawChunk toRawChunk(PooledByteArrayInputStream compressed) throws IOException {
+        byte[] buffer = compressed.getBuffer();
+        int start = compressed.getPosition();
+        ChunkCompression compression = getCompression(buffer[start] & 0xFF);
+        return new RawChunk(compression, Arrays.copyOfRange(buffer, start + 1, compressed.getEnd()));
+    }
+
+    /**
+     * Gets a buffer for writing. Once this buffer is closed, the bytes are
+     * compressed and actually written.
+     *
+     * @param x
+     *            The x of the chunk in the region file.
+     * @param z
+     *            The z of the chunk in the region file.
+     * @return The buffer.
+     */
+    public OutputStream getChunkOutputStream(int x, int z) {
+        // Not locked - data is only written on output, so not needed yet
+        checkBounds(x, z);
+
+        return new ChunkBuffer(x, z, settings.getWriteCompression(), settings.getCompressionLevel());
+    }
+
+    /**
+     * Gets the index in {@link #offsets} of the (valid) chunk that is stored
+     * the furthest into the file.
+     *
+     * @return The index, or -1 if there are no chunks.
+     */
+    private int getLastChunkIndex() {
+        int lastIndex = -1;
+        int lastSectorNumber = -1;
+        for (int i = 0; i < SECTOR_INTS; i++) {
+            int sectorNumber = offsets[i] >> 8;
+            int numSectors = offsets[i] & 0xFF;
+            if (numSectors == 0 || sectorNumber < HEADER_SECTORS || sectorNumber + numSectors > sectorFree.size()) {
+                continue;
+            }
+            if (sectorNumber > lastSectorNumber) {
+                lastSectorNumber = sectorNumber;
+                lastIndex = i;
+            }
+        }
+        return lastIndex;
+    }
+
+    /**
+     * Gets the entry of the chunk in the header of this region file.
+     *
+     * @param x
+     *            X of the chunk in the region file.
+     * @param z
+     *            Z of the chunk in the region file.
+     * @return The entry, or null if the chunk doesn't exist.
+     */
+    public ChunkHeader getChunkHeader(int x, int z) {
+        checkBounds(x, z);
+        int index = x + z * REGION_CHUNK_COUNT;
+        int offset = offsets[index];
+        if (offset == 0) {
+            return null;
+        }
+        return new ChunkHeader(getStartChunkX() + x, getStartChunkZ() + z, offset, chunkTimestamps[index]);
+    }
+
+    /**
+     * Counts the entries in the header that cannot be valid: entries pointing
+     * to the header itself or beyond the end of the file, and entries using
+     * sectors that are also used by an earlier entry.
+     *
+     * @return The amount of corrupt entries.
+     */
+    public int getCorruptOffsetCount() {
+        long stamp = lock.readLock();
+        try {
+            BitSet usedSectors = new BitSet(sectorFree.size());
+            int corrupt = 0;
+            for (int i = 0; i < SECTOR_INTS; i++) {
+                if (offsets[i] == 0) {
+                    continue;
+                }
+                int sectorNumber = offsets[i] >> 8;
+                int numSectors = offsets[i] & 0xFF;
+                if (numSectors == 0 || sectorNumber < HEADER_SECTORS
+                        || sectorNumber + numSectors > sectorFree.size()) {
+                    corrupt++;
+                    continue;
+                }
+                int overlap = usedSectors.nextSetBit(sectorNumber);
+                if (overlap != -1 && overlap < sectorNumber + numSectors) {
+                    corrupt++;
+                    continue;
+                }
+                usedSectors.set(sectorNumber, sectorNumber + numSectors);
+            }
+            return corrupt;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the chunks in this region file, in the order they are stored in the
+     * file. Chunks with an invalid offset are left out.
+     *
+     * @return The indices of the chunks ({@code x + z * 32}), sorted on sector
+     *         number.
+     */
+    int[] getChunksInSectorOrder() {
+        long[] sectorAndIndex = new long[SECTOR_INTS];
+        int count = 0;
+        for (int i = 0; i < SECTOR_INTS; i++) {
+            int offset = offsets[i];
+            int sectorNumber = offset >>> 8;
+            int numSectors = offset & 0xFF;
+            if (numSectors == 0 || sectorNumber < HEADER_SECTORS) {
+                continue;
+            }
+            sectorAndIndex[count++] = ((long) sectorNumber << 32) | i;
+        }
+        Arrays.sort(sectorAndIndex, 0, count);
+        int[] indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = (int) sectorAndIndex[i];
+        }
+        return indices;
+    }
+
+    /**
+     * Gets how many times the chunk was written, deleted or moved since this
+     * region file was opened. Get this before reading a chunk, and pass it to
+     * {@link #writeIfUnchanged(int, int, int, ChunkCompression, byte[], int)}
+     * to only write the chunk back if nobody else wrote it in the meantime.
+     *
+     * @param x
+     *            X of the chunk in the region file.
+     * @param z
+     *            Z of the chunk in the region file.
+     * @return The amount of changes.
+     */
+    int getChangeCount(int x, int z) {
+        checkBounds(x, z);
+        long stamp = lock.readLock();
+        try {
+            return offsetChangeCounts[x + z * REGION_CHUNK_COUNT];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private int getOffsetAndSize(int x, int z) {
+        return offsets[x + z * REGION_CHUNK_COUNT];
+    }
 
-                /* scan for a free space large enough to store this chunk */
-                int runStart = sectorFree.indexOf(true);
-                int runLength = 0;
-                if (runStart != -1) {
-                    for (int i = runStart; i < sectorFree.size(); ++i) {
-                        if (runLength != 0) {
-                            if (sectorFree.get(i)) {
-                                runLength++;
-                            } else {
-                                runLength = 0;
-                            }
-                        } else if (sectorFree.get(i)) {
-                            runStart = i;
-                            runLength = 1;
-                        }
-                        if (runLength >= sectorsNeeded) {
-                            break;
-                        }
+    /**
+     * Gets statistics about the free space in this region file. The two header
+     * sectors are counted as used sectors.
+     *
+     * @return The statistics.
+     */
+    public SectorAllocator.Statistics getSectorStatistics() {
+        long stamp = lock.readLock();
+        try {
+            return sectorFree.getStatistics();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int getStartChunkX() {
+        return regionX << 5;
+    }
+
+    public int getStartChunkZ() {
+        return regionZ << 5;
+    }
+
+    /**
+     * Called after a chunk was written or deleted. Writes the header to disk
+     * if enough writes have happened since the last time. Must be called while
+     * holding the write lock.
+     */
+    private void headerChanged() throws IOException {
+        writesSinceHeaderFlush++;
+        if (writesSinceHeaderFlush >= settings.getHeaderFlushInterval()) {
+            flushHeaderLocked();
+        }
+    }
+
+    /**
+     * Checks whether the chunk at the given sector is stored in a separate
+     * file. Must be called while holding the write lock.
+     */
+    private boolean isExternal(int sectorNumber) throws IOException {
+        ByteBuffer version = ByteBuffer.allocate(1);
+        readFully(version, (long) sectorNumber * SECTOR_BYTES + CHUNK_HEADER_BYTES);
+        return (version.get(0) & EXTERNAL_FLAG) != 0;
+    }
+
+    /**
+     * Checks whether the chunk at the given position is stored in a separate
+     * file. Must be called while holding the write lock.
+     */
+    private boolean isExternalChunk(int x, int z) throws IOException {
+        int offset = getOffsetAndSize(x, z);
+        int sectorNumber = offset >> 8;
+        int numSectors = offset & 0xFF;
+        return sectorNumber >= HEADER_SECTORS && sectorNumber + numSectors <= sectorFree.size()
+                && isExternal(sectorNumber);
+    }
+
+    /**
+     * Gets the moment the chunk was last saved, as stored in the header of the
+     * region file.
+     *
+     * @param x
+     *            X of the chunk in the region file.
+     * @param z
+     *            Z of the chunk in the region file.
+     * @return The moment, in seconds since the epoch (unsigned). 0 if the
+     *         chunk doesn't exist or if the moment is unknown.
+     */
+    public int getTimestamp(int x, int z) {
+        checkBounds(x, z);
+        return chunkTimestamps[x + z * REGION_CHUNK_COUNT];
+    }
+
+    public boolean hasChunk(int x, int z) {
+        return getOffsetAndSize(x, z) != 0;
+    }
+
+    /* the modification date of the region file when it was first opened */
+    public long lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Runs an operation on the file channel. {@link FileChannel} is
+     * interruptible: interrupting a thread while it uses the channel closes
+     * the channel for all threads. If that happens, the channel is reopened
+     * and the operation is run again. The interrupt status of the thread is
+     * kept.
+     *
+     * @param <T>
+     *            Type of the result.
+     * @param operation
+     *            The operation.
+     * @return The result of the operation.
+     * @throws IOException
+     *             If an IO error occurs, or if the region file was closed.
+     */
+    private <T> T onChannel(ChannelOperation<T> operation) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileChannel current = channel;
+                try {
+                    return operation.run(current);
+                } catch (ClosedChannelException e) {
+                    if (e instanceof ClosedByInterruptException) {
+                        // Clear the flag, otherwise the new channel is closed
+                        // right away
+                        interrupted = true;
+                        Thread.interrupted();
                     }
+                    reopenChannel(current, e);
                 }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reopens the channel after it was closed by an interrupt.
+     *
+     * @param closedChannel
+     *            The channel that was closed.
+     * @param e
+     *            The exception that was thrown by the channel.
+     * @throws ClosedChannelException
+     *             The given exception, if the region file was closed, or if
+     *             the exception is about another channel.
+     * @throws IOException
+     *             If reopening fails.
+     */
+    private synchronized void reopenChannel(FileChannel closedChannel, ClosedChannelException e)
+            throws IOException {
+        if (channel != closedChannel) {
+            return; // Already reopened by another thread
+        }
+        if (fileClosed || closedChannel.isOpen()) {
+            throw e;
+        }
+        debugln("REGION REOPEN " + fileName);
+        file = new RandomAccessFile(fileName.toFile(), "rw");
+        channel = file.getChannel();
+    }
 
-                if (runLength >= sectorsNeeded) {
-                    /* we found a free space large enough */
-                    debug("SAVE", x, z, length, "reuse");
-                    sectorNumber = runStart;
-                    setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
-                    for (int i = 0; i < sectorsNeeded; ++i) {
-                        sectorFree.set(sectorNumber + i, false);
+    /**
+     * Reads bytes until the buffer is full.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param position
+     *            Position in the file to start reading.
+     * @throws IOException
+     *             If an IO error occurs, or if the end of the file is reached.
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            int read = onChannel(channel -> channel.read(buffer, position + buffer.position() - start));
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file " + fileName);
+            }
+        }
+    }
+
+    /**
+     * Reads bytes until the given amount is read or the end of the file is
+     * reached.
+     *
+     * @param array
+     *            The array to read into, starting at index 0.
+     * @param length
+     *            The maximum amount of bytes to read.
+     * @param position
+     *            Position in the file to start reading.
+     * @return The amount of bytes read.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    private int readAtMost(byte[] array, int length, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(array, 0, length);
+        while (buffer.hasRemaining()) {
+            if (onChannel(channel -> channel.read(buffer, position + buffer.position())) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private void force() throws IOException {
+        onChannel(channel -> {
+            channel.force(false);
+            return null;
+        });
+    }
+
+    private long size() throws IOException {
+        return onChannel(FileChannel::size);
+    }
+
+    private int readInt(long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readFully(buffer, position);
+        return buffer.getInt(0);
+    }
+
+    /**
+     * Applies the header changes from the journal, if a complete journal was
+     * left behind by a crash. An incomplete journal is thrown away: in that
+     * case the crash happened before the header on disk was touched.
+     *
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    private void replayJournal() throws IOException {
+        Path journalFile = getJournalFile();
+        if (!Files.exists(journalFile)) {
+            return;
+        }
+        ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(journalFile));
+        if (isCompleteJournal(journal)) {
+            debugln("REGION REPLAY " + journalFile);
+            int entryCount = journal.getInt(4);
+            for (int i = 0; i < entryCount; i++) {
+                int position = JOURNAL_HEADER_BYTES + i * JOURNAL_ENTRY_BYTES;
+                int index = journal.getInt(position);
+                offsets[index] = journal.getInt(position + 4);
+                chunkTimestamps[index] = journal.getInt(position + 8);
+            }
+            writeHeader();
+            force();
+        }
+        Files.delete(journalFile);
+    }
+
+    private boolean isCompleteJournal(ByteBuffer journal) {
+        int length = journal.limit();
+        if (length < JOURNAL_HEADER_BYTES + JOURNAL_CHECKSUM_BYTES || journal.getInt(0) != JOURNAL_MAGIC) {
+            return false;
+        }
+        int entryCount = journal.getInt(4);
+        if (entryCount < 0 || entryCount > SECTOR_INTS
+                || length != JOURNAL_HEADER_BYTES + entryCount * JOURNAL_ENTRY_BYTES + JOURNAL_CHECKSUM_BYTES) {
+            return false;
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(journal.array(), 0, length - JOURNAL_CHECKSUM_BYTES);
+        if (checksum.getValue() != journal.getLong(length - JOURNAL_CHECKSUM_BYTES)) {
+            return false;
+        }
+        for (int i = 0; i < entryCount; i++) {
+            int index = journal.getInt(JOURNAL_HEADER_BYTES + i * JOURNAL_ENTRY_BYTES);
+            if (index < 0 || index >= SECTOR_INTS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setOffset(int x, int z, int offset) {
+        offsets[x + z * REGION_CHUNK_COUNT] = offset;
+        offsetChangeCounts[x + z * REGION_CHUNK_COUNT]++;
+        changedHeaderEntries.set(x + z * REGION_CHUNK_COUNT);
+    }
+
+    private void setTimestamp(int x, int z, int value) {
+        chunkTimestamps[x + z * REGION_CHUNK_COUNT] = value;
+        changedHeaderEntries.set(x + z * REGION_CHUNK_COUNT);
+    }
+
+    /**
+     * Called by {@link #close()} when it determines that a lot of space could
+     * be saved. This method rewrites the region file to be more compact.
+     *
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    private void shrinkAndClose() throws IOException {
+        Path tempPath = this.fileName.resolveSibling(this.fileName.getFileName().toString() + "-TEMP" + System.currentTimeMillis());
+        try (RandomAccessFile newFile = new RandomAccessFile(tempPath.toFile(), "rw")) {
+            // Just write empty file offsets for now, we will correct them later
+            for (int i = 0; i < SECTOR_INTS; i++) {
+                newFile.writeInt(0);
+            }
+            // But we can already write the correct time stamps
+            for (int i = 0; i < SECTOR_INTS; i++) {
+                newFile.writeInt(this.chunkTimestamps[i]);
+            }
+            int currentSectorNumber = 2;
+            for (int z = 0; z < REGION_CHUNK_COUNT; z++) {
+                for (int x = 0; x < REGION_CHUNK_COUNT; x++) {
+                    int oldChunkOffset = getOffsetAndSize(x, z);
+                    if (oldChunkOffset == 0) {
+                        // No chunk at this position
+                        continue;
                     }
-                    write(sectorNumber, data, length);
-                } else {
-                    /*
-                     * no free space large enough found -- we need to grow the
-                     * file
-                     */
-                    debug("SAVE", x, z, length, "grow");
-                    file.seek(file.length());
-                    sectorNumber = sectorFree.size();
-                    for (int i = 0; i < sectorsNeeded; ++i) {
-                        file.write(emptySector);
-                        sectorFree.add(false);
+
+                    int oldSectorNumber = oldChunkOffset >> 8;
+                    int oldNumSectors = oldChunkOffset & 0xFF;
+
+                    if (oldSectorNumber + oldNumSectors > sectorFree.size()) {
+                        debugln("READ", x, z, "invalid sector");
+                        continue;
                     }
 
-                    write(sectorNumber, data, length);
-                    setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
+                    // Start reading old chunk
+                    long oldPosition = (long) oldSectorNumber * SECTOR_BYTES;
+                    int chunkLengthIncludingVersion = readInt(oldPosition);
+                    int fullLength = CHUNK_HEADER_BYTES + chunkLengthIncludingVersion;
+
+                    if (fullLength > SECTOR_BYTES * oldNumSectors) {
+                        debugln("READ", x, z, "invalid length: " + fullLength + " > 4096 * " + oldNumSectors);
+                        continue;
+                    }
+
+                    // Write empty sectors in preparation
+                    newFile.seek(currentSectorNumber * SECTOR_BYTES);
+                    int sectorsNeeded = fullLength / SECTOR_BYTES + 1;
+                    for (int i = 0; i < sectorsNeeded; i++) {
+                        newFile.write(emptySector);
+                    }
+
+                    // Jump back, write size, write data
+                    newFile.seek(currentSectorNumber * SECTOR_BYTES);
+                    newFile.writeInt(chunkLengthIncludingVersion);
+                    byte[] compressedChunk = new byte[chunkLengthIncludingVersion];
+                    readFully(ByteBuffer.wrap(compressedChunk), oldPosition + CHUNK_HEADER_BYTES);
+                    newFile.write(compressedChunk);
+
+                    // Update index
+                    newFile.seek((x + z * REGION_CHUNK_COUNT) * 4);
+                    newFile.writeInt((currentSectorNumber << 8) | sectorsNeeded);
+
+                    // On to next chunk
+                    currentSectorNumber += sectorsNeeded;
                 }
             }
+            if (settings.getDurability() != Durability.NONE) {
+                // New file must be complete before it replaces the old one
+                newFile.getChannel().force(true);
+            }
+        } finally {
+            closeFile();
+        }
+        try {
+            Files.move(tempPath, fileName, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, fileName, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return fileName.getFileName().toString();
+    }
+
+    /**
+     * Finds space for a chunk. The sectors currently used by the chunk are
+     * reused if they have exactly the right size, otherwise they are freed and
+     * new sectors are allocated. The offset of the chunk is not updated. Must
+     * be called while holding the write lock.
+     *
+     * @param x
+     *            The x of the chunk in the region file.
+     * @param z
+     *            The z of the chunk in the region file.
+     * @param length
+     *            The length of the chunk data, only used for debug messages.
+     * @param sectorsNeeded
+     *            The amount of sectors needed.
+     * @return The first sector to write to.
+     * @throws IOException
+     *             If an IO error occurs growing the file.
+     */
+    private int allocateSectors(int x, int z, int length, int sectorsNeeded) throws IOException {
+        int offset = getOffsetAndSize(x, z);
+        int sectorNumber = offset >> 8;
+        int sectorsAllocated = offset & 0xFF;
+
+        if (sectorNumber != 0 && sectorsAllocated == sectorsNeeded
+                && settings.getDurability() == Durability.NONE) {
+            /* we can simply overwrite the old sectors */
+            debug("SAVE", x, z, length, "rewrite");
+            return sectorNumber;
+        }
+
+        /* mark the sectors previously used for this chunk as free */
+        if (sectorNumber >= HEADER_SECTORS && sectorNumber + sectorsAllocated <= sectorFree.size()) {
+            freeSectorsOnFlush(sectorNumber, sectorsAllocated);
+        }
+
+        /* find the smallest free space large enough for this chunk */
+        int runStart = sectorFree.allocate(sectorsNeeded);
+        if (runStart != -1) {
+            /* we found a free space large enough */
+            debug("SAVE", x, z, length, "reuse");
+            return runStart;
+        }
+
+        /*
+         * no free space large enough found -- we need to grow the file, reusing
+         * the free sectors at the end (if any). The new sectors are filled by
+         * the caller, which always writes whole sectors.
+         */
+        debug("SAVE", x, z, length, "grow");
+        return sectorFree.grow(sectorsNeeded);
+    }
+
+    /*
+     * write a chunk data to the region file at specified sector number, padded
+     * with zeroes up to the end of the last sector
+     */
+    private void write(int sectorNumber, int version, byte[] data, int length) throws IOException {
+        debugln(" " + sectorNumber);
+        long position = (long) sectorNumber * SECTOR_BYTES;
+        ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_BYTES + 1);
+        header.putInt(length + 1); // chunk length
+        header.put((byte) version); // chunk version number
+        header.flip();
+        ByteBuffer padding = getPadding(CHUNK_HEADER_BYTES + 1 + length);
+
+        // One (gathering) write for everything; the channel position is only
+        // used by writers, which hold the write lock
+        ByteBuffer[] buffers = { header, ByteBuffer.wrap(data, 0, length), padding };
+        long count = header.remaining() + length + padding.remaining();
+        while (remaining(buffers) > 0) {
+            // Set the position every time: a reopened channel starts at 0,
+            // and an interrupted write may have written part of the bytes
+            onChannel(channel -> channel.position(position + count - remaining(buffers)).write(buffers));
+        }
+    }
+
+    private static long remaining(ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+
+    /**
+     * Gets the zeroes that need to be written after a chunk of the given
+     * length, so that the chunk fills whole sectors.
+     */
+    private static ByteBuffer getPadding(long chunkBytes) {
+        int remainder = (int) (chunkBytes % SECTOR_BYTES);
+        return ByteBuffer.wrap(emptySector, 0, remainder == 0 ? 0 : SECTOR_BYTES - remainder);
+    }
+
+    /*
+     * write a chunk at (x,z) with length bytes of data, compressed using the
+     * given compression type, to disk
+     */
+    protected void write(int x, int z, ChunkCompression compression, byte[] data, int length) {
+        long stamp = lock.writeLock();
+        try {
+            writeLocked(x, z, compression, data, length);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Writes a chunk, but only if it wasn't changed since
+     * {@link #getChangeCount(int, int)} returned the given count. The check
+     * and the write happen while holding the write lock, so no other write
+     * can happen in between.
+     *
+     * @param x
+     *            X of the chunk in the region file.
+     * @param z
+     *            Z of the chunk in the region file.
+     * @param changeCount
+     *            The change count from before the chunk was read.
+     * @param compression
+     *            Compression of the data.
+     * @param data
+     *            The compressed data.
+     * @param length
+     *            Length of the data.
+     * @return True if the chunk was written, false if it was changed in the
+     *         meantime.
+     */
+    boolean writeIfUnchanged(int x, int z, int changeCount, ChunkCompression compression, byte[] data,
+            int length) {
+        checkBounds(x, z);
+        long stamp = lock.writeLock();
+        try {
+            if (offsetChangeCounts[x + z * REGION_CHUNK_COUNT] != changeCount) {
+                return false;
+            }
+            writeLocked(x, z, compression, data, length);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copies a chunk to another region file, without decompressing it. The
+     * bytes are copied directly from file to file using
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     * so they never need to be loaded into memory. Chunks that are stored in
+     * a separate file are loaded into memory instead. The timestamp of the
+     * chunk is copied too.
+     *
+     * @param chunkX
+     *            The chunk x in this region file.
+     * @param chunkZ
+     *            The chunk z in this region file.
+     * @param target
+     *            The region file to copy to. May be this region file.
+     * @param targetChunkX
+     *            The chunk x in the target region file.
+     * @param targetChunkZ
+     *            The chunk z in the target region file.
+     * @return True if the chunk was copied, false if there was no chunk to
+     *         copy. In the latter case, the target is left untouched.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public boolean transferChunk(int chunkX, int chunkZ, RegionFile target, int targetChunkX, int targetChunkZ)
+            throws IOException {
+        checkBounds(chunkX, chunkZ);
+        target.checkBounds(targetChunkX, targetChunkZ);
+
+        if (target == this) {
+            RawChunk chunk = readRawChunk(chunkX, chunkZ);
+            if (chunk == null) {
+                return false;
+            }
+            writeRawChunk(targetChunkX, targetChunkZ, chunk);
+            return true;
+        }
+
+        // Always lock in the same order, so that two transfers in opposite
+        // directions cannot deadlock
+        long readStamp;
+        long writeStamp;
+        if (fileName.toAbsolutePath().compareTo(target.fileName.toAbsolutePath()) < 0) {
+            readStamp = lock.readLock();
+            writeStamp = target.lock.writeLock();
+        } else {
+            writeStamp = target.lock.writeLock();
+            readStamp = lock.readLock();
+        }
+        try {
+            return transferChunkLocked(chunkX, chunkZ, target, targetChunkX, targetChunkZ);
+        } finally {
+            target.lock.unlockWrite(writeStamp);
+            lock.unlockRead(readStamp);
+        }
+    }
+
+    /**
+     * Copies a chunk. Must be called while holding the read lock of this
+     * region file and the write lock of the target.
+     */
+    private boolean transferChunkLocked(int chunkX, int chunkZ, RegionFile target, int targetChunkX,
+            int targetChunkZ) throws IOException {
+        int offset = getOffsetAndSize(chunkX, chunkZ);
+        int sectorNumber = offset >> 8;
+        int numSectors = offset & 0xFF;
+        if (offset == 0 || sectorNumber + numSectors > sectorFree.size()) {
+            return false;
+        }
+
+        long position = (long) sectorNumber * SECTOR_BYTES;
+        ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_BYTES + 1);
+        readFully(header, position);
+        int length = header.getInt(0);
+        if (length <= 0 || length > SECTOR_BYTES * numSectors) {
+            debugln("READ", chunkX, chunkZ, "invalid length: " + length);
+            return false;
+        }
+        int sectorsNeeded = (length + CHUNK_HEADER_BYTES) / SECTOR_BYTES + 1;
+
+        if ((header.get(CHUNK_HEADER_BYTES) & EXTERNAL_FLAG) != 0 || sectorsNeeded >= MAX_SECTORS_PER_CHUNK) {
+            // Goes through a separate file, so copy using memory
+            try (PooledByteArrayInputStream compressed = readCompressedChunkUnlocked(chunkX, chunkZ, true)) {
+                if (compressed == null) {
+                    return false;
+                }
+                RawChunk chunk = toRawChunk(compressed);
+                target.writeLocked(targetChunkX, targetChunkZ, chunk.getCompression(), chunk.getData(),
+                        chunk.getData().length);
+                return true;
+            }
+        }
+
+        if (target.isExternalChunk(targetChunkX, targetChunkZ)) {
+            target.deleteExternalFileOnFlush(targetChunkX, targetChunkZ);
+        }
+        int targetSectorNumber = target.allocateSectors(targetChunkX, targetChunkZ, length, sectorsNeeded);
+
+        // Copy length, version and data in one go
+        long count = CHUNK_HEADER_BYTES + length;
+        long transferred = 0;
+        while (transferred < count) {
+            // Bytes copied by a run that was interrupted are not counted, so
+            // a new run copies them again, to the same place
+            long done = transferred;
+            long copied = onChannel(channel -> target.onChannel(targetChannel -> channel.transferTo(
+                    position + done, count - done,
+                    targetChannel.position((long) targetSectorNumber * SECTOR_BYTES + done))));
+            if (copied <= 0) {
+                throw new EOFException("Unexpected end of file " + fileName);
+            }
+            transferred += copied;
+        }
+        target.writeFully(getPadding(count), (long) targetSectorNumber * SECTOR_BYTES + count);
+
+        target.setOffset(targetChunkX, targetChunkZ, (targetSectorNumber << 8) | sectorsNeeded);
+        target.setTimestamp(targetChunkX, targetChunkZ, chunkTimestamps[chunkX + chunkZ * REGION_CHUNK_COUNT]);
+        target.headerChanged();
+        return true;
+    }
+
+    /**
+     * Writes bytes until the buffer is empty.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param position
+     *            Position in the file to start writing.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            onChannel(channel -> channel.write(buffer, position + buffer.position() - start));
+        }
+    }
+
+    /**
+     * Writes the offsets and timestamps to disk, in a single write.
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SECTOR_BYTES * HEADER_SECTORS);
+        header.asIntBuffer().put(offsets).put(chunkTimestamps);
+        writeFully(header, 0);
+    }
+
+    /**
+     * Writes the changed offsets and timestamps to disk. Writes the whole
+     * header at once if many entries changed.
+     */
+    private void writeChangedHeaderEntries() throws IOException {
+        if (changedHeaderEntries.cardinality() > MAX_SEPARATE_HEADER_ENTRIES) {
+            writeHeader();
+            return;
+        }
+        for (int i = changedHeaderEntries.nextSetBit(0); i >= 0; i = changedHeaderEntries.nextSetBit(i + 1)) {
+            ByteBuffer offset = ByteBuffer.allocate(4);
+            offset.putInt(0, offsets[i]);
+            writeFully(offset, i * 4L);
+            ByteBuffer timestamp = ByteBuffer.allocate(4);
+            timestamp.putInt(0, chunkTimestamps[i]);
+            writeFully(timestamp, SECTOR_BYTES + i * 4L);
+        }
+    }
+
+    /**
+     * Writes the changed header entries to the journal, and forces it to disk.
+     * Once this method returns, the changes will survive a crash: if the
+     * header isn't fully written, the journal is replayed when the region file
+     * is opened again.
+     */
+    private void writeJournal() throws IOException {
+        int entryCount = changedHeaderEntries.cardinality();
+        ByteBuffer journal = ByteBuffer.allocate(JOURNAL_HEADER_BYTES + entryCount * JOURNAL_ENTRY_BYTES
+                + JOURNAL_CHECKSUM_BYTES);
+        journal.putInt(JOURNAL_MAGIC);
+        journal.putInt(entryCount);
+        for (int i = changedHeaderEntries.nextSetBit(0); i >= 0; i = changedHeaderEntries.nextSetBit(i + 1)) {
+            journal.putInt(i);
+            journal.putInt(offsets[i]);
+            journal.putInt(chunkTimestamps[i]);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(journal.array(), 0, journal.position());
+        journal.putLong(checksum.getValue());
+        journal.flip();
+
+        try (FileChannel journalChannel = FileChannel.open(getJournalFile(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (journal.hasRemaining()) {
+                journalChannel.write(journal);
+            }
+            journalChannel.force(true);
+        }
+    }
+
+    /**
+     * Writes the data of a chunk that is too large to fit in the region file to
+     * a separate file. The data is first written to a temporary file, so that
+     * streams that are still reading the old file are not affected.
+     */
+    private void writeExternal(int x, int z, byte[] data, int length) throws IOException {
+        Path externalFile = getExternalFile(x, z);
+        externalFilesDeletedOnFlush.remove(externalFile);
+        Path tempFile = externalFile.resolveSibling(externalFile.getFileName() + ".tmp");
+        try (FileChannel externalChannel = FileChannel.open(tempFile, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+            while (buffer.hasRemaining()) {
+                externalChannel.write(buffer);
+            }
+        }
+        try {
+            Files.move(tempFile, externalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, externalFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes chunk data that is already compressed, for example data obtained
+     * from {@link #readRawChunk(int, int)}.
+     *
+     * @param chunkX
+     *            The chunk x in the region file.
+     * @param chunkZ
+     *            The chunk z in the region file.
+     * @param chunk
+     *            The chunk data.
+     */
+    public void writeRawChunk(int chunkX, int chunkZ, RawChunk chunk) {
+        checkBounds(chunkX, chunkZ);
+
+        byte[] data = chunk.getData();
+        write(chunkX, chunkZ, chunk.getCompression(), data, data.length);
+    }
+
+    private void writeLocked(int x, int z, ChunkCompression compression, byte[] data, int length) {
+        try {
+            int version = compression.getId();
+            // Find enough space for chunk length + int size + byte version
+            int sectorsNeeded = (length + CHUNK_HEADER_BYTES + 1) / SECTOR_BYTES + 1;
+
+            boolean wasExternal = isExternalChunk(x, z);
+            if (sectorsNeeded >= MAX_SECTORS_PER_CHUNK) {
+                // Too large for the region file, only store the version byte
+                debug("SAVE", x, z, length, "external");
+                writeExternal(x, z, data, length);
+                version |= EXTERNAL_FLAG;
+                data = new byte[0];
+                length = 0;
+                sectorsNeeded = 1;
+            } else if (wasExternal) {
+                deleteExternalFileOnFlush(x, z);
+            }
+
+            int sectorNumber = allocateSectors(x, z, length, sectorsNeeded);
+            write(sectorNumber, version, data, length);
+            setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
             setTimestamp(x, z, (int) (System.currentTimeMillis() / 1000L));
+            headerChanged();
         } catch (IOException e) {
             e.printStackTrace();
         }
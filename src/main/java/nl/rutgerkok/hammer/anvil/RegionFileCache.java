@@ -6,10 +6,15 @@ import java.io.UncheckedIOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -17,6 +22,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
 import com.google.common.collect.Iterators;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
@@ -41,11 +47,35 @@ class RegionFileCache {
         }
     }
 
+    /**
+     * Keeps the region files at the given region coordinates open, even if the
+     * cache would otherwise evict them. Used by walks, so that a region file is
+     * never closed while a worker is still reading from or writing to it.
+     */
+    final class Pin implements Closeable {
+
+        private final long coords;
+        private boolean closed = false;
+
+        private Pin(long coords) {
+            this.coords = coords;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            unpin(coords);
+        }
+    }
+
     /**
      * A key used in the cache.
      *
      */
-    private static class RegionKey {
+    static class RegionKey {
 
         static RegionKey parseFile(Path input) {
             // Assumes a valid file name
@@ -104,15 +134,77 @@ class RegionFileCache {
 
     private static final String FILE_EXTENSION = "mca";
 
+    private static long packCoords(int regionX, int regionZ) {
+        return (((long) regionX) << 32) | (regionZ & 0xffffffffL);
+    }
+
+    /**
+     * Guards the bookkeeping below. The cache itself is not accessed while
+     * holding this lock, so that threads can look up and open different
+     * region files at the same time. Region files are opened and closed
+     * outside this lock too.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * All region files that are opened and not yet being closed, whether they
+     * are still in the cache or not. As removal notifications are processed
+     * after the cache has already removed the entry, another thread may load
+     * the same region file before the old instance is closed; in that case
+     * the old instance is handed out again. Guarded by {@link #lock}.
+     */
+    private final Map<RegionKey, RegionFile> openFiles = new HashMap<>();
+
+    /**
+     * Amount of cache entries that hold each region file in
+     * {@link #openFiles}. Guarded by {@link #lock}.
+     */
+    private final Map<RegionKey, Integer> cacheEntryCounts = new HashMap<>();
+
+    /**
+     * Region files that are being closed. They cannot be loaded again until
+     * closing is finished, to make sure that a region file is never open
+     * twice. Guarded by {@link #lock}.
+     */
+    private final Set<RegionKey> closing = new HashSet<>();
+
+    /**
+     * Amount of pins for each region coordinate pair. Guarded by
+     * {@link #lock}.
+     */
+    private final Map<Long, Integer> pinCounts = new HashMap<>();
+
+    /**
+     * Region files that the cache wanted to close while they were still
+     * pinned. They are handed out again if requested, and closed once the last
+     * pin is released. Guarded by {@link #lock}.
+     */
+    private final Map<RegionKey, RegionFile> evictedWhilePinned = new HashMap<>();
+
     /**
      * Cache to prevent the same region file from being opened twice.
      */
     private final LoadingCache<RegionKey, RegionFile> cache = CacheBuilder.newBuilder()
             .maximumSize(100)
             .expireAfterWrite(10, TimeUnit.MINUTES)
-            .removalListener(notification -> {
+            .<RegionKey, RegionFile> removalListener(notification -> {
+                RegionKey key = notification.getKey();
+                synchronized (lock) {
+                    if (cacheEntryCounts.merge(key, -1, Integer::sum) > 0) {
+                        // Loaded again in the meantime, so still in use
+                        return;
+                    }
+                    cacheEntryCounts.remove(key);
+                    if (notification.getCause() != RemovalCause.EXPLICIT
+                            && pinCounts.containsKey(packCoords(key.regionX, key.regionZ))) {
+                        // Still in use, will be closed once unpinned
+                        evictedWhilePinned.put(key, notification.getValue());
+                        return;
+                    }
+                    startClosing(key);
+                }
                 try {
-                    ((RegionFile) notification.getValue()).close();
+                    finishClosing(key, notification.getValue());
                 } catch (IOException e) {
                     throw new UncheckedIOException(e);
                 }
@@ -121,19 +213,97 @@ class RegionFileCache {
 
                 @Override
                 public RegionFile load(RegionKey key) throws IOException {
+                    synchronized (lock) {
+                        awaitClosed(key);
+
+                        // Reuse the instance if it was never closed
+                        RegionFile stillOpen = openFiles.get(key);
+                        if (stillOpen != null) {
+                            evictedWhilePinned.remove(key);
+                            cacheEntryCounts.merge(key, 1, Integer::sum);
+                            return stillOpen;
+                        }
+                    }
+
                     // Create the region folder if needed
                     if (!Files.exists(key.file.getParent())) {
                         Files.createDirectories(key.file.getParent());
                     }
 
-                    return new RegionFile(key.file, key.regionX, key.regionZ);
+                    // The cache never loads the same key twice at the same
+                    // time, so no other thread can open this file now
+                    RegionFile regionFile = new RegionFile(key.file, key.regionX, key.regionZ, settings);
+                    synchronized (lock) {
+                        openFiles.put(key, regionFile);
+                        cacheEntryCounts.merge(key, 1, Integer::sum);
+                    }
+                    return regionFile;
                 }
             });
     private final AtomicInteger claims = new AtomicInteger();
 
     private final Map<RegionFileType, Path> folders;
+    private final RegionFileSettings settings;
+
+    /**
+     * Waits until the region file with the given key is no longer being
+     * closed. Must be called while holding {@link #lock}.
+     *
+     * @param key
+     *            The key.
+     */
+    private void awaitClosed(RegionKey key) {
+        boolean interrupted = false;
+        while (closing.contains(key)) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                // Opening the region file is not optional, so keep waiting
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Marks a region file as being closed. Must be called while holding
+     * {@link #lock}, after which {@link #finishClosing(RegionKey, RegionFile)}
+     * must be called without holding the lock.
+     *
+     * @param key
+     *            Key of the region file.
+     */
+    private void startClosing(RegionKey key) {
+        openFiles.remove(key);
+        closing.add(key);
+    }
+
+    /**
+     * Closes a region file that was marked using
+     * {@link #startClosing(RegionKey)}.
+     *
+     * @param key
+     *            Key of the region file.
+     * @param regionFile
+     *            The region file.
+     * @throws IOException
+     *             If closing fails.
+     */
+    private void finishClosing(RegionKey key, RegionFile regionFile) throws IOException {
+        try {
+            regionFile.close();
+        } finally {
+            synchronized (lock) {
+                closing.remove(key);
+                lock.notifyAll();
+            }
+        }
+    }
 
-    public RegionFileCache(Path worldFolder) {
+    public RegionFileCache(Path worldFolder, RegionFileSettings settings) {
+        this.settings = Objects.requireNonNull(settings, "settings");
         this.folders = new EnumMap<>(RegionFileType.class);
         for (RegionFileType type : RegionFileType.values()) {
             this.folders.put(type, worldFolder.resolve(type.folderName));
@@ -163,6 +333,37 @@ class RegionFileCache {
         return DirectoryUtil.countFiles(folders.get(RegionFileType.CHUNK));
     }
 
+    /**
+     * Writes the headers of all open region files to disk. With
+     * {@link RegionFileSettings.Durability#ORDERED ORDERED} or
+     * {@link RegionFileSettings.Durability#JOURNALED JOURNALED} durability, the
+     * headers are also forced to disk, so that all chunks written so far
+     * survive a crash.
+     *
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    void flushAll() throws IOException {
+        List<RegionFile> regionFiles;
+        synchronized (lock) {
+            regionFiles = new ArrayList<>(openFiles.values());
+        }
+        // Region files closed in the meantime were flushed when closing, and
+        // flushing them again does nothing
+        for (RegionFile regionFile : regionFiles) {
+            regionFile.flush();
+        }
+    }
+
+    /**
+     * Gets the settings used for writing region files.
+     *
+     * @return The settings.
+     */
+    RegionFileSettings getSettings() {
+        return settings;
+    }
+
     /**
      * Gets the region file that contains the given chunk.
      *
@@ -179,8 +380,21 @@ class RegionFileCache {
         int regionZ = chunkZ >> 5;
         Path file = folders.get(type).resolve("r." + regionX + "." + regionZ + "." + FILE_EXTENSION);
 
+        return getRegionFile(new RegionKey(file, regionX, regionZ));
+    }
+
+    /**
+     * Gets the region file with the given key.
+     *
+     * @param key
+     *            The key, as obtained from {@link #listRegions(RegionFileType)}.
+     * @return The region file.
+     * @throws IOException
+     *             If an IO error occurs reading/creating the region file.
+     */
+    RegionFile getRegionFile(RegionKey key) throws IOException {
         try {
-            return cache.get(new RegionKey(file, regionX, regionZ));
+            return cache.get(key);
         } catch (ExecutionException e) {
             Throwable cause = e.getCause();
             if (cause instanceof IOException) {
@@ -219,10 +433,90 @@ class RegionFileCache {
         };
     }
 
+    /**
+     * Lists all region files of the given type, without opening them.
+     *
+     * @param type
+     *            The type of region files.
+     * @return The regions. Empty if the region folder doesn't exist.
+     * @throws IOException
+     *             If an IO error occurs reading the directory.
+     */
+    List<RegionKey> listRegions(RegionFileType type) throws IOException {
+        Path folder = folders.get(type);
+        List<RegionKey> regions = new ArrayList<>();
+        if (!Files.isDirectory(folder)) {
+            return regions;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*." + FILE_EXTENSION)) {
+            for (Path file : files) {
+                regions.add(RegionKey.parseFile(file));
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Pins the region files (of all {@link RegionFileType types}) at the given
+     * region coordinates. As long as the pin is not closed, the region files
+     * will not be closed by this cache, so that they can be safely used by the
+     * current thread.
+     *
+     * @param regionX
+     *            The region x.
+     * @param regionZ
+     *            The region z.
+     * @return The pin.
+     */
+    Pin pin(int regionX, int regionZ) {
+        long coords = packCoords(regionX, regionZ);
+        synchronized (lock) {
+            pinCounts.merge(coords, 1, Integer::sum);
+        }
+        return new Pin(coords);
+    }
+
     private void release() {
         int claims = this.claims.decrementAndGet();
         if (claims == 0) {
             cache.invalidateAll();
         }
     }
+
+    private void unpin(long coords) throws IOException {
+        List<Map.Entry<RegionKey, RegionFile>> toClose = new ArrayList<>();
+        synchronized (lock) {
+            int remaining = pinCounts.merge(coords, -1, Integer::sum);
+            if (remaining > 0) {
+                return;
+            }
+            pinCounts.remove(coords);
+
+            // Close the files the cache wanted to close earlier
+            for (Iterator<Map.Entry<RegionKey, RegionFile>> it = evictedWhilePinned.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<RegionKey, RegionFile> entry = it.next();
+                if (packCoords(entry.getKey().regionX, entry.getKey().regionZ) == coords) {
+                    it.remove();
+                    startClosing(entry.getKey());
+                    toClose.add(entry);
+                }
+            }
+        }
+        // Every file must be finished, otherwise it can never be loaded again
+        IOException failure = null;
+        for (Map.Entry<RegionKey, RegionFile> entry : toClose) {
+            try {
+                finishClosing(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
 }
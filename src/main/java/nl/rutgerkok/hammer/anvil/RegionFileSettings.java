@@ -0,0 +1,181 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.util.Objects;
+
+/**
+ * Settings for how the region files of a world are written. Changes take
+ * effect for all chunks that are saved afterwards, also during a chunk walk.
+ *
+ * @see AnvilWorld#getRegionFileSettings()
+ */
+public final class RegionFileSettings {
+
+    /**
+     * How much effort is spent on keeping region files intact if the program
+     * or the computer crashes.
+     */
+    public enum Durability {
+        /**
+         * No extra effort. Data and header are written in the order the
+         * operating system chooses, so after a crash the header may point to
+         * chunk data that never made it to disk.
+         */
+        NONE,
+        /**
+         * Chunk data is forced to disk before the header that points to it is
+         * written, and chunks are never overwritten in place. After a crash,
+         * every chunk is either in its old or in its new state. Slower,
+         * especially on hard disks.
+         */
+        ORDERED,
+        /**
+         * Like {@link #ORDERED}, but changes to the header are first written
+         * to a journal file next to the region file. If the program crashes
+         * while the header is being written, the journal is replayed the next
+         * time the region file is opened. Use this for unattended jobs on
+         * worlds that must not get corrupted. Combine with a
+         * {@link RegionFileSettings#setHeaderFlushInterval(int) header flush
+         * interval} of more than 1, so that the journal is written for a batch
+         * of chunks at once.
+         */
+        JOURNALED
+    }
+
+    private volatile ChunkCompression writeCompression = ChunkCompression.DEFLATE;
+    private volatile int compressionLevel = ChunkCompression.DEFAULT_LEVEL;
+    private volatile Durability durability = Durability.NONE;
+    private volatile int headerFlushInterval = 1;
+
+    /**
+     * Gets the compression level that is used for newly written chunks.
+     *
+     * @return The compression level, from 0 to 9, or
+     *         {@link ChunkCompression#DEFAULT_LEVEL}.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Gets how much effort is spent on keeping region files intact in case of
+     * a crash.
+     *
+     * @return The durability.
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Gets the amount of chunk writes after which the header of a region file
+     * is written to disk.
+     *
+     * @return The amount of writes.
+     * @see #setHeaderFlushInterval(int)
+     */
+    public int getHeaderFlushInterval() {
+        return headerFlushInterval;
+    }
+
+    /**
+     * Gets the compression type that is used for newly written chunks.
+     *
+     * @return The compression type.
+     */
+    public ChunkCompression getWriteCompression() {
+        return writeCompression;
+    }
+
+    /**
+     * Sets the compression level that is used for newly written chunks. Level
+     * 1 is the fastest, level 9 gives the smallest files. Only used by
+     * compression types that support levels, like {@link ChunkCompression#GZIP}
+     * and {@link ChunkCompression#DEFLATE}.
+     *
+     * <p>
+     * To apply a new level to existing chunks, use
+     * {@link AnvilWorld#recompress(ChunkWalkOptions)}.
+     *
+     * @param compressionLevel
+     *            The compression level, from 0 to 9, or
+     *            {@link ChunkCompression#DEFAULT_LEVEL}.
+     * @return This instance, for chaining.
+     * @throws IllegalArgumentException
+     *             If the level is out of range.
+     */
+    public RegionFileSettings setCompressionLevel(int compressionLevel) {
+        if ((compressionLevel < 0 || compressionLevel > 9) && compressionLevel != ChunkCompression.DEFAULT_LEVEL) {
+            throw new IllegalArgumentException("compressionLevel must be from 0 to 9, was " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * Sets how much effort is spent on keeping region files intact in case of
+     * a crash.
+     *
+     * @param durability
+     *            The durability.
+     * @return This instance, for chaining.
+     */
+    public RegionFileSettings setDurability(Durability durability) {
+        this.durability = Objects.requireNonNull(durability, "durability");
+        return this;
+    }
+
+    /**
+     * Sets the amount of chunk writes after which the header of a region file
+     * (with the locations and timestamps of all chunks) is written to disk.
+     * The header is also written when the region file is closed or
+     * {@link RegionFile#flush() flushed}. Until then, the header is only
+     * updated in memory, and the sectors of old chunk versions are not reused,
+     * so that the header on disk stays valid.
+     *
+     * <p>
+     * The default of 1 writes the header after every chunk, like Minecraft
+     * does. Higher values save a lot of small writes when many chunks are
+     * saved, but have two downsides:
+     * <ul>
+     * <li>If the program crashes, or a region file is never closed, up to
+     * this many chunk writes are lost: the chunk data is on disk, but the
+     * header on disk still points to the old versions.</li>
+     * <li>The sectors of replaced chunks are only reused after the header is
+     * written, so region files can grow in between.</li>
+     * </ul>
+     * Only raise this for jobs that save many chunks and always close the
+     * world properly, ideally together with
+     * {@link Durability#JOURNALED journaled} durability.
+     *
+     * @param headerFlushInterval
+     *            The amount of writes, at least 1.
+     * @return This instance, for chaining.
+     * @throws IllegalArgumentException
+     *             If the value is less than 1.
+     */
+    public RegionFileSettings setHeaderFlushInterval(int headerFlushInterval) {
+        if (headerFlushInterval < 1) {
+            throw new IllegalArgumentException("headerFlushInterval must be at least 1, was " + headerFlushInterval);
+        }
+        this.headerFlushInterval = headerFlushInterval;
+        return this;
+    }
+
+    /**
+     * Sets the compression type that is used for newly written chunks.
+     * Existing chunks keep their compression type until they are written
+     * again. Chunks can always be read, regardless of this setting.
+     *
+     * <p>
+     * Note that Minecraft versions before 1.20.5 can only read
+     * {@link ChunkCompression#GZIP} and {@link ChunkCompression#DEFLATE}.
+     *
+     * @param writeCompression
+     *            The compression type.
+     * @return This instance, for chaining.
+     */
+    public RegionFileSettings setWriteCompression(ChunkCompression writeCompression) {
+        this.writeCompression = Objects.requireNonNull(writeCompression, "writeCompression");
+        return this;
+    }
+}
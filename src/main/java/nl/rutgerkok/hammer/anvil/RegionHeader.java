@@ -0,0 +1,211 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import nl.rutgerkok.hammer.anvil.RegionFileCache.RegionKey;
+
+/**
+ * The header of a region file, which lists the chunks in the file. Reading
+ * only the header is a lot faster than opening the region file, so this can be
+ * used to quickly find out which chunks exist in a world.
+ *
+ * <p>
+ * The header is read directly from disk, in read-only mode. Header changes
+ * that an open region file has not written yet (see
+ * {@link RegionFileSettings#setHeaderFlushInterval(int)}) are not visible.
+ *
+ * @see AnvilWorld#scanRegionHeaders(RegionFileType, ChunkWalkOptions)
+ */
+public final class RegionHeader {
+
+    private static final int CHUNK_COUNT = RegionFile.REGION_CHUNK_COUNT * RegionFile.REGION_CHUNK_COUNT;
+
+    /**
+     * Reads the header of the given region file. Only the first two sectors of
+     * the file are read.
+     *
+     * @param type
+     *            Type of the region file.
+     * @param region
+     *            The region file.
+     * @return The header.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    static RegionHeader read(RegionFileType type, RegionKey region) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(CHUNK_COUNT * 4 * 2);
+        long fileSize;
+        try (FileChannel channel = FileChannel.open(region.file, StandardOpenOption.READ)) {
+            fileSize = channel.size();
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) == -1) {
+                    break; // Missing bytes are treated as empty entries
+                }
+            }
+        }
+        header.clear();
+        IntBuffer headerInts = header.asIntBuffer();
+        int[] offsets = new int[CHUNK_COUNT];
+        int[] timestamps = new int[CHUNK_COUNT];
+        headerInts.get(offsets);
+        headerInts.get(timestamps);
+        return new RegionHeader(type, region.file, region.regionX, region.regionZ, fileSize, offsets, timestamps);
+    }
+
+    /**
+     * Reads the headers of all given region files, possibly in parallel.
+     *
+     * @param type
+     *            Type of the region files.
+     * @param regions
+     *            The region files.
+     * @param runner
+     *            Used to read multiple headers at the same time.
+     * @return The headers, in the same order as the region files.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    static List<RegionHeader> readAll(RegionFileType type, List<RegionKey> regions, RegionTaskRunner runner)
+            throws IOException {
+        Map<RegionKey, Integer> indices = new HashMap<>();
+        for (int i = 0; i < regions.size(); i++) {
+            indices.put(regions.get(i), i);
+        }
+        RegionHeader[] headers = new RegionHeader[regions.size()];
+        runner.run(regions, region -> headers[indices.get(region)] = read(type, region));
+        return Arrays.asList(headers);
+    }
+
+    private final RegionFileType type;
+    private final Path file;
+    private final int regionX;
+    private final int regionZ;
+    private final long fileSize;
+    private final int[] offsets;
+    private final int[] timestamps;
+
+    private RegionHeader(RegionFileType type, Path file, int regionX, int regionZ, long fileSize, int[] offsets,
+            int[] timestamps) {
+        this.type = Objects.requireNonNull(type, "type");
+        this.file = Objects.requireNonNull(file, "file");
+        this.regionX = regionX;
+        this.regionZ = regionZ;
+        this.fileSize = fileSize;
+        this.offsets = offsets;
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Gets the header entry of the chunk at the given position.
+     *
+     * @param localX
+     *            The chunk x in the region file, from 0 to 31.
+     * @param localZ
+     *            The chunk z in the region file, from 0 to 31.
+     * @return The chunk, or null if the region file doesn't contain the chunk.
+     */
+    public ChunkHeader getChunk(int localX, int localZ) {
+        if (localX < 0 || localX >= RegionFile.REGION_CHUNK_COUNT || localZ < 0
+                || localZ >= RegionFile.REGION_CHUNK_COUNT) {
+            throw new IndexOutOfBoundsException("out of bounds; x,z: " + localX + "," + localZ);
+        }
+        int index = localX + localZ * RegionFile.REGION_CHUNK_COUNT;
+        if (offsets[index] == 0) {
+            return null;
+        }
+        return new ChunkHeader(getStartChunkX() + localX, getStartChunkZ() + localZ, offsets[index],
+                timestamps[index]);
+    }
+
+    /**
+     * Gets the amount of chunks in the region file.
+     *
+     * @return The amount of chunks.
+     */
+    public int getChunkCount() {
+        int count = 0;
+        for (int offset : offsets) {
+            if (offset != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the header entries of all chunks in the region file.
+     *
+     * @return The chunks, ordered on z and then on x.
+     */
+    public List<ChunkHeader> getChunks() {
+        List<ChunkHeader> chunks = new ArrayList<>();
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            if (offsets[i] != 0) {
+                chunks.add(new ChunkHeader(getStartChunkX() + i % RegionFile.REGION_CHUNK_COUNT,
+                        getStartChunkZ() + i / RegionFile.REGION_CHUNK_COUNT, offsets[i], timestamps[i]));
+            }
+        }
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * Gets the region file this header was read from.
+     *
+     * @return The region file.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the size of the region file.
+     *
+     * @return The size in bytes.
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getRegionX() {
+        return regionX;
+    }
+
+    public int getRegionZ() {
+        return regionZ;
+    }
+
+    public int getStartChunkX() {
+        return regionX << 5;
+    }
+
+    public int getStartChunkZ() {
+        return regionZ << 5;
+    }
+
+    /**
+     * Gets the type of the region file.
+     *
+     * @return The type.
+     */
+    public RegionFileType getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return "RegionHeader [type=" + type + ", regionX=" + regionX + ", regionZ=" + regionZ + ", chunks="
+                + getChunkCount() + "]";
+    }
+}
@@ -0,0 +1,151 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of byte arrays, inflaters and deflaters for reading and writing region
+ * files. Reading or writing a chunk would otherwise allocate multiple buffers
+ * and a native (de)compressor, only to throw them away again.
+ *
+ * <p>
+ * The pool is shared by all threads, as a buffer is often acquired by one
+ * thread and released by another (for example in a
+ * {@link PipelinedChunkWalk}). The pool is bounded: objects released while
+ * the pool is full are simply dropped. Forgetting to release an object is not
+ * an error, it just won't be reused.
+ */
+final class RegionIoPool {
+
+    private static final int POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    /**
+     * Smallest buffer that is handed out (8 KB). Most chunks fit in this size.
+     */
+    private static final int MIN_BUFFER_SHIFT = 13;
+    /**
+     * Larger buffers (4 MB) are not kept, so that a single huge chunk doesn't
+     * keep lots of memory in use.
+     */
+    private static final int MAX_POOLED_BUFFER_SHIFT = 22;
+
+    /**
+     * Buffers, by size. All buffers have a size that is a power of two, so
+     * that the pool for a size can serve all requests up to that size.
+     */
+    private static final List<BlockingQueue<byte[]>> buffers = new ArrayList<>();
+    private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    static {
+        for (int shift = MIN_BUFFER_SHIFT; shift <= MAX_POOLED_BUFFER_SHIFT; shift++) {
+            buffers.add(new ArrayBlockingQueue<>(POOL_SIZE));
+        }
+    }
+
+    /**
+     * Gets a byte array of at least the given length. The contents of the
+     * array are undefined.
+     *
+     * @param minLength
+     *            The minimum length.
+     * @return The array.
+     */
+    static byte[] acquireBuffer(int minLength) {
+        if (minLength <= 1 << MIN_BUFFER_SHIFT) {
+            minLength = 1 << MIN_BUFFER_SHIFT;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(minLength - 1);
+        if (shift > MAX_POOLED_BUFFER_SHIFT) {
+            return new byte[minLength];
+        }
+        byte[] buffer = buffers.get(shift - MIN_BUFFER_SHIFT).poll();
+        if (buffer == null) {
+            return new byte[1 << shift];
+        }
+        return buffer;
+    }
+
+    /**
+     * Gets a deflater with the given compression level.
+     *
+     * @param level
+     *            The compression level, from 0 to 9, or
+     *            {@link Deflater#DEFAULT_COMPRESSION}.
+     * @return The deflater.
+     */
+    static Deflater acquireDeflater(int level) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            return new Deflater(level);
+        }
+        // Pooled deflaters keep the level of their previous user
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    /**
+     * Gets an inflater.
+     *
+     * @return The inflater.
+     */
+    static Inflater acquireInflater() {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            return new Inflater();
+        }
+        return inflater;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used afterwards.
+     *
+     * @param buffer
+     *            The buffer, may be null.
+     */
+    static void releaseBuffer(byte[] buffer) {
+        if (buffer == null || Integer.bitCount(buffer.length) != 1) {
+            return;
+        }
+        int shift = Integer.numberOfTrailingZeros(buffer.length);
+        if (shift < MIN_BUFFER_SHIFT || shift > MAX_POOLED_BUFFER_SHIFT) {
+            return;
+        }
+        buffers.get(shift - MIN_BUFFER_SHIFT).offer(buffer);
+    }
+
+    /**
+     * Gives a deflater back to the pool. The deflater must not be used
+     * afterwards.
+     *
+     * @param deflater
+     *            The deflater.
+     */
+    static void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Gives an inflater back to the pool. The inflater must not be used
+     * afterwards.
+     *
+     * @param inflater
+     *            The inflater.
+     */
+    static void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    private RegionIoPool() {
+        // No instances
+    }
+}
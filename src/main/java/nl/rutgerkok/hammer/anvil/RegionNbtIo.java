@@ -8,14 +8,13 @@ import java.util.Optional;
 
 import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.ChunkRootTag;
 import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.ChunkTag;
-import nl.rutgerkok.hammer.anvil.tag.AnvilNbtReader;
 import nl.rutgerkok.hammer.anvil.tag.AnvilNbtWriter;
 import nl.rutgerkok.hammer.tag.CompoundTag;
 
 /**
  * Allows to read and write NBT tags from the region files.
  */
-final class RegionNbtIo {
+final class RegionNbtIo implements ChunkTagWriter {
 
     private final ChunkDataVersion defaultDataVersion;
     private final RegionFileCache cache;
@@ -66,7 +65,8 @@ final class RegionNbtIo {
      * @throws IOException
      *             If an IO error occurs.
      */
-    void deleteTag(RegionFileType type) throws IOException {
+    @Override
+    public void deleteTag(RegionFileType type) throws IOException {
         cache.getRegionFile(type, chunkX, chunkZ).deleteChunk(chunkX & 31, chunkZ & 31);
     }
 
@@ -76,6 +76,21 @@ final class RegionNbtIo {
     }
 
     Optional<CompoundTag> loadTag(RegionFileType type) throws IOException {
+        return loadTag(type, ChunkTagReader.FULL);
+    }
+
+    /**
+     * Loads a tag, decoding only the parts the given reader asks for.
+     *
+     * @param type
+     *            The region file type.
+     * @param reader
+     *            The reader.
+     * @return The tag, or empty if the chunk doesn't exist in the region file.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    Optional<CompoundTag> loadTag(RegionFileType type, ChunkTagReader reader) throws IOException {
         try (InputStream stream = cache.getRegionFile(type, chunkX, chunkZ)
                 .getChunkInputStream(chunkX & 31, chunkZ & 31)) {
             if (stream == null) {
@@ -84,11 +99,12 @@ final class RegionNbtIo {
             }
 
             // Read the tag
-            return Optional.of(AnvilNbtReader.readFromUncompressedStream(stream));
+            return Optional.of(reader.read(stream));
         }
     }
 
-    void saveTag(RegionFileType type, CompoundTag tag) throws IOException {
+    @Override
+    public void saveTag(RegionFileType type, CompoundTag tag) throws IOException {
         try (OutputStream outputStream = getChunkOutputStream(type, chunkX, chunkZ)) {
             AnvilNbtWriter.writeUncompressedToStream(outputStream, tag);
         }
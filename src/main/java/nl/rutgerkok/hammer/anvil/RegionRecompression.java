@@ -0,0 +1,128 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.rutgerkok.hammer.anvil.RegionFileCache.Claim;
+import nl.rutgerkok.hammer.anvil.RegionFileCache.Pin;
+import nl.rutgerkok.hammer.anvil.RegionFileCache.RegionKey;
+
+/**
+ * Rewrites all chunks in all region files using the compression type and
+ * level from the {@link RegionFileSettings}. Chunks are only decompressed and
+ * compressed again, the NBT data is never parsed.
+ *
+ * <p>
+ * A chunk that is written by someone else while it is being recompressed is
+ * left alone, as that write contains newer data.
+ *
+ */
+final class RegionRecompression {
+
+    private final RegionFileCache regionFileCache;
+    private final ChunkWalkOptions options;
+
+    private final AtomicInteger chunkCount = new AtomicInteger();
+    private final AtomicLong bytesBefore = new AtomicLong();
+    private final AtomicLong bytesAfter = new AtomicLong();
+
+    RegionRecompression(RegionFileCache regionFileCache, ChunkWalkOptions options) {
+        this.regionFileCache = Objects.requireNonNull(regionFileCache, "regionFileCache");
+        this.options = Objects.requireNonNull(options, "options");
+    }
+
+    /**
+     * Reads all bytes of the stream into the given buffer.
+     */
+    private void copy(InputStream in, PooledByteArrayOutputStream out) throws IOException {
+        byte[] buffer = RegionIoPool.acquireBuffer(0);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            RegionIoPool.releaseBuffer(buffer);
+        }
+    }
+
+    RecompressionReport perform() throws IOException {
+        RegionFileSettings settings = regionFileCache.getSettings();
+        ChunkCompression compression = settings.getWriteCompression();
+        int level = settings.getCompressionLevel();
+
+        try (Claim claim = regionFileCache.claim()) {
+            List<RegionKey> regions = new ArrayList<>();
+            for (RegionFileType type : RegionFileType.values()) {
+                regions.addAll(regionFileCache.listRegions(type));
+            }
+            RegionTaskRunner runner = new RegionTaskRunner(options.getExecutor(), options.getParallelism());
+            runner.run(regions, region -> {
+                // Keep the region file open while we're working on it
+                try (Pin pin = regionFileCache.pin(region.regionX, region.regionZ)) {
+                    recompressRegionFile(regionFileCache.getRegionFile(region), compression, level);
+                }
+            });
+        }
+        return new RecompressionReport(chunkCount.get(), bytesBefore.get(), bytesAfter.get());
+    }
+
+    private void recompressChunk(RegionFile regionFile, int localChunkX, int localChunkZ,
+            ChunkCompression compression, int level) throws IOException {
+        // Must be obtained before reading, see writeIfUnchanged
+        int changeCount = regionFile.getChangeCount(localChunkX, localChunkZ);
+        PooledByteArrayInputStream compressed = regionFile.readCompressedChunk(localChunkX, localChunkZ);
+        if (compressed == null) {
+            return;
+        }
+        // Minus the version byte
+        int oldLength = compressed.getEnd() - compressed.getPosition() - 1;
+
+        PooledByteArrayOutputStream recompressed = new PooledByteArrayOutputStream(oldLength);
+        try (InputStream uncompressed = RegionFile.decompress(compressed)) {
+            if (uncompressed instanceof PooledByteArrayInputStream) {
+                // Already decompressed into a buffer, no need to copy
+                PooledByteArrayInputStream pooled = (PooledByteArrayInputStream) uncompressed;
+                compression.compress(pooled.getBuffer(), pooled.getPosition(),
+                        pooled.getEnd() - pooled.getPosition(), recompressed, level);
+            } else {
+                PooledByteArrayOutputStream buffer = new PooledByteArrayOutputStream();
+                try {
+                    copy(uncompressed, buffer);
+                    compression.compress(buffer.getBuffer(), 0, buffer.size(), recompressed, level);
+                } finally {
+                    buffer.release();
+                }
+            }
+            if (!regionFile.writeIfUnchanged(localChunkX, localChunkZ, changeCount, compression,
+                    recompressed.getBuffer(), recompressed.size())) {
+                return;
+            }
+
+            chunkCount.incrementAndGet();
+            bytesBefore.addAndGet(oldLength);
+            bytesAfter.addAndGet(recompressed.size());
+        } catch (IOException e) {
+            throw new IOException("IO error in " + (regionFile.getStartChunkX() + localChunkX) + " "
+                    + (regionFile.getStartChunkZ() + localChunkZ), e);
+        } finally {
+            recompressed.release();
+        }
+    }
+
+    private void recompressRegionFile(RegionFile regionFile, ChunkCompression compression, int level)
+            throws IOException {
+        for (int localChunkX = 0; localChunkX < RegionFile.REGION_CHUNK_COUNT; localChunkX++) {
+            for (int localChunkZ = 0; localChunkZ < RegionFile.REGION_CHUNK_COUNT; localChunkZ++) {
+                if (regionFile.hasChunk(localChunkX, localChunkZ)) {
+                    recompressChunk(regionFile, localChunkX, localChunkZ, compression, level);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import nl.rutgerkok.hammer.anvil.RegionFileCache.RegionKey;
+
+/**
+ * Runs a task for every region in a list, either on the calling thread or
+ * spread out over multiple threads. A region is only ever handled by a single
+ * task.
+ *
+ */
+final class RegionTaskRunner {
+
+    /**
+     * A task that is executed for a single region.
+     */
+    interface RegionTask {
+        /**
+         * Executes the task.
+         *
+         * @param region
+         *            The region.
+         * @throws IOException
+         *             If an IO error occurs.
+         */
+        void run(RegionKey region) throws IOException;
+    }
+
+    private final Executor executor;
+    private final int parallelism;
+
+    /**
+     * Creates a new runner.
+     *
+     * @param executor
+     *            The executor to run the tasks on. May be null, in which case
+     *            the parallelism is used.
+     * @param parallelism
+     *            If no executor is given, this is the amount of threads that
+     *            is used. A value of 1 means that the tasks run on the calling
+     *            thread.
+     */
+    RegionTaskRunner(Executor executor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1, was " + parallelism);
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    private void rethrow(Throwable failure) throws IOException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new RuntimeException(failure);
+    }
+
+    /**
+     * Runs the task for all regions. Returns once all tasks have finished. If
+     * a task fails, no new tasks are started, and the exception is rethrown
+     * once the already running tasks have finished.
+     *
+     * @param regions
+     *            The regions.
+     * @param task
+     *            The task.
+     * @throws IOException
+     *             If a task throws an IO exception.
+     */
+    void run(List<RegionKey> regions, RegionTask task) throws IOException {
+        Objects.requireNonNull(task, "task");
+        if (executor != null) {
+            runOn(executor, regions, task);
+        } else if (parallelism > 1) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                runOn(pool, regions, task);
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (RegionKey region : regions) {
+                task.run(region);
+            }
+        }
+    }
+
+    private void runOn(Executor executor, List<RegionKey> regions, RegionTask task) throws IOException {
+        AtomicBoolean failed = new AtomicBoolean(false);
+        Throwable failure = null;
+        List<Future<Void>> futures = new ArrayList<>(regions.size());
+        for (RegionKey region : regions) {
+            FutureTask<Void> future = new FutureTask<>(() -> {
+                if (failed.get()) {
+                    return null; // Don't start new work after a failure
+                }
+                try {
+                    task.run(region);
+                } catch (Throwable e) {
+                    failed.set(true);
+                    throw e;
+                }
+                return null;
+            });
+            try {
+                executor.execute(future);
+            } catch (RejectedExecutionException e) {
+                failed.set(true);
+                failure = e;
+                break;
+            }
+            futures.add(future);
+        }
+
+        // Wait for everything to finish, otherwise region files could be
+        // closed while still in use
+        for (Future<Void> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            rethrow(failure);
+        }
+    }
+}
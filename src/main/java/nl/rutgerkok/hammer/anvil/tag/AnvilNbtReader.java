@@ -1,17 +1,23 @@
 package nl.rutgerkok.hammer.anvil.tag;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
 import java.util.zip.GZIPInputStream;
 
 import nl.rutgerkok.hammer.tag.CompoundKey;
 import nl.rutgerkok.hammer.tag.CompoundTag;
+import nl.rutgerkok.hammer.tag.LazyTag;
 import nl.rutgerkok.hammer.tag.ListTag;
+import nl.rutgerkok.hammer.tag.TagProjection;
 import nl.rutgerkok.hammer.tag.TagType;
 
 /**
@@ -20,18 +26,113 @@ import nl.rutgerkok.hammer.tag.TagType;
  */
 public final class AnvilNbtReader {
 
+    /**
+     * The payload of a tag, still in its encoded form.
+     *
+     * @param <T>
+     *            Type of the tag.
+     */
+    private static final class LazyPayload<T> implements LazyTag<T> {
+        private final TagType<T> type;
+        private final byte[] payload;
+
+        private LazyPayload(TagType<T> type, byte[] payload) {
+            this.type = Objects.requireNonNull(type, "type");
+            this.payload = Objects.requireNonNull(payload, "payload");
+        }
+
+        @Override
+        public T decode() throws IOException {
+            return readPayload(new DataInputStream(new ByteArrayInputStream(payload)), type,
+                    Collections.emptySet());
+        }
+
+        @Override
+        public TagType<T> getType() {
+            return type;
+        }
+    }
+
     private static final int MAX_ARRAY_SIZE = 100000;
 
+    /**
+     * Recording buffers larger than this are not kept for the next lazy tag.
+     */
+    private static final int MAX_RECORDING_BUFFER = 1 << 20;
+
+    /**
+     * Buffer for recording the bytes of lazy tags. Reused, so that only the
+     * final copy of the bytes needs to be allocated.
+     */
+    private static final ThreadLocal<byte[]> RECORDING_BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+
     /**
      * Reads a compound tag from the given stream.
      *
      * @param input
      *            The stream to read.
+     * @param lazyKeys
+     *            Child tags with these names are not decoded yet.
+     * @return The compound tag.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    private static final CompoundTag readCompoundTag(DataInput input, Set<CompoundKey<?>> lazyKeys)
+            throws IOException {
+        CompoundTag tag = new CompoundTag();
+        while (true) {
+            byte marker = input.readByte();
+            if (marker == 0) {
+                // End of tag
+                return tag;
+            }
+
+            @SuppressWarnings("unchecked")
+            TagType<Object> type = (TagType<Object>) TagType.fromByte(marker);
+            CompoundKey<Object> key = KeyTable.readKey(input);
+            if (lazyKeys.contains(key)) {
+                // Keep the raw bytes, only the structure is read
+                RecordingDataInput recording = new RecordingDataInput(input, RECORDING_BUFFER.get());
+                skipPayload(recording, type);
+                tag.setLazy(key, new LazyPayload<>(type, recording.toByteArray()));
+                if (recording.getBuffer().length <= MAX_RECORDING_BUFFER) {
+                    RECORDING_BUFFER.set(recording.getBuffer());
+                }
+            } else if (!readNumber(input, type, tag, key)) {
+                tag.set(key, type, readPayload(input, type, lazyKeys));
+            }
+        }
+    }
+
+    /**
+     * Reads the payload of a compound tag, so without the marker and name.
+     *
+     * @param stream
+     *            The stream to read.
+     * @param lazyKeys
+     *            Child tags with these names are not decoded yet.
+     * @return The compound tag.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    static CompoundTag readCompoundPayload(InputStream stream, Set<CompoundKey<?>> lazyKeys) throws IOException {
+        return readCompoundTag(new DataInputStream(stream), lazyKeys);
+    }
+
+    /**
+     * Reads a compound tag from the given stream, skipping the child tags that
+     * are not in the projection.
+     *
+     * @param input
+     *            The stream to read.
+     * @param projection
+     *            The needed child tags.
      * @return The compound tag.
      * @throws IOException
      *             If an IO error occurs.
      */
-    private static final CompoundTag readCompoundTag(DataInput input) throws IOException {
+    private static CompoundTag readProjectedCompoundTag(DataInput input, TagProjection projection)
+            throws IOException {
         CompoundTag tag = new CompoundTag();
         while (true) {
             byte marker = input.readByte();
@@ -42,9 +143,78 @@ public final class AnvilNbtReader {
 
             @SuppressWarnings("unchecked")
             TagType<Object> type = (TagType<Object>) TagType.fromByte(marker);
-            String tagName = input.readUTF();
-            tag.set(CompoundKey.of(tagName), type, readPayload(input, type));
+            CompoundKey<Object> key = KeyTable.readKey(input);
+            TagProjection child = projection.getChild(key);
+            if (child == null) {
+                skipPayload(input, type);
+            } else if (!readNumber(input, type, tag, key)) {
+                tag.set(key, type, readProjectedPayload(input, type, child));
+            }
+        }
+    }
+
+    /**
+     * Reads a numeric payload straight into the tag, so that the number is
+     * never boxed.
+     *
+     * @param input
+     *            The stream to read.
+     * @param type
+     *            Type of the payload.
+     * @param tag
+     *            The tag to store the number in.
+     * @param key
+     *            Name of the number.
+     * @return True if the payload was read, false if it is not a number, in
+     *         which case nothing was read.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static boolean readNumber(DataInput input, TagType<?> type, CompoundTag tag, CompoundKey key)
+            throws IOException {
+        if (type == TagType.BYTE) {
+            tag.setByte(key, input.readByte());
+        } else if (type == TagType.SHORT) {
+            tag.setShort(key, input.readShort());
+        } else if (type == TagType.INT) {
+            tag.setInt(key, input.readInt());
+        } else if (type == TagType.LONG) {
+            tag.setLong(key, input.readLong());
+        } else if (type == TagType.FLOAT) {
+            tag.setFloat(key, input.readFloat());
+        } else if (type == TagType.DOUBLE) {
+            tag.setDouble(key, input.readDouble());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T readProjectedPayload(DataInput input, TagType<T> type, TagProjection projection)
+            throws IOException {
+        if (projection.isAll()) {
+            return readPayload(input, type, Collections.emptySet());
         }
+        if (type == TagType.COMPOUND) {
+            return type.cast(readProjectedCompoundTag(input, projection));
+        }
+        if (type == TagType.LIST) {
+            byte typeByte = input.readByte();
+            if (typeByte == 0 || TagType.fromByte(typeByte) != TagType.COMPOUND) {
+                // Projection doesn't apply, read the list as usual
+                return type.cast(readListTag(typeByte, input, Collections.emptySet()));
+            }
+            int size = input.readInt();
+            ListTag<CompoundTag> list = new ListTag<>(TagType.COMPOUND);
+            for (int i = 0; i < size; i++) {
+                list.add(readProjectedCompoundTag(input, projection));
+            }
+            return (T) list;
+        }
+        // Projection doesn't apply to other types
+        return readPayload(input, type, Collections.emptySet());
     }
 
     /**
@@ -72,6 +242,59 @@ public final class AnvilNbtReader {
      *             If an IO error occurs.
      */
     public static CompoundTag readFromUncompressedStream(InputStream stream) throws IOException {
+        return readFromUncompressedStream(stream, Collections.emptySet());
+    }
+
+    /**
+     * Reads the tag from the uncompressed stream, skipping all child tags that
+     * are not in the given projection. Skipped tags are not decoded, which
+     * saves a lot of time and memory. The returned tag is incomplete, so it
+     * must not be written back.
+     *
+     * @param stream
+     *            Stream to read from.
+     * @param projection
+     *            The needed child tags.
+     * @return The tag.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    public static CompoundTag readFromUncompressedStream(InputStream stream, TagProjection projection)
+            throws IOException {
+        DataInputStream dataInput = new DataInputStream(stream);
+
+        // Verify that we have a compound tag
+        byte tagMarker = dataInput.readByte();
+        if (TagType.fromByte(tagMarker) != TagType.COMPOUND) {
+            throw new IOException("Root tag must be a compound tag, found byte " + (tagMarker & 0xff) + " instead");
+        }
+        // Skip name
+        dataInput.readUTF();
+        // Read the rest
+        if (projection.isAll()) {
+            return readCompoundTag(dataInput, Collections.emptySet());
+        }
+        return readProjectedCompoundTag(dataInput, projection);
+    }
+
+    /**
+     * Reads the tag from the uncompressed stream, leaving some child tags
+     * undecoded until they are first accessed. This saves time and memory if
+     * those child tags are large, and are often not needed.
+     *
+     * @param stream
+     *            Stream to read from.
+     * @param lazyKeys
+     *            Child tags with these names are not decoded yet, at any
+     *            depth. Tags inside those tags are decoded all at once, once
+     *            they are needed.
+     * @return The stream.
+     * @throws IOException
+     *             If an IO error occurs.
+     * @see CompoundTag#setLazy(CompoundKey, LazyTag)
+     */
+    public static CompoundTag readFromUncompressedStream(InputStream stream, Set<CompoundKey<?>> lazyKeys)
+            throws IOException {
         DataInputStream dataInput = new DataInputStream(stream);
 
         // Verify that we have a compound tag
@@ -82,11 +305,15 @@ public final class AnvilNbtReader {
         // Skip name
         dataInput.readUTF();
         // Read the rest
-        return readCompoundTag(dataInput);
+        return readCompoundTag(dataInput, lazyKeys);
     }
 
-    private static ListTag<?> readListTag(DataInput stream) throws IOException {
-        byte typeByte = stream.readByte();
+    private static ListTag<?> readListTag(DataInput stream, Set<CompoundKey<?>> lazyKeys) throws IOException {
+        return readListTag(stream.readByte(), stream, lazyKeys);
+    }
+
+    private static ListTag<?> readListTag(byte typeByte, DataInput stream, Set<CompoundKey<?>> lazyKeys)
+            throws IOException {
         int size = stream.readInt();
 
         TagType<?> tagType;
@@ -104,7 +331,7 @@ public final class AnvilNbtReader {
 
         ListTag<Object> tag = new ListTag<>(tagType);
         for (int i = 0; i < size; i++) {
-            tag.add(AnvilNbtReader.readPayload(stream, tag.getListType()));
+            tag.add(AnvilNbtReader.readPayload(stream, tag.getListType(), lazyKeys));
         }
         return tag;
     }
@@ -118,16 +345,20 @@ public final class AnvilNbtReader {
      *            Stream to read from.
      * @param type
      *            The tag type.
+     * @param lazyKeys
+     *            Child tags of compound tags with these names are not decoded
+     *            yet.
      * @return The deserialized object.
      * @throws IOException
      *             If an io error occurs.
      */
-    private static <T> T readPayload(DataInput dataInput, TagType<T> type) throws IOException {
+    private static <T> T readPayload(DataInput dataInput, TagType<T> type, Set<CompoundKey<?>> lazyKeys)
+            throws IOException {
         if (type == TagType.BYTE) {
             return type.cast(dataInput.readByte());
         }
         if (type == TagType.COMPOUND) {
-            return type.cast(readCompoundTag(dataInput));
+            return type.cast(readCompoundTag(dataInput, lazyKeys));
         }
         if (type == TagType.DOUBLE) {
             return type.cast(dataInput.readDouble());
@@ -144,13 +375,11 @@ public final class AnvilNbtReader {
                 throw new IOException("Invalid int array size: " + size);
             }
             int[] array = new int[size];
-            for (int i = 0; i < size; i++) {
-                array[i] = dataInput.readInt();
-            }
+            NbtArrays.readInts(dataInput, array, size);
             return type.cast(array);
         }
         if (type == TagType.LIST) {
-            return type.cast(readListTag(dataInput));
+            return type.cast(readListTag(dataInput, lazyKeys));
         }
         if (type == TagType.LONG) {
             return type.cast(dataInput.readLong());
@@ -161,9 +390,7 @@ public final class AnvilNbtReader {
                 throw new IOException("Invalid long array size: " + size);
             }
             long[] array = new long[size];
-            for (int i = 0; i < size; i++) {
-                array[i] = dataInput.readLong();
-            }
+            NbtArrays.readLongs(dataInput, array, size);
             return type.cast(array);
         }
         if (type == TagType.BYTE_ARRAY) {
@@ -181,4 +408,85 @@ public final class AnvilNbtReader {
         throw new IOException("Unknown type: " + type);
     }
 
+    /**
+     * Skips over a payload without decoding it. Arrays and strings are
+     * skipped using their length, compounds and lists are skipped one child
+     * at a time.
+     *
+     * @param input
+     *            Stream to read from.
+     * @param type
+     *            The tag type.
+     * @throws IOException
+     *             If an IO error occurs, or if the payload is invalid.
+     */
+    static void skipPayload(DataInput input, TagType<?> type) throws IOException {
+        int fixedSize = NbtViews.getFixedSize(type);
+        if (fixedSize != -1) {
+            skipFully(input, fixedSize);
+        } else if (type == TagType.STRING) {
+            skipFully(input, input.readUnsignedShort());
+        } else if (type == TagType.BYTE_ARRAY) {
+            skipArray(input, 1);
+        } else if (type == TagType.INT_ARRAY) {
+            skipArray(input, 4);
+        } else if (type == TagType.LONG_ARRAY) {
+            skipArray(input, 8);
+        } else if (type == TagType.LIST) {
+            byte typeByte = input.readByte();
+            int size = input.readInt();
+            if (typeByte == 0) {
+                if (size != 0) {
+                    throw new IOException("List of type 0, but size was " + size);
+                }
+                return;
+            }
+            TagType<?> listType = TagType.fromByte(typeByte);
+            int elementSize = NbtViews.getFixedSize(listType);
+            if (elementSize != -1) {
+                // Skip all elements at once
+                if (size < 0) {
+                    throw new IOException("Invalid list size: " + size);
+                }
+                skipFully(input, (long) size * elementSize);
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                skipPayload(input, listType);
+            }
+        } else if (type == TagType.COMPOUND) {
+            while (true) {
+                byte marker = input.readByte();
+                if (marker == 0) {
+                    return;
+                }
+                TagType<?> childType = TagType.fromByte(marker);
+                skipFully(input, input.readUnsignedShort()); // Name
+                skipPayload(input, childType);
+            }
+        } else {
+            throw new IOException("Unknown type: " + type);
+        }
+    }
+
+    private static void skipArray(DataInput input, int elementBytes) throws IOException {
+        int size = input.readInt();
+        if (size < 0) {
+            throw new IOException("Invalid array size: " + size);
+        }
+        skipFully(input, (long) size * elementBytes);
+    }
+
+    private static void skipFully(DataInput input, long bytes) throws IOException {
+        while (bytes > 0) {
+            int skipped = input.skipBytes((int) Math.min(bytes, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                // Either the end of the stream, or a stream that can't skip
+                input.readByte();
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
 }
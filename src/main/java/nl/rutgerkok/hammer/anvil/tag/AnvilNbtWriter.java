@@ -8,13 +8,13 @@ import java.io.OutputStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Map.Entry;
 import java.util.zip.GZIPOutputStream;
 
 import nl.rutgerkok.hammer.tag.CompoundKey;
 import nl.rutgerkok.hammer.tag.CompoundTag;
 import nl.rutgerkok.hammer.tag.ListTag;
 import nl.rutgerkok.hammer.tag.TagType;
+import nl.rutgerkok.hammer.tag.TagValueVisitor;
 
 /**
  * Contains methods to write NBT tags in the PC level format.
@@ -22,13 +22,67 @@ import nl.rutgerkok.hammer.tag.TagType;
  */
 public class AnvilNbtWriter {
 
-    private static void writeCompound(DataOutput dos, CompoundTag tag) throws IOException {
-        for (Entry<CompoundKey<?>, Object> entry : tag.entrySet()) {
-            TagType<?> tagType = TagType.ofObject(entry.getValue());
-            tagType.write(dos);
-            dos.writeUTF(entry.getKey().getKeyName());
-            writePayload(dos, tagType, entry.getValue());
+    /**
+     * Writes the values of a compound tag, without boxing the numbers.
+     */
+    private static final class CompoundWriter implements TagValueVisitor<IOException> {
+        private final DataOutput output;
+
+        CompoundWriter(DataOutput output) {
+            this.output = output;
+        }
+
+        private void header(TagType<?> type, CompoundKey<?> key) throws IOException {
+            type.write(output);
+            output.writeUTF(key.getKeyName());
+        }
+
+        @Override
+        public void visitByte(CompoundKey<?> key, byte value) throws IOException {
+            header(TagType.BYTE, key);
+            output.writeByte(value);
+        }
+
+        @Override
+        public void visitDouble(CompoundKey<?> key, double value) throws IOException {
+            header(TagType.DOUBLE, key);
+            output.writeDouble(value);
+        }
+
+        @Override
+        public void visitFloat(CompoundKey<?> key, float value) throws IOException {
+            header(TagType.FLOAT, key);
+            output.writeFloat(value);
+        }
+
+        @Override
+        public void visitInt(CompoundKey<?> key, int value) throws IOException {
+            header(TagType.INT, key);
+            output.writeInt(value);
+        }
+
+        @Override
+        public void visitLong(CompoundKey<?> key, long value) throws IOException {
+            header(TagType.LONG, key);
+            output.writeLong(value);
+        }
+
+        @Override
+        public void visitObject(CompoundKey<?> key, Object value) throws IOException {
+            TagType<?> tagType = TagType.ofObject(value);
+            header(tagType, key);
+            writePayload(output, tagType, value);
+        }
+
+        @Override
+        public void visitShort(CompoundKey<?> key, short value) throws IOException {
+            header(TagType.SHORT, key);
+            output.writeShort(value);
         }
+    }
+
+    private static void writeCompound(DataOutput dos, CompoundTag tag) throws IOException {
+        tag.visitValues(new CompoundWriter(dos));
         // Close tag with a null byte
         dos.writeByte(0);
     }
@@ -80,19 +134,15 @@ public class AnvilNbtWriter {
         } else if (tagType == TagType.INT_ARRAY) {
             int[] intArray = (int[]) value;
             dataOutput.writeInt(intArray.length);
-            for (int integer : intArray) {
-                dataOutput.writeInt(integer);
-            }
+            NbtArrays.writeInts(dataOutput, intArray);
         } else if (tagType == TagType.LIST) {
             writeList(dataOutput, (ListTag<?>) value);
         } else if (tagType == TagType.LONG) {
             dataOutput.writeLong((Long) value);
         } else if (tagType == TagType.LONG_ARRAY) {
-            long[] intArray = (long[]) value;
-            dataOutput.writeInt(intArray.length);
-            for (long longInteger : intArray) {
-                dataOutput.writeLong(longInteger);
-            }
+            long[] longArray = (long[]) value;
+            dataOutput.writeInt(longArray.length);
+            NbtArrays.writeLongs(dataOutput, longArray);
         } else if (tagType == TagType.BYTE_ARRAY) {
             byte[] byteArray = (byte[]) value;
             dataOutput.writeInt(byteArray.length);
@@ -0,0 +1,434 @@
+package nl.rutgerkok.hammer.anvil.tag;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Objects;
+
+import nl.rutgerkok.hammer.tag.CompoundKey;
+import nl.rutgerkok.hammer.tag.CompoundTag;
+import nl.rutgerkok.hammer.tag.ListTag;
+import nl.rutgerkok.hammer.tag.TagType;
+
+/**
+ * A read-only view of a compound tag, directly on top of the NBT data in a
+ * buffer. Nothing is decoded until it is requested: the positions of the
+ * values in a compound are looked up the first time a value of that compound
+ * is requested, arrays are returned as slices of the buffer and strings are
+ * only decoded when they are requested.
+ *
+ * <p>
+ * The getters follow the rules of {@link CompoundTag}: keys are case
+ * insensitive, numbers are converted to the requested numeric type and
+ * missing values result in zero, an empty string, an empty buffer or an empty
+ * view. Unlike a compound tag, a view never changes.
+ *
+ * <p>
+ * Views don't copy the buffer, so the buffer must not be changed while the
+ * view is in use. Views are not thread safe.
+ */
+public final class CompoundView {
+
+    private static final CompoundView EMPTY = new CompoundView(ByteBuffer.wrap(new byte[] { 0 }), 0);
+
+    /**
+     * Amount of ints used for every entry in {@link #index}.
+     */
+    private static final int INDEX_STRIDE = 4;
+
+    /**
+     * Gets a view on a compound tag that contains nothing.
+     *
+     * @return The view.
+     */
+    static CompoundView empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Creates a view on the root tag in the buffer. The NBT data in the buffer
+     * is validated once, so that the getters of the view never fail. The
+     * buffer is not modified, not even its position.
+     *
+     * @param buffer
+     *            The buffer, containing uncompressed NBT data from its
+     *            position to its limit.
+     * @return The view on the root tag.
+     * @throws IOException
+     *             If the buffer doesn't contain valid NBT data with a compound
+     *             tag as the root tag.
+     */
+    public static CompoundView of(ByteBuffer buffer) throws IOException {
+        ByteBuffer data = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int position = data.position();
+        if (!data.hasRemaining() || TagType.fromByte(data.get(position)) != TagType.COMPOUND) {
+            throw new IOException("Root tag must be a compound tag");
+        }
+        // Skip the name of the root tag
+        int payloadStart = NbtViews.skip(data, position + 1, TagType.STRING);
+        NbtViews.skip(data, payloadStart, TagType.COMPOUND);
+        return new CompoundView(data, payloadStart);
+    }
+
+    private final ByteBuffer buffer;
+    private final int position;
+
+    /**
+     * For every entry: position of the name, length of the name, type id and
+     * position of the payload. Null until it is first needed.
+     */
+    private int[] index;
+    private int size;
+
+    /**
+     * Creates a new view. The data must already be validated.
+     *
+     * @param buffer
+     *            The buffer, in big-endian order.
+     * @param position
+     *            Position of the payload of the compound tag.
+     */
+    CompoundView(ByteBuffer buffer, int position) {
+        this.buffer = buffer;
+        this.position = position;
+    }
+
+    private void buildIndex() {
+        int[] index = new int[8 * INDEX_STRIDE];
+        int size = 0;
+        int position = this.position;
+        while (true) {
+            byte marker = buffer.get(position++);
+            if (marker == 0) {
+                break;
+            }
+            int nameLength = buffer.getShort(position) & 0xffff;
+            int namePosition = position + 2;
+            int payloadPosition = namePosition + nameLength;
+            if ((size + 1) * INDEX_STRIDE > index.length) {
+                index = Arrays.copyOf(index, index.length * 2);
+            }
+            int offset = size * INDEX_STRIDE;
+            index[offset] = namePosition;
+            index[offset + 1] = nameLength;
+            index[offset + 2] = marker;
+            index[offset + 3] = payloadPosition;
+            size++;
+            position = NbtViews.skipUnchecked(buffer, payloadPosition, NbtViews.typeOf(marker));
+        }
+        this.index = index;
+        this.size = size;
+    }
+
+    /**
+     * Checks if a child tag with the given name exists.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return True if such a tag exists, false otherwise.
+     */
+    public boolean containsKey(CompoundKey<?> key) {
+        return find(key) != -1;
+    }
+
+    /**
+     * Finds the entry with the given key.
+     *
+     * @param key
+     *            The key.
+     * @return Offset of the entry in {@link #index}, or -1 if not found.
+     */
+    private int find(CompoundKey<?> key) {
+        if (index == null) {
+            buildIndex();
+        }
+        String name = key.getKeyName();
+        for (int i = 0; i < size; i++) {
+            int offset = i * INDEX_STRIDE;
+            if (NbtViews.equalsIgnoreCase(buffer, index[offset], index[offset + 1], name)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the payload of the entry with the given key and type.
+     *
+     * @return Position of the payload, or -1 if not found or of another type.
+     */
+    private int findPayload(CompoundKey<?> key, TagType<?> type) {
+        int offset = find(key);
+        if (offset == -1 || getType(offset) != type) {
+            return -1;
+        }
+        return index[offset + 3];
+    }
+
+    /**
+     * Gets the byte with the given tag name. If the given tag does not exist or
+     * is not a number, 0 is returned.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return The byte, or 0 if not found.
+     */
+    public byte getByte(CompoundKey<Byte> key) {
+        return (byte) getLongValue(key);
+    }
+
+    /**
+     * Gets the byte array with the given tag name, as a read-only slice of
+     * the buffer.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return The byte array, or an empty buffer if not found.
+     */
+    public ByteBuffer getByteArray(CompoundKey<byte[]> key) {
+        int payload = findPayload(key, TagType.BYTE_ARRAY);
+        if (payload == -1) {
+            return NbtViews.slice(buffer, 0, 0);
+        }
+        return NbtViews.slice(buffer, payload + 4, buffer.getInt(payload));
+    }
+
+    /**
+     * Gets the compound tag with the given tag name.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return A view on the compound tag, or an empty view if not found.
+     */
+    public CompoundView getCompound(CompoundKey<CompoundTag> key) {
+        int payload = findPayload(key, TagType.COMPOUND);
+        if (payload == -1) {
+            return EMPTY;
+        }
+        return new CompoundView(buffer, payload);
+    }
+
+    /**
+     * Gets the double with the given tag name. If the given tag does not exist
+     * or is not a number, 0 is returned.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return The double, or 0 if not found.
+     */
+    public double getDouble(CompoundKey<Double> key) {
+        int offset = find(key);
+        if (offset == -1) {
+            return 0;
+        }
+        return NbtViews.readNumber(buffer, index[offset + 3], getType(offset));
+    }
+
+    /**
+     * Gets the float with the given tag name. If the given tag does not exist
+     * or is not a number, 0 is returned.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return The float, or 0 if not found.
+     */
+    public float getFloat(CompoundKey<Float> key) {
+        int offset = find(key);
+        if (offset == -1) {
+            return 0;
+        }
+        return (float) NbtViews.readNumber(buffer, index[offset + 3], getType(offset));
+    }
+
+    /**
+     * Gets the integer with the given tag name. If the given tag does not
+     * exist or is not a number, 0 is returned.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return The integer, or 0 if not found.
+     */
+    public int getInt(CompoundKey<Integer> key) {
+        return (int) getLongValue(key);
+    }
+
+    /**
+     * Gets the int array with the given tag name, as a read-only view on the
+     * buffer.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return The int array, or an empty buffer if not found.
+     */
+    public IntBuffer getIntArray(CompoundKey<int[]> key) {
+        int payload = findPayload(key, TagType.INT_ARRAY);
+        if (payload == -1) {
+            return NbtViews.slice(buffer, 0, 0).asIntBuffer();
+        }
+        return NbtViews.slice(buffer, payload + 4, buffer.getInt(payload) * 4).asIntBuffer();
+    }
+
+    /**
+     * Gets the list with the given tag name.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return A view on the list, or an empty view if not found.
+     */
+    public ListView getList(CompoundKey<? extends ListTag<?>> key) {
+        int payload = findPayload(key, TagType.LIST);
+        if (payload == -1) {
+            return ListView.empty();
+        }
+        return new ListView(buffer, payload);
+    }
+
+    /**
+     * Gets the long with the given tag name. If the given tag does not exist
+     * or is not a number, 0 is returned.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return The long, or 0 if not found.
+     */
+    public long getLong(CompoundKey<Long> key) {
+        return getLongValue(key);
+    }
+
+    /**
+     * Gets the long array with the given tag name, as a read-only view on the
+     * buffer.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return The long array, or an empty buffer if not found.
+     */
+    public LongBuffer getLongArray(CompoundKey<long[]> key) {
+        int payload = findPayload(key, TagType.LONG_ARRAY);
+        if (payload == -1) {
+            return NbtViews.slice(buffer, 0, 0).asLongBuffer();
+        }
+        return NbtViews.slice(buffer, payload + 4, buffer.getInt(payload) * 8).asLongBuffer();
+    }
+
+    private long getLongValue(CompoundKey<?> key) {
+        int offset = find(key);
+        if (offset == -1) {
+            return 0;
+        }
+        return NbtViews.readLong(buffer, index[offset + 3], getType(offset));
+    }
+
+    /**
+     * Gets the short with the given tag name. If the given tag does not exist
+     * or is not a number, 0 is returned.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return The short, or 0 if not found.
+     */
+    public short getShort(CompoundKey<Short> key) {
+        return (short) getLongValue(key);
+    }
+
+    /**
+     * Gets the string with the given tag name. The string is decoded every
+     * time this method is called.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return The string, or an empty string if not found.
+     */
+    public String getString(CompoundKey<String> key) {
+        int payload = findPayload(key, TagType.STRING);
+        if (payload == -1) {
+            return "";
+        }
+        return NbtViews.readString(buffer, payload + 2, buffer.getShort(payload) & 0xffff);
+    }
+
+    private TagType<?> getType(int offset) {
+        return NbtViews.typeOf((byte) index[offset + 2]);
+    }
+
+    /**
+     * Gets the type of the value with the given key.
+     *
+     * @param key
+     *            Name of the tag, case insensitive.
+     * @return The type, or null if there is no such tag.
+     */
+    public TagType<?> getType(CompoundKey<?> key) {
+        int offset = find(key);
+        if (offset == -1) {
+            return null;
+        }
+        return getType(offset);
+    }
+
+    /**
+     * Gets whether this tag is empty.
+     *
+     * @return True if this tag is empty, false otherwise.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Gets the amount of entries in this tag.
+     *
+     * @return The amount of entries.
+     */
+    public int size() {
+        if (index == null) {
+            buildIndex();
+        }
+        return size;
+    }
+
+    /**
+     * Decodes this view into a normal compound tag, which can be modified.
+     *
+     * @return The compound tag.
+     */
+    public CompoundTag toCompoundTag() {
+        ByteBuffer data = buffer.duplicate();
+        data.position(position);
+        InputStream stream = new InputStream() {
+            @Override
+            public int read() {
+                return data.hasRemaining() ? data.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                Objects.requireNonNull(bytes, "bytes");
+                if (length == 0) {
+                    return 0;
+                }
+                if (!data.hasRemaining()) {
+                    return -1;
+                }
+                length = Math.min(length, data.remaining());
+                data.get(bytes, offset, length);
+                return length;
+            }
+        };
+        try {
+            return AnvilNbtReader.readCompoundPayload(stream, Collections.emptySet());
+        } catch (IOException e) {
+            throw new AssertionError("Data was validated before", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toCompoundTag().toDebugString();
+    }
+}
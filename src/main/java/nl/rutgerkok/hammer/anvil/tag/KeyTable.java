@@ -0,0 +1,201 @@
+package nl.rutgerkok.hammer.anvil.tag;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import nl.rutgerkok.hammer.tag.CompoundKey;
+import nl.rutgerkok.hammer.tag.TagType;
+
+/**
+ * Reads the names in compound tags as {@link CompoundKey}s, reusing the same
+ * key every time the same name is read. Chunks repeat the same few hundred
+ * names over and over again, so this saves a string, a key and a hash code
+ * calculation for nearly every name.
+ *
+ * <p>
+ * Names are looked up by their bytes as stored in the NBT data, so
+ * nothing is decoded for known names. The table starts with all keys in
+ * {@link AnvilFormat}, so those names result in the same key instances as
+ * the ones in that class. Other names are added as they are read, until the
+ * table is half full. The table is shared by all threads and never locks.
+ *
+ */
+final class KeyTable {
+
+    private static final class Entry {
+        private final byte[] bytes;
+        private final int hash;
+        private final CompoundKey<?> key;
+
+        Entry(byte[] bytes, int hash, CompoundKey<?> key) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.key = key;
+        }
+
+        boolean matches(byte[] bytes, int offset, int length, int hash) {
+            if (this.hash != hash || this.bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (this.bytes[i] != bytes[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Amount of slots in the table, must be a power of two.
+     */
+    private static final int CAPACITY = 8192;
+
+    /**
+     * Names longer than this are not looked up in the table.
+     */
+    private static final int MAX_NAME_BYTES = 64;
+
+    private static final AtomicReferenceArray<Entry> TABLE = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicInteger SIZE = new AtomicInteger();
+
+    /**
+     * Buffer for reading names. Starts with two bytes for the length of the
+     * name, so that the name can be validated as a string tag.
+     */
+    private static final ThreadLocal<byte[]> NAME_BUFFER = ThreadLocal
+            .withInitial(() -> new byte[2 + MAX_NAME_BYTES]);
+
+    static {
+        for (Class<?> formatClass : AnvilFormat.class.getDeclaredClasses()) {
+            for (Field field : formatClass.getDeclaredFields()) {
+                if (field.getType() == CompoundKey.class && Modifier.isStatic(field.getModifiers())
+                        && Modifier.isPublic(field.getModifiers())) {
+                    try {
+                        CompoundKey<?> key = (CompoundKey<?>) field.get(null);
+                        byte[] bytes = toModifiedUtf8(key.getKeyName());
+                        add(bytes, hash(bytes, 0, bytes.length), key);
+                    } catch (IllegalAccessException e) {
+                        throw new AssertionError("Field is public", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static CompoundKey<?> add(byte[] bytes, int hash, CompoundKey<?> key) {
+        if (SIZE.get() >= CAPACITY / 2) {
+            return key; // Table is full enough
+        }
+        Entry entry = new Entry(bytes, hash, key);
+        for (int slot = hash & (CAPACITY - 1);; slot = (slot + 1) & (CAPACITY - 1)) {
+            Entry existing = TABLE.get(slot);
+            if (existing == null) {
+                if (TABLE.compareAndSet(slot, null, entry)) {
+                    SIZE.incrementAndGet();
+                    return key;
+                }
+                existing = TABLE.get(slot);
+            }
+            if (existing.matches(bytes, 0, bytes.length, hash)) {
+                // Added by another thread in the meantime, or by another
+                // AnvilFormat constant with the same name
+                return existing.key;
+            }
+        }
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        // Spread the bits, as the table uses the lowest bits
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Reads a name in a compound tag.
+     *
+     * @param input
+     *            The input, positioned at the length of the name.
+     * @param <T>
+     *            Type of the value of the key; unchecked.
+     * @return The key.
+     * @throws IOException
+     *             If an IO error occurs, or if the name is not valid modified
+     *             UTF-8.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> CompoundKey<T> readKey(DataInput input) throws IOException {
+        int length = input.readUnsignedShort();
+        if (length > MAX_NAME_BYTES) {
+            // Read as usual; can't use readUTF as we already read the length
+            byte[] bytes = new byte[2 + length];
+            bytes[0] = (byte) (length >>> 8);
+            bytes[1] = (byte) length;
+            input.readFully(bytes, 2, length);
+            return CompoundKey.of(decode(bytes, length));
+        }
+
+        byte[] buffer = NAME_BUFFER.get();
+        buffer[0] = (byte) (length >>> 8);
+        buffer[1] = (byte) length;
+        input.readFully(buffer, 2, length);
+
+        // Look up without allocating anything
+        int hash = hash(buffer, 2, length);
+        for (int slot = hash & (CAPACITY - 1);; slot = (slot + 1) & (CAPACITY - 1)) {
+            Entry entry = TABLE.get(slot);
+            if (entry == null) {
+                break;
+            }
+            if (entry.matches(buffer, 2, length, hash)) {
+                return (CompoundKey<T>) entry.key;
+            }
+        }
+
+        // New name
+        CompoundKey<T> key = CompoundKey.of(decode(buffer, length));
+        return (CompoundKey<T>) add(Arrays.copyOfRange(buffer, 2, 2 + length), hash, key);
+    }
+
+    private static byte[] toModifiedUtf8(String string) {
+        // The AnvilFormat names are all ASCII, for which modified UTF-8 is the
+        // same as standard UTF-8
+        for (int i = 0; i < string.length(); i++) {
+            if (string.charAt(i) >= 0x80 || string.charAt(i) == 0) {
+                throw new AssertionError("Non-ASCII key name: " + string);
+            }
+        }
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a name.
+     *
+     * @param bytes
+     *            Length of the name as two bytes, followed by the name.
+     * @param length
+     *            Length of the name.
+     * @return The name.
+     * @throws IOException
+     *             If the name is not valid modified UTF-8.
+     */
+    private static String decode(byte[] bytes, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, 2 + length);
+        NbtViews.skip(buffer, 0, TagType.STRING); // Validates the name
+        return NbtViews.readString(buffer, 2, length);
+    }
+
+    private KeyTable() {
+        // No instances
+    }
+}
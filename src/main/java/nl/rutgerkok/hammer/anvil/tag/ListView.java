@@ -0,0 +1,199 @@
+package nl.rutgerkok.hammer.anvil.tag;
+
+import java.nio.ByteBuffer;
+
+import nl.rutgerkok.hammer.tag.TagType;
+
+/**
+ * A read-only view of a list tag, directly on top of the NBT data in a buffer.
+ * See {@link CompoundView} for how views work.
+ *
+ * <p>
+ * Like {@link CompoundView}, the getters never fail because of the type of
+ * the list: requesting a number from a list of strings returns zero,
+ * requesting a compound tag from a list of numbers returns an empty view, etc.
+ * An index outside the list does result in an exception.
+ */
+public final class ListView {
+
+    private static final ListView EMPTY = new ListView(ByteBuffer.wrap(new byte[] { 0, 0, 0, 0, 0 }), 0);
+
+    /**
+     * Gets a view on a list that contains nothing.
+     *
+     * @return The view.
+     */
+    static ListView empty() {
+        return EMPTY;
+    }
+
+    private final ByteBuffer buffer;
+    private final TagType<?> elementType;
+    private final int size;
+    private final int firstElement;
+    private final int elementSize;
+
+    /**
+     * Positions of all elements, for lists of which the elements don't have a
+     * fixed size. Null until it is first needed.
+     */
+    private int[] positions;
+
+    /**
+     * Creates a new view. The data must already be validated.
+     *
+     * @param buffer
+     *            The buffer, in big-endian order.
+     * @param position
+     *            Position of the payload of the list tag.
+     */
+    ListView(ByteBuffer buffer, int position) {
+        this.buffer = buffer;
+        byte typeByte = buffer.get(position);
+        // Lists of type 0 are always empty, use the same type as
+        // AnvilNbtReader
+        this.elementType = typeByte == 0 ? TagType.BYTE : NbtViews.typeOf(typeByte);
+        this.size = buffer.getInt(position + 1);
+        this.firstElement = position + 5;
+        this.elementSize = NbtViews.getFixedSize(elementType);
+    }
+
+    /**
+     * Gets the compound tag at the given index.
+     *
+     * @param index
+     *            The index.
+     * @return A view on the compound tag, or an empty view if this is not a
+     *         list of compound tags.
+     * @throws IndexOutOfBoundsException
+     *             If the index is outside the list.
+     */
+    public CompoundView getCompound(int index) {
+        int position = getPosition(index);
+        if (elementType != TagType.COMPOUND) {
+            return CompoundView.empty();
+        }
+        return new CompoundView(buffer, position);
+    }
+
+    /**
+     * Gets the double at the given index.
+     *
+     * @param index
+     *            The index.
+     * @return The double, or 0 if this is not a list of numbers.
+     * @throws IndexOutOfBoundsException
+     *             If the index is outside the list.
+     */
+    public double getDouble(int index) {
+        return NbtViews.readNumber(buffer, getPosition(index), elementType);
+    }
+
+    /**
+     * Gets the type of the elements in this list.
+     *
+     * @return The type.
+     */
+    public TagType<?> getElementType() {
+        return elementType;
+    }
+
+    /**
+     * Gets the int at the given index.
+     *
+     * @param index
+     *            The index.
+     * @return The int, or 0 if this is not a list of numbers.
+     * @throws IndexOutOfBoundsException
+     *             If the index is outside the list.
+     */
+    public int getInt(int index) {
+        return (int) getLong(index);
+    }
+
+    /**
+     * Gets the list at the given index.
+     *
+     * @param index
+     *            The index.
+     * @return A view on the list, or an empty view if this is not a list of
+     *         lists.
+     * @throws IndexOutOfBoundsException
+     *             If the index is outside the list.
+     */
+    public ListView getList(int index) {
+        int position = getPosition(index);
+        if (elementType != TagType.LIST) {
+            return EMPTY;
+        }
+        return new ListView(buffer, position);
+    }
+
+    /**
+     * Gets the long at the given index.
+     *
+     * @param index
+     *            The index.
+     * @return The long, or 0 if this is not a list of numbers.
+     * @throws IndexOutOfBoundsException
+     *             If the index is outside the list.
+     */
+    public long getLong(int index) {
+        return NbtViews.readLong(buffer, getPosition(index), elementType);
+    }
+
+    private int getPosition(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        if (elementSize != -1) {
+            return firstElement + index * elementSize;
+        }
+        if (positions == null) {
+            int[] positions = new int[size];
+            int position = firstElement;
+            for (int i = 0; i < size; i++) {
+                positions[i] = position;
+                position = NbtViews.skipUnchecked(buffer, position, elementType);
+            }
+            this.positions = positions;
+        }
+        return positions[index];
+    }
+
+    /**
+     * Gets the string at the given index. The string is decoded every time
+     * this method is called.
+     *
+     * @param index
+     *            The index.
+     * @return The string, or an empty string if this is not a list of strings.
+     * @throws IndexOutOfBoundsException
+     *             If the index is outside the list.
+     */
+    public String getString(int index) {
+        int position = getPosition(index);
+        if (elementType != TagType.STRING) {
+            return "";
+        }
+        return NbtViews.readString(buffer, position + 2, buffer.getShort(position) & 0xffff);
+    }
+
+    /**
+     * Gets whether this list is empty.
+     *
+     * @return True if this list is empty, false otherwise.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets the amount of elements in this list.
+     *
+     * @return The amount of elements.
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,118 @@
+package nl.rutgerkok.hammer.anvil.tag;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes int and long arrays in bulk. {@link DataInput#readLong()}
+ * reads eight single bytes and combines them; these methods instead read
+ * blocks of bytes at once and convert them using a big-endian
+ * {@link ByteBuffer}, which is a lot faster for the large arrays in chunks,
+ * like the block states and the height maps.
+ *
+ */
+final class NbtArrays {
+
+    /**
+     * Size of the blocks that are read or written at once.
+     */
+    private static final int BLOCK_BYTES = 8192;
+
+    private static ByteBuffer newBlock(int totalBytes) {
+        return ByteBuffer.allocate(Math.min(totalBytes, BLOCK_BYTES));
+    }
+
+    /**
+     * Reads ints from the input.
+     *
+     * @param input
+     *            The input.
+     * @param array
+     *            The array to read into.
+     * @param length
+     *            The amount of ints to read, starting at index 0.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    static void readInts(DataInput input, int[] array, int length) throws IOException {
+        ByteBuffer block = newBlock(length * 4);
+        int blockInts = block.capacity() / 4;
+        for (int i = 0; i < length; i += blockInts) {
+            int count = Math.min(blockInts, length - i);
+            input.readFully(block.array(), 0, count * 4);
+            block.clear();
+            block.asIntBuffer().get(array, i, count);
+        }
+    }
+
+    /**
+     * Reads longs from the input.
+     *
+     * @param input
+     *            The input.
+     * @param array
+     *            The array to read into.
+     * @param length
+     *            The amount of longs to read, starting at index 0.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    static void readLongs(DataInput input, long[] array, int length) throws IOException {
+        ByteBuffer block = newBlock(length * 8);
+        int blockLongs = block.capacity() / 8;
+        for (int i = 0; i < length; i += blockLongs) {
+            int count = Math.min(blockLongs, length - i);
+            input.readFully(block.array(), 0, count * 8);
+            block.clear();
+            block.asLongBuffer().get(array, i, count);
+        }
+    }
+
+    /**
+     * Writes all ints in the array, without a length prefix.
+     *
+     * @param output
+     *            The output.
+     * @param array
+     *            The ints.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    static void writeInts(DataOutput output, int[] array) throws IOException {
+        ByteBuffer block = newBlock(array.length * 4);
+        int blockInts = block.capacity() / 4;
+        for (int i = 0; i < array.length; i += blockInts) {
+            int count = Math.min(blockInts, array.length - i);
+            block.clear();
+            block.asIntBuffer().put(array, i, count);
+            output.write(block.array(), 0, count * 4);
+        }
+    }
+
+    /**
+     * Writes all longs in the array, without a length prefix.
+     *
+     * @param output
+     *            The output.
+     * @param array
+     *            The longs.
+     * @throws IOException
+     *             If an IO error occurs.
+     */
+    static void writeLongs(DataOutput output, long[] array) throws IOException {
+        ByteBuffer block = newBlock(array.length * 8);
+        int blockLongs = block.capacity() / 8;
+        for (int i = 0; i < array.length; i += blockLongs) {
+            int count = Math.min(blockLongs, array.length - i);
+            block.clear();
+            block.asLongBuffer().put(array, i, count);
+            output.write(block.array(), 0, count * 8);
+        }
+    }
+
+    private NbtArrays() {
+        // No instances
+    }
+}
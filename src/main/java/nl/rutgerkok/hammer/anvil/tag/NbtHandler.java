@@ -0,0 +1,175 @@
+package nl.rutgerkok.hammer.anvil.tag;
+
+import nl.rutgerkok.hammer.tag.TagType;
+
+/**
+ * Receives the contents of an NBT stream as a series of events, without any
+ * {@link nl.rutgerkok.hammer.tag.CompoundTag} being created. All methods do
+ * nothing by default, so only the needed methods have to be implemented.
+ *
+ * <p>
+ * Every value inside a compound tag is preceded by a call to
+ * {@link #key(String, TagType)}, which can skip the value. Values inside a
+ * list are not preceded by a key. For example, the tag
+ * <code>{a: 1, b: [{c: "x"}]}</code> results in:
+ *
+ * <pre>
+ * startCompound()
+ * key("a", INT) intValue(1)
+ * key("b", LIST) startList(COMPOUND, 1)
+ *   startCompound() key("c", STRING) stringValue("x") endCompound()
+ * endList()
+ * endCompound()
+ * </pre>
+ *
+ * @see NbtStreamReader
+ */
+public interface NbtHandler {
+
+    /**
+     * Called for a byte array.
+     *
+     * @param array
+     *            Holds the bytes. This array is reused for the next array,
+     *            so it must not be kept.
+     * @param length
+     *            The amount of bytes, which can be less than the length of
+     *            the array.
+     */
+    default void byteArray(byte[] array, int length) {
+    }
+
+    /**
+     * Called for a byte.
+     *
+     * @param value
+     *            The value.
+     */
+    default void byteValue(byte value) {
+    }
+
+    /**
+     * Called for a double.
+     *
+     * @param value
+     *            The value.
+     */
+    default void doubleValue(double value) {
+    }
+
+    /**
+     * Called at the end of a compound tag.
+     */
+    default void endCompound() {
+    }
+
+    /**
+     * Called at the end of a list.
+     */
+    default void endList() {
+    }
+
+    /**
+     * Called for a float.
+     *
+     * @param value
+     *            The value.
+     */
+    default void floatValue(float value) {
+    }
+
+    /**
+     * Called for an int array.
+     *
+     * @param array
+     *            Holds the ints. This array is reused for the next array, so
+     *            it must not be kept.
+     * @param length
+     *            The amount of ints, which can be less than the length of the
+     *            array.
+     */
+    default void intArray(int[] array, int length) {
+    }
+
+    /**
+     * Called for an int.
+     *
+     * @param value
+     *            The value.
+     */
+    default void intValue(int value) {
+    }
+
+    /**
+     * Called before every value inside a compound tag.
+     *
+     * @param name
+     *            Name of the value.
+     * @param type
+     *            Type of the value.
+     * @return True to receive the events of the value, false to skip the
+     *         value. Skipped values are not decoded at all.
+     */
+    default boolean key(String name, TagType<?> type) {
+        return true;
+    }
+
+    /**
+     * Called for a long array.
+     *
+     * @param array
+     *            Holds the longs. This array is reused for the next array, so
+     *            it must not be kept.
+     * @param length
+     *            The amount of longs, which can be less than the length of
+     *            the array.
+     */
+    default void longArray(long[] array, int length) {
+    }
+
+    /**
+     * Called for a long.
+     *
+     * @param value
+     *            The value.
+     */
+    default void longValue(long value) {
+    }
+
+    /**
+     * Called for a short.
+     *
+     * @param value
+     *            The value.
+     */
+    default void shortValue(short value) {
+    }
+
+    /**
+     * Called at the start of a compound tag. Followed by the values of the
+     * tag, and then by {@link #endCompound()}.
+     */
+    default void startCompound() {
+    }
+
+    /**
+     * Called at the start of a list. Followed by the values in the list, and
+     * then by {@link #endList()}.
+     *
+     * @param elementType
+     *            Type of the values in the list.
+     * @param size
+     *            Amount of values in the list.
+     */
+    default void startList(TagType<?> elementType, int size) {
+    }
+
+    /**
+     * Called for a string.
+     *
+     * @param value
+     *            The value.
+     */
+    default void stringValue(String value) {
+    }
+}
@@ -0,0 +1,144 @@
+package nl.rutgerkok.hammer.anvil.tag;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+import nl.rutgerkok.hammer.tag.TagType;
+
+/**
+ * Reads NBT streams in the PC level format, passing the contents to a
+ * {@link NbtHandler} instead of building a tag. Apart from strings, nothing is
+ * allocated for every value: arrays are read into buffers that are reused.
+ *
+ * <p>
+ * Instances hold these buffers, so they should be reused for multiple
+ * streams. Instances are not thread safe.
+ */
+public final class NbtStreamReader {
+
+    private static final int MAX_ARRAY_SIZE = 100000;
+
+    private byte[] byteBuffer = new byte[0];
+    private int[] intBuffer = new int[0];
+    private long[] longBuffer = new long[0];
+
+    private void read(DataInput input, TagType<?> type, NbtHandler handler) throws IOException {
+        if (type == TagType.BYTE) {
+            handler.byteValue(input.readByte());
+        } else if (type == TagType.SHORT) {
+            handler.shortValue(input.readShort());
+        } else if (type == TagType.INT) {
+            handler.intValue(input.readInt());
+        } else if (type == TagType.LONG) {
+            handler.longValue(input.readLong());
+        } else if (type == TagType.FLOAT) {
+            handler.floatValue(input.readFloat());
+        } else if (type == TagType.DOUBLE) {
+            handler.doubleValue(input.readDouble());
+        } else if (type == TagType.STRING) {
+            handler.stringValue(input.readUTF());
+        } else if (type == TagType.BYTE_ARRAY) {
+            int size = readArraySize(input, Integer.MAX_VALUE);
+            if (byteBuffer.length < size) {
+                byteBuffer = new byte[size];
+            }
+            input.readFully(byteBuffer, 0, size);
+            handler.byteArray(byteBuffer, size);
+        } else if (type == TagType.INT_ARRAY) {
+            int size = readArraySize(input, MAX_ARRAY_SIZE);
+            if (intBuffer.length < size) {
+                intBuffer = new int[size];
+            }
+            NbtArrays.readInts(input, intBuffer, size);
+            handler.intArray(intBuffer, size);
+        } else if (type == TagType.LONG_ARRAY) {
+            int size = readArraySize(input, MAX_ARRAY_SIZE);
+            if (longBuffer.length < size) {
+                longBuffer = new long[size];
+            }
+            NbtArrays.readLongs(input, longBuffer, size);
+            handler.longArray(longBuffer, size);
+        } else if (type == TagType.LIST) {
+            readList(input, handler);
+        } else if (type == TagType.COMPOUND) {
+            readCompound(input, handler);
+        } else {
+            throw new IOException("Unknown type: " + type);
+        }
+    }
+
+    /**
+     * Reads the given stream, passing its contents to the handler. The root
+     * tag must be a compound tag; its name is not passed to the handler.
+     *
+     * @param stream
+     *            The uncompressed stream.
+     * @param handler
+     *            The handler.
+     * @throws IOException
+     *             If an IO error occurs, or if the stream is not valid NBT.
+     */
+    public void read(InputStream stream, NbtHandler handler) throws IOException {
+        Objects.requireNonNull(handler, "handler");
+        DataInputStream dataInput = new DataInputStream(stream);
+
+        // Verify that we have a compound tag
+        byte tagMarker = dataInput.readByte();
+        if (TagType.fromByte(tagMarker) != TagType.COMPOUND) {
+            throw new IOException("Root tag must be a compound tag, found byte " + (tagMarker & 0xff) + " instead");
+        }
+        // Skip name
+        dataInput.readUTF();
+        // Read the rest
+        readCompound(dataInput, handler);
+    }
+
+    private int readArraySize(DataInput input, int maxSize) throws IOException {
+        int size = input.readInt();
+        if (size < 0 || size > maxSize) {
+            throw new IOException("Invalid array size: " + size);
+        }
+        return size;
+    }
+
+    private void readCompound(DataInput input, NbtHandler handler) throws IOException {
+        handler.startCompound();
+        while (true) {
+            byte marker = input.readByte();
+            if (marker == 0) {
+                // End of tag
+                handler.endCompound();
+                return;
+            }
+            TagType<?> type = TagType.fromByte(marker);
+            if (handler.key(KeyTable.readKey(input).getKeyName(), type)) {
+                read(input, type, handler);
+            } else {
+                AnvilNbtReader.skipPayload(input, type);
+            }
+        }
+    }
+
+    private void readList(DataInput input, NbtHandler handler) throws IOException {
+        byte typeByte = input.readByte();
+        int size = input.readInt();
+        TagType<?> type;
+        if (typeByte == 0) {
+            if (size != 0) {
+                throw new IOException("List of type 0, but size was " + size);
+            }
+            // Same as AnvilNbtReader, which uses this type for empty lists
+            type = TagType.BYTE;
+        } else {
+            type = TagType.fromByte(typeByte);
+        }
+        handler.startList(type, size);
+        for (int i = 0; i < size; i++) {
+            read(input, type, handler);
+        }
+        handler.endList();
+    }
+}
@@ -0,0 +1,376 @@
+package nl.rutgerkok.hammer.anvil.tag;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+import nl.rutgerkok.hammer.tag.TagType;
+
+/**
+ * Methods shared by {@link CompoundView} and {@link ListView}. All positions
+ * are absolute positions in the buffer.
+ *
+ */
+final class NbtViews {
+
+    /**
+     * Checks whether the modified UTF-8 string at the given position equals
+     * the given string, ignoring case like
+     * {@link nl.rutgerkok.hammer.tag.CompoundKey} does. Doesn't allocate
+     * anything for ASCII strings.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param position
+     *            Position of the first byte of the string, after its length.
+     * @param length
+     *            Length of the string in bytes.
+     * @param string
+     *            The string to compare with.
+     * @return True if the strings are equal, ignoring case.
+     */
+    static boolean equalsIgnoreCase(ByteBuffer buffer, int position, int length, String string) {
+        if (length != string.length()) {
+            // Only ASCII strings can still be equal
+            return !isAscii(buffer, position, length) && readString(buffer, position, length).equalsIgnoreCase(string);
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(position + i);
+            if (b < 0) {
+                // Not ASCII
+                return readString(buffer, position, length).equalsIgnoreCase(string);
+            }
+            char c = string.charAt(i);
+            if (b != c && Character.toLowerCase((char) b) != Character.toLowerCase(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the size of the payload of the given type, if all payloads of that
+     * type have the same size.
+     *
+     * @param type
+     *            The type.
+     * @return The size in bytes, or -1 if the size differs per payload.
+     */
+    static int getFixedSize(TagType<?> type) {
+        if (type == TagType.BYTE) {
+            return 1;
+        }
+        if (type == TagType.SHORT) {
+            return 2;
+        }
+        if (type == TagType.INT || type == TagType.FLOAT) {
+            return 4;
+        }
+        if (type == TagType.LONG || type == TagType.DOUBLE) {
+            return 8;
+        }
+        return -1;
+    }
+
+    private static boolean isAscii(ByteBuffer buffer, int position, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(position + i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a number of any numeric type.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param position
+     *            Position of the payload.
+     * @param type
+     *            Type of the payload.
+     * @return The number, or 0 if the type is not numeric.
+     */
+    static double readNumber(ByteBuffer buffer, int position, TagType<?> type) {
+        if (type == TagType.BYTE) {
+            return buffer.get(position);
+        }
+        if (type == TagType.SHORT) {
+            return buffer.getShort(position);
+        }
+        if (type == TagType.INT) {
+            return buffer.getInt(position);
+        }
+        if (type == TagType.LONG) {
+            return buffer.getLong(position);
+        }
+        if (type == TagType.FLOAT) {
+            return buffer.getFloat(position);
+        }
+        if (type == TagType.DOUBLE) {
+            return buffer.getDouble(position);
+        }
+        return 0;
+    }
+
+    /**
+     * Reads a number of any numeric type as a long, without losing precision
+     * for large longs.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param position
+     *            Position of the payload.
+     * @param type
+     *            Type of the payload.
+     * @return The number, or 0 if the type is not numeric.
+     */
+    static long readLong(ByteBuffer buffer, int position, TagType<?> type) {
+        if (type == TagType.LONG) {
+            return buffer.getLong(position);
+        }
+        return (long) readNumber(buffer, position, type);
+    }
+
+    /**
+     * Decodes a modified UTF-8 string, as written by
+     * {@link java.io.DataOutput#writeUTF(String)}. The data must have been
+     * {@link #skip(ByteBuffer, int, TagType) validated} before.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param position
+     *            Position of the first byte of the string, after its length.
+     * @param length
+     *            Length of the string in bytes.
+     * @return The string.
+     */
+    static String readString(ByteBuffer buffer, int position, int length) {
+        char[] chars = new char[length];
+        int charCount = 0;
+        int end = position + length;
+        int i = position;
+        while (i < end) {
+            int b = buffer.get(i) & 0xff;
+            if (b < 0x80) {
+                chars[charCount++] = (char) b;
+                i++;
+            } else if ((b & 0xe0) == 0xc0) {
+                chars[charCount++] = (char) (((b & 0x1f) << 6) | (buffer.get(i + 1) & 0x3f));
+                i += 2;
+            } else {
+                chars[charCount++] = (char) (((b & 0x0f) << 12) | ((buffer.get(i + 1) & 0x3f) << 6)
+                        | (buffer.get(i + 2) & 0x3f));
+                i += 3;
+            }
+        }
+        return new String(chars, 0, charCount);
+    }
+
+    /**
+     * Skips over a payload, validating its structure.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param position
+     *            Position of the payload.
+     * @param type
+     *            Type of the payload.
+     * @return Position directly after the payload.
+     * @throws IOException
+     *             If the payload is invalid.
+     */
+    static int skip(ByteBuffer buffer, int position, TagType<?> type) throws IOException {
+        try {
+            return validate(buffer, position, type);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Unexpected end of NBT data", e);
+        }
+    }
+
+    private static int skipArray(ByteBuffer buffer, int position, int elementBytes) throws IOException {
+        int size = buffer.getInt(position);
+        if (size < 0) {
+            throw new IOException("Invalid array size: " + size);
+        }
+        return checkEnd(buffer, position + 4 + (long) size * elementBytes);
+    }
+
+    private static int checkEnd(ByteBuffer buffer, long end) {
+        if (end > buffer.limit()) {
+            throw new IndexOutOfBoundsException("end " + end + " is past the limit " + buffer.limit());
+        }
+        return (int) end;
+    }
+
+    private static int skipString(ByteBuffer buffer, int position) throws IOException {
+        int length = buffer.getShort(position) & 0xffff;
+        int end = checkEnd(buffer, position + 2L + length);
+        // Validate the encoding, so that decoding never fails later on
+        int i = position + 2;
+        while (i < end) {
+            int b = buffer.get(i) & 0xff;
+            int bytes = b < 0x80 ? 1 : (b & 0xe0) == 0xc0 ? 2 : (b & 0xf0) == 0xe0 ? 3 : -1;
+            if (bytes == -1 || i + bytes > end) {
+                throw new UTFDataFormatException("Malformed string at position " + i);
+            }
+            for (int j = 1; j < bytes; j++) {
+                if ((buffer.get(i + j) & 0xc0) != 0x80) {
+                    throw new UTFDataFormatException("Malformed string at position " + i);
+                }
+            }
+            i += bytes;
+        }
+        return end;
+    }
+
+    private static int validate(ByteBuffer buffer, int position, TagType<?> type) throws IOException {
+        int fixedSize = getFixedSize(type);
+        if (fixedSize != -1) {
+            return checkEnd(buffer, (long) position + fixedSize);
+        }
+        if (type == TagType.STRING) {
+            return skipString(buffer, position);
+        }
+        if (type == TagType.BYTE_ARRAY) {
+            return skipArray(buffer, position, 1);
+        }
+        if (type == TagType.INT_ARRAY) {
+            return skipArray(buffer, position, 4);
+        }
+        if (type == TagType.LONG_ARRAY) {
+            return skipArray(buffer, position, 8);
+        }
+        if (type == TagType.LIST) {
+            byte typeByte = buffer.get(position);
+            int size = buffer.getInt(position + 1);
+            position += 5;
+            if (typeByte == 0) {
+                if (size != 0) {
+                    throw new IOException("List of type 0, but size was " + size);
+                }
+                return position;
+            }
+            if (size < 0) {
+                throw new IOException("Invalid list size: " + size);
+            }
+            TagType<?> listType = TagType.fromByte(typeByte);
+            int elementSize = getFixedSize(listType);
+            if (elementSize != -1) {
+                return checkEnd(buffer, position + (long) size * elementSize);
+            }
+            for (int i = 0; i < size; i++) {
+                position = validate(buffer, position, listType);
+            }
+            return position;
+        }
+        if (type == TagType.COMPOUND) {
+            while (true) {
+                byte marker = buffer.get(position++);
+                if (marker == 0) {
+                    return position;
+                }
+                TagType<?> childType = TagType.fromByte(marker);
+                position = skipString(buffer, position); // Name
+                position = validate(buffer, position, childType);
+            }
+        }
+        throw new IOException("Unknown type: " + type);
+    }
+
+    /**
+     * Skips over a payload that was already {@link #skip(ByteBuffer, int, TagType)
+     * validated}. Only the lengths and the types in the data are read, so
+     * strings are not scanned again.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param position
+     *            Position of the payload.
+     * @param type
+     *            Type of the payload.
+     * @return Position directly after the payload.
+     */
+    static int skipUnchecked(ByteBuffer buffer, int position, TagType<?> type) {
+        int fixedSize = getFixedSize(type);
+        if (fixedSize != -1) {
+            return position + fixedSize;
+        }
+        if (type == TagType.STRING) {
+            return position + 2 + (buffer.getShort(position) & 0xffff);
+        }
+        if (type == TagType.BYTE_ARRAY) {
+            return position + 4 + buffer.getInt(position);
+        }
+        if (type == TagType.INT_ARRAY) {
+            return position + 4 + buffer.getInt(position) * 4;
+        }
+        if (type == TagType.LONG_ARRAY) {
+            return position + 4 + buffer.getInt(position) * 8;
+        }
+        if (type == TagType.LIST) {
+            byte typeByte = buffer.get(position);
+            int size = buffer.getInt(position + 1);
+            position += 5;
+            if (size == 0) {
+                return position;
+            }
+            TagType<?> listType = typeOf(typeByte);
+            int elementSize = getFixedSize(listType);
+            if (elementSize != -1) {
+                return position + size * elementSize;
+            }
+            for (int i = 0; i < size; i++) {
+                position = skipUnchecked(buffer, position, listType);
+            }
+            return position;
+        }
+        // Compound tag
+        while (true) {
+            byte marker = buffer.get(position++);
+            if (marker == 0) {
+                return position;
+            }
+            position += 2 + (buffer.getShort(position) & 0xffff); // Name
+            position = skipUnchecked(buffer, position, typeOf(marker));
+        }
+    }
+
+    /**
+     * Gets the type with the given id, for data that was already validated.
+     *
+     * @param id
+     *            The id.
+     * @return The type.
+     */
+    static TagType<?> typeOf(byte id) {
+        try {
+            return TagType.fromByte(id);
+        } catch (IOException e) {
+            throw new AssertionError("Data was validated before", e);
+        }
+    }
+
+    /**
+     * Gets a read-only slice of the buffer, in big-endian byte order.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param position
+     *            Start of the slice.
+     * @param length
+     *            Length of the slice in bytes.
+     * @return The slice.
+     */
+    static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(position + length);
+        duplicate.position(position);
+        return duplicate.slice().asReadOnlyBuffer();
+    }
+
+    private NbtViews() {
+        // No instances
+    }
+}
@@ -0,0 +1,171 @@
+package nl.rutgerkok.hammer.anvil.tag;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import nl.rutgerkok.hammer.tag.TagType;
+
+/**
+ * Reads from another {@link DataInput}, and keeps a copy of every byte that
+ * is read or skipped. Skipped bytes are read too, as they need to be
+ * recorded.
+ *
+ * <p>
+ * Used together with {@link AnvilNbtReader#skipPayload(DataInput, TagType)}
+ * to obtain the raw bytes of a tag, without decoding anything but the
+ * structure of the tag.
+ */
+final class RecordingDataInput implements DataInput {
+
+    /**
+     * Maximum amount of bytes read at once by {@link #skipBytes(int)}, so that
+     * an invalid size doesn't result in a huge buffer.
+     */
+    private static final int MAX_SKIP = 8192;
+
+    private final DataInput input;
+    private byte[] bytes;
+    private int length;
+
+    /**
+     * Creates a new recording input.
+     *
+     * @param input
+     *            The input to read from.
+     * @param buffer
+     *            Buffer to record into, replaced by a larger one if needed.
+     *            The contents are overwritten.
+     */
+    RecordingDataInput(DataInput input, byte[] buffer) {
+        this.input = input;
+        this.bytes = buffer;
+    }
+
+    /**
+     * Gets the buffer the bytes were recorded into, which is either the buffer
+     * given in the constructor or a larger one. Can be used for another
+     * recording once this recording is no longer used.
+     *
+     * @return The buffer.
+     */
+    byte[] getBuffer() {
+        return bytes;
+    }
+
+    /**
+     * Reads the given amount of bytes into the recording.
+     *
+     * @param count
+     *            The amount of bytes.
+     * @return Position of the first byte in {@link #bytes}. Look up the
+     *         array after calling this method, as it may be replaced.
+     * @throws IOException
+     *             If reading fails.
+     */
+    private int record(int count) throws IOException {
+        int position = length;
+        if (bytes.length - position < count) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + count));
+        }
+        input.readFully(bytes, position, count);
+        length = position + count;
+        return position;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        int position = record(1);
+        return bytes[position];
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return (char) readUnsignedShort();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        int position = record(len);
+        System.arraycopy(bytes, position, b, off, len);
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        int position = record(4);
+        return (bytes[position] & 0xff) << 24 | (bytes[position + 1] & 0xff) << 16
+                | (bytes[position + 2] & 0xff) << 8 | (bytes[position + 3] & 0xff);
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        throw new UnsupportedOperationException("NBT data has no lines");
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        int high = readInt();
+        return (long) high << 32 | (readInt() & 0xffffffffL);
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return (short) readUnsignedShort();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        int position = record(2);
+        return (bytes[position] & 0xff) << 8 | (bytes[position + 1] & 0xff);
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        int count = Math.min(n, MAX_SKIP);
+        record(count);
+        return count;
+    }
+
+    /**
+     * Gets a copy of all bytes that were read so far.
+     *
+     * @return The bytes.
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+}
@@ -1,10 +1,15 @@
 package nl.rutgerkok.hammer.tag;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.AbstractSet;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.OptionalInt;
 import java.util.Set;
@@ -28,8 +33,12 @@ import org.json.simple.JSONObject;
  * <p> Mutable objects returned by a compound tag (subtags, lists, arrays) will
  * have their changes written through to this tag.
  *
+ * <p> Values can be {@link #setLazy(CompoundKey, LazyTag) lazy}, in which case
+ * they are decoded the first time they are accessed.
+ *
  * <p> Tags are not thread safe, and must only be read/modified by one thread at
- * the same time.
+ * the same time. This includes reading only, as reading a lazy value changes
+ * the tag.
  */
 public final class CompoundTag implements JSONAware {
 
@@ -60,16 +69,59 @@ public final class CompoundTag implements JSONAware {
         return value;
     }
 
-    private Map<CompoundKey<?>, Object> map = new HashMap<>();
+    /**
+     * Live view of the entries, boxing the numbers.
+     */
+    private final class EntrySet extends AbstractSet<Entry<CompoundKey<?>, Object>> {
 
-    public CompoundTag() {
+        @Override
+        public Iterator<Entry<CompoundKey<?>, Object>> iterator() {
+            return new Iterator<Entry<CompoundKey<?>, Object>>() {
+                private int slot = storage.nextSlot(0);
 
+                @Override
+                public boolean hasNext() {
+                    return slot != -1;
+                }
+
+                @Override
+                public Entry<CompoundKey<?>, Object> next() {
+                    if (slot == -1) {
+                        throw new NoSuchElementException();
+                    }
+                    Entry<CompoundKey<?>, Object> entry = new SimpleImmutableEntry<>(storage.getKey(slot),
+                            storage.getBoxed(slot));
+                    slot = storage.nextSlot(slot + 1);
+                    return entry;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return storage.size();
+        }
+    }
+
+    /**
+     * Holds the values. Numbers are stored without boxing them, as chunks
+     * contain lots of them.
+     */
+    private final TagStorage storage;
+
+    public CompoundTag() {
+        this.storage = new TagStorage();
     }
 
     public CompoundTag(CompoundTag copy) {
-        for (Entry<CompoundKey<?>, Object> entry : copy.entrySet()) {
-            Object value = deepCopy(entry.getValue());
-            map.put(entry.getKey(), value);
+        this.storage = new TagStorage(copy.storage);
+        for (int slot = storage.nextSlot(0); slot != -1; slot = storage.nextSlot(slot + 1)) {
+            // Lazy values decode to a new value every time, so they can be
+            // shared without decoding them
+            Object value = storage.getObject(slot);
+            if (value != null && !(value instanceof LazyTag)) {
+                storage.set(slot, deepCopy(value));
+            }
         }
     }
 
@@ -81,14 +133,15 @@ public final class CompoundTag implements JSONAware {
      *            The other tag.
      */
     public void addAll(CompoundTag otherTag) {
-        this.map.putAll(otherTag.map);
+        otherTag.decodeAll();
+        this.storage.putAll(otherTag.storage);
     }
 
     /**
      * Clears this tag, removing all keys and values.
      */
     public void clear() {
-        map.clear();
+        storage.clear();
     }
 
     /**
@@ -99,7 +152,24 @@ public final class CompoundTag implements JSONAware {
      * @return True if such a tag exists, false otherwise.
      */
     public boolean containsKey(CompoundKey<?> key) {
-        return map.containsKey(key);
+        return storage.find(key) != -1;
+    }
+
+    private static Object decode(CompoundKey<?> key, LazyTag<?> lazyTag) {
+        try {
+            return Objects.requireNonNull(lazyTag.decode(), "decoded value");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to decode tag " + key, e);
+        }
+    }
+
+    private void decodeAll() {
+        for (int slot = storage.nextSlot(0); slot != -1; slot = storage.nextSlot(slot + 1)) {
+            Object value = storage.getObject(slot);
+            if (value instanceof LazyTag) {
+                storage.set(slot, decode(storage.getKey(slot), (LazyTag<?>) value));
+            }
+        }
     }
 
     /**
@@ -119,7 +189,8 @@ public final class CompoundTag implements JSONAware {
      * @return All entries.
      */
     public Set<Entry<CompoundKey<?>, Object>> entrySet() {
-        return Collections.unmodifiableSet(map.entrySet());
+        decodeAll();
+        return new EntrySet();
     }
 
     @Override
@@ -134,17 +205,61 @@ public final class CompoundTag implements JSONAware {
             return false;
         }
         CompoundTag tag = (CompoundTag) other;
-        if (tag.size() != map.size()) {
+        if (tag.size() != size()) {
             return false;
         }
         for (Entry<CompoundKey<?>, Object> entry : tag.entrySet()) {
-            if (!valueEquals(entry.getValue(), map.get(entry.getKey()))) {
+            if (!valueEquals(entry.getValue(), get(entry.getKey()))) {
                 return false;
             }
         }
         return true;
     }
 
+    /**
+     * Gets the value with the given key, decoding it if it is lazy.
+     *
+     * @param key
+     *            The key.
+     * @return The value, or null if not found.
+     */
+    private Object get(CompoundKey<?> key) {
+        int slot = storage.find(key);
+        if (slot == -1) {
+            return null;
+        }
+        if (storage.isNumber(slot)) {
+            return storage.getBoxed(slot);
+        }
+        Object value = storage.getObject(slot);
+        if (value instanceof LazyTag) {
+            value = decode(key, (LazyTag<?>) value);
+            storage.set(slot, value);
+        }
+        return value;
+    }
+
+    /**
+     * Finds the slot of the number with the given key, decoding the value if
+     * it is lazy.
+     *
+     * @param key
+     *            The key.
+     * @return The slot, or -1 if there's no number with that key.
+     */
+    private int findNumber(CompoundKey<?> key) {
+        int slot = storage.find(key);
+        if (slot == -1 || storage.isNumber(slot)) {
+            return slot;
+        }
+        Object value = storage.getObject(slot);
+        if (value instanceof LazyTag) {
+            storage.set(slot, decode(key, (LazyTag<?>) value));
+            return storage.isNumber(slot) ? slot : -1;
+        }
+        return -1;
+    }
+
     /**
      * Gets the boolean with the given tag name. Booleans are saved as byte tags
      * internally. This method returns true if {@code getByte(name) != 0}.
@@ -172,9 +287,9 @@ public final class CompoundTag implements JSONAware {
      * @return The byte, or 0 if not found.
      */
     public byte getByte(CompoundKey<Byte> key) {
-        Object value = map.get(key);
-        if (value instanceof Number) {
-            return ((Number) value).byteValue();
+        int slot = findNumber(key);
+        if (slot != -1) {
+            return (byte) storage.getInt(slot);
         }
         return 0;
     }
@@ -192,7 +307,7 @@ public final class CompoundTag implements JSONAware {
      * @return The byte array.
      */
     public byte[] getByteArray(CompoundKey<byte[]> key, int length) {
-        Object value = map.get(key);
+        Object value = get(key);
         if (value instanceof byte[]) {
             byte[] array = (byte[]) value;
             if (array.length == length) {
@@ -201,7 +316,7 @@ public final class CompoundTag implements JSONAware {
         }
 
         byte[] array = new byte[length];
-        map.put(key, array);
+        storage.put(key, array);
         return array;
     }
 
@@ -215,14 +330,14 @@ public final class CompoundTag implements JSONAware {
      * @return The compound tag.
      */
     public CompoundTag getCompound(CompoundKey<CompoundTag> key) {
-        Object value = map.get(key);
+        Object value = get(key);
         if (value instanceof CompoundTag) {
             return (CompoundTag) value;
         }
 
         // Put compound in the map so that changes to it will be reflected
         CompoundTag tag = new CompoundTag();
-        map.put(key, tag);
+        storage.put(key, tag);
         return tag;
     }
 
@@ -236,9 +351,9 @@ public final class CompoundTag implements JSONAware {
      * @return The double, or 0.0 if not found.
      */
     public double getDouble(CompoundKey<Double> key) {
-        Object value = map.get(key);
-        if (value instanceof Number) {
-            return ((Number) value).doubleValue();
+        int slot = findNumber(key);
+        if (slot != -1) {
+            return storage.getDouble(slot);
         }
         return 0;
     }
@@ -253,9 +368,9 @@ public final class CompoundTag implements JSONAware {
      * @return The float, or 0.0 if not found.
      */
     public float getFloat(CompoundKey<Float> key) {
-        Object value = map.get(key);
-        if (value instanceof Number) {
-            return ((Number) value).floatValue();
+        int slot = findNumber(key);
+        if (slot != -1) {
+            return storage.getFloat(slot);
         }
         return 0;
     }
@@ -270,9 +385,9 @@ public final class CompoundTag implements JSONAware {
      * @return The integer, or 0 if not found.
      */
     public int getInt(CompoundKey<Integer> key) {
-        Object value = map.get(key);
-        if (value instanceof Number) {
-            return ((Number) value).intValue();
+        int slot = findNumber(key);
+        if (slot != -1) {
+            return storage.getInt(slot);
         }
         return 0;
     }
@@ -292,7 +407,7 @@ public final class CompoundTag implements JSONAware {
      * @return The integer array.
      */
     public int[] getIntArray(CompoundKey<int[]> key, OptionalInt length) {
-        Object value = map.get(key);
+        Object value = get(key);
         if (value instanceof int[]) {
             int[] array = (int[]) value;
             if (!length.isPresent() || array.length == length.getAsInt()) {
@@ -306,7 +421,7 @@ public final class CompoundTag implements JSONAware {
         }
 
         int[] array = new int[length.getAsInt()];
-        map.put(key, array);
+        storage.put(key, array);
         return array;
     }
 
@@ -323,7 +438,7 @@ public final class CompoundTag implements JSONAware {
      */
     @SuppressWarnings("unchecked")
     public <T> ListTag<T> getList(CompoundKey<ListTag<T>> key, TagType<T> type) {
-        Object value = map.get(key);
+        Object value = get(key);
         if (value instanceof ListTag) {
             ListTag<?> listTag = (ListTag<?>) value;
             if (listTag.getListType().equals(type)) {
@@ -333,7 +448,7 @@ public final class CompoundTag implements JSONAware {
 
         // Put list in map so that changes to it are reflected in this map
         ListTag<T> list = new ListTag<>(type);
-        map.put(key, list);
+        storage.put(key, list);
         return list;
     }
 
@@ -347,9 +462,9 @@ public final class CompoundTag implements JSONAware {
      * @return The long, or 0 if not found.
      */
     public long getLong(CompoundKey<Long> key) {
-        Object value = map.get(key);
-        if (value instanceof Number) {
-            return ((Number) value).longValue();
+        int slot = findNumber(key);
+        if (slot != -1) {
+            return storage.getLong(slot);
         }
         return 0;
     }
@@ -369,7 +484,7 @@ public final class CompoundTag implements JSONAware {
      * @return The long array.
      */
     public long[] getLongArray(CompoundKey<long[]> key, OptionalInt length) {
-        Object value = map.get(key);
+        Object value = get(key);
         if (value instanceof long[]) {
             long[] array = (long[]) value;
             if (!length.isPresent() || array.length == length.getAsInt()) {
@@ -383,7 +498,7 @@ public final class CompoundTag implements JSONAware {
 
         // Create a new array
         long[] array = new long[length.getAsInt()];
-        map.put(key, array);
+        storage.put(key, array);
         return array;
     }
 
@@ -397,9 +512,9 @@ public final class CompoundTag implements JSONAware {
      * @return The integer, or 0 if not found.
      */
     public short getShort(CompoundKey<Short> key) {
-        Object value = map.get(key);
-        if (value instanceof Number) {
-            return ((Number) value).shortValue();
+        int slot = findNumber(key);
+        if (slot != -1) {
+            return (short) storage.getInt(slot);
         }
         return 0;
     }
@@ -413,7 +528,7 @@ public final class CompoundTag implements JSONAware {
      * @return The string.
      */
     public String getString(CompoundKey<String> key) {
-        Object value = map.get(key);
+        Object value = get(key);
         if (value instanceof String) {
             return (String) value;
         }
@@ -424,7 +539,11 @@ public final class CompoundTag implements JSONAware {
     public int hashCode() {
         // Values have complex rules to be considered equal, so we leave them
         // out in the hash code
-        return map.keySet().hashCode();
+        int hashCode = 0;
+        for (int slot = storage.nextSlot(0); slot != -1; slot = storage.nextSlot(slot + 1)) {
+            hashCode += storage.getKey(slot).hashCode();
+        }
+        return hashCode;
     }
 
     /**
@@ -433,7 +552,7 @@ public final class CompoundTag implements JSONAware {
      * @return True if this tag is empty, false otherwise.
      */
     public boolean isEmpty() {
-        return map.isEmpty();
+        return storage.size() == 0;
     }
 
     /**
@@ -449,21 +568,49 @@ public final class CompoundTag implements JSONAware {
      * @return True if the tag is of the given type, false otherwise.
      */
     public <T> boolean isType(CompoundKey<T> key, TagType<T> tagType) {
-        Object value = this.map.get(key);
-        if (value == null) {
+        int slot = storage.find(key);
+        if (slot == -1) {
             return false;
         }
+        if (storage.isNumber(slot)) {
+            // No need to box the value
+            return tagType.equals(numberType(storage.getKind(slot)));
+        }
+        Object value = storage.getObject(slot);
+        if (value instanceof LazyTag) {
+            // No need to decode the value
+            return ((LazyTag<?>) value).getType().equals(tagType);
+        }
         return tagType.isOfType(value);
     }
 
 
+    private static TagType<?> numberType(byte kind) {
+        switch (kind) {
+            case TagStorage.BYTE:
+                return TagType.BYTE;
+            case TagStorage.SHORT:
+                return TagType.SHORT;
+            case TagStorage.INT:
+                return TagType.INT;
+            case TagStorage.LONG:
+                return TagType.LONG;
+            case TagStorage.FLOAT:
+                return TagType.FLOAT;
+            case TagStorage.DOUBLE:
+                return TagType.DOUBLE;
+            default:
+                throw new IllegalArgumentException("Not a number: " + kind);
+        }
+    }
+
     /**
      * Removes a child tag if it exists.
      * @param key Key of the child tag.
      * @return True if the child tag was removed, false if there was no child tag with that key.
      */
     public boolean remove(CompoundKey<?> key) {
-        return this.map.remove(key) != null;
+        return this.storage.remove(key);
     }
 
     /**
@@ -478,7 +625,23 @@ public final class CompoundTag implements JSONAware {
      */
     public <T> void set(CompoundKey<T> key, TagType<T> type, T value) {
         value = type.cast(Objects.requireNonNull(value));
-        map.put(key, value);
+        storage.put(key, value);
+    }
+
+    /**
+     * Sets a tag whose value is only decoded once it is accessed. This will
+     * override the tag (if any) with the same name (case insensitive).
+     *
+     * <p> If decoding fails, the method that accessed the value throws an
+     * {@link UncheckedIOException}.
+     *
+     * @param key
+     *            The name of the tag.
+     * @param value
+     *            The lazy value.
+     */
+    public <T> void setLazy(CompoundKey<T> key, LazyTag<T> value) {
+        storage.put(key, Objects.requireNonNull(value));
     }
 
     /**
@@ -511,7 +674,7 @@ public final class CompoundTag implements JSONAware {
      *            Value of the tag.
      */
     public void setByte(CompoundKey<Byte> key, byte value) {
-        map.put(key, value);
+        storage.putNumber(key, TagStorage.BYTE, value);
     }
 
     /**
@@ -524,7 +687,7 @@ public final class CompoundTag implements JSONAware {
      *            Value of the tag.
      */
     public void setByteArray(CompoundKey<byte[]> key, byte[] value) {
-        map.put(key, Objects.requireNonNull(value));
+        storage.put(key, Objects.requireNonNull(value));
     }
 
     /**
@@ -537,7 +700,7 @@ public final class CompoundTag implements JSONAware {
      *            Value of the tag.
      */
     public void setCompound(CompoundKey<CompoundTag> key, CompoundTag value) {
-        map.put(key, Objects.requireNonNull(value));
+        storage.put(key, Objects.requireNonNull(value));
     }
 
     /**
@@ -550,7 +713,7 @@ public final class CompoundTag implements JSONAware {
      *            Value of the tag.
      */
     public void setDouble(CompoundKey<Double> key, double value) {
-        map.put(key, value);
+        storage.putNumber(key, TagStorage.DOUBLE, Double.doubleToRawLongBits(value));
     }
 
     /**
@@ -563,7 +726,7 @@ public final class CompoundTag implements JSONAware {
      *            Value of the tag.
      */
     public void setFloat(CompoundKey<Float> key, float value) {
-        map.put(key, value);
+        storage.putNumber(key, TagStorage.FLOAT, Float.floatToRawIntBits(value));
     }
 
     /**
@@ -576,7 +739,7 @@ public final class CompoundTag implements JSONAware {
      *            Value of the tag.
      */
     public void setInt(CompoundKey<Integer> key, int value) {
-        map.put(key, value);
+        storage.putNumber(key, TagStorage.INT, value);
     }
 
     /**
@@ -589,7 +752,7 @@ public final class CompoundTag implements JSONAware {
      *            Value of the tag.
      */
     public void setIntArray(CompoundKey<int[]> key, int[] value) {
-        map.put(key, Objects.requireNonNull(value));
+        storage.put(key, Objects.requireNonNull(value));
     }
 
     /**
@@ -602,7 +765,7 @@ public final class CompoundTag implements JSONAware {
      *            Value of the tag.
      */
     public void setList(CompoundKey<? extends ListTag<?>> name, ListTag<?> value) {
-        map.put(name, Objects.requireNonNull(value));
+        storage.put(name, Objects.requireNonNull(value));
     }
 
     /**
@@ -615,7 +778,7 @@ public final class CompoundTag implements JSONAware {
      *            Value of the tag.
      */
     public void setLong(CompoundKey<Long> key, long value) {
-        map.put(key, value);
+        storage.putNumber(key, TagStorage.LONG, value);
     }
 
     /**
@@ -628,7 +791,7 @@ public final class CompoundTag implements JSONAware {
      *            Value of the tag.
      */
     public void setLongArray(CompoundKey<long[]> key, long[] value) {
-        map.put(key, Objects.requireNonNull(value));
+        storage.put(key, Objects.requireNonNull(value));
     }
 
     /**
@@ -641,7 +804,7 @@ public final class CompoundTag implements JSONAware {
      *            Value of the tag.
      */
     public void setShort(CompoundKey<Short> key, short value) {
-        map.put(key, value);
+        storage.putNumber(key, TagStorage.SHORT, value);
     }
 
     /**
@@ -654,7 +817,7 @@ public final class CompoundTag implements JSONAware {
      *            Value of the tag.
      */
     public void setString(CompoundKey<String> key, String value) {
-        map.put(key, Objects.requireNonNull(value));
+        storage.put(key, Objects.requireNonNull(value));
     }
 
     /**
@@ -663,7 +826,7 @@ public final class CompoundTag implements JSONAware {
      * @return The amount of entries.
      */
     public int size() {
-        return map.size();
+        return storage.size();
     }
 
     /**
@@ -685,6 +848,10 @@ public final class CompoundTag implements JSONAware {
      */
     @Override
     public String toJSONString() {
+        Map<CompoundKey<?>, Object> map = new HashMap<>();
+        for (Entry<CompoundKey<?>, Object> entry : entrySet()) {
+            map.put(entry.getKey(), entry.getValue());
+        }
         return JSONObject.toJSONString(map);
     }
 
@@ -726,4 +893,45 @@ public final class CompoundTag implements JSONAware {
         return obj1.equals(obj2);
     }
 
+    /**
+     * Passes all values to the visitor. Unlike {@link #entrySet()}, numbers
+     * are not boxed. Lazy values are decoded first. The tag must not be
+     * modified during the visit.
+     *
+     * @param <X>
+     *            Type of the exception that the visitor can throw.
+     * @param visitor
+     *            The visitor.
+     * @throws X
+     *             If the visitor throws an exception.
+     */
+    public <X extends Exception> void visitValues(TagValueVisitor<X> visitor) throws X {
+        decodeAll();
+        for (int slot = storage.nextSlot(0); slot != -1; slot = storage.nextSlot(slot + 1)) {
+            CompoundKey<?> key = storage.getKey(slot);
+            switch (storage.getKind(slot)) {
+                case TagStorage.BYTE:
+                    visitor.visitByte(key, (byte) storage.getInt(slot));
+                    break;
+                case TagStorage.SHORT:
+                    visitor.visitShort(key, (short) storage.getInt(slot));
+                    break;
+                case TagStorage.INT:
+                    visitor.visitInt(key, storage.getInt(slot));
+                    break;
+                case TagStorage.LONG:
+                    visitor.visitLong(key, storage.getLong(slot));
+                    break;
+                case TagStorage.FLOAT:
+                    visitor.visitFloat(key, storage.getFloat(slot));
+                    break;
+                case TagStorage.DOUBLE:
+                    visitor.visitDouble(key, storage.getDouble(slot));
+                    break;
+                default:
+                    visitor.visitObject(key, storage.getObject(slot));
+                    break;
+            }
+        }
+    }
 }
@@ -0,0 +1,35 @@
+package nl.rutgerkok.hammer.tag;
+
+import java.io.IOException;
+
+/**
+ * A value in a {@link CompoundTag} that is only decoded once it is first
+ * accessed. Used to avoid decoding large parts of a tag that are never looked
+ * at.
+ *
+ * <p>
+ * Every call to {@link #decode()} must return a new, independent value, so
+ * that the same lazy tag can be shared by copies of a compound tag.
+ *
+ * @param <T>
+ *            Type of the value.
+ * @see CompoundTag#setLazy(CompoundKey, LazyTag)
+ */
+public interface LazyTag<T> {
+
+    /**
+     * Decodes the value.
+     *
+     * @return The value, never null.
+     * @throws IOException
+     *             If the value cannot be decoded.
+     */
+    T decode() throws IOException;
+
+    /**
+     * Gets the type of the value, without decoding it.
+     *
+     * @return The type.
+     */
+    TagType<T> getType();
+}
@@ -0,0 +1,120 @@
+package nl.rutgerkok.hammer.tag;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The parts of a compound tag that are needed. Parts that are not needed can
+ * be skipped while reading a tag, which is a lot faster than decoding them.
+ *
+ * <p>
+ * A projection is a set of paths. A path consists of the keys of the tags
+ * that lead to the needed tag, starting at the root tag. A needed tag is
+ * always read completely. If a path passes through a list of compound tags,
+ * the rest of the path is applied to every compound tag in the list.
+ *
+ * <p>
+ * Instances are immutable.
+ */
+public final class TagProjection {
+
+    private static final TagProjection NONE = new TagProjection(Collections.emptyMap(), false);
+    private static final TagProjection ALL = new TagProjection(Collections.emptyMap(), true);
+
+    /**
+     * Gets a projection that contains no tags at all. Use
+     * {@link #with(CompoundKey...)} to add tags.
+     *
+     * @return The projection.
+     */
+    public static TagProjection none() {
+        return NONE;
+    }
+
+    private final Map<CompoundKey<?>, TagProjection> children;
+    private final boolean all;
+
+    private TagProjection(Map<CompoundKey<?>, TagProjection> children, boolean all) {
+        this.children = children;
+        this.all = all;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof TagProjection)) {
+            return false;
+        }
+        TagProjection other = (TagProjection) obj;
+        return all == other.all && children.equals(other.children);
+    }
+
+    /**
+     * Gets the projection for the child tag with the given key.
+     *
+     * @param key
+     *            The key.
+     * @return The projection of the child, or null if the child is not needed
+     *         at all.
+     */
+    public TagProjection getChild(CompoundKey<?> key) {
+        if (all) {
+            return ALL;
+        }
+        return children.get(key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(children, all);
+    }
+
+    /**
+     * Checks whether the tag is needed completely.
+     *
+     * @return True if the tag is needed completely, false if only the
+     *         {@link #getChild(CompoundKey) children} listed in this
+     *         projection are needed.
+     */
+    public boolean isAll() {
+        return all;
+    }
+
+    @Override
+    public String toString() {
+        return all ? "TagProjection [all]" : "TagProjection " + children;
+    }
+
+    /**
+     * Creates a projection that contains all tags of this projection, as well
+     * as the tag at the given path.
+     *
+     * @param path
+     *            The keys of the tags leading to the needed tag, starting at
+     *            the root tag.
+     * @return The new projection.
+     * @throws IllegalArgumentException
+     *             If the path is empty.
+     */
+    public TagProjection with(CompoundKey<?>... path) {
+        if (path.length == 0) {
+            throw new IllegalArgumentException("path cannot be empty");
+        }
+        return with(path, 0);
+    }
+
+    private TagProjection with(CompoundKey<?>[] path, int index) {
+        if (index == path.length || all) {
+            return ALL;
+        }
+        CompoundKey<?> key = Objects.requireNonNull(path[index], "path");
+        TagProjection child = children.getOrDefault(key, NONE);
+        Map<CompoundKey<?>, TagProjection> newChildren = new HashMap<>(children);
+        newChildren.put(key, child.with(path, index + 1));
+        return new TagProjection(Collections.unmodifiableMap(newChildren), false);
+    }
+}
@@ -0,0 +1,441 @@
+package nl.rutgerkok.hammer.tag;
+
+import java.util.Arrays;
+
+/**
+ * Storage of the values of a {@link CompoundTag}. An open addressing hash
+ * table with parallel arrays, which stores numbers in a long array instead of
+ * as boxed objects. All other values (strings, arrays, lists, compound tags
+ * and lazy values) are stored as objects.
+ *
+ * <p>
+ * Values are accessed by their slot, which is found using
+ * {@link #find(CompoundKey)}. Slots are only valid until the next change of
+ * the keys.
+ */
+final class TagStorage {
+
+    static final byte OBJECT = 1;
+    static final byte BYTE = 2;
+    static final byte SHORT = 3;
+    static final byte INT = 4;
+    static final byte LONG = 5;
+    /**
+     * Stored as the bits of the float, see {@link Float#floatToRawIntBits}.
+     */
+    static final byte FLOAT = 6;
+    /**
+     * Stored as the bits of the double, see
+     * {@link Double#doubleToRawLongBits}.
+     */
+    static final byte DOUBLE = 7;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static int slotOf(CompoundKey<?> key, int mask) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Keys, null for empty slots. The arrays are null until the first value
+     * is stored, as lots of tags stay empty.
+     */
+    private CompoundKey<?>[] keys;
+    private byte[] kinds;
+    private long[] numbers;
+    private Object[] objects;
+    private int size;
+
+    TagStorage() {
+    }
+
+    /**
+     * Creates a copy of the given storage. Objects are not copied.
+     *
+     * @param copy
+     *            The storage to copy.
+     */
+    TagStorage(TagStorage copy) {
+        if (copy.keys != null) {
+            this.keys = copy.keys.clone();
+            this.kinds = copy.kinds.clone();
+            this.numbers = copy.numbers.clone();
+            this.objects = copy.objects.clone();
+            this.size = copy.size;
+        }
+    }
+
+    void clear() {
+        if (keys != null) {
+            Arrays.fill(keys, null);
+            Arrays.fill(objects, null);
+            size = 0;
+        }
+    }
+
+    /**
+     * Finds the slot of the given key.
+     *
+     * @param key
+     *            The key.
+     * @return The slot, or -1 if there's no value with that key.
+     */
+    int find(CompoundKey<?> key) {
+        if (keys == null) {
+            return -1;
+        }
+        int mask = keys.length - 1;
+        for (int slot = slotOf(key, mask);; slot = (slot + 1) & mask) {
+            CompoundKey<?> existing = keys[slot];
+            if (existing == null) {
+                return -1;
+            }
+            if (existing == key || existing.equals(key)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Gets the value in the given slot as an object, boxing numbers.
+     *
+     * @param slot
+     *            The slot.
+     * @return The value.
+     */
+    Object getBoxed(int slot) {
+        long bits = numbers[slot];
+        switch (kinds[slot]) {
+            case BYTE:
+                return Byte.valueOf((byte) bits);
+            case SHORT:
+                return Short.valueOf((short) bits);
+            case INT:
+                return Integer.valueOf((int) bits);
+            case LONG:
+                return Long.valueOf(bits);
+            case FLOAT:
+                return Float.valueOf(Float.intBitsToFloat((int) bits));
+            case DOUBLE:
+                return Double.valueOf(Double.longBitsToDouble(bits));
+            default:
+                return objects[slot];
+        }
+    }
+
+    /**
+     * Gets the number in the given slot as a double, like
+     * {@link Number#doubleValue()}.
+     *
+     * @param slot
+     *            The slot, must contain a number.
+     * @return The number.
+     */
+    double getDouble(int slot) {
+        long bits = numbers[slot];
+        switch (kinds[slot]) {
+            case FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            default:
+                return bits;
+        }
+    }
+
+    /**
+     * Gets the number in the given slot as a float, like
+     * {@link Number#floatValue()}.
+     *
+     * @param slot
+     *            The slot, must contain a number.
+     * @return The number.
+     */
+    float getFloat(int slot) {
+        long bits = numbers[slot];
+        switch (kinds[slot]) {
+            case FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            case DOUBLE:
+                return (float) Double.longBitsToDouble(bits);
+            default:
+                return bits;
+        }
+    }
+
+    /**
+     * Gets the number in the given slot as an int, like
+     * {@link Number#intValue()}. Bytes and shorts are obtained by casting the
+     * int, which is also what {@link Number} does.
+     *
+     * @param slot
+     *            The slot, must contain a number.
+     * @return The number.
+     */
+    int getInt(int slot) {
+        long bits = numbers[slot];
+        switch (kinds[slot]) {
+            case FLOAT:
+                return (int) Float.intBitsToFloat((int) bits);
+            case DOUBLE:
+                return (int) Double.longBitsToDouble(bits);
+            default:
+                return (int) bits;
+        }
+    }
+
+    CompoundKey<?> getKey(int slot) {
+        return keys[slot];
+    }
+
+    byte getKind(int slot) {
+        return kinds[slot];
+    }
+
+    /**
+     * Gets the number in the given slot as a long, like
+     * {@link Number#longValue()}.
+     *
+     * @param slot
+     *            The slot, must contain a number.
+     * @return The number.
+     */
+    long getLong(int slot) {
+        long bits = numbers[slot];
+        switch (kinds[slot]) {
+            case FLOAT:
+                return (long) Float.intBitsToFloat((int) bits);
+            case DOUBLE:
+                return (long) Double.longBitsToDouble(bits);
+            default:
+                return bits;
+        }
+    }
+
+    /**
+     * Gets the object in the given slot.
+     *
+     * @param slot
+     *            The slot.
+     * @return The object, or null if the slot contains a number.
+     */
+    Object getObject(int slot) {
+        return objects[slot];
+    }
+
+    private void grow() {
+        CompoundKey<?>[] oldKeys = keys;
+        byte[] oldKinds = kinds;
+        long[] oldNumbers = numbers;
+        Object[] oldObjects = objects;
+
+        int capacity = oldKeys == null ? INITIAL_CAPACITY : oldKeys.length * 2;
+        keys = new CompoundKey<?>[capacity];
+        kinds = new byte[capacity];
+        numbers = new long[capacity];
+        objects = new Object[capacity];
+        if (oldKeys == null) {
+            return;
+        }
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = slotOf(oldKeys[i], mask);
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                kinds[slot] = oldKinds[i];
+                numbers[slot] = oldNumbers[i];
+                objects[slot] = oldObjects[i];
+            }
+        }
+    }
+
+    /**
+     * Gets whether the value in the given slot is a number.
+     *
+     * @param slot
+     *            The slot.
+     * @return True if it is a number.
+     */
+    boolean isNumber(int slot) {
+        return kinds[slot] != OBJECT;
+    }
+
+    /**
+     * Gets the first used slot at or after the given slot, for iterating over
+     * all values.
+     *
+     * @param slot
+     *            The slot to start at.
+     * @return The slot, or -1 if there are no more values.
+     */
+    int nextSlot(int slot) {
+        if (keys == null) {
+            return -1;
+        }
+        for (int i = slot; i < keys.length; i++) {
+            if (keys[i] != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Stores a value. Boxed numbers are stored unboxed. If there's already a
+     * value with an equal key, that value is replaced, but the original key
+     * is kept.
+     *
+     * @param key
+     *            The key.
+     * @param value
+     *            The value, not null.
+     */
+    void put(CompoundKey<?> key, Object value) {
+        int slot = find(key);
+        if (slot == -1) {
+            slot = reserve(key);
+        }
+        set(slot, value);
+    }
+
+    /**
+     * Stores all values of the other storage, like
+     * {@link #put(CompoundKey, Object)} does for a single value. Objects are
+     * not copied.
+     *
+     * @param other
+     *            The other storage.
+     */
+    void putAll(TagStorage other) {
+        for (int i = other.nextSlot(0); i != -1; i = other.nextSlot(i + 1)) {
+            int slot = find(other.keys[i]);
+            if (slot == -1) {
+                slot = reserve(other.keys[i]);
+            }
+            kinds[slot] = other.kinds[i];
+            numbers[slot] = other.numbers[i];
+            objects[slot] = other.objects[i];
+        }
+    }
+
+    /**
+     * Stores a number.
+     *
+     * @param key
+     *            The key.
+     * @param kind
+     *            Kind of the number, {@link #BYTE} up to {@link #DOUBLE}.
+     * @param bits
+     *            The number, as described for the kind.
+     * @see #put(CompoundKey, Object)
+     */
+    void putNumber(CompoundKey<?> key, byte kind, long bits) {
+        int slot = find(key);
+        if (slot == -1) {
+            slot = reserve(key);
+        }
+        setNumber(slot, kind, bits);
+    }
+
+    /**
+     * Removes the value with the given key.
+     *
+     * @param key
+     *            The key.
+     * @return True if a value was removed, false if there was no such value.
+     */
+    boolean remove(CompoundKey<?> key) {
+        int slot = find(key);
+        if (slot == -1) {
+            return false;
+        }
+        size--;
+
+        // Move later values of the same probe sequence back, so that no
+        // markers for removed values are needed
+        int mask = keys.length - 1;
+        int empty = slot;
+        for (int i = (slot + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            int ideal = slotOf(keys[i], mask);
+            boolean canMove = empty <= i ? (ideal <= empty || ideal > i) : (ideal <= empty && ideal > i);
+            if (canMove) {
+                keys[empty] = keys[i];
+                kinds[empty] = kinds[i];
+                numbers[empty] = numbers[i];
+                objects[empty] = objects[i];
+                empty = i;
+            }
+        }
+        keys[empty] = null;
+        objects[empty] = null;
+        return true;
+    }
+
+    private int reserve(CompoundKey<?> key) {
+        if (keys == null || (size + 1) * 3 > keys.length * 2) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        int slot = slotOf(key, mask);
+        while (keys[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Replaces the value in the given slot. Boxed numbers are stored unboxed.
+     *
+     * @param slot
+     *            The slot.
+     * @param value
+     *            The value, not null.
+     */
+    void set(int slot, Object value) {
+        if (value instanceof Number) {
+            if (value instanceof Byte) {
+                setNumber(slot, BYTE, (Byte) value);
+                return;
+            }
+            if (value instanceof Short) {
+                setNumber(slot, SHORT, (Short) value);
+                return;
+            }
+            if (value instanceof Integer) {
+                setNumber(slot, INT, (Integer) value);
+                return;
+            }
+            if (value instanceof Long) {
+                setNumber(slot, LONG, (Long) value);
+                return;
+            }
+            if (value instanceof Float) {
+                setNumber(slot, FLOAT, Float.floatToRawIntBits((Float) value));
+                return;
+            }
+            if (value instanceof Double) {
+                setNumber(slot, DOUBLE, Double.doubleToRawLongBits((Double) value));
+                return;
+            }
+        }
+        kinds[slot] = OBJECT;
+        numbers[slot] = 0;
+        objects[slot] = value;
+    }
+
+    private void setNumber(int slot, byte kind, long bits) {
+        kinds[slot] = kind;
+        numbers[slot] = bits;
+        objects[slot] = null;
+    }
+
+    int size() {
+        return size;
+    }
+}
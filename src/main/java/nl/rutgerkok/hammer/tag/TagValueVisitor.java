@@ -0,0 +1,96 @@
+package nl.rutgerkok.hammer.tag;
+
+/**
+ * Receives all values of a {@link CompoundTag}, without boxing the numbers.
+ *
+ * @param <X>
+ *            Type of the exception that the visitor can throw.
+ * @see CompoundTag#visitValues(TagValueVisitor)
+ */
+public interface TagValueVisitor<X extends Exception> {
+
+    /**
+     * Called for a byte.
+     *
+     * @param key
+     *            Name of the value.
+     * @param value
+     *            The value.
+     * @throws X
+     *             Thrown by the visitor; stops the visit.
+     */
+    void visitByte(CompoundKey<?> key, byte value) throws X;
+
+    /**
+     * Called for a double.
+     *
+     * @param key
+     *            Name of the value.
+     * @param value
+     *            The value.
+     * @throws X
+     *             Thrown by the visitor; stops the visit.
+     */
+    void visitDouble(CompoundKey<?> key, double value) throws X;
+
+    /**
+     * Called for a float.
+     *
+     * @param key
+     *            Name of the value.
+     * @param value
+     *            The value.
+     * @throws X
+     *             Thrown by the visitor; stops the visit.
+     */
+    void visitFloat(CompoundKey<?> key, float value) throws X;
+
+    /**
+     * Called for an int.
+     *
+     * @param key
+     *            Name of the value.
+     * @param value
+     *            The value.
+     * @throws X
+     *             Thrown by the visitor; stops the visit.
+     */
+    void visitInt(CompoundKey<?> key, int value) throws X;
+
+    /**
+     * Called for a long.
+     *
+     * @param key
+     *            Name of the value.
+     * @param value
+     *            The value.
+     * @throws X
+     *             Thrown by the visitor; stops the visit.
+     */
+    void visitLong(CompoundKey<?> key, long value) throws X;
+
+    /**
+     * Called for all values that are not numbers: strings, arrays, lists and
+     * compound tags.
+     *
+     * @param key
+     *            Name of the value.
+     * @param value
+     *            The value.
+     * @throws X
+     *             Thrown by the visitor; stops the visit.
+     */
+    void visitObject(CompoundKey<?> key, Object value) throws X;
+
+    /**
+     * Called for a short.
+     *
+     * @param key
+     *            Name of the value.
+     * @param value
+     *            The value.
+     * @throws X
+     *             Thrown by the visitor; stops the visit.
+     */
+    void visitShort(CompoundKey<?> key, short value) throws X;
+}
@@ -10,7 +10,8 @@ import java.util.concurrent.CopyOnWriteArrayList;
 public abstract class Progress {
 
     /**
-     * A progress indicator based on units of work.
+     * A progress indicator based on units of work. Units may be completed from
+     * multiple threads at the same time.
      *
      * @see Progress#ofUnits(int)
      */
@@ -25,7 +26,7 @@ public abstract class Progress {
         }
 
         @Override
-        public double getFraction() {
+        public synchronized double getFraction() {
             if (totalUnits == 0) {
                 return 1;
             }
@@ -36,10 +37,15 @@ public abstract class Progress {
          * Updates this instance to indicate that one more unit of work is done.
          * If the amount of current units is about to get above the amount of
          * total units, the amount of total units is increased.
+         *
+         * <p>
+         * Listeners are notified on the thread that calls this method.
          */
         public void increment() {
-            currentUnits++;
-            totalUnits = Math.max(currentUnits, totalUnits);
+            synchronized (this) {
+                currentUnits++;
+                totalUnits = Math.max(currentUnits, totalUnits);
+            }
             notifyListeners();
         }
 
@@ -0,0 +1,358 @@
+package nl.rutgerkok.hammer.util;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps track of which sectors in a file are free. Free sectors are stored as
+ * runs of consecutive sectors, so that finding space for some data doesn't
+ * require scanning the whole file.
+ *
+ * <p>
+ * Runs are indexed both on their start and on their length. Allocating uses
+ * best-fit: the smallest free run that is large enough is used, and when there
+ * are multiple of those, the one closest to the start of the file. Freed
+ * sectors are merged with adjacent free runs. All operations run in
+ * logarithmic time in the amount of free runs.
+ *
+ * <p>
+ * This class is not thread safe.
+ */
+public final class SectorAllocator {
+
+    /**
+     * Statistics about the free space in a file.
+     */
+    public static final class Statistics {
+        private final int totalSectors;
+        private final int freeSectors;
+        private final int freeRuns;
+        private final int largestFreeRun;
+
+        private Statistics(int totalSectors, int freeSectors, int freeRuns, int largestFreeRun) {
+            this.totalSectors = totalSectors;
+            this.freeSectors = freeSectors;
+            this.freeRuns = freeRuns;
+            this.largestFreeRun = largestFreeRun;
+        }
+
+        /**
+         * Gets the fragmentation of the free space. This is 0 if all free
+         * sectors are in a single run (or if there are no free sectors), and
+         * approaches 1 if the free space is split up in many small runs.
+         *
+         * @return The fragmentation, from 0 to 1.
+         */
+        public double getFragmentation() {
+            if (freeSectors == 0) {
+                return 0;
+            }
+            return 1 - (double) largestFreeRun / freeSectors;
+        }
+
+        /**
+         * Gets the amount of runs of consecutive free sectors.
+         *
+         * @return The amount of runs.
+         */
+        public int getFreeRunCount() {
+            return freeRuns;
+        }
+
+        /**
+         * Gets the amount of free sectors.
+         *
+         * @return The amount of free sectors.
+         */
+        public int getFreeSectorCount() {
+            return freeSectors;
+        }
+
+        /**
+         * Gets the length of the largest run of consecutive free sectors.
+         *
+         * @return The length, or 0 if there are no free sectors.
+         */
+        public int getLargestFreeRun() {
+            return largestFreeRun;
+        }
+
+        /**
+         * Gets the total amount of sectors, both free and used.
+         *
+         * @return The amount of sectors.
+         */
+        public int getTotalSectorCount() {
+            return totalSectors;
+        }
+
+        @Override
+        public String toString() {
+            return "Statistics [totalSectors=" + totalSectors + ", freeSectors=" + freeSectors + ", freeRuns="
+                    + freeRuns + ", largestFreeRun=" + largestFreeRun + "]";
+        }
+    }
+
+    private static long bySizeKey(int start, int length) {
+        return ((long) length << 32) | start;
+    }
+
+    /**
+     * Start of a free run to the length of that run.
+     */
+    private final NavigableMap<Integer, Integer> runsByStart = new TreeMap<>();
+    /**
+     * Free runs, encoded using {@link #bySizeKey(int, int)}. Sorted on length,
+     * and then on start.
+     */
+    private final NavigableSet<Long> runsBySize = new TreeSet<>();
+    private int size;
+    private int freeSectors;
+
+    /**
+     * Creates a new allocator.
+     *
+     * @param size
+     *            The amount of sectors in the file. All sectors start out as
+     *            free.
+     */
+    public SectorAllocator(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size cannot be negative: " + size);
+        }
+        this.size = size;
+        if (size > 0) {
+            addRun(0, size);
+        }
+    }
+
+    private void addRun(int start, int length) {
+        runsByStart.put(start, length);
+        runsBySize.add(bySizeKey(start, length));
+        freeSectors += length;
+    }
+
+    /**
+     * Finds and claims space for the given amount of sectors. The file is
+     * never grown; use {@link #grow(int)} for that.
+     *
+     * @param length
+     *            The amount of sectors needed.
+     * @return The first sector of the claimed space, or -1 if there was no free
+     *         run large enough.
+     */
+    public int allocate(int length) {
+        checkLength(length);
+        Long bestFit = runsBySize.ceiling(bySizeKey(0, length));
+        if (bestFit == null) {
+            return -1;
+        }
+        int start = (int) bestFit.longValue();
+        int runLength = (int) (bestFit >>> 32);
+        removeRun(start, runLength);
+        if (runLength > length) {
+            addRun(start + length, runLength - length);
+        }
+        return start;
+    }
+
+    /**
+     * Finds and claims space for the given amount of sectors, as close to the
+     * start of the file as possible. Unlike {@link #allocate(int)}, this method
+     * needs to look at all free runs before the limit.
+     *
+     * @param length
+     *            The amount of sectors needed.
+     * @param limit
+     *            The claimed space must end at or before this sector.
+     * @return The first sector of the claimed space, or -1 if there was no free
+     *         run large enough before the limit.
+     */
+    public int allocateFirstFit(int length, int limit) {
+        checkLength(length);
+        for (Entry<Integer, Integer> run : runsByStart.headMap(limit, false).entrySet()) {
+            int start = run.getKey();
+            int runLength = run.getValue();
+            if (runLength < length) {
+                continue;
+            }
+            if (start + length > limit) {
+                return -1;
+            }
+            removeRun(start, runLength);
+            if (runLength > length) {
+                addRun(start + length, runLength - length);
+            }
+            return start;
+        }
+        return -1;
+    }
+
+    private void checkLength(int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("length must be positive, was " + length);
+        }
+    }
+
+    private void checkRange(int start, int length) {
+        if (start < 0 || length < 0 || start + length > size) {
+            throw new IndexOutOfBoundsException("size=" + size + ", start=" + start + ", length=" + length);
+        }
+    }
+
+    /**
+     * Marks the given sectors as free, merging them with adjacent free runs.
+     * Sectors that were already free stay free.
+     *
+     * @param start
+     *            The first sector.
+     * @param length
+     *            The amount of sectors.
+     * @throws IndexOutOfBoundsException
+     *             If the sectors fall outside the file.
+     */
+    public void free(int start, int length) {
+        checkRange(start, length);
+        if (length == 0) {
+            return;
+        }
+        int newStart = start;
+        int newEnd = start + length;
+
+        // Absorb a run that starts before and touches the freed sectors
+        Entry<Integer, Integer> before = runsByStart.floorEntry(start);
+        if (before != null && before.getKey() + before.getValue() >= start) {
+            newStart = before.getKey();
+            newEnd = Math.max(newEnd, before.getKey() + before.getValue());
+            removeRun(before.getKey(), before.getValue());
+        }
+
+        // Absorb all runs that start inside or directly after the freed
+        // sectors
+        Iterator<Entry<Integer, Integer>> it = runsByStart.subMap(start, true, newEnd, true).entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<Integer, Integer> run = it.next();
+            newEnd = Math.max(newEnd, run.getKey() + run.getValue());
+            runsBySize.remove(bySizeKey(run.getKey(), run.getValue()));
+            freeSectors -= run.getValue();
+            it.remove();
+        }
+
+        addRun(newStart, newEnd - newStart);
+    }
+
+    /**
+     * Gets statistics about the free space.
+     *
+     * @return The statistics.
+     */
+    public Statistics getStatistics() {
+        int largestFreeRun = runsBySize.isEmpty() ? 0 : (int) (runsBySize.last() >>> 32);
+        return new Statistics(size, freeSectors, runsByStart.size(), largestFreeRun);
+    }
+
+    /**
+     * Grows the file so that the given amount of sectors is claimed at the end
+     * of the file. If the file ends with free sectors, those are used first.
+     *
+     * @param length
+     *            The amount of sectors needed.
+     * @return The first sector of the claimed space.
+     */
+    public int grow(int length) {
+        checkLength(length);
+        int start = size;
+        Entry<Integer, Integer> last = runsByStart.lastEntry();
+        if (last != null && last.getKey() + last.getValue() == size) {
+            start = last.getKey();
+            removeRun(last.getKey(), last.getValue());
+            if (start + length < size) {
+                // Free run was longer than needed, keep the rest free
+                addRun(start + length, size - (start + length));
+            }
+        }
+        size = Math.max(size, start + length);
+        return start;
+    }
+
+    /**
+     * Checks whether the given sector is free.
+     *
+     * @param sector
+     *            The sector.
+     * @return True if the sector is free, false otherwise.
+     * @throws IndexOutOfBoundsException
+     *             If the sector falls outside the file.
+     */
+    public boolean isFree(int sector) {
+        checkRange(sector, 1);
+        Entry<Integer, Integer> run = runsByStart.floorEntry(sector);
+        return run != null && run.getKey() + run.getValue() > sector;
+    }
+
+    /**
+     * Marks the given sectors as used. Sectors that were already in use stay in
+     * use.
+     *
+     * @param start
+     *            The first sector.
+     * @param length
+     *            The amount of sectors.
+     * @throws IndexOutOfBoundsException
+     *             If the sectors fall outside the file.
+     */
+    public void markUsed(int start, int length) {
+        checkRange(start, length);
+        int end = start + length;
+
+        Entry<Integer, Integer> run = runsByStart.floorEntry(start);
+        if (run == null || run.getKey() + run.getValue() <= start) {
+            run = runsByStart.higherEntry(start);
+        }
+        while (run != null && run.getKey() < end) {
+            int runStart = run.getKey();
+            int runEnd = runStart + run.getValue();
+            removeRun(runStart, run.getValue());
+            if (runStart < start) {
+                addRun(runStart, start - runStart);
+            }
+            if (runEnd > end) {
+                addRun(end, runEnd - end);
+            }
+            run = runsByStart.higherEntry(runStart);
+        }
+    }
+
+    private void removeRun(int start, int length) {
+        runsByStart.remove(start);
+        runsBySize.remove(bySizeKey(start, length));
+        freeSectors -= length;
+    }
+
+    /**
+     * Removes the free sectors at the end of the file, if any.
+     *
+     * @return The new amount of sectors in the file.
+     */
+    public int shrinkToFit() {
+        Entry<Integer, Integer> last = runsByStart.lastEntry();
+        if (last != null && last.getKey() + last.getValue() == size) {
+            removeRun(last.getKey(), last.getValue());
+            size = last.getKey();
+        }
+        return size;
+    }
+
+    /**
+     * Gets the amount of sectors in the file, both free and used.
+     *
+     * @return The amount of sectors.
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,62 @@
+package nl.rutgerkok.hammer.anvil;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ChunkAreaTest {
+
+    @Test
+    public void testBox() {
+        ChunkArea box = ChunkArea.box(10, 5, -2, -3);
+        assertTrue(box.contains(-2, -3));
+        assertTrue(box.contains(10, 5));
+        assertFalse(box.contains(11, 5));
+        assertTrue(box.intersects(10, 5, 40, 40));
+        assertFalse(box.intersects(11, 0, 40, 40));
+    }
+
+    @Test
+    public void testCircle() {
+        ChunkArea circle = ChunkArea.circle(0, 0, 5);
+        assertTrue(circle.contains(3, 4));
+        assertFalse(circle.contains(4, 4));
+        assertTrue(circle.intersects(5, -10, 20, 10));
+        assertFalse(circle.intersects(4, 4, 20, 20));
+    }
+
+    @Test
+    public void testPolygon() {
+        // Triangle with corners (0, 0), (10, 0) and (0, 10)
+        ChunkArea triangle = ChunkArea.polygon(new int[] { 0, 10, 0 }, new int[] { 0, 0, 10 });
+        assertTrue(triangle.contains(0, 0));
+        assertTrue(triangle.contains(4, 4));
+        assertFalse(triangle.contains(5, 5));
+        assertFalse(triangle.contains(-1, 0));
+        assertTrue(triangle.intersects(0, 0, 31, 31));
+        assertFalse(triangle.intersects(32, 0, 63, 31));
+        assertTrue(triangle.intersects(2, 2, 3, 3)); // Box inside the triangle
+        assertFalse(triangle.intersects(8, 8, 20, 20)); // Box next to the diagonal
+
+        // Star drawn in one line: the pentagon in the middle is enclosed twice,
+        // so it is outside with the even-odd rule
+        ChunkArea star = ChunkArea.polygon(new int[] { 5, 8, 0, 10, 2 }, new int[] { 0, 10, 3, 3, 10 });
+        assertTrue(star.contains(5, 2)); // Top point
+        assertTrue(star.contains(1, 3)); // Left point
+        assertFalse(star.contains(4, 5)); // Middle
+        assertFalse(star.contains(0, 8));
+        assertFalse(star.intersects(4, 4, 5, 5)); // Box in the middle
+        assertTrue(star.intersects(4, 4, 6, 6)); // Box over an edge
+    }
+
+    @Test
+    public void testUnion() {
+        ChunkArea union = ChunkArea.union(ChunkArea.box(0, 0, 1, 1), ChunkArea.circle(100, 100, 2));
+        assertTrue(union.contains(1, 1));
+        assertTrue(union.contains(100, 102));
+        assertFalse(union.contains(50, 50));
+        assertFalse(union.intersects(32, 32, 63, 63));
+        assertTrue(union.intersects(96, 96, 127, 127));
+    }
+}
@@ -1,18 +1,28 @@
 package nl.rutgerkok.hammer.anvil;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Random;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import nl.rutgerkok.hammer.Chunk;
 import nl.rutgerkok.hammer.ChunkAccess;
 import nl.rutgerkok.hammer.material.GlobalMaterialMap;
 import nl.rutgerkok.hammer.material.MaterialData;
+import nl.rutgerkok.hammer.tag.CompoundKey;
 import nl.rutgerkok.hammer.util.MaterialNotFoundException;
+import nl.rutgerkok.hammer.util.Result;
 import nl.rutgerkok.hammer.util.TestFile;
 
 /**
@@ -20,6 +30,11 @@ import nl.rutgerkok.hammer.util.TestFile;
  */
 public class ChunkRandomAccessTest {
 
+    private static final CompoundKey<byte[]> LARGE_DATA = CompoundKey.of("HammerLargeData");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private AnvilWorld world;
 
     @Before
@@ -50,4 +65,69 @@ public class ChunkRandomAccessTest {
         }
 
     }
+
+    @Test
+    public void testRawChunkCopy() throws IOException, MaterialNotFoundException {
+        Path levelDat = TestFile.copyWorld("anvil_1_13", temporaryFolder.getRoot().toPath());
+        AnvilWorld copy = new AnvilWorld(new GlobalMaterialMap(), levelDat);
+
+        try (AnvilChunkAccess source = world.getChunkAccess();
+                AnvilChunkAccess target = copy.getChunkAccess()) {
+            RawChunk rawChunk = source.getRawChunk(RegionFileType.CHUNK, 0, 9);
+            assertNull(source.getRawChunk(RegionFileType.CHUNK, 1000, 1000));
+
+            // Copy to a different region file, and to the same region file
+            assertTrue(source.copyRawChunk(RegionFileType.CHUNK, 0, 9, target, 1, 40));
+            target.saveRawChunk(RegionFileType.CHUNK, 2, 9, rawChunk);
+            assertFalse(source.copyRawChunk(RegionFileType.CHUNK, 1000, 1000, target, 3, 9));
+
+            for (int[] position : new int[][] { { 1, 40 }, { 2, 9 } }) {
+                RawChunk copied = target.getRawChunk(RegionFileType.CHUNK, position[0], position[1]);
+                assertEquals(rawChunk.getCompression(), copied.getCompression());
+                assertArrayEquals(rawChunk.getData(), copied.getData());
+                AnvilChunk chunk = target.getChunk(position[0], position[1]);
+                assertEquals("minecraft:bedrock", chunk.getMaterial(0, 0, 0).getName());
+            }
+        }
+    }
+
+    @Test
+    public void testOversizedChunk() throws IOException {
+        Path levelDat = TestFile.copyWorld("anvil_1_13", temporaryFolder.getRoot().toPath());
+        AnvilWorld copy = new AnvilWorld(new GlobalMaterialMap(), levelDat);
+        Path externalFile = copy.getRegionParentFolder().resolve("region").resolve("c.0.9.mcc");
+
+        // Random data doesn't compress, so this won't fit in the region file
+        byte[] largeData = new byte[3 * 1024 * 1024];
+        new Random(0).nextBytes(largeData);
+        try (ChunkAccess<AnvilChunk> chunkAccess = copy.getChunkAccess()) {
+            AnvilChunk chunk = chunkAccess.getChunk(0, 9);
+            chunk.getTag().setByteArray(LARGE_DATA, largeData);
+            chunkAccess.saveChunk(chunk);
+        }
+        assertTrue(Files.exists(externalFile));
+
+        try (ChunkAccess<AnvilChunk> chunkAccess = copy.getChunkAccess()) {
+            AnvilChunk chunk = chunkAccess.getChunk(0, 9);
+            assertArrayEquals(largeData, chunk.getTag().getByteArray(LARGE_DATA, largeData.length));
+            assertEquals("minecraft:bedrock", chunk.getMaterial(0, 0, 0).getName());
+        }
+
+        // Also readable by the pipeline, which reads the compressed bytes
+        copy.walkAnvilChunks((chunk, progress) -> {
+            if (chunk.getChunkX() == 0 && chunk.getChunkZ() == 9) {
+                assertArrayEquals(largeData, chunk.getTag().getByteArray(LARGE_DATA, largeData.length));
+                chunk.getTag().remove(LARGE_DATA);
+                return Result.CHANGED;
+            }
+            return Result.NO_CHANGES;
+        }, new ChunkWalkOptions().setPipelined(true));
+
+        // Chunk is small again, so external file must be gone
+        assertFalse(Files.exists(externalFile));
+        try (ChunkAccess<AnvilChunk> chunkAccess = copy.getChunkAccess()) {
+            AnvilChunk chunk = chunkAccess.getChunk(0, 9);
+            assertFalse(chunk.getTag().containsKey(LARGE_DATA));
+        }
+    }
 }
@@ -0,0 +1,49 @@
+package nl.rutgerkok.hammer.anvil;
+
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.rutgerkok.hammer.anvil.RegionFileSettings.Durability;
+
+public class ChunkWalkCheckpointTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testSaveFlushesRegionFiles() throws IOException {
+        Path worldFolder = temporaryFolder.getRoot().toPath();
+        Path checkpointFile = worldFolder.resolve("checkpoint.txt");
+        RegionFileCache regionFileCache = new RegionFileCache(worldFolder,
+                new RegionFileSettings().setDurability(Durability.ORDERED).setHeaderFlushInterval(64));
+        ChunkWalkCheckpoint checkpoint = ChunkWalkCheckpoint
+                .load(new ChunkWalkOptions().setCheckpointFile(checkpointFile), regionFileCache);
+
+        try (RegionFileCache.Claim claim = regionFileCache.claim()) {
+            // Saved chunk, but the header isn't flushed yet
+            RegionFile regionFile = regionFileCache.getRegionFile(RegionFileType.CHUNK, 3, 4);
+            try (OutputStream stream = regionFile.getChunkOutputStream(3, 4)) {
+                stream.write(new byte[] { 1, 2, 3 });
+            }
+            checkpoint.chunkDone(3, 4);
+            checkpoint.save();
+
+            // Now the region file on disk must contain the chunk
+            Path file = worldFolder.resolve(RegionFileType.CHUNK.folderName).resolve("r.0.0.mca");
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+                raf.seek((3 + 4 * RegionFile.REGION_CHUNK_COUNT) * 4);
+                assertNotEquals(0, raf.readInt());
+            }
+            assertTrue(checkpoint.isChunkDone(3, 4));
+        }
+    }
+}
@@ -1,27 +1,234 @@
 package nl.rutgerkok.hammer.anvil;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import nl.rutgerkok.hammer.CountingChunkVisitor;
+import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.ChunkRootTag;
+import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.ChunkTag;
+import nl.rutgerkok.hammer.anvil.tag.CompoundView;
+import nl.rutgerkok.hammer.anvil.tag.NbtHandler;
 import nl.rutgerkok.hammer.material.GlobalMaterialMap;
+import nl.rutgerkok.hammer.tag.CompoundTag;
+import nl.rutgerkok.hammer.tag.TagProjection;
+import nl.rutgerkok.hammer.tag.TagType;
+import nl.rutgerkok.hammer.util.Result;
 import nl.rutgerkok.hammer.util.TestFile;
+import nl.rutgerkok.hammer.util.Visitor;
 
 public class ChunkWalkTest {
 
+    private static final String WORLD_NAME = "anvil_1_13";
+
+    /**
+     * Deletes a quarter of the chunks, so that the region files get some free
+     * space.
+     */
+    private static final Visitor<AnvilChunk> DELETE_SOME = (chunk, progress) -> (chunk.getChunkX() + chunk.getChunkZ())
+            % 4 == 0 ? Result.DELETE : Result.NO_CHANGES;
+
+    /**
+     * What a plain sequential walk sees in the test world; other kinds of
+     * walks must see the same.
+     */
+    private static CountingChunkVisitor sequentialCounts;
+
+    private static void assertSameCounts(CountingChunkVisitor visitor) {
+        assertEquals(sequentialCounts.chunksSeen.get(), visitor.chunksSeen.get());
+        assertEquals(sequentialCounts.entitiesSeen.get(), visitor.entitiesSeen.get());
+        assertEquals(sequentialCounts.tileEntitiesSeen.get(), visitor.tileEntitiesSeen.get());
+    }
+
+    private static Set<List<Integer>> chunkCoords(AnvilWorld world) throws IOException {
+        Set<List<Integer>> coords = new HashSet<>();
+        for (RegionHeader header : world.scanRegionHeaders(RegionFileType.CHUNK, new ChunkWalkOptions())) {
+            for (ChunkHeader chunk : header.getChunks()) {
+                coords.add(Arrays.asList(chunk.getChunkX(), chunk.getChunkZ()));
+            }
+        }
+        return coords;
+    }
+
+    private static long getRegionFilesSize(AnvilWorld world) throws IOException {
+        long size = 0;
+        for (RegionHeader header : world.scanRegionHeaders(RegionFileType.CHUNK, new ChunkWalkOptions())) {
+            size += header.getFileSize();
+        }
+        return size;
+    }
+
+    @BeforeClass
+    public static void countChunks() throws IOException {
+        sequentialCounts = new CountingChunkVisitor();
+        new AnvilWorld(new GlobalMaterialMap(), TestFile.get(WORLD_NAME + "/level.dat")).walkChunks(sequentialCounts);
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private AnvilWorld world;
 
+    /**
+     * Creates a copy of the test world, for tests that change the world.
+     *
+     * @return The copy.
+     * @throws IOException
+     *             If copying fails.
+     */
+    private AnvilWorld copyWorld() throws IOException {
+        Path levelDat = TestFile.copyWorld(WORLD_NAME, temporaryFolder.newFolder().toPath());
+        return new AnvilWorld(new GlobalMaterialMap(), levelDat);
+    }
+
     @Before
     public void loadWorld() throws IOException {
-        Path levelDat = TestFile.get("anvil_1_13/level.dat");
+        Path levelDat = TestFile.get(WORLD_NAME + "/level.dat");
         world = new AnvilWorld(new GlobalMaterialMap(), levelDat);
     }
 
+    @Test
+    public void testScanChunks() throws IOException {
+        Set<List<Integer>> chunksSeen = ConcurrentHashMap.newKeySet();
+        AtomicInteger tileEntitiesSeen = new AtomicInteger();
+        world.scanChunks((chunkX, chunkZ) -> {
+            assertTrue(chunksSeen.add(Arrays.asList(chunkX, chunkZ)));
+            return new NbtHandler() {
+                private int depth = 0;
+                private boolean inTileEntities = false;
+
+                @Override
+                public void endCompound() {
+                    depth--;
+                }
+
+                @Override
+                public boolean key(String name, TagType<?> type) {
+                    if (depth == 1) {
+                        // Inside the root tag
+                        return name.equals(ChunkRootTag.MINECRAFT.getKeyName());
+                    }
+                    inTileEntities = depth == 2 && name.equals(ChunkTag.TILE_ENTITIES.getKeyName());
+                    return inTileEntities;
+                }
+
+                @Override
+                public void startCompound() {
+                    depth++;
+                }
+
+                @Override
+                public void startList(TagType<?> elementType, int size) {
+                    if (inTileEntities) {
+                        tileEntitiesSeen.addAndGet(size);
+                        inTileEntities = false;
+                    }
+                }
+            };
+        }, new ChunkWalkOptions().setParallelism(2));
+        assertEquals(chunkCoords(world), chunksSeen);
+        assertEquals(sequentialCounts.tileEntitiesSeen.get(), tileEntitiesSeen.get());
+    }
+
+    @Test
+    public void testViewChunks() throws IOException {
+        AtomicInteger chunksSeen = new AtomicInteger();
+        AtomicInteger tileEntitiesSeen = new AtomicInteger();
+        world.viewChunks((chunkX, chunkZ, rootTag) -> {
+            chunksSeen.incrementAndGet();
+            CompoundView level = rootTag.getCompound(ChunkRootTag.MINECRAFT);
+            assertEquals(chunkX, level.getInt(ChunkTag.X_POS));
+            assertEquals(chunkZ, level.getInt(ChunkTag.Z_POS));
+            int tileEntities = level.getList(ChunkTag.TILE_ENTITIES).size();
+            tileEntitiesSeen.addAndGet(tileEntities);
+
+            // Decoding the view must give the same result
+            CompoundTag decoded = rootTag.toCompoundTag().getCompound(ChunkRootTag.MINECRAFT);
+            assertEquals(tileEntities, decoded.getList(ChunkTag.TILE_ENTITIES, TagType.COMPOUND).size());
+        }, new ChunkWalkOptions().setParallelism(2));
+        assertEquals(sequentialCounts.chunksSeen.get(), chunksSeen.get());
+        assertEquals(sequentialCounts.tileEntitiesSeen.get(), tileEntitiesSeen.get());
+    }
+
+    @Test
+    public void testScanRegionHeaders() throws IOException {
+        List<RegionHeader> headers = world.scanRegionHeaders(RegionFileType.CHUNK,
+                new ChunkWalkOptions().setParallelism(4));
+        int chunkCount = 0;
+        for (RegionHeader header : headers) {
+            chunkCount += header.getChunkCount();
+            BitSet usedSectors = new BitSet();
+            for (ChunkHeader chunk : header.getChunks()) {
+                assertEquals(header.getRegionX(), chunk.getChunkX() >> 5);
+                assertEquals(header.getRegionZ(), chunk.getChunkZ() >> 5);
+                assertTrue(chunk.getSectorNumber() >= 2);
+                assertTrue(chunk.getSectorNumber() + chunk.getSectorCount() <= header.getFileSize() / 4096);
+
+                int end = chunk.getSectorNumber() + chunk.getSectorCount();
+                assertTrue(chunk.toString(), usedSectors.get(chunk.getSectorNumber(), end).isEmpty());
+                usedSectors.set(chunk.getSectorNumber(), end);
+            }
+        }
+        assertEquals(sequentialCounts.chunksSeen.get(), chunkCount);
+    }
+
+    @Test
+    public void testSectorOrdered() throws IOException {
+        CountingChunkVisitor sectorOrderedVisitor = new CountingChunkVisitor();
+        world.walkChunks(sectorOrderedVisitor, new ChunkWalkOptions().setSectorOrdered(true).setParallelism(2));
+        assertSameCounts(sectorOrderedVisitor);
+
+        // Within a region, chunks are visited in the order they are stored
+        Map<List<Integer>, List<List<Integer>>> visitedByRegion = new HashMap<>();
+        world.walkAnvilChunks((chunk, progress) -> {
+            visitedByRegion.computeIfAbsent(Arrays.asList(chunk.getChunkX() >> 5, chunk.getChunkZ() >> 5),
+                    region -> new ArrayList<>()).add(Arrays.asList(chunk.getChunkX(), chunk.getChunkZ()));
+            return Result.NO_CHANGES;
+        }, new ChunkWalkOptions().setSectorOrdered(true));
+        for (RegionHeader header : world.scanRegionHeaders(RegionFileType.CHUNK, new ChunkWalkOptions())) {
+            List<ChunkHeader> chunks = new ArrayList<>(header.getChunks());
+            chunks.sort(Comparator.comparingInt(ChunkHeader::getSectorNumber));
+            List<List<Integer>> expected = new ArrayList<>();
+            for (ChunkHeader chunk : chunks) {
+                expected.add(Arrays.asList(chunk.getChunkX(), chunk.getChunkZ()));
+            }
+            assertEquals(header.toString(), expected,
+                    visitedByRegion.get(Arrays.asList(header.getRegionX(), header.getRegionZ())));
+        }
+
+        CountingChunkVisitor pipelinedVisitor = new CountingChunkVisitor();
+        world.walkChunks(pipelinedVisitor,
+                new ChunkWalkOptions().setSectorOrdered(true).setPipelined(true).setReadAheadBytes(8192));
+        assertSameCounts(pipelinedVisitor);
+    }
+
     @Test
     public void testStatistics() throws IOException {
         CountingChunkVisitor chunkVisitor = new CountingChunkVisitor();
@@ -30,4 +237,347 @@ public class ChunkWalkTest {
         assertEquals(427, chunkVisitor.entitiesSeen.get());
         assertEquals(113, chunkVisitor.tileEntitiesSeen.get());
     }
+
+    @Test
+    public void testOtherCompressionTypes() throws IOException {
+        for (ChunkCompression compression : new ChunkCompression[] { ChunkCompression.LZ4, ChunkCompression.NONE }) {
+            AnvilWorld copy = copyWorld();
+            copy.getRegionFileSettings().setWriteCompression(compression);
+            copy.walkAnvilChunks((chunk, progress) -> {
+                chunk.getTag().setLong(ChunkTag.INHABITED_TIME, 4321);
+                return Result.CHANGED;
+            });
+
+            // Chunks are now stored with the new compression
+            for (RegionHeader header : copy.scanRegionHeaders(RegionFileType.CHUNK, new ChunkWalkOptions())) {
+                RegionFile regionFile = new RegionFile(header.getFile(), header.getRegionX(), header.getRegionZ(),
+                        new RegionFileSettings());
+                for (ChunkHeader chunk : header.getChunks()) {
+                    assertEquals(compression, regionFile.readRawChunk(chunk.getChunkX() & 31,
+                            chunk.getChunkZ() & 31).getCompression());
+                }
+                regionFile.close();
+            }
+
+            CountingChunkVisitor copyVisitor = new CountingChunkVisitor();
+            copy.walkChunks(copyVisitor);
+            assertSameCounts(copyVisitor);
+            copy.walkAnvilChunks((chunk, progress) -> {
+                assertEquals(4321, chunk.getTag().getLong(ChunkTag.INHABITED_TIME));
+                return Result.NO_CHANGES;
+            });
+        }
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        AnvilWorld copy = copyWorld();
+        copy.walkAnvilChunks(DELETE_SOME);
+        Set<List<Integer>> remainingChunks = chunkCoords(copy);
+        long sizeBefore = getRegionFilesSize(copy);
+
+        CompactionReport report = copy.compact(0, new ChunkWalkOptions().setParallelism(4));
+        CompactionReport.Entry chunks = report.get(RegionFileType.CHUNK);
+        assertEquals(copy.scanRegionHeaders(RegionFileType.CHUNK, new ChunkWalkOptions()).size(),
+                chunks.getRegionCount());
+        assertTrue(chunks.getCompactedRegionCount() > 0);
+        assertEquals(0, chunks.getCorruptOffsetCount());
+        assertEquals(0, report.get(RegionFileType.POINT_OF_INTEREST).getRegionCount());
+
+        // The report matches the files on disk
+        assertEquals(sizeBefore, chunks.getBytesBefore());
+        assertTrue(chunks.getBytesSaved() > 0);
+        assertEquals(sizeBefore - chunks.getBytesSaved(), getRegionFilesSize(copy));
+
+        // All remaining chunks survived, and nothing is left to compact
+        assertEquals(remainingChunks, chunkCoords(copy));
+        copy.walkAnvilChunks((chunk, progress) -> {
+            assertEquals(chunk.getChunkX(), chunk.getTag().getInt(ChunkTag.X_POS));
+            return Result.NO_CHANGES;
+        });
+        assertEquals(0, copy.compact(0, new ChunkWalkOptions()).getBytesSaved());
+    }
+
+    @Test
+    public void testDefragment() throws IOException {
+        AnvilWorld compacted = copyWorld();
+        AnvilWorld defragmented = copyWorld();
+
+        // Free up some space in the same way in both worlds
+        compacted.walkAnvilChunks(DELETE_SOME);
+        defragmented.walkAnvilChunks(DELETE_SOME);
+
+        // Same work as compacting, only without the report
+        long bytesSaved = compacted.compact(0, new ChunkWalkOptions()).getBytesSaved();
+        assertTrue(bytesSaved > 0);
+        assertEquals(bytesSaved, defragmented.defragment(0, new ChunkWalkOptions()));
+        assertEquals(0, defragmented.defragment(0, new ChunkWalkOptions()));
+    }
+
+    @Test
+    public void testProjection() throws IOException {
+        ChunkWalkOptions options = new ChunkWalkOptions()
+                .setProjection(TagProjection.none().with(ChunkRootTag.MINECRAFT, ChunkTag.TILE_ENTITIES));
+        AtomicInteger chunksWithSections = new AtomicInteger();
+        CountingChunkVisitor projectedVisitor = new CountingChunkVisitor();
+        world.walkAnvilChunks((chunk, progress) -> {
+            if (!chunk.getChunkSections().isEmpty()) {
+                chunksWithSections.incrementAndGet();
+            }
+            return projectedVisitor.accept(chunk, progress);
+        }, options);
+        assertEquals(sequentialCounts.chunksSeen.get(), projectedVisitor.chunksSeen.get());
+        assertEquals(sequentialCounts.tileEntitiesSeen.get(), projectedVisitor.tileEntitiesSeen.get());
+        assertEquals(0, projectedVisitor.entitiesSeen.get());
+        assertEquals(0, chunksWithSections.get());
+
+        // Incomplete chunks cannot be saved
+        try {
+            world.walkAnvilChunks((chunk, progress) -> Result.CHANGED, options);
+            fail("Saved an incomplete chunk");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        // Lazy chunks and projections exclude each other
+        try {
+            world.walkAnvilChunks((chunk, progress) -> Result.NO_CHANGES, options.setLazyChunks(true));
+            fail("Accepted both a projection and lazy chunks");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testRecompress() throws IOException {
+        AnvilWorld copy = copyWorld();
+        copy.getRegionFileSettings().setWriteCompression(ChunkCompression.NONE);
+        RecompressionReport uncompressed = copy.recompress(new ChunkWalkOptions().setParallelism(4));
+        assertEquals(sequentialCounts.chunksSeen.get(), uncompressed.getChunkCount());
+        assertTrue(uncompressed.getBytesSaved() < 0);
+
+        copy.getRegionFileSettings().setWriteCompression(ChunkCompression.DEFLATE).setCompressionLevel(9);
+        RecompressionReport compressed = copy.recompress(new ChunkWalkOptions());
+        assertEquals(uncompressed.getBytesAfter(), compressed.getBytesBefore());
+        assertTrue(compressed.getBytesAfter() <= uncompressed.getBytesBefore());
+
+        // Recompressing again with the same settings changes nothing
+        RecompressionReport unchanged = copy.recompress(new ChunkWalkOptions());
+        assertEquals(compressed.getBytesAfter(), unchanged.getBytesBefore());
+        assertEquals(0, unchanged.getBytesSaved());
+
+        CountingChunkVisitor copyVisitor = new CountingChunkVisitor();
+        copy.walkChunks(copyVisitor);
+        assertSameCounts(copyVisitor);
+    }
+
+    @Test
+    public void testArea() throws IOException {
+        List<RegionHeader> headers = world.scanRegionHeaders(RegionFileType.CHUNK, new ChunkWalkOptions());
+        ChunkHeader someChunk = headers.get(0).getChunks().get(0);
+
+        ChunkArea area = ChunkArea.box(someChunk.getChunkX(), someChunk.getChunkZ(), someChunk.getChunkX(),
+                someChunk.getChunkZ());
+        List<List<Integer>> visited = new ArrayList<>();
+        world.walkAnvilChunks((chunk, progress) -> {
+            visited.add(Arrays.asList(chunk.getChunkX(), chunk.getChunkZ()));
+            return Result.NO_CHANGES;
+        }, new ChunkWalkOptions().setArea(area));
+        assertEquals(Arrays.asList(Arrays.asList(someChunk.getChunkX(), someChunk.getChunkZ())), visited);
+    }
+
+    @Test
+    public void testChunkPredicate() throws IOException {
+        List<RegionHeader> headers = world.scanRegionHeaders(RegionFileType.CHUNK, new ChunkWalkOptions());
+        Set<List<Integer>> largeChunks = new HashSet<>();
+        for (RegionHeader header : headers) {
+            for (ChunkHeader chunk : header.getChunks()) {
+                if (chunk.getSectorCount() > 1) {
+                    largeChunks.add(Arrays.asList(chunk.getChunkX(), chunk.getChunkZ()));
+                }
+            }
+        }
+        assertFalse(largeChunks.isEmpty());
+
+        Set<List<Integer>> visited = ConcurrentHashMap.newKeySet();
+        world.walkAnvilChunks((chunk, progress) -> {
+            visited.add(Arrays.asList(chunk.getChunkX(), chunk.getChunkZ()));
+            return Result.NO_CHANGES;
+        }, new ChunkWalkOptions().setChunkPredicate(chunk -> chunk.getSectorCount() > 1).setParallelism(2));
+        assertEquals(largeChunks, visited);
+    }
+
+    @Test
+    public void testCheckpoint() throws IOException {
+        AnvilWorld copy = copyWorld();
+        Path checkpointFile = temporaryFolder.getRoot().toPath().resolve("checkpoint.txt");
+
+        // Without any time, nothing is visited, but the checkpoint is saved
+        CountingChunkVisitor outOfTimeVisitor = new CountingChunkVisitor();
+        assertFalse(copy.walkChunks(outOfTimeVisitor,
+                new ChunkWalkOptions().setCheckpointFile(checkpointFile).setTimeLimit(Duration.ZERO)));
+        assertEquals(0, outOfTimeVisitor.chunksSeen.get());
+        assertTrue(Files.exists(checkpointFile));
+
+        // Regions marked as done are skipped
+        RegionHeader doneRegion = copy.scanRegionHeaders(RegionFileType.CHUNK, new ChunkWalkOptions()).get(0);
+        Files.write(checkpointFile, Arrays.asList("hammer-chunk-walk-checkpoint 1", "started " + Instant.now(),
+                "done " + doneRegion.getRegionX() + " " + doneRegion.getRegionZ()));
+        Set<List<Integer>> visited = ConcurrentHashMap.newKeySet();
+        assertTrue(copy.walkAnvilChunks((chunk, progress) -> {
+            assertFalse(chunk.getChunkX() >> 5 == doneRegion.getRegionX()
+                    && chunk.getChunkZ() >> 5 == doneRegion.getRegionZ());
+            visited.add(Arrays.asList(chunk.getChunkX(), chunk.getChunkZ()));
+            return Result.NO_CHANGES;
+        }, new ChunkWalkOptions().setCheckpointFile(checkpointFile).setPipelined(true)));
+        assertEquals(sequentialCounts.chunksSeen.get() - doneRegion.getChunkCount(), visited.size());
+        assertFalse(Files.exists(checkpointFile));
+    }
+
+    @Test
+    public void testCheckpointPartialRegion() throws IOException {
+        AnvilWorld copy = copyWorld();
+        Path checkpointFile = temporaryFolder.getRoot().toPath().resolve("checkpoint.txt");
+
+        // Mark the first two chunks of a region as done
+        RegionHeader region = copy.scanRegionHeaders(RegionFileType.CHUNK, new ChunkWalkOptions()).get(0);
+        List<ChunkHeader> doneChunks = region.getChunks().subList(0, 2);
+        BitSet doneBits = new BitSet();
+        for (ChunkHeader chunk : doneChunks) {
+            doneBits.set((chunk.getChunkX() & 31) + (chunk.getChunkZ() & 31) * RegionFile.REGION_CHUNK_COUNT);
+        }
+        Files.write(checkpointFile, Arrays.asList("hammer-chunk-walk-checkpoint 1", "started " + Instant.now(),
+                "partial " + region.getRegionX() + " " + region.getRegionZ() + " "
+                        + Base64.getEncoder().encodeToString(doneBits.toByteArray())));
+
+        // Only those chunks are skipped
+        Set<List<Integer>> visited = ConcurrentHashMap.newKeySet();
+        assertTrue(copy.walkAnvilChunks((chunk, progress) -> {
+            visited.add(Arrays.asList(chunk.getChunkX(), chunk.getChunkZ()));
+            return Result.NO_CHANGES;
+        }, new ChunkWalkOptions().setCheckpointFile(checkpointFile)));
+        assertEquals(sequentialCounts.chunksSeen.get() - doneChunks.size(), visited.size());
+        for (ChunkHeader chunk : doneChunks) {
+            assertFalse(visited.contains(Arrays.asList(chunk.getChunkX(), chunk.getChunkZ())));
+        }
+        assertFalse(Files.exists(checkpointFile));
+    }
+
+    @Test
+    public void testLazyChunks() throws IOException {
+        CountingChunkVisitor lazyVisitor = new CountingChunkVisitor();
+        world.walkChunks(lazyVisitor, new ChunkWalkOptions().setLazyChunks(true));
+        assertSameCounts(lazyVisitor);
+
+        // Saving chunks without ever accessing the lazy parts keeps them
+        // intact
+        AnvilWorld copy = copyWorld();
+        copy.walkAnvilChunks((chunk, progress) -> Result.CHANGED,
+                new ChunkWalkOptions().setLazyChunks(true).setPipelined(true));
+        ChunkHeader chunkHeader = copy.scanRegionHeaders(RegionFileType.CHUNK, new ChunkWalkOptions()).get(0)
+                .getChunks().get(0);
+        try (AnvilChunkAccess original = world.getChunkAccess();
+                AnvilChunkAccess saved = copy.getChunkAccess()) {
+            assertEquals(original.getChunk(chunkHeader.getChunkX(), chunkHeader.getChunkZ()).getTag(),
+                    saved.getChunk(chunkHeader.getChunkX(), chunkHeader.getChunkZ()).getTag());
+        }
+    }
+
+    @Test
+    public void testModifiedSince() throws IOException {
+        AnvilWorld copy = copyWorld();
+        Path watermarkFile = temporaryFolder.getRoot().toPath().resolve("watermark.txt");
+        ChunkWalkOptions options = new ChunkWalkOptions().setWatermarkFile(watermarkFile);
+
+        // First walk visits everything, second walk nothing
+        CountingChunkVisitor firstVisitor = new CountingChunkVisitor();
+        copy.walkChunks(firstVisitor, options);
+        assertEquals(sequentialCounts.chunksSeen.get(), firstVisitor.chunksSeen.get());
+        CountingChunkVisitor secondVisitor = new CountingChunkVisitor();
+        copy.walkChunks(secondVisitor, options);
+        assertEquals(0, secondVisitor.chunksSeen.get());
+
+        // After saving a chunk, only that chunk is visited
+        ChunkHeader chunkHeader = copy.scanRegionHeaders(RegionFileType.CHUNK, new ChunkWalkOptions()).get(0)
+                .getChunks().get(0);
+        try (AnvilChunkAccess chunkAccess = copy.getChunkAccess()) {
+            chunkAccess.saveChunk(chunkAccess.getChunk(chunkHeader.getChunkX(), chunkHeader.getChunkZ()));
+        }
+        List<List<Integer>> visited = new ArrayList<>();
+        copy.walkAnvilChunks((chunk, progress) -> {
+            visited.add(Arrays.asList(chunk.getChunkX(), chunk.getChunkZ()));
+            return Result.NO_CHANGES;
+        }, options.setPipelined(true));
+        assertEquals(Arrays.asList(Arrays.asList(chunkHeader.getChunkX(), chunkHeader.getChunkZ())), visited);
+
+        // Without the watermark file, an explicit moment is used
+        CountingChunkVisitor fourthVisitor = new CountingChunkVisitor();
+        copy.walkChunks(fourthVisitor, new ChunkWalkOptions().setModifiedSince(Instant.EPOCH));
+        assertEquals(sequentialCounts.chunksSeen.get(), fourthVisitor.chunksSeen.get());
+    }
+
+    @Test
+    public void testParallelStatistics() throws IOException {
+        CountingChunkVisitor parallelVisitor = new CountingChunkVisitor();
+        world.walkChunks(parallelVisitor, new ChunkWalkOptions().setParallelism(4));
+        assertSameCounts(parallelVisitor);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            CountingChunkVisitor executorVisitor = new CountingChunkVisitor();
+            world.walkChunks(executorVisitor, new ChunkWalkOptions().setExecutor(executor));
+            assertSameCounts(executorVisitor);
+            assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPipelinedChanges() throws IOException {
+        AnvilWorld copy = copyWorld();
+        copy.walkAnvilChunks((chunk, progress) -> {
+            chunk.getTag().setLong(ChunkTag.INHABITED_TIME, 1234);
+            return Result.CHANGED;
+        }, new ChunkWalkOptions().setPipelined(true).setPipelineCapacity(4));
+
+        AtomicInteger changedChunks = new AtomicInteger();
+        copy.walkAnvilChunks((chunk, progress) -> {
+            assertEquals(1234, chunk.getTag().getLong(ChunkTag.INHABITED_TIME));
+            changedChunks.incrementAndGet();
+            return Result.NO_CHANGES;
+        });
+        assertEquals(sequentialCounts.chunksSeen.get(), changedChunks.get());
+    }
+
+    @Test
+    public void testPipelinedFailure() throws IOException {
+        // The visitor fails while the queues are full of chunks, which are
+        // then thrown away
+        AtomicInteger visited = new AtomicInteger();
+        try {
+            world.walkAnvilChunks((chunk, progress) -> {
+                if (visited.incrementAndGet() == 100) {
+                    throw new IllegalStateException("Test failure");
+                }
+                return Result.NO_CHANGES;
+            }, new ChunkWalkOptions().setPipelined(true).setSectorOrdered(true).setPipelineCapacity(16));
+            fail("Failure was not reported");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(100, visited.get());
+
+        // Next walk is not affected
+        CountingChunkVisitor pipelinedVisitor = new CountingChunkVisitor();
+        world.walkChunks(pipelinedVisitor, new ChunkWalkOptions().setPipelined(true));
+        assertSameCounts(pipelinedVisitor);
+    }
+
+    @Test
+    public void testPipelinedStatistics() throws IOException {
+        CountingChunkVisitor pipelinedVisitor = new CountingChunkVisitor();
+        world.walkChunks(pipelinedVisitor, new ChunkWalkOptions().setPipelined(true));
+        assertSameCounts(pipelinedVisitor);
+    }
 }
@@ -0,0 +1,184 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * File channel that behaves as if the thread was interrupted just after the
+ * channel transferred half of the bytes of an operation: like a real
+ * {@link FileChannel}, it then closes itself and throws a
+ * {@link ClosedByInterruptException}, even though bytes were transferred and
+ * buffer positions were moved.
+ */
+final class InterruptingFileChannel extends FileChannel {
+
+    /**
+     * The kind of operation that is interrupted.
+     */
+    enum Operation {
+        READ,
+        WRITE,
+        TRANSFER_TO
+    }
+
+    /**
+     * Replaces the channel of the region file, so that the first operation of
+     * the given kind is interrupted.
+     *
+     * @param regionFile
+     *            The region file.
+     * @param operation
+     *            The kind of operation to interrupt.
+     */
+    static void install(RegionFile regionFile, Operation operation) {
+        try {
+            Field field = RegionFile.class.getDeclaredField("channel");
+            field.setAccessible(true);
+            field.set(regionFile, new InterruptingFileChannel((FileChannel) field.get(regionFile), operation));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private final FileChannel delegate;
+    private final Operation operation;
+
+    private InterruptingFileChannel(FileChannel delegate, Operation operation) {
+        this.delegate = delegate;
+        this.operation = operation;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        delegate.force(metaData);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        delegate.close();
+    }
+
+    private ClosedByInterruptException interrupt() throws IOException {
+        Thread.currentThread().interrupt();
+        close();
+        return new ClosedByInterruptException();
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return delegate.lock(position, size, shared);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        return delegate.map(mode, position, size);
+    }
+
+    @Override
+    public long position() throws IOException {
+        return delegate.position();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        delegate.position(newPosition);
+        return this;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return delegate.read(dst);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (operation != Operation.READ) {
+            return delegate.read(dst, position);
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + (dst.remaining() + 1) / 2);
+        try {
+            delegate.read(dst, position);
+        } finally {
+            dst.limit(limit);
+        }
+        throw interrupt();
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        return delegate.read(dsts, offset, length);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return delegate.size();
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        return delegate.transferFrom(src, position, count);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (operation != Operation.TRANSFER_TO) {
+            return delegate.transferTo(position, count, target);
+        }
+        delegate.transferTo(position, (count + 1) / 2, target);
+        throw interrupt();
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        delegate.truncate(size);
+        return this;
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return delegate.tryLock(position, size, shared);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return delegate.write(src);
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        return delegate.write(src, position);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (operation != Operation.WRITE) {
+            return delegate.write(srcs, offset, length);
+        }
+        long toWrite = 0;
+        for (int i = offset; i < offset + length; i++) {
+            toWrite += srcs[i].remaining();
+        }
+        toWrite = (toWrite + 1) / 2;
+        for (int i = offset; i < offset + length && toWrite > 0; i++) {
+            ByteBuffer src = srcs[i];
+            int limit = src.limit();
+            src.limit(src.position() + (int) Math.min(src.remaining(), toWrite));
+            try {
+                while (src.hasRemaining()) {
+                    toWrite -= delegate.write(src);
+                }
+            } finally {
+                src.limit(limit);
+            }
+        }
+        throw interrupt();
+    }
+}
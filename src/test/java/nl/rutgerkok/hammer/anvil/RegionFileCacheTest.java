@@ -0,0 +1,80 @@
+package nl.rutgerkok.hammer.anvil;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RegionFileCacheTest {
+
+    /**
+     * More than the cache holds, so that region files get evicted.
+     */
+    private static final int REGION_COUNT = 300;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testConcurrentLoads() throws Exception {
+        RegionFileCache cache = new RegionFileCache(temporaryFolder.getRoot().toPath(), new RegionFileSettings());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (RegionFileCache.Claim claim = cache.claim()) {
+            // All threads get the same instances
+            List<Future<List<RegionFile>>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(() -> {
+                    List<RegionFile> regionFiles = new ArrayList<>();
+                    for (int regionX = 0; regionX < 20; regionX++) {
+                        regionFiles.add(cache.getRegionFile(RegionFileType.CHUNK, regionX << 5, 0));
+                    }
+                    return regionFiles;
+                }));
+            }
+            List<RegionFile> first = results.get(0).get();
+            for (Future<List<RegionFile>> result : results) {
+                List<RegionFile> regionFiles = result.get();
+                for (int i = 0; i < regionFiles.size(); i++) {
+                    assertSame(first.get(i), regionFiles.get(i));
+                }
+            }
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testEvictedWhilePinned() throws IOException {
+        RegionFileCache cache = new RegionFileCache(temporaryFolder.getRoot().toPath(), new RegionFileSettings());
+        try (RegionFileCache.Claim claim = cache.claim()) {
+            RegionFile pinned;
+            try (RegionFileCache.Pin pin = cache.pin(0, 0)) {
+                pinned = cache.getRegionFile(RegionFileType.CHUNK, 0, 0);
+                for (int regionX = 1; regionX <= REGION_COUNT; regionX++) {
+                    cache.getRegionFile(RegionFileType.CHUNK, regionX << 5, 0);
+                }
+
+                // Evicted by now, but still open, so handed out again
+                assertSame(pinned, cache.getRegionFile(RegionFileType.CHUNK, 0, 0));
+            }
+
+            // Once evicted after unpinning, a new instance is opened
+            for (int regionX = 1; regionX <= REGION_COUNT; regionX++) {
+                cache.getRegionFile(RegionFileType.CHUNK, regionX << 5, 0);
+            }
+            assertNotSame(pinned, cache.getRegionFile(RegionFileType.CHUNK, 0, 0));
+        }
+    }
+}
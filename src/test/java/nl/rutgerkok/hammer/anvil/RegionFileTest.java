@@ -0,0 +1,392 @@
+package nl.rutgerkok.hammer.anvil;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.ByteStreams;
+
+import nl.rutgerkok.hammer.anvil.InterruptingFileChannel.Operation;
+import nl.rutgerkok.hammer.anvil.RegionFile.PrefetchedChunk;
+import nl.rutgerkok.hammer.anvil.RegionFileSettings.Durability;
+
+public class RegionFileTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Creates a region file with two chunks, and then simulates a crash while
+     * the second chunk was being added to the header.
+     */
+    private Path createCrashedRegionFile(boolean completeJournal) throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("r.0.0.mca");
+        RegionFile regionFile = new RegionFile(file, 0, 0, new RegionFileSettings().setHeaderFlushInterval(1));
+        writeChunk(regionFile, 0, 0, new byte[100]);
+        writeChunk(regionFile, 1, 0, new byte[] { 1, 2, 3 });
+        regionFile.close();
+        int offset = readOffsetOnDisk(file, 1, 0);
+
+        // Journal with the header entry of the second chunk
+        ByteBuffer journal = ByteBuffer.allocate(8 + 12 + 8);
+        journal.putInt(0x484a524e).putInt(1);
+        journal.putInt(1).putInt(offset).putInt(1234);
+        CRC32 checksum = new CRC32();
+        checksum.update(journal.array(), 0, journal.position());
+        journal.putLong(checksum.getValue());
+        byte[] journalBytes = journal.array();
+        if (!completeJournal) {
+            journalBytes = Arrays.copyOf(journalBytes, journalBytes.length - 3);
+        }
+        Files.write(file.resolveSibling("r.0.0.mca.journal"), journalBytes);
+
+        // Header entry itself didn't make it to disk
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(4);
+            raf.writeInt(0);
+        }
+        return file;
+    }
+
+    private int readOffsetOnDisk(Path file, int x, int z) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            raf.seek((x + z * RegionFile.REGION_CHUNK_COUNT) * 4);
+            return raf.readInt();
+        }
+    }
+
+    private byte[] readChunk(RegionFile regionFile, int x, int z) throws IOException {
+        try (InputStream stream = regionFile.getChunkInputStream(x, z)) {
+            return ByteStreams.toByteArray(stream);
+        }
+    }
+
+    private void writeChunk(RegionFile regionFile, int x, int z, byte[] data) throws IOException {
+        try (OutputStream stream = regionFile.getChunkOutputStream(x, z)) {
+            stream.write(data);
+        }
+    }
+
+    @Test
+    public void testCorruptOffsetCount() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("r.0.0.mca");
+        RegionFile regionFile = new RegionFile(file, 0, 0, new RegionFileSettings());
+        writeChunk(regionFile, 0, 0, new byte[100]);
+        regionFile.close();
+        int offset = readOffsetOnDisk(file, 0, 0);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(4);
+            raf.writeInt(offset); // Same sectors as chunk 0, 0
+            raf.writeInt((1 << 8) | 1); // Inside the header
+            raf.writeInt((1000 << 8) | 1); // Beyond the end of the file
+        }
+
+        regionFile = new RegionFile(file, 0, 0, new RegionFileSettings());
+        assertEquals(3, regionFile.getCorruptOffsetCount());
+        regionFile.close();
+    }
+
+    @Test
+    public void testDefragment() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("r.0.0.mca");
+        RegionFileSettings settings = new RegionFileSettings().setWriteCompression(ChunkCompression.NONE);
+        RegionFile regionFile = new RegionFile(file, 0, 0, settings);
+        for (int i = 0; i < 10; i++) {
+            byte[] data = new byte[5000];
+            data[0] = (byte) i;
+            writeChunk(regionFile, i, 0, data);
+        }
+        for (int i = 0; i < 5; i++) {
+            regionFile.deleteChunk(i, 0);
+        }
+        regionFile.flush();
+        long sizeBefore = Files.size(file);
+
+        assertEquals(2, regionFile.defragment(2));
+        while (regionFile.defragment(2) > 0) {
+            // Keep going
+        }
+        assertEquals(0, regionFile.getSectorStatistics().getFreeSectorCount());
+        assertEquals(sizeBefore - 10 * 4096, Files.size(file));
+        for (int i = 5; i < 10; i++) {
+            byte[] data = new byte[5000];
+            data[0] = (byte) i;
+            assertArrayEquals(data, readChunk(regionFile, i, 0));
+        }
+        regionFile.close();
+
+        // New offsets must have been written to disk
+        regionFile = new RegionFile(file, 0, 0, settings);
+        assertEquals(9, readChunk(regionFile, 9, 0)[0]);
+        regionFile.close();
+    }
+
+    @Test
+    public void testReadCompressedChunks() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("r.0.0.mca");
+        RegionFileSettings settings = new RegionFileSettings().setWriteCompression(ChunkCompression.NONE);
+        RegionFile regionFile = new RegionFile(file, 0, 0, settings);
+        // Written in reverse, so sector order differs from coordinate order
+        for (int i = 9; i >= 0; i--) {
+            byte[] data = new byte[100 + i * 1000];
+            data[0] = (byte) i;
+            writeChunk(regionFile, i, 0, data);
+        }
+
+        int[] indices = regionFile.getChunksInSectorOrder();
+        assertArrayEquals(new int[] { 9, 8, 7, 6, 5, 4, 3, 2, 1, 0 }, indices);
+
+        // Chunks 9 to 6 take up 3 + 3 + 2 + 2 sectors
+        List<PrefetchedChunk> chunks = regionFile.readCompressedChunks(indices, 0, 10 * 4096);
+        assertEquals(4, chunks.size());
+        for (PrefetchedChunk chunk : chunks) {
+            try (InputStream stream = RegionFile.decompress(chunk.data)) {
+                byte[] data = ByteStreams.toByteArray(stream);
+                assertEquals(100 + chunk.localChunkX * 1000, data.length);
+                assertEquals(chunk.localChunkX, data[0]);
+            }
+        }
+
+        // Always at least one chunk
+        chunks = regionFile.readCompressedChunks(indices, 9, 1);
+        assertEquals(1, chunks.size());
+        assertEquals(0, chunks.get(0).localChunkX);
+        chunks.get(0).data.close();
+        regionFile.close();
+    }
+
+    @Test
+    public void testHeaderFlushedAfterEveryWriteByDefault() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("r.0.0.mca");
+        RegionFile regionFile = new RegionFile(file, 0, 0,
+                new RegionFileSettings().setWriteCompression(ChunkCompression.NONE));
+        writeChunk(regionFile, 0, 0, new byte[100]);
+        int oldOffset = readOffsetOnDisk(file, 0, 0);
+        assertNotEquals(0, oldOffset);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            raf.seek(RegionFile.SECTOR_BYTES);
+            assertNotEquals(0, raf.readInt()); // Timestamp
+        }
+
+        // Chunk grows to two sectors, and the freed sector is reused right
+        // away, so the file doesn't grow
+        writeChunk(regionFile, 0, 0, new byte[5000]);
+        assertNotEquals(oldOffset, readOffsetOnDisk(file, 0, 0));
+        writeChunk(regionFile, 1, 0, new byte[100]);
+        assertEquals(oldOffset >> 8, readOffsetOnDisk(file, 1, 0) >> 8);
+        regionFile.close();
+    }
+
+    @Test
+    public void testHeaderFlushInterval() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("r.0.0.mca");
+        RegionFileSettings settings = new RegionFileSettings().setWriteCompression(ChunkCompression.NONE)
+                .setHeaderFlushInterval(3);
+        RegionFile regionFile = new RegionFile(file, 0, 0, settings);
+
+        writeChunk(regionFile, 0, 0, new byte[100]);
+        writeChunk(regionFile, 1, 0, new byte[100]);
+        assertEquals(0, readOffsetOnDisk(file, 0, 0)); // Not written yet
+        assertArrayEquals(new byte[100], readChunk(regionFile, 0, 0)); // But readable
+
+        writeChunk(regionFile, 2, 0, new byte[100]);
+        assertNotEquals(0, readOffsetOnDisk(file, 0, 0)); // Third write flushes
+        assertNotEquals(0, readOffsetOnDisk(file, 2, 0));
+
+        writeChunk(regionFile, 3, 0, new byte[100]);
+        assertEquals(0, readOffsetOnDisk(file, 3, 0));
+        regionFile.flush();
+        assertNotEquals(0, readOffsetOnDisk(file, 3, 0));
+        regionFile.close();
+    }
+
+    @Test
+    public void testInterruptedReader() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("r.0.0.mca");
+        RegionFile regionFile = new RegionFile(file, 0, 0, new RegionFileSettings());
+        writeChunk(regionFile, 0, 0, new byte[] { 1, 2, 3 });
+
+        // Reading while interrupted closes the channel
+        byte[][] readWhileInterrupted = new byte[1][];
+        boolean[] stillInterrupted = new boolean[1];
+        Thread reader = new Thread(() -> {
+            Thread.currentThread().interrupt();
+            try {
+                readWhileInterrupted[0] = readChunk(regionFile, 0, 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            stillInterrupted[0] = Thread.interrupted();
+        });
+        reader.start();
+        reader.join();
+        assertArrayEquals(new byte[] { 1, 2, 3 }, readWhileInterrupted[0]);
+        assertTrue(stillInterrupted[0]);
+
+        // Other threads can still use the region file
+        writeChunk(regionFile, 1, 0, new byte[] { 4, 5 });
+        assertArrayEquals(new byte[] { 4, 5 }, readChunk(regionFile, 1, 0));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, readChunk(regionFile, 0, 0));
+        regionFile.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testInterruptedAfterTransfer() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("r.0.0.mca");
+        RegionFileSettings settings = new RegionFileSettings().setWriteCompression(ChunkCompression.NONE);
+        RegionFile regionFile = new RegionFile(file, 0, 0, settings);
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+
+        // Every time, the interrupt arrives after half of the bytes were
+        // transferred, and the rest must end up in the right place
+        InterruptingFileChannel.install(regionFile, Operation.WRITE);
+        writeChunk(regionFile, 0, 0, data);
+        assertTrue(Thread.interrupted());
+
+        InterruptingFileChannel.install(regionFile, Operation.READ);
+        assertArrayEquals(data, readChunk(regionFile, 0, 0));
+        assertTrue(Thread.interrupted());
+
+        RegionFile target = new RegionFile(file.resolveSibling("r.1.0.mca"), 1, 0, settings);
+        InterruptingFileChannel.install(regionFile, Operation.TRANSFER_TO);
+        assertTrue(regionFile.transferChunk(0, 0, target, 2, 3));
+        assertTrue(Thread.interrupted());
+        assertArrayEquals(data, readChunk(target, 2, 3));
+        target.close();
+        regionFile.close();
+
+        // Also on disk
+        regionFile = new RegionFile(file, 0, 0, settings);
+        assertArrayEquals(data, readChunk(regionFile, 0, 0));
+        regionFile.close();
+    }
+
+    @Test
+    public void testJournaledWrites() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("r.0.0.mca");
+        RegionFileSettings settings = new RegionFileSettings().setDurability(Durability.JOURNALED)
+                .setHeaderFlushInterval(2);
+        RegionFile regionFile = new RegionFile(file, 0, 0, settings);
+        writeChunk(regionFile, 0, 0, new byte[] { 1 });
+        writeChunk(regionFile, 1, 0, new byte[] { 2 });
+        writeChunk(regionFile, 2, 0, new byte[] { 3 });
+        regionFile.close();
+        assertFalse(Files.exists(file.resolveSibling("r.0.0.mca.journal")));
+
+        regionFile = new RegionFile(file, 0, 0, settings);
+        assertArrayEquals(new byte[] { 1 }, readChunk(regionFile, 0, 0));
+        assertArrayEquals(new byte[] { 2 }, readChunk(regionFile, 1, 0));
+        assertArrayEquals(new byte[] { 3 }, readChunk(regionFile, 2, 0));
+        regionFile.close();
+    }
+
+    @Test
+    public void testJournalReplay() throws IOException {
+        Path file = createCrashedRegionFile(true);
+
+        RegionFile regionFile = new RegionFile(file, 0, 0, new RegionFileSettings());
+        assertFalse(Files.exists(file.resolveSibling("r.0.0.mca.journal")));
+        assertNotEquals(0, readOffsetOnDisk(file, 1, 0));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, readChunk(regionFile, 1, 0));
+        assertArrayEquals(new byte[100], readChunk(regionFile, 0, 0));
+        regionFile.close();
+    }
+
+    @Test
+    public void testJournalIncomplete() throws IOException {
+        Path file = createCrashedRegionFile(false);
+
+        RegionFile regionFile = new RegionFile(file, 0, 0, new RegionFileSettings());
+        assertFalse(Files.exists(file.resolveSibling("r.0.0.mca.journal")));
+        assertNull(regionFile.getChunkInputStream(1, 0));
+        assertArrayEquals(new byte[100], readChunk(regionFile, 0, 0));
+        regionFile.close();
+    }
+
+    @Test
+    public void testOldSectorsReusedAfterFlush() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("r.0.0.mca");
+        RegionFileSettings settings = new RegionFileSettings().setWriteCompression(ChunkCompression.NONE)
+                .setHeaderFlushInterval(100);
+        RegionFile regionFile = new RegionFile(file, 0, 0, settings);
+
+        writeChunk(regionFile, 0, 0, new byte[100]);
+        regionFile.flush();
+        int oldOffset = readOffsetOnDisk(file, 0, 0);
+
+        // Chunk grows to two sectors, and another chunk is written in the
+        // sector that was just freed
+        writeChunk(regionFile, 0, 0, new byte[5000]);
+        writeChunk(regionFile, 1, 0, new byte[100]);
+        assertEquals(oldOffset, readOffsetOnDisk(file, 0, 0));
+        regionFile.flush();
+        assertNotEquals(oldOffset >> 8, readOffsetOnDisk(file, 1, 0) >> 8);
+
+        // Now the old sector can be reused
+        writeChunk(regionFile, 2, 0, new byte[100]);
+        regionFile.flush();
+        assertEquals(oldOffset >> 8, readOffsetOnDisk(file, 2, 0) >> 8);
+        assertArrayEquals(new byte[5000], readChunk(regionFile, 0, 0));
+        regionFile.close();
+    }
+
+    @Test
+    public void testOrderedNeverOverwritesInPlace() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("r.0.0.mca");
+        RegionFileSettings settings = new RegionFileSettings().setWriteCompression(ChunkCompression.NONE)
+                .setHeaderFlushInterval(1).setDurability(Durability.ORDERED);
+        RegionFile regionFile = new RegionFile(file, 0, 0, settings);
+
+        writeChunk(regionFile, 0, 0, new byte[100]);
+        int oldOffset = readOffsetOnDisk(file, 0, 0);
+        byte[] newData = new byte[100];
+        newData[0] = 1;
+        writeChunk(regionFile, 0, 0, newData);
+        assertNotEquals(oldOffset, readOffsetOnDisk(file, 0, 0));
+        assertArrayEquals(newData, readChunk(regionFile, 0, 0));
+        regionFile.close();
+    }
+
+    @Test
+    public void testWriteIfUnchanged() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("r.0.0.mca");
+        RegionFileSettings settings = new RegionFileSettings().setWriteCompression(ChunkCompression.NONE)
+                .setDurability(Durability.NONE);
+        RegionFile regionFile = new RegionFile(file, 0, 0, settings);
+        writeChunk(regionFile, 0, 0, new byte[100]);
+        int changeCount = regionFile.getChangeCount(0, 0);
+
+        // Same size, so same sectors and offset, but still a change
+        byte[] newData = new byte[100];
+        newData[0] = 1;
+        writeChunk(regionFile, 0, 0, newData);
+        assertFalse(regionFile.writeIfUnchanged(0, 0, changeCount, ChunkCompression.NONE, new byte[50], 50));
+        assertArrayEquals(newData, readChunk(regionFile, 0, 0));
+
+        changeCount = regionFile.getChangeCount(0, 0);
+        assertTrue(regionFile.writeIfUnchanged(0, 0, changeCount, ChunkCompression.NONE, new byte[50], 50));
+        assertArrayEquals(new byte[50], readChunk(regionFile, 0, 0));
+        regionFile.close();
+    }
+}
@@ -0,0 +1,95 @@
+package nl.rutgerkok.hammer.anvil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.io.ByteStreams;
+
+import nl.rutgerkok.hammer.util.TestFile;
+
+/**
+ * Measures the garbage created for reading and writing a single chunk. Not
+ * run as part of the tests; run the main method (with the test classpath) and
+ * look at the gc.alloc.rate.norm column, which is the amount of bytes
+ * allocated per read or write.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionIoAllocationBenchmark {
+
+    private static final int CHUNK_X = 0;
+    private static final int CHUNK_Z = 9;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RegionIoAllocationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    private Path folder;
+    private RegionFile regionFile;
+    private byte[] chunkNbt;
+    private final byte[] scratch = new byte[8192];
+
+    @Benchmark
+    public int readChunk() throws IOException {
+        int total = 0;
+        try (InputStream stream = regionFile.getChunkInputStream(CHUNK_X, CHUNK_Z)) {
+            int read;
+            while ((read = stream.read(scratch)) != -1) {
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("hammer-benchmark");
+        Path file = folder.resolve("r.0.0.mca");
+        Files.copy(TestFile.get("anvil_1_13/region/r.0.0.mca"), file);
+        regionFile = new RegionFile(file, 0, 0, new RegionFileSettings());
+        try (InputStream stream = regionFile.getChunkInputStream(CHUNK_X, CHUNK_Z)) {
+            chunkNbt = ByteStreams.toByteArray(stream);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        regionFile.close();
+        Files.deleteIfExists(folder.resolve("r.0.0.mca"));
+        Files.delete(folder);
+    }
+
+    @Benchmark
+    public void writeChunk() throws IOException {
+        try (OutputStream stream = regionFile.getChunkOutputStream(CHUNK_X, CHUNK_Z)) {
+            stream.write(chunkNbt);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package nl.rutgerkok.hammer.anvil.tag;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+import nl.rutgerkok.hammer.tag.CompoundKey;
+import nl.rutgerkok.hammer.tag.CompoundTag;
+import nl.rutgerkok.hammer.tag.ListTag;
+import nl.rutgerkok.hammer.tag.TagType;
+
+public class AnvilNbtReaderTest {
+
+    private static final CompoundKey<CompoundTag> LAZY = CompoundKey.of("Lazy");
+
+    private static CompoundTag createLazyTag(int arraySize) {
+        CompoundTag nested = new CompoundTag();
+        nested.setDouble(CompoundKey.of("Double"), 1.5);
+
+        ListTag<String> strings = new ListTag<>(TagType.STRING);
+        strings.add("Naïve\u0000€");
+        strings.add("");
+
+        CompoundTag tag = new CompoundTag();
+        tag.setString(CompoundKey.of("Name"), "Test");
+        tag.setIntArray(CompoundKey.of("Ints"), new Random(arraySize).ints(arraySize).toArray());
+        tag.setList(CompoundKey.of("Strings"), strings);
+        tag.setCompound(CompoundKey.of("Nested"), nested);
+        return tag;
+    }
+
+    private static byte[] write(CompoundTag tag) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AnvilNbtWriter.writeUncompressedToStream(bytes, tag);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testLazyTag() throws IOException {
+        // Larger than the initial recording buffer, and a smaller one after
+        // that to reuse the grown buffer
+        for (int arraySize : new int[] { 3000, 10 }) {
+            CompoundTag tag = new CompoundTag();
+            tag.setCompound(LAZY, createLazyTag(arraySize));
+            tag.setInt(CompoundKey.of("After"), 4);
+            byte[] bytes = write(tag);
+
+            CompoundTag read = AnvilNbtReader.readFromUncompressedStream(new ByteArrayInputStream(bytes),
+                    Collections.singleton(LAZY));
+            assertEquals(4, read.getInt(CompoundKey.of("After")));
+            assertEquals(createLazyTag(arraySize), read.getCompound(LAZY));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package nl.rutgerkok.hammer.anvil.tag;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.ChunkRootTag;
+import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.ChunkTag;
+import nl.rutgerkok.hammer.tag.CompoundKey;
+
+public class KeyTableTest {
+
+    private static CompoundKey<?> read(String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(name);
+        return KeyTable.readKey(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void testCaseIsKept() throws IOException {
+        CompoundKey<?> key = read("sections");
+        assertEquals("sections", key.getKeyName());
+        assertEquals(ChunkTag.SECTIONS, key);
+    }
+
+    @Test
+    public void testFormatKeysAreReused() throws IOException {
+        // Only declared once in AnvilFormat, so it must be that instance
+        assertSame(ChunkTag.TILE_ENTITIES, read("TileEntities"));
+
+        // Declared multiple times, so it can be any of those instances
+        assertEquals(ChunkRootTag.DATA_VERSION, read("DataVersion"));
+        assertSame(read("DataVersion"), read("DataVersion"));
+    }
+
+    @Test(expected = UTFDataFormatException.class)
+    public void testInvalidName() throws IOException {
+        byte[] bytes = { 0, 1, (byte) 0xff };
+        KeyTable.readKey(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void testLongName() throws IOException {
+        String name = Strings.repeat("long", 100);
+        assertEquals(name, read(name).getKeyName());
+    }
+
+    @Test
+    public void testNewKeysAreReused() throws IOException {
+        CompoundKey<?> key = read("HammerKeyTableTest");
+        assertEquals("HammerKeyTableTest", key.getKeyName());
+        assertSame(key, read("HammerKeyTableTest"));
+    }
+
+    @Test
+    public void testNonAsciiName() throws IOException {
+        String name = "Naïve\u0000€";
+        assertEquals(name, read(name).getKeyName());
+    }
+}
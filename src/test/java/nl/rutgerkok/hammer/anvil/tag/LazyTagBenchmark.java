@@ -0,0 +1,86 @@
+package nl.rutgerkok.hammer.anvil.tag;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import nl.rutgerkok.hammer.anvil.AnvilChunkAccess;
+import nl.rutgerkok.hammer.anvil.AnvilWorld;
+import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.ChunkRootTag;
+import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.ChunkTag;
+import nl.rutgerkok.hammer.material.GlobalMaterialMap;
+import nl.rutgerkok.hammer.tag.CompoundKey;
+import nl.rutgerkok.hammer.tag.CompoundTag;
+import nl.rutgerkok.hammer.util.TestFile;
+
+/**
+ * Measures reading the NBT data of a single chunk completely versus with the
+ * large parts (sections, height maps and biomes) kept lazy, like
+ * {@code ChunkWalkOptions.setLazyChunks(true)} does. Not run as part of the
+ * tests; run the main method (with the test classpath) and compare the time
+ * and the gc.alloc.rate.norm column of both methods.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LazyTagBenchmark {
+
+    private static final int CHUNK_X = 0;
+    private static final int CHUNK_Z = 9;
+
+    private static final Set<CompoundKey<?>> LAZY_TAGS = new HashSet<>(
+            Arrays.asList(ChunkTag.SECTIONS, ChunkTag.HEIGHT_MAPS, ChunkTag.BIOMES));
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(LazyTagBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    private byte[] chunkNbt;
+
+    @Benchmark
+    public CompoundTag readChunk() throws IOException {
+        return AnvilNbtReader.readFromUncompressedStream(new ByteArrayInputStream(chunkNbt));
+    }
+
+    @Benchmark
+    public CompoundTag readChunkLazy() throws IOException {
+        return AnvilNbtReader.readFromUncompressedStream(new ByteArrayInputStream(chunkNbt), LAZY_TAGS);
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        AnvilWorld world = new AnvilWorld(new GlobalMaterialMap(), TestFile.get("anvil_1_13/level.dat"));
+        CompoundTag chunkTag = new CompoundTag();
+        try (AnvilChunkAccess chunkAccess = world.getChunkAccess()) {
+            chunkTag.setCompound(ChunkRootTag.MINECRAFT, chunkAccess.getChunk(CHUNK_X, CHUNK_Z).getTag());
+        }
+        ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream();
+        AnvilNbtWriter.writeUncompressedToStream(chunkBytes, chunkTag);
+        chunkNbt = chunkBytes.toByteArray();
+    }
+}
@@ -0,0 +1,143 @@
+package nl.rutgerkok.hammer.anvil.tag;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import nl.rutgerkok.hammer.anvil.AnvilChunkAccess;
+import nl.rutgerkok.hammer.anvil.AnvilWorld;
+import nl.rutgerkok.hammer.anvil.tag.AnvilFormat.ChunkRootTag;
+import nl.rutgerkok.hammer.material.GlobalMaterialMap;
+import nl.rutgerkok.hammer.tag.CompoundTag;
+import nl.rutgerkok.hammer.util.TestFile;
+
+/**
+ * Measures reading and writing the NBT data of a single chunk, and decoding
+ * the long arrays of that chunk (mostly block states) one long at a time
+ * versus in bulk. Not run as part of the tests; run the main method (with the
+ * test classpath) and compare the scores of the perElement and bulk methods.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NbtArrayBenchmark {
+
+    private static final int CHUNK_X = 0;
+    private static final int CHUNK_Z = 9;
+
+    private static void collectLongArrays(Object value, List<long[]> arrays) {
+        if (value instanceof long[]) {
+            arrays.add((long[]) value);
+        } else if (value instanceof CompoundTag) {
+            for (Entry<?, Object> entry : ((CompoundTag) value).entrySet()) {
+                collectLongArrays(entry.getValue(), arrays);
+            }
+        } else if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                collectLongArrays(element, arrays);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(NbtArrayBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    private byte[] chunkNbt;
+    private CompoundTag chunkTag;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    /**
+     * All long arrays of the chunk, each prefixed by its length.
+     */
+    private byte[] longArrays;
+    private int longArrayCount;
+
+    @Benchmark
+    public CompoundTag readChunk() throws IOException {
+        return AnvilNbtReader.readFromUncompressedStream(new ByteArrayInputStream(chunkNbt));
+    }
+
+    @Benchmark
+    public long readLongArraysBulk() throws IOException {
+        DataInput input = new DataInputStream(new ByteArrayInputStream(longArrays));
+        long total = 0;
+        for (int i = 0; i < longArrayCount; i++) {
+            long[] array = new long[input.readInt()];
+            NbtArrays.readLongs(input, array, array.length);
+            total += array[array.length - 1];
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long readLongArraysPerElement() throws IOException {
+        DataInput input = new DataInputStream(new ByteArrayInputStream(longArrays));
+        long total = 0;
+        for (int i = 0; i < longArrayCount; i++) {
+            long[] array = new long[input.readInt()];
+            for (int j = 0; j < array.length; j++) {
+                array[j] = input.readLong();
+            }
+            total += array[array.length - 1];
+        }
+        return total;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        AnvilWorld world = new AnvilWorld(new GlobalMaterialMap(), TestFile.get("anvil_1_13/level.dat"));
+        chunkTag = new CompoundTag();
+        try (AnvilChunkAccess chunkAccess = world.getChunkAccess()) {
+            chunkTag.setCompound(ChunkRootTag.MINECRAFT, chunkAccess.getChunk(CHUNK_X, CHUNK_Z).getTag());
+        }
+        ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream();
+        AnvilNbtWriter.writeUncompressedToStream(chunkBytes, chunkTag);
+        chunkNbt = chunkBytes.toByteArray();
+
+        List<long[]> arrays = new ArrayList<>();
+        collectLongArrays(chunkTag, arrays);
+        arrays.removeIf(array -> array.length == 0);
+        ByteArrayOutputStream arrayBytes = new ByteArrayOutputStream();
+        DataOutputStream arrayOutput = new DataOutputStream(arrayBytes);
+        for (long[] array : arrays) {
+            arrayOutput.writeInt(array.length);
+            NbtArrays.writeLongs(arrayOutput, array);
+        }
+        longArrays = arrayBytes.toByteArray();
+        longArrayCount = arrays.size();
+    }
+
+    @Benchmark
+    public int writeChunk() throws IOException {
+        output.reset();
+        AnvilNbtWriter.writeUncompressedToStream(output, chunkTag);
+        return output.size();
+    }
+}
@@ -0,0 +1,49 @@
+package nl.rutgerkok.hammer.anvil.tag;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class NbtArraysTest {
+
+    @Test
+    public void testIntsRoundTrip() throws IOException {
+        // Larger than one block, and not a multiple of it
+        int[] ints = new Random(1).ints(5000).toArray();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        NbtArrays.writeInts(new DataOutputStream(bytes), ints);
+        assertEquals(ints.length * 4, bytes.size());
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(ints[0], input.readInt()); // Big endian, like DataOutput
+        int[] read = new int[ints.length];
+        input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        NbtArrays.readInts(input, read, read.length);
+        assertArrayEquals(ints, read);
+    }
+
+    @Test
+    public void testLongsRoundTrip() throws IOException {
+        long[] longs = new Random(2).longs(3000).toArray();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        NbtArrays.writeLongs(new DataOutputStream(bytes), longs);
+        assertEquals(longs.length * 8, bytes.size());
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(longs[0], input.readLong()); // Big endian, like DataOutput
+        long[] read = new long[longs.length];
+        input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        NbtArrays.readLongs(input, read, read.length);
+        assertArrayEquals(longs, read);
+    }
+}
@@ -0,0 +1,187 @@
+package nl.rutgerkok.hammer.tag;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.OptionalInt;
+
+import org.junit.Test;
+
+public class CompoundTagTest {
+
+    private static final CompoundKey<Byte> BYTE = CompoundKey.of("Byte");
+    private static final CompoundKey<Double> DOUBLE = CompoundKey.of("Double");
+    private static final CompoundKey<Float> FLOAT = CompoundKey.of("Float");
+    private static final CompoundKey<Integer> INT = CompoundKey.of("Int");
+    private static final CompoundKey<Long> LONG = CompoundKey.of("Long");
+    private static final CompoundKey<Short> SHORT = CompoundKey.of("Short");
+    private static final CompoundKey<String> STRING = CompoundKey.of("String");
+
+    @Test
+    public void testCopy() {
+        CompoundTag tag = new CompoundTag();
+        tag.setInt(INT, 5);
+        tag.setIntArray(CompoundKey.of("Array"), new int[] { 1, 2, 3 });
+
+        CompoundTag copy = tag.copy();
+        assertEquals(tag, copy);
+        copy.setInt(INT, 6);
+        copy.getIntArray(CompoundKey.of("Array"), OptionalInt.empty())[0] = 10;
+        assertEquals(5, tag.getInt(INT));
+        assertEquals(1, tag.getIntArray(CompoundKey.of("Array"), OptionalInt.empty())[0]);
+    }
+
+    @Test
+    public void testEntriesAreBoxed() {
+        CompoundTag tag = new CompoundTag();
+        tag.setByte(BYTE, (byte) 1);
+        tag.setShort(SHORT, (short) 2);
+        tag.setInt(INT, 3);
+        tag.setLong(LONG, 4);
+        tag.setFloat(FLOAT, 5.5f);
+        tag.setDouble(DOUBLE, 6.5);
+        tag.setString(STRING, "seven");
+
+        Map<String, Object> values = new HashMap<>();
+        for (Entry<CompoundKey<?>, Object> entry : tag.entrySet()) {
+            values.put(entry.getKey().getKeyName(), entry.getValue());
+        }
+        assertEquals(7, values.size());
+        assertEquals(Byte.valueOf((byte) 1), values.get("Byte"));
+        assertEquals(Short.valueOf((short) 2), values.get("Short"));
+        assertEquals(Integer.valueOf(3), values.get("Int"));
+        assertEquals(Long.valueOf(4), values.get("Long"));
+        assertEquals(Float.valueOf(5.5f), values.get("Float"));
+        assertEquals(Double.valueOf(6.5), values.get("Double"));
+        assertEquals("seven", values.get("String"));
+    }
+
+    @Test
+    public void testIsType() {
+        CompoundTag tag = new CompoundTag();
+        tag.setShort(SHORT, (short) 2);
+        tag.set(FLOAT, TagType.FLOAT, 1.5f);
+
+        assertTrue(tag.isType(SHORT, TagType.SHORT));
+        assertFalse(tag.isType(CompoundKey.of("Short"), TagType.INT));
+        assertTrue(tag.isType(FLOAT, TagType.FLOAT));
+        assertFalse(tag.isType(INT, TagType.INT));
+    }
+
+    @Test
+    public void testManyKeys() {
+        CompoundTag tag = new CompoundTag();
+        for (int i = 0; i < 1000; i++) {
+            tag.setInt(CompoundKey.of("Key" + i), i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertTrue(tag.remove(CompoundKey.of("key" + i)));
+        }
+        assertEquals(500, tag.size());
+        for (int i = 0; i < 1000; i++) {
+            CompoundKey<Integer> key = CompoundKey.of("Key" + i);
+            assertEquals(i % 2 == 1, tag.containsKey(key));
+            assertEquals(i % 2 == 1 ? i : 0, tag.getInt(key));
+        }
+        assertFalse(tag.remove(CompoundKey.of("Key0")));
+    }
+
+    @Test
+    public void testNumberConversions() {
+        CompoundTag tag = new CompoundTag();
+        tag.setDouble(DOUBLE, 300.75);
+        assertEquals((byte) 300.75, tag.getByte(CompoundKey.of("Double")));
+        assertEquals(300, tag.getInt(CompoundKey.of("Double")));
+        assertEquals(300.75f, tag.getFloat(CompoundKey.of("Double")), 0);
+
+        tag.setLong(LONG, 1L << 40 | 70000);
+        assertEquals((int) (1L << 40 | 70000), tag.getInt(CompoundKey.of("Long")));
+        assertEquals((short) 70000, tag.getShort(CompoundKey.of("Long")));
+        assertEquals((double) (1L << 40 | 70000), tag.getDouble(CompoundKey.of("Long")), 0);
+
+        tag.setFloat(FLOAT, -2.5f);
+        assertEquals(-2, tag.getLong(CompoundKey.of("Float")));
+        assertEquals(-2.5, tag.getDouble(CompoundKey.of("Float")), 0);
+
+        // Not a number
+        tag.setString(STRING, "10");
+        assertEquals(0, tag.getInt(CompoundKey.of("String")));
+    }
+
+    @Test
+    public void testReplaceKeepsKey() {
+        CompoundTag tag = new CompoundTag();
+        tag.setInt(CompoundKey.of("lowercase"), 1);
+        tag.setString(CompoundKey.of("LOWERCASE"), "replaced");
+
+        assertEquals(1, tag.size());
+        Entry<CompoundKey<?>, Object> entry = tag.entrySet().iterator().next();
+        assertEquals("lowercase", entry.getKey().getKeyName());
+        assertEquals("replaced", entry.getValue());
+        assertNotEquals(new CompoundTag(), tag);
+    }
+
+    @Test
+    public void testVisitValues() {
+        CompoundTag tag = new CompoundTag();
+        tag.setByte(BYTE, (byte) 1);
+        tag.setShort(SHORT, (short) 2);
+        tag.setInt(INT, 3);
+        tag.setLong(LONG, 4);
+        tag.setFloat(FLOAT, 5.5f);
+        tag.setDouble(DOUBLE, 6.5);
+        tag.setString(STRING, "seven");
+
+        Map<String, Object> values = new HashMap<>();
+        tag.visitValues(new TagValueVisitor<RuntimeException>() {
+
+            @Override
+            public void visitByte(CompoundKey<?> key, byte value) {
+                values.put(key.getKeyName(), "byte " + value);
+            }
+
+            @Override
+            public void visitDouble(CompoundKey<?> key, double value) {
+                values.put(key.getKeyName(), "double " + value);
+            }
+
+            @Override
+            public void visitFloat(CompoundKey<?> key, float value) {
+                values.put(key.getKeyName(), "float " + value);
+            }
+
+            @Override
+            public void visitInt(CompoundKey<?> key, int value) {
+                values.put(key.getKeyName(), "int " + value);
+            }
+
+            @Override
+            public void visitLong(CompoundKey<?> key, long value) {
+                values.put(key.getKeyName(), "long " + value);
+            }
+
+            @Override
+            public void visitObject(CompoundKey<?> key, Object value) {
+                values.put(key.getKeyName(), value);
+            }
+
+            @Override
+            public void visitShort(CompoundKey<?> key, short value) {
+                values.put(key.getKeyName(), "short " + value);
+            }
+        });
+        assertEquals(7, values.size());
+        assertEquals("byte 1", values.get("Byte"));
+        assertEquals("short 2", values.get("Short"));
+        assertEquals("int 3", values.get("Int"));
+        assertEquals("long 4", values.get("Long"));
+        assertEquals("float 5.5", values.get("Float"));
+        assertEquals("double 6.5", values.get("Double"));
+        assertEquals("seven", values.get("String"));
+    }
+}
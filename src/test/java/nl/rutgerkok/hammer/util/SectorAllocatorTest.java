@@ -0,0 +1,149 @@
+package nl.rutgerkok.hammer.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public final class SectorAllocatorTest {
+
+    @Test
+    public void testAllocateBestFit() {
+        SectorAllocator allocator = new SectorAllocator(20);
+        allocator.markUsed(0, 20);
+        allocator.free(2, 5); // Run of 5
+        allocator.free(10, 2); // Run of 2
+        allocator.free(15, 3); // Run of 3
+
+        assertEquals(10, allocator.allocate(2));
+        assertEquals(15, allocator.allocate(2));
+        assertEquals(17, allocator.allocate(1));
+        assertEquals(2, allocator.allocate(4));
+        assertEquals(-1, allocator.allocate(2));
+        assertEquals(1, allocator.getStatistics().getFreeSectorCount());
+    }
+
+    @Test
+    public void testAllocateFirstFit() {
+        SectorAllocator allocator = new SectorAllocator(20);
+        allocator.markUsed(0, 20);
+        allocator.free(2, 5); // Run of 5
+        allocator.free(10, 2); // Run of 2
+        allocator.free(15, 3); // Run of 3
+
+        assertEquals(2, allocator.allocateFirstFit(2, 20)); // Not best-fit
+        assertEquals(-1, allocator.allocateFirstFit(3, 6)); // Would end at 7
+        assertEquals(4, allocator.allocateFirstFit(3, 7));
+        assertEquals(-1, allocator.allocateFirstFit(3, 17));
+        assertEquals(10, allocator.allocateFirstFit(1, 20));
+    }
+
+    @Test
+    public void testCoalescing() {
+        SectorAllocator allocator = new SectorAllocator(10);
+        allocator.markUsed(0, 10);
+        allocator.free(2, 2);
+        allocator.free(6, 2);
+        assertEquals(2, allocator.getStatistics().getFreeRunCount());
+
+        // Fill the gap, should result in a single run from 2 to 8
+        allocator.free(4, 2);
+        SectorAllocator.Statistics statistics = allocator.getStatistics();
+        assertEquals(1, statistics.getFreeRunCount());
+        assertEquals(6, statistics.getLargestFreeRun());
+        assertEquals(6, statistics.getFreeSectorCount());
+        assertEquals(0, statistics.getFragmentation(), 0.0001);
+    }
+
+    @Test
+    public void testDoubleFree() {
+        SectorAllocator allocator = new SectorAllocator(10);
+        allocator.markUsed(0, 10);
+        allocator.free(3, 4);
+        allocator.free(2, 6);
+
+        assertEquals(6, allocator.getStatistics().getFreeSectorCount());
+        assertEquals(1, allocator.getStatistics().getFreeRunCount());
+    }
+
+    @Test
+    public void testFragmentation() {
+        SectorAllocator allocator = new SectorAllocator(10);
+        allocator.markUsed(0, 10);
+        allocator.free(1, 1);
+        allocator.free(3, 1);
+        allocator.free(5, 2);
+
+        SectorAllocator.Statistics statistics = allocator.getStatistics();
+        assertEquals(3, statistics.getFreeRunCount());
+        assertEquals(2, statistics.getLargestFreeRun());
+        assertEquals(0.5, statistics.getFragmentation(), 0.0001);
+    }
+
+    @Test
+    public void testGrow() {
+        SectorAllocator allocator = new SectorAllocator(5);
+        allocator.markUsed(0, 3);
+
+        // Free sectors at the end are reused
+        assertEquals(3, allocator.grow(4));
+        assertEquals(7, allocator.size());
+        assertEquals(0, allocator.getStatistics().getFreeSectorCount());
+
+        assertEquals(7, allocator.grow(2));
+        assertEquals(9, allocator.size());
+    }
+
+    @Test
+    public void testGrowKeepsRestOfFreeRun() {
+        SectorAllocator allocator = new SectorAllocator(10);
+        allocator.markUsed(0, 3);
+
+        // Trailing free run is longer than needed
+        assertEquals(3, allocator.grow(2));
+        assertEquals(10, allocator.size());
+        assertEquals(5, allocator.getStatistics().getFreeSectorCount());
+        assertFalse(allocator.isFree(4));
+        assertTrue(allocator.isFree(5));
+        assertTrue(allocator.isFree(9));
+
+        // The rest can still be used
+        assertEquals(5, allocator.grow(5));
+        assertEquals(10, allocator.size());
+        assertEquals(0, allocator.getStatistics().getFreeSectorCount());
+    }
+
+    @Test
+    public void testShrinkToFit() {
+        SectorAllocator allocator = new SectorAllocator(10);
+        allocator.markUsed(0, 10);
+        assertEquals(10, allocator.shrinkToFit());
+
+        allocator.free(4, 2);
+        allocator.free(7, 3);
+        assertEquals(7, allocator.shrinkToFit());
+        assertEquals(2, allocator.getStatistics().getFreeSectorCount());
+        assertEquals(7, allocator.size());
+    }
+
+    @Test
+    public void testMarkUsed() {
+        SectorAllocator allocator = new SectorAllocator(10);
+        allocator.markUsed(3, 2);
+        allocator.markUsed(4, 2); // Overlaps
+
+        assertTrue(allocator.isFree(2));
+        assertFalse(allocator.isFree(3));
+        assertFalse(allocator.isFree(5));
+        assertTrue(allocator.isFree(6));
+        assertEquals(2, allocator.getStatistics().getFreeRunCount());
+        assertEquals(7, allocator.getStatistics().getFreeSectorCount());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testOutOfBounds() {
+        SectorAllocator allocator = new SectorAllocator(10);
+        allocator.free(8, 3);
+    }
+}
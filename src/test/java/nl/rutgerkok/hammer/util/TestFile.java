@@ -1,11 +1,44 @@
 package nl.rutgerkok.hammer.util;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.stream.Stream;
 
 public final class TestFile {
 
+    /**
+     * Copies a test world to the given directory, so that it can be modified
+     * without touching the original test files.
+     *
+     * @param name
+     *            Name of the world directory. Must not be prefixed with a /.
+     * @param target
+     *            The directory to copy to.
+     * @return The level.dat file of the copy.
+     * @throws IOException
+     *             If copying fails.
+     */
+    public static final Path copyWorld(String name, Path target) throws IOException {
+        Path source = get(name);
+        try (Stream<Path> files = Files.walk(source)) {
+            files.forEach(file -> {
+                try {
+                    Files.copy(file, target.resolve(source.relativize(file).toString()));
+                } catch (IOException e) {
+                    if (!Files.isDirectory(file)) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return target.resolve("level.dat");
+    }
+
     /**
      * Gets a test file with the given name.
      *